@@ -2,18 +2,26 @@ package com.abusalimov.mrcalc;
 
 import com.abusalimov.mrcalc.ast.ProgramNode;
 import com.abusalimov.mrcalc.backend.Backend;
+import com.abusalimov.mrcalc.backend.impl.asm.AsmBackendImpl;
 import com.abusalimov.mrcalc.backend.impl.bytebuddy.BytebuddyBackendImpl;
+import com.abusalimov.mrcalc.backend.impl.bytebuddy.ClassLoaderArena;
 import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncBackendImpl;
+import com.abusalimov.mrcalc.backend.impl.methodhandle.MethodHandleBackendImpl;
+import com.abusalimov.mrcalc.backend.impl.tiered.TieredBackendImpl;
 import com.abusalimov.mrcalc.compile.CompileErrorException;
 import com.abusalimov.mrcalc.compile.Compiler;
+import com.abusalimov.mrcalc.compile.FunctionCache;
 import com.abusalimov.mrcalc.compile.Stmt;
 import com.abusalimov.mrcalc.diagnostic.Diagnostic;
 import com.abusalimov.mrcalc.diagnostic.DiagnosticListener;
 import com.abusalimov.mrcalc.parse.Parser;
 import com.abusalimov.mrcalc.parse.SyntaxErrorException;
-import com.abusalimov.mrcalc.parse.impl.antlr.ANTLRParserImpl;
+import com.abusalimov.mrcalc.parse.impl.antlr.IncrementalParserImpl;
+import com.abusalimov.mrcalc.runtime.CancellationToken;
+import com.abusalimov.mrcalc.runtime.ParallelMode;
 import com.abusalimov.mrcalc.runtime.Runtime;
 import com.abusalimov.mrcalc.runtime.RuntimeErrorException;
+import com.abusalimov.mrcalc.runtime.impl.forkjoin.ForkJoinRuntime;
 import com.abusalimov.mrcalc.runtime.impl.stream.StreamRuntime;
 
 import java.io.OutputStream;
@@ -22,23 +30,76 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * Facade class that runs on a separate thread.
+ * <p>
+ * All executions share a single long-lived pool. An execution is cancelled by means of a {@link CancellationToken},
+ * which the runtime checks while splitting the work and processing chunks of elements, so that the worker threads are
+ * kept alive and immediately available for the next execution. The pool also runs the independent statements of a
+ * program concurrently.
+ * <p>
+ * The results of the statements are cached across the executions, so that executing an edited program only runs the
+ * statements that have changed, and the ones depending on them.
  *
  * @author - Eldar Abusalimov
  */
 public class CalcExecutor {
-    private ExecutorService executor;
+    private final ForkJoinPool pool;
+    private final ResultCache resultCache = new ResultCache();
+    /**
+     * Parses the source incrementally, only the statements edited since the last execution.
+     */
+    private final Parser parser = new IncrementalParserImpl();
+    private CancellationToken cancellationToken;
     private BackendImplSwitch backendImplSwitch = BackendImplSwitch.DEFAULT;
-    private boolean isParallel = true;
-    private boolean executionInProgress;
+    private RuntimeImplSwitch runtimeImplSwitch = RuntimeImplSwitch.DEFAULT;
+    private ParallelMode parallelMode = ParallelMode.ADAPTIVE;
+    private long statementTimeoutMillis;
+    private RetentionPolicy retentionPolicy = RetentionPolicy.RELEASE_DEAD;
+    private long memoryBudget = java.lang.Runtime.getRuntime().maxMemory() / 2;
+    private int executionsInProgress;
     private List<Consumer<Boolean>> listeners = new LinkedList<>();
 
+    /**
+     * Creates a new executor with a pool of parallelism equal to the number of available processors.
+     */
+    public CalcExecutor() {
+        this(new ForkJoinPool());
+    }
+
+    /**
+     * Creates a new executor with a pool of the specified parallelism.
+     *
+     * @param parallelism the number of worker threads
+     * @throws IllegalArgumentException if the parallelism is not positive
+     */
+    public CalcExecutor(int parallelism) {
+        this(new ForkJoinPool(parallelism));
+    }
+
+    /**
+     * Creates a new executor running all the executions in the given pool.
+     *
+     * @param pool the pool to run the executions in
+     */
+    public CalcExecutor(ForkJoinPool pool) {
+        this.pool = Objects.requireNonNull(pool, "pool");
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
     public BackendImplSwitch getBackendImplSwitch() {
         return backendImplSwitch;
     }
@@ -47,6 +108,14 @@ public class CalcExecutor {
         this.backendImplSwitch = Objects.requireNonNull(backendImplSwitch, "backendImplSwitch");
     }
 
+    public RuntimeImplSwitch getRuntimeImplSwitch() {
+        return runtimeImplSwitch;
+    }
+
+    public void setRuntimeImplSwitch(RuntimeImplSwitch runtimeImplSwitch) {
+        this.runtimeImplSwitch = Objects.requireNonNull(runtimeImplSwitch, "runtimeImplSwitch");
+    }
+
     /**
      * Compiles the source code and post an execution task.
      *
@@ -74,52 +143,70 @@ public class CalcExecutor {
             throws CompileErrorException, SyntaxErrorException {
         cancel();
         List<Stmt> stmts = compile(sourceCode);
-        (executor = new ForkJoinPool()).submit(() -> run(stmts, outputStreamSupplier, diagnosticListener));
+        CancellationToken token = cancellationToken = new CancellationToken();
+        Runtime runtime = runtimeImplSwitch.createRuntime(pool, parallelMode, token);
+        pool.submit(() -> run(stmts, runtime, token, outputStreamSupplier, diagnosticListener));
     }
 
     /**
      * Cancels all running executions, if any.
+     * <p>
+     * The cancelled execution stops once the runtime notices the cancellation, and then reports a {@link
+     * CancellationException} to its diagnostic listener.
      */
     public synchronized void cancel() {
-        if (executor != null) {
-            executor.shutdownNow();
-            executor = null;
+        if (cancellationToken != null) {
+            cancellationToken.cancel();
+            cancellationToken = null;
         }
     }
 
     private List<Stmt> compile(String sourceCode) throws CompileErrorException, SyntaxErrorException {
-        Parser parser = new ANTLRParserImpl();
         Backend backend = backendImplSwitch.getBackend();
-        Compiler compiler = new Compiler(backend);
+        Compiler compiler = new Compiler(backend, backendImplSwitch.getFunctionCache());
         ProgramNode node = parser.parse(sourceCode);
         return compiler.compile(node);
     }
 
-    private void run(List<Stmt> stmts, Supplier<OutputStream> outputStreamSupplier,
-                     DiagnosticListener diagnosticListener) {
-        Runtime runtime = new StreamRuntime(isParallel);
-        Interpreter interpreter = new Interpreter(runtime);
-
-        fireExecutionListeners(true);
-        try (PrintStream printStream = new PrintStream(outputStreamSupplier.get())) {
-            interpreter.setOutStream(printStream);
-            for (Stmt stmt : stmts) {
-                if (Thread.interrupted()) {
-                    /*
-                     * Generally, this can only happen when the runtime doesn't use a ForkJoin pool,
-                     * thus doesn't support natural cancellation (StreamRuntime with parallel=false is an example).
-                     */
+    private void run(List<Stmt> stmts, Runtime runtime, CancellationToken token,
+                     Supplier<OutputStream> outputStreamSupplier, DiagnosticListener diagnosticListener) {
+        long timeoutMillis = statementTimeoutMillis;
+        Interpreter interpreter = new Interpreter(runtime) {
+            @Override
+            protected void execStmt(Stmt stmt) throws RuntimeErrorException {
+                if (token.isCancelled()) {
                     throw new RuntimeErrorException(new Diagnostic(stmt.getLocation(),
                             new CancellationException().toString()));
                 }
+                if (timeoutMillis > 0) {
+                    token.setDeadline(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+                }
                 try {
-                    interpreter.exec(stmt);
+                    super.execStmt(stmt);
                 } catch (RuntimeErrorException e) {
                     throw e;
                 } catch (Throwable e) {
                     throw new RuntimeErrorException(new Diagnostic(stmt.getLocation(), e.toString()));
                 }
             }
+        };
+        interpreter.setRetentionPolicy(retentionPolicy);
+        interpreter.setMemoryBudget(memoryBudget);
+        interpreter.setResultCache(resultCache);
+        if (timeoutMillis == 0) {
+            /* The deadline of the token is common for all the statements running at the same time. */
+            interpreter.setExecutor(pool);
+        }
+
+        fireExecutionListeners(true);
+        try (PrintStream printStream = new PrintStream(outputStreamSupplier.get())) {
+            interpreter.setOutStream(printStream);
+            interpreter.exec(stmts);
+            /* Only the results of the current program are worth keeping for the next execution. */
+            resultCache.retainAll(stmts.stream()
+                    .map(Stmt::getFingerprint)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toSet()));
         } catch (RuntimeErrorException e) {
             if (diagnosticListener != null) {
                 e.getDiagnostics().forEach(diagnosticListener::report);
@@ -131,37 +218,118 @@ public class CalcExecutor {
 
     public synchronized void addAndFireExecutionListener(Consumer<Boolean> listener) {
         listeners.add(listener);
-        listener.accept(executionInProgress);
+        listener.accept(executionsInProgress > 0);
     }
 
-    protected synchronized void fireExecutionListeners(boolean executionInProgress) {
-        this.executionInProgress = executionInProgress;
+    /**
+     * Notifies the listeners about an execution being started or finished. A cancelled execution may still be
+     * finishing while the next one is already running, so the listeners are only told that there is no execution in
+     * progress once the last one finishes.
+     *
+     * @param executionStarted whether an execution has started or finished
+     */
+    protected synchronized void fireExecutionListeners(boolean executionStarted) {
+        executionsInProgress += executionStarted ? 1 : -1;
+        boolean executionInProgress = (executionsInProgress > 0);
         listeners.forEach(listener -> listener.accept(executionInProgress));
     }
 
-    public boolean isParallel() {
-        return isParallel;
+    public ParallelMode getParallelMode() {
+        return parallelMode;
+    }
+
+    public void setParallelMode(ParallelMode parallelMode) {
+        this.parallelMode = Objects.requireNonNull(parallelMode, "parallelMode");
+    }
+
+    public long getStatementTimeoutMillis() {
+        return statementTimeoutMillis;
     }
 
-    public void setParallel(boolean isParallel) {
-        this.isParallel = isParallel;
+    /**
+     * Limits the time a single statement may run. A statement running for longer is stopped by the runtime the same
+     * way as a cancelled one.
+     * <p>
+     * Unless there is a limit, the independent statements of a program run concurrently. With a limit set, the
+     * statements run one by one, so that each of them gets the whole time for itself.
+     *
+     * @param statementTimeoutMillis the time limit in milliseconds, or zero for no limit
+     * @throws IllegalArgumentException if the timeout is negative
+     */
+    public void setStatementTimeoutMillis(long statementTimeoutMillis) {
+        if (statementTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+        this.statementTimeoutMillis = statementTimeoutMillis;
+    }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    /**
+     * Sets the policy of releasing the values of the variables once the rest of the program doesn't use them, which
+     * applies to the executions started afterwards.
+     * <p>
+     * Each execution runs the whole program with an interpreter of its own, so no later input can refer to the
+     * variables of the previous one, and by default all the dead values are released. The results of the unchanged
+     * statements are still reused, since the {@link #getResultCache() result cache} keeps them on its own.
+     *
+     * @param retentionPolicy the retention policy
+     * @see Interpreter#setRetentionPolicy(RetentionPolicy)
+     */
+    public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = Objects.requireNonNull(retentionPolicy, "retentionPolicy");
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Limits the memory held by the sequences stored in the variables, which applies to the executions started
+     * afterwards. By default, the sequences may occupy a half of the maximum heap size, and the rest of them are
+     * recomputed in case the garbage collector reclaims them.
+     *
+     * @param memoryBudget the budget in bytes
+     * @throws IllegalArgumentException if the budget is negative
+     * @see Interpreter#setMemoryBudget(long)
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Negative memory budget");
+        }
+        this.memoryBudget = memoryBudget;
     }
 
     /**
      * A switch for {@link Backend} implementations.
      */
     public enum BackendImplSwitch {
+        FUSED_BYTECODE("JVM Bytecode, Fused Loops", new BytebuddyBackendImpl(true)),
         BYTECODE("JVM Bytecode", new BytebuddyBackendImpl()),
+        METHOD_HANDLES("Method Handles", new MethodHandleBackendImpl()),
+        ASM_BYTECODE("JVM Bytecode, ASM", new AsmBackendImpl()),
+        TIERED("Tiered, compiling hot lambdas", new TieredBackendImpl()),
         INTERPRETED("Interpreted", new FuncBackendImpl());
 
-        public static final BackendImplSwitch DEFAULT = BYTECODE;
+        public static final BackendImplSwitch DEFAULT = FUSED_BYTECODE;
 
         private final String name;
         private final Backend backend;
+        private final FunctionCache<?> functionCache = new FunctionCache<>();
 
         BackendImplSwitch(String name, Backend backend) {
             this.name = name;
             this.backend = backend;
+
+            if (backend instanceof BytebuddyBackendImpl) {
+                /* Let the classes of evicted regions unload, once the programs using them are gone. */
+                ClassLoaderArena arena = ((BytebuddyBackendImpl) backend).getArena();
+                arena.addEvictionListener(classLoader -> functionCache.removeIf(
+                        function -> function.getClass().getClassLoader() == classLoader));
+                functionCache.setHitListener(arena::touch);
+            }
         }
 
         public String getName() {
@@ -171,5 +339,56 @@ public class CalcExecutor {
         public Backend getBackend() {
             return backend;
         }
+
+        /**
+         * Returns the cache of functions assembled by the backend, which lets subsequent executions only compile the
+         * statements that have changed.
+         *
+         * @return the function cache
+         */
+        public FunctionCache<?> getFunctionCache() {
+            return functionCache;
+        }
+    }
+
+    /**
+     * A switch for {@link Runtime} implementations.
+     */
+    public enum RuntimeImplSwitch {
+        STREAM("Java 8 Streams", (pool, parallelMode, token) -> new StreamRuntime(parallelMode, token)),
+        FORK_JOIN("Fork/Join tasks", (pool, parallelMode, token) -> new ForkJoinRuntime(pool,
+                ForkJoinRuntime.DEFAULT_GRAIN_SIZE, parallelMode, token));
+
+        public static final RuntimeImplSwitch DEFAULT = STREAM;
+
+        private final String name;
+        private final RuntimeFactory runtimeFactory;
+
+        RuntimeImplSwitch(String name, RuntimeFactory runtimeFactory) {
+            this.name = name;
+            this.runtimeFactory = runtimeFactory;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Creates a new runtime instance.
+         *
+         * @param pool              the pool the statements are executed in
+         * @param parallelMode      whether to use parallel operations
+         * @param cancellationToken the token to stop the computations once cancelled
+         * @return the new {@link Runtime} instance
+         */
+        public Runtime createRuntime(ForkJoinPool pool, ParallelMode parallelMode,
+                                     CancellationToken cancellationToken) {
+            return runtimeFactory.create(pool, parallelMode, cancellationToken);
+        }
+
+        @FunctionalInterface
+        private interface RuntimeFactory {
+            Runtime create(ForkJoinPool pool, ParallelMode parallelMode, CancellationToken cancellationToken);
+        }
     }
 }
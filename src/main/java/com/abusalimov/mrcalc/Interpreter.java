@@ -3,33 +3,58 @@ package com.abusalimov.mrcalc;
 import com.abusalimov.mrcalc.ast.ProgramNode;
 import com.abusalimov.mrcalc.compile.Stmt;
 import com.abusalimov.mrcalc.compile.Variable;
+import com.abusalimov.mrcalc.runtime.GlobalFrame;
 import com.abusalimov.mrcalc.runtime.Runtime;
 import com.abusalimov.mrcalc.runtime.RuntimeErrorException;
 
 import java.io.PrintStream;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The interpreter provides the necessary execution context for {@link #exec(List) running} compiled
  * {@link Stmt statements}.
+ * <p>
+ * Given an {@link #setExecutor(Executor) executor}, the interpreter runs the statements concurrently, as long as they
+ * don't depend on each other, which lets a program of many independent statements use all the cores, even if none of
+ * the statements is large enough to be parallelized by the runtime on its own.
+ * <p>
+ * The values of the variables are kept in a {@link GlobalFrame frame} in the slots assigned by the compiler, so an
+ * interpreter is meant to run the statements compiled by a single {@link com.abusalimov.mrcalc.compile.Compiler}.
+ * <p>
+ * Once a statement is executed, the values of the variables {@link Stmt#getDeadVariables() no longer used} by the
+ * rest of the statements are released according to the {@link #setRetentionPolicy(RetentionPolicy) retention
+ * policy}, so that a large sequence only needed by the next statement doesn't stay in memory for the whole session.
+ * The sequences that are retained are kept within a {@link #setMemoryBudget(long) memory budget}: the ones used least
+ * recently are only held softly, and if the garbage collector reclaims any of them, it is recomputed by running the
+ * statement defining it once again.
+ * <p>
+ * Given a {@link #setResultCache(ResultCache) result cache}, the interpreter reuses the results of the statements
+ * executed before, including the ones executed by another interpreter, instead of executing them again.
  *
  * @author Eldar Abusalimov
  */
 public class Interpreter {
     private final Runtime runtime;
-    private Map<Variable, Object> memory = new HashMap<>();
+    private final GlobalFrame frame = new GlobalFrame();
+    private final VariableCache cache;
     private PrintStream out;
+    private Executor executor;
+    private RetentionPolicy retentionPolicy = RetentionPolicy.RETAIN_ALL;
+    private ResultCache resultCache;
 
     public Interpreter(Runtime runtime) {
-        this.runtime = runtime;
+        this(runtime, null);
     }
 
     public Interpreter(Runtime runtime, PrintStream out) {
         this.runtime = runtime;
         this.out = out;
+        this.cache = new VariableCache(runtime, frame);
     }
 
     public Object exec(Stmt... stmts) throws RuntimeErrorException {
@@ -49,18 +74,152 @@ public class Interpreter {
      * @throws RuntimeErrorException in case of a runtime error
      */
     public Object exec(List<Stmt> stmts) throws RuntimeErrorException {
-        Object result = null;
+        if (stmts.isEmpty()) {
+            return null;
+        }
+        frame.ensureCapacity(stmts.stream().mapToInt(stmt -> stmt.getOutputVariable().getSlot()).max().getAsInt() + 1);
 
+        if (executor != null && stmts.size() > 1) {
+            return execConcurrently(stmts);
+        }
+        Object result = null;
         for (Stmt stmt : stmts) {
-            result = stmt.exec(runtime, memory);
-            if (out != null && stmt.shouldPrintResult()) {
-                out.println(result);
+            execStmt(stmt);
+            result = finishStmt(stmt);
+        }
+        return result;
+    }
+
+    /**
+     * Prints the result of an executed statement, if needed, and releases the values of the dead variables.
+     *
+     * @return the result of the statement
+     */
+    private Object finishStmt(Stmt stmt) throws RuntimeErrorException {
+        Object result = cache.get(stmt.getOutputVariable());
+        if (out != null && stmt.shouldPrintResult()) {
+            out.println(result);
+        }
+        for (Variable variable : stmt.getDeadVariables()) {
+            if (retentionPolicy.shouldRelease(variable)) {
+                release(variable);
             }
         }
+        return result;
+    }
 
+    private void release(Variable variable) {
+        cache.forget(variable);
+        frame.clear(variable.getSlot());
+    }
+
+    /**
+     * Schedules each statement to run on the executor once the statements defining its input variables are done, and
+     * prints the results in the order of the statements, as soon as all the preceding ones are printed.
+     * <p>
+     * The outcome is the same as if the statements were run one by one: in case of an error, the statements following
+     * the failed one are not started, the ones already running are waited for, and the variables they define are
+     * discarded.
+     * <p>
+     * The dead variables are released in the order of the statements as well, since a statement still using one may
+     * be running concurrently with the one using it last.
+     */
+    private Object execConcurrently(List<Stmt> stmts) throws RuntimeErrorException {
+        Map<Variable, CompletableFuture<Void>> producers = new HashMap<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(stmts.size());
+        AtomicInteger failedIndex = new AtomicInteger(stmts.size());
+
+        for (Stmt stmt : stmts) {
+            int index = futures.size();
+            CompletableFuture<?>[] dependencies = stmt.getInputVariables().stream()
+                    .map(producers::get)
+                    .filter(Objects::nonNull)
+                    .toArray(CompletableFuture<?>[]::new);
+            CompletableFuture<Void> future = CompletableFuture.allOf(dependencies).thenRunAsync(() -> {
+                if (index > failedIndex.get()) {
+                    throw new CancellationException();
+                }
+                try {
+                    execStmt(stmt);
+                } catch (RuntimeErrorException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            future.whenComplete((result, e) -> {
+                if (e != null) {
+                    failedIndex.accumulateAndGet(index, Math::min);
+                }
+            });
+            futures.add(future);
+            producers.put(stmt.getOutputVariable(), future);
+        }
+
+        Object result = null;
+        for (int i = 0; i < stmts.size(); i++) {
+            try {
+                futures.get(i).join();
+            } catch (CompletionException e) {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).exceptionally(t -> null).join();
+                stmts.subList(i + 1, stmts.size()).forEach(stmt -> release(stmt.getOutputVariable()));
+                throw unwrap(e);
+            }
+            result = finishStmt(stmts.get(i));
+        }
         return result;
     }
 
+    /**
+     * Unwraps the exception thrown by a failed statement. Since a statement only runs once its dependencies succeed,
+     * the first failed statement in the order of execution always fails with its own exception.
+     */
+    private static RuntimeErrorException unwrap(CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeErrorException) {
+            return (RuntimeErrorException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw e;
+    }
+
+    /**
+     * Executes a single statement saving the result into the frame, rematerializing its inputs first, if needed. This
+     * may be called concurrently for independent statements, if there is an {@link #getExecutor() executor}.
+     * <p>
+     * In case the {@link #getResultCache() result cache} holds the result of the statement, it is reused instead.
+     *
+     * @param stmt the statement to execute
+     * @throws RuntimeErrorException in case of a runtime error
+     */
+    protected void execStmt(Stmt stmt) throws RuntimeErrorException {
+        String fingerprint = (resultCache != null) ? stmt.getFingerprint() : null;
+        if (fingerprint != null) {
+            Object result = resultCache.get(fingerprint);
+            if (result != null) {
+                frame.set(stmt.getOutputVariable().getSlot(), result);
+                cache.store(stmt);
+                return;
+            }
+        }
+
+        List<Object> inputs = cache.acquire(stmt);
+        try {
+            stmt.exec(runtime, frame);
+        } finally {
+            /* Keeps the inputs from being reclaimed until the statement is done. */
+            inputs.clear();
+        }
+        cache.store(stmt);
+
+        if (fingerprint != null) {
+            resultCache.put(fingerprint, frame.get(stmt.getOutputVariable().getSlot()));
+        }
+    }
+
     public PrintStream getOutStream() {
         return out;
     }
@@ -68,4 +227,65 @@ public class Interpreter {
     public void setOutStream(PrintStream out) {
         this.out = out;
     }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    /**
+     * Sets the policy of releasing the values of the variables, which the rest of the statements being executed don't
+     * use. By default, the values of all the named variables are retained, so that the later input executed by the same
+     * interpreter, like in the {@link REPL}, can refer to them.
+     *
+     * @param retentionPolicy the retention policy
+     */
+    public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = Objects.requireNonNull(retentionPolicy, "retentionPolicy");
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the cache to look up the results of the statements in, and to put the results of the executed statements
+     * into.
+     *
+     * @param resultCache the result cache, or {@code null} to execute every statement
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public long getMemoryBudget() {
+        return cache.getBudget();
+    }
+
+    /**
+     * Limits the memory held by the sequences stored in the variables. The estimated memory used by the sequences
+     * beyond the budget may be reclaimed by the garbage collector under memory pressure, in which case they are
+     * recomputed once needed again, trading the CPU time for the memory.
+     *
+     * @param memoryBudget the budget in bytes, {@link Long#MAX_VALUE} by default
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Negative memory budget");
+        }
+        cache.setBudget(memoryBudget);
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor to run independent statements concurrently on, e.g. the pool of the runtime.
+     *
+     * @param executor the executor, or {@code null} to run the statements one by one in the calling thread
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
 }
@@ -0,0 +1,71 @@
+package com.abusalimov.mrcalc;
+
+import com.abusalimov.mrcalc.compile.Stmt;
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+import java.lang.ref.SoftReference;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the results of the statements executed by an {@link Interpreter}, keyed by the {@link Stmt#getFingerprint()
+ * fingerprints} of the statements, so that running an edited program again only executes the statements that have
+ * changed, or depend on the changed ones, and reuses the results of the rest.
+ * <p>
+ * The sequences are only held softly, letting the garbage collector reclaim them, in which case the statement is
+ * executed once again. A {@link Sequence#isLazy() lazy} sequence is never cached, since it is bound to the runtime
+ * of the execution, neither is a sequence of sequences, which may have lazy elements.
+ * <p>
+ * The cache is thread-safe, so that the statements can be executed concurrently.
+ *
+ * @author Eldar Abusalimov
+ */
+public class ResultCache {
+    private final Map<String, Object> results = new ConcurrentHashMap<>();
+
+    /**
+     * Looks up the result of a statement.
+     *
+     * @param fingerprint the fingerprint of the statement
+     * @return the result, or {@code null} if there is none
+     */
+    public Object get(String fingerprint) {
+        Object result = results.get(fingerprint);
+        return (result instanceof SoftReference) ? ((SoftReference<?>) result).get() : result;
+    }
+
+    /**
+     * Remembers the result of a statement, unless it is not reusable.
+     *
+     * @param fingerprint the fingerprint of the statement
+     * @param result      the result of executing the statement
+     */
+    public void put(String fingerprint, Object result) {
+        if (result instanceof Sequence) {
+            if (!isReusable((Sequence<?>) result)) {
+                return;
+            }
+            result = new SoftReference<>(result);
+        }
+        results.put(fingerprint, result);
+    }
+
+    private static boolean isReusable(Sequence<?> sequence) {
+        return (sequence instanceof Sequence.OfLong || sequence instanceof Sequence.OfDouble) && !sequence.isLazy();
+    }
+
+    /**
+     * Discards the results of all the statements except the given ones, e.g. the statements of the program that has
+     * been executed the last.
+     *
+     * @param fingerprints the fingerprints of the statements to keep the results of
+     */
+    public void retainAll(Collection<String> fingerprints) {
+        results.keySet().retainAll(fingerprints);
+    }
+
+    public int size() {
+        return results.size();
+    }
+}
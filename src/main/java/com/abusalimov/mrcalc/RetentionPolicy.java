@@ -0,0 +1,51 @@
+package com.abusalimov.mrcalc;
+
+import com.abusalimov.mrcalc.compile.Stmt;
+import com.abusalimov.mrcalc.compile.Variable;
+import com.abusalimov.mrcalc.compile.type.SequenceType;
+
+/**
+ * Tells an {@link Interpreter} which values to keep once they are {@link Stmt#getDeadVariables() dead}, that is, not
+ * used by the rest of the program being executed.
+ * <p>
+ * The values of the {@link Variable#isSynthetic() synthetic} variables, like the results of {@code print} statements,
+ * are always released, since nothing else can refer to them. The ones of the named variables are only worth keeping
+ * in an interactive session, where the later input may refer to them.
+ *
+ * @author Eldar Abusalimov
+ */
+public enum RetentionPolicy {
+    /**
+     * Keep the values of all the named variables.
+     */
+    RETAIN_ALL,
+    /**
+     * Keep the values of the named numeric variables, which are cheap to hold, but release the sequences.
+     */
+    RETAIN_SCALARS,
+    /**
+     * Release all the values once dead, so that the memory is only occupied by the working set of the program. The
+     * later input can't refer to the released variables, which makes it suitable for running a program as a whole.
+     */
+    RELEASE_DEAD;
+
+    /**
+     * Decides whether to release the value of a dead variable.
+     *
+     * @param variable the variable not used by the rest of the program
+     * @return true if the value should be released
+     */
+    public boolean shouldRelease(Variable variable) {
+        if (variable.isSynthetic()) {
+            return true;
+        }
+        switch (this) {
+            case RETAIN_ALL:
+                return false;
+            case RETAIN_SCALARS:
+                return variable.getType() instanceof SequenceType;
+            default:
+                return true;
+        }
+    }
+}
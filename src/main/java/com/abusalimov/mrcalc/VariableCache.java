@@ -0,0 +1,272 @@
+package com.abusalimov.mrcalc;
+
+import com.abusalimov.mrcalc.compile.Stmt;
+import com.abusalimov.mrcalc.compile.Variable;
+import com.abusalimov.mrcalc.runtime.GlobalFrame;
+import com.abusalimov.mrcalc.runtime.Runtime;
+import com.abusalimov.mrcalc.runtime.RuntimeErrorException;
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Keeps the sequences stored in a frame within a memory budget, making them rematerializable instead of holding all
+ * of them in memory.
+ * <p>
+ * The cache remembers the statement producing each variable. Once the estimated {@link
+ * Sequence#getMemoryFootprint() footprint} of the sequences held by the frame exceeds the budget, the least recently
+ * used ones are {@link GlobalFrame#soften(int) softened}, leaving it up to the garbage collector whether to reclaim
+ * them. A reclaimed sequence is recomputed by running its statement again, as soon as another statement needs it,
+ * along with any inputs of that statement that have been reclaimed or released in the meantime. The footprint of a
+ * sequence is estimated anew each time it is used, since a lazy one only occupies memory once materialized.
+ * <p>
+ * The bookkeeping is synchronized, so that the statements running concurrently have a consistent view of the frame.
+ * A variable is recomputed outside the lock though, by the first statement that needs it, and the other ones wait
+ * for that recomputation to complete instead of blocking the whole cache.
+ *
+ * @author Eldar Abusalimov
+ */
+class VariableCache {
+    private final Runtime runtime;
+    private final GlobalFrame frame;
+    private final Map<Variable, Stmt> producers = new HashMap<>();
+    /**
+     * The footprints of the sequences held strongly, in the order of their use, the least recently used first.
+     */
+    private final LinkedHashMap<Variable, Long> footprints = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The variables being recomputed, which slots are not touched by anyone but the recomputing thread.
+     */
+    private final Map<Variable, CompletableFuture<Object>> rematerializations = new HashMap<>();
+    /**
+     * The number of recomputations using each released variable, which is released again once the last one is done.
+     */
+    private final Map<Variable, Integer> temporaryUses = new HashMap<>();
+    private long totalFootprint;
+    private long budget = Long.MAX_VALUE;
+
+    VariableCache(Runtime runtime, GlobalFrame frame) {
+        this.runtime = runtime;
+        this.frame = frame;
+    }
+
+    synchronized long getBudget() {
+        return budget;
+    }
+
+    synchronized void setBudget(long budget) {
+        this.budget = budget;
+        trim(null);
+    }
+
+    /**
+     * Makes the inputs of the statement available in the frame, rematerializing the reclaimed ones.
+     *
+     * @param stmt the statement to be executed
+     * @return the objects held by the input variables, which must be kept reachable for the duration of the execution
+     * @throws RuntimeErrorException in case rematerializing a variable fails
+     */
+    List<Object> acquire(Stmt stmt) throws RuntimeErrorException {
+        List<Object> retained = new ArrayList<>();
+        for (Variable variable : stmt.getInputVariables()) {
+            retained.add(makeAvailable(variable, false));
+        }
+        return retained;
+    }
+
+    /**
+     * Returns the value of the variable, rematerializing it, if it has been reclaimed.
+     *
+     * @param variable the variable
+     * @return the value, or {@code null} if the variable is unbound
+     * @throws RuntimeErrorException in case rematerializing the variable fails
+     */
+    Object get(Variable variable) throws RuntimeErrorException {
+        Object value = makeAvailable(variable, false);
+        if (value != null) {
+            return value;
+        }
+        synchronized (this) {
+            return frame.get(variable.getSlot());
+        }
+    }
+
+    /**
+     * Makes the value of the variable available in the frame, rematerializing it, if it has been reclaimed, or, in
+     * case it is needed to rematerialize another one, released.
+     *
+     * @return the object held by the variable, or {@code null} for a primitive or unbound one
+     */
+    private Object makeAvailable(Variable variable, boolean transitive) throws RuntimeErrorException {
+        int slot = variable.getSlot();
+        Stmt producer;
+        CompletableFuture<Object> rematerialization;
+        synchronized (this) {
+            rematerialization = rematerializations.get(variable);
+            if (rematerialization == null) {
+                if (frame.isSoft(slot)) {
+                    Object value = frame.harden(slot);
+                    if (value != null) {
+                        charge(variable, value);
+                        return value;
+                    }
+                } else if (frame.isBound(slot)) {
+                    Object value = frame.getObject(slot);
+                    charge(variable, value);
+                    return value;
+                } else if (!transitive) {
+                    return null;
+                }
+                producer = producers.get(variable);
+                if (producer == null) {
+                    return null;
+                }
+                rematerialization = new CompletableFuture<>();
+                rematerializations.put(variable, rematerialization);
+            } else {
+                producer = null;
+            }
+        }
+
+        if (producer == null) {
+            return await(rematerialization);
+        }
+        try {
+            Object value = rematerialize(variable, producer);
+            rematerialization.complete(value);
+            return value;
+        } catch (RuntimeErrorException | RuntimeException | Error e) {
+            rematerialization.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                rematerializations.remove(variable);
+            }
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> rematerialization) throws RuntimeErrorException {
+        try {
+            return rematerialization.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeErrorException) {
+                throw (RuntimeErrorException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Runs the producer of the variable again, without holding the lock.
+     */
+    private Object rematerialize(Variable variable, Stmt producer) throws RuntimeErrorException {
+        List<Object> retained = new ArrayList<>();
+        List<Variable> temporaries = new ArrayList<>();
+        try {
+            for (Variable input : producer.getInputVariables()) {
+                synchronized (this) {
+                    int slot = input.getSlot();
+                    if (temporaryUses.containsKey(input) ||
+                        (!frame.isBound(slot) && !frame.isSoft(slot) && !rematerializations.containsKey(input))) {
+                        temporaryUses.merge(input, 1, Integer::sum);
+                        temporaries.add(input);
+                    }
+                }
+                retained.add(makeAvailable(input, true));
+            }
+            producer.exec(runtime, frame);
+        } finally {
+            /* The released inputs are only needed to rematerialize this variable. */
+            synchronized (this) {
+                for (Variable input : temporaries) {
+                    if (temporaryUses.merge(input, -1, Integer::sum) == 0) {
+                        temporaryUses.remove(input);
+                        forget(input);
+                        frame.clear(input.getSlot());
+                    }
+                }
+            }
+            retained.clear();
+        }
+
+        synchronized (this) {
+            Object value = frame.getObject(variable.getSlot());
+            charge(variable, value);
+            return value;
+        }
+    }
+
+    /**
+     * Records the statement that has been executed as the producer of its output variable, and puts its value into
+     * the cache. The inputs of the statement are charged anew, in case the statement has materialized them.
+     *
+     * @param stmt the executed statement
+     */
+    synchronized void store(Stmt stmt) {
+        for (Variable input : stmt.getInputVariables()) {
+            int slot = input.getSlot();
+            if (!frame.isSoft(slot) && frame.isBound(slot) && !rematerializations.containsKey(input)) {
+                charge(input, frame.getObject(slot));
+            }
+        }
+        Variable variable = stmt.getOutputVariable();
+        if (stmt.shouldPrintResult()) {
+            /* Nothing can refer to the printed values. */
+            return;
+        }
+        producers.put(variable, stmt);
+        charge(variable, frame.getObject(variable.getSlot()));
+    }
+
+    /**
+     * Stops accounting for the value of the variable, once it is released.
+     *
+     * @param variable the variable
+     */
+    synchronized void forget(Variable variable) {
+        Long footprint = footprints.remove(variable);
+        if (footprint != null) {
+            totalFootprint -= footprint;
+        }
+    }
+
+    /**
+     * Marks the variable as the most recently used one, and updates the footprint of its value.
+     */
+    private void charge(Variable variable, Object value) {
+        Long charged = footprints.get(variable);
+        long footprint = (value instanceof Sequence) ? ((Sequence<?>) value).getMemoryFootprint() : 0;
+        if (footprint > 0) {
+            footprints.put(variable, footprint);
+        } else if (charged != null) {
+            footprints.remove(variable);
+        }
+        long delta = footprint - ((charged != null) ? charged : 0);
+        if (delta != 0) {
+            totalFootprint += delta;
+            trim(variable);
+        }
+    }
+
+    /**
+     * Softens the least recently used sequences until the rest fit into the budget, except the one just used.
+     */
+    private void trim(Variable justUsed) {
+        for (Iterator<Map.Entry<Variable, Long>> it = footprints.entrySet().iterator();
+             it.hasNext() && totalFootprint > budget; ) {
+            Map.Entry<Variable, Long> entry = it.next();
+            if (entry.getKey() == justUsed) {
+                continue;
+            }
+            frame.soften(entry.getKey().getSlot());
+            totalFootprint -= entry.getValue();
+            it.remove();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.abusalimov.mrcalc.backend;
 
+import java.util.List;
+
 /**
  * The backend is responsible for creating callable functions from basic expressions.
  *
@@ -20,4 +22,55 @@ public interface Backend<E, F> {
      * @return the new {@link FunctionAssembler} instance
      */
     <R> FunctionAssembler<R, E, F> createFunctionAssembler(Class<R> returnType, Class<?>... parameterTypes);
+
+    /**
+     * Creates a new function assembler for a loop fusing a range, a chain of map() calls and a reduce() into a
+     * single {@link com.abusalimov.mrcalc.runtime.RangeFold}.
+     * <p>
+     * By default, fusion is not supported and the method returns null.
+     *
+     * @param accumulatorType the type of the reduction result
+     * @param elementTypes    the types of the loop variables, which are the range element followed by the results of
+     *                        each map() stage
+     * @param <R>             the type of the reduction result
+     * @return the new {@link RangeFoldAssembler} instance, or null if the backend doesn't fuse loops
+     */
+    default <R> RangeFoldAssembler<R, E, F> createRangeFoldAssembler(Class<R> accumulatorType,
+                                                                     Class<?>... elementTypes) {
+        return null;
+    }
+
+    /**
+     * Creates a new function assembler for a lambda capturing values computed outside of it, which are passed to
+     * the function as additional parameters following the ones of the lambda itself. An instance of such lambda is
+     * created by the {@link FunctionAssembler#lambda(Object, List)} method.
+     * <p>
+     * By default, capturing is not supported and the method returns null.
+     *
+     * @param returnType     the return type of the lambda
+     * @param parameterTypes the types of parameters taken by the lambda
+     * @param capturedTypes  the types of the captured values
+     * @param <R>            the return type
+     * @return the new {@link FunctionAssembler} instance, or null if the backend doesn't capture values
+     */
+    default <R> FunctionAssembler<R, E, F> createCapturingFunctionAssembler(Class<R> returnType,
+                                                                            Class<?>[] parameterTypes,
+                                                                            Class<?>[] capturedTypes) {
+        return null;
+    }
+
+    /**
+     * Returns the backend to be used for a single compilation, that is, for all the functions of one program.
+     * <p>
+     * A backend may group the functions assembled within a compilation, so that their resources are released together
+     * once the program is discarded. The returned instance shares the configuration of this backend, and the functions
+     * it assembles remain compatible with the ones of this backend.
+     * <p>
+     * By default, the backend doesn't group functions and returns itself.
+     *
+     * @return the backend for a new compilation
+     */
+    default Backend<E, F> forCompilation() {
+        return this;
+    }
 }
@@ -0,0 +1,49 @@
+package com.abusalimov.mrcalc.backend;
+
+import java.util.List;
+
+/**
+ * The part of an assembler binding the expressions to the very function being assembled, that is, loading its
+ * arguments and registering the lambdas it instantiates.
+ * <p>
+ * The rest of the expressions don't depend on the function, and any {@link FunctionAssembler} of the same backend can
+ * assemble them. This allows assembling a body of a function that is not an ordinary one, like a {@link
+ * RangeFoldAssembler fused loop}, with the help of an assembler of the enclosing function.
+ *
+ * @param <E> the expression type used by the implementation
+ * @param <F> the type of a function constructed and used internally by the backend implementation
+ * @author Eldar Abusalimov
+ */
+public interface BodyAssembler<E, F> {
+    /**
+     * Returns an {@link ArgumentLoad} instance capable for creating expressions loading an argument of the given
+     * parameter type.
+     *
+     * @param parameterType the type of the value to be loaded from the argument
+     * @return the {@link ArgumentLoad} instance
+     */
+    ArgumentLoad<E> getArgumentLoad(Class<?> parameterType);
+
+    /**
+     * Registers a given lambda function and creates an expression loading an instance that lambda.
+     *
+     * @param function the lambda to register
+     * @return the expression loading a value of the specified variable
+     */
+    E lambda(F function);
+
+    /**
+     * Registers a given lambda function {@link Backend#createCapturingFunctionAssembler(Class, Class[], Class[])
+     * capturing} values, and creates an expression instantiating that lambda bound to the values of the given
+     * expressions. The captured expressions are evaluated once per instance.
+     * <p>
+     * Only used with backends supporting capturing, and throws {@link UnsupportedOperationException} by default.
+     *
+     * @param function      the lambda to register
+     * @param capturedExprs the expressions of the captured values
+     * @return the expression creating an instance of the lambda
+     */
+    default E lambda(F function, List<E> capturedExprs) {
+        throw new UnsupportedOperationException("Capturing lambdas");
+    }
+}
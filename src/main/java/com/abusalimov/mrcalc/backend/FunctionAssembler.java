@@ -10,16 +10,7 @@ import com.abusalimov.mrcalc.runtime.Evaluable;
  * @param <F> the type of a function constructed and used internally by the backend implementation
  * @author Eldar Abusalimov
  */
-public interface FunctionAssembler<R, E, F> {
-    /**
-     * Returns an {@link ArgumentLoad} instance capable for creating expressions loading an argument of the given
-     * parameter type.
-     *
-     * @param parameterType the type of the value to be loaded from the argument
-     * @return the {@link ArgumentLoad} instance
-     */
-    ArgumentLoad<E> getArgumentLoad(Class<?> parameterType);
-
+public interface FunctionAssembler<R, E, F> extends BodyAssembler<E, F> {
     /**
      * Gets a {@link NumberMath} instance suitable for assembling expressions of the given numeric type.
      *
@@ -67,20 +58,68 @@ public interface FunctionAssembler<R, E, F> {
     SequenceMap<E, E, E> getSequenceMap(Class<?> returnElementType, Class<?> elementType);
 
     /**
-     * Creates a function that can be used to construct a {@link #lambda(Object)} or {@link Evaluable} later on.
+     * Returns a {@link SequenceReduce} instance suitable for assembling a reduction that is known to sum the elements
+     * of the sequence up. The implementation may take advantage of this fact to evaluate the sum in a closed form.
+     * <p>
+     * By default it is the same as an ordinary {@link #getSequenceReduce(Class) reduction}.
      *
-     * @param expr the resulting expression
-     * @return an object representing the function evaluating the expression
+     * @param returnType the result type of the reduction to be assembled
+     * @return the {@link SequenceReduce} instance
      */
-    F assemble(E expr);
+    default SequenceReduce<E, E, E> getSequenceSum(Class<?> returnType) {
+        return getSequenceReduce(returnType);
+    }
 
     /**
-     * Registers a given lambda function and creates an expression loading an instance that lambda.
+     * Returns a {@link SequenceMap} instance suitable for assembling a mapping of a sequence of integers with a lambda
+     * that is known to compute an integer polynomial of the given degree.
+     * <p>
+     * By default it is the same as an ordinary {@link #getSequenceMap(Class, Class) mapping}.
      *
-     * @param function the lambda to register
-     * @return the expression loading a value of the specified variable
+     * @param elementType the type of elements of both the source and the resulting sequences
+     * @param degree      the degree of the polynomial
+     * @return the {@link SequenceMap} instance
      */
-    E lambda(F function);
+    default SequenceMap<E, E, E> getSequencePolynomialMap(Class<?> elementType, int degree) {
+        return getSequenceMap(elementType, elementType);
+    }
+
+    /**
+     * Returns a {@link SequenceMap} instance suitable for assembling a mapping of a sequence of primitives with a
+     * lambda that is known to compute the same function as the given {@link com.abusalimov.mrcalc.runtime.ArithmeticKernel
+     * kernel program}.
+     * <p>
+     * By default it is the same as an ordinary {@link #getSequenceMap(Class, Class) mapping}.
+     *
+     * @param elementType the type of elements of both the source and the resulting sequences
+     * @param program     the kernel program equivalent to the lambda
+     * @return the {@link SequenceMap} instance
+     */
+    default SequenceMap<E, E, E> getSequenceKernelMap(Class<?> elementType, String program) {
+        return getSequenceMap(elementType, elementType);
+    }
+
+    /**
+     * Returns a {@link SequenceRangeFold} instance suitable for assembling a call of a loop {@link
+     * RangeFoldAssembler#assembleFold(java.util.List, Object) fused} by the same backend.
+     * <p>
+     * Only used with backends {@link Backend#createRangeFoldAssembler(Class, Class[]) supporting} fusion, and throws
+     * {@link UnsupportedOperationException} by default.
+     *
+     * @param returnType the result type of the reduction to be assembled
+     * @return the {@link SequenceRangeFold} instance
+     */
+    default SequenceRangeFold<E, E> getSequenceRangeFold(Class<?> returnType) {
+        throw new UnsupportedOperationException("Loop fusion");
+    }
+
+    /**
+     * Creates a function that can be used to construct a {@link #lambda(Object)} or {@link Evaluable} later on.
+     *
+     * @param expr the resulting expression
+     * @return an object representing the function evaluating the expression
+     */
+    F assemble(E expr);
 
     /**
      * Completes the assembling and returns an {@link Evaluable} function accepting an array of values of the referenced
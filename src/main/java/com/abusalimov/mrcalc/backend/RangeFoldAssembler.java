@@ -0,0 +1,33 @@
+package com.abusalimov.mrcalc.backend;
+
+import java.util.List;
+
+/**
+ * The function assembler for a {@link com.abusalimov.mrcalc.runtime.RangeFold} fusing a {@code reduce(map(...map(range(a,
+ * b), ...), ...), neutral, lambda)} pipeline into a single counted loop over a chunk of the range.
+ * <p>
+ * The bodies of the map() lambdas and the reduce() lambda are assembled right within the loop. The assembler only
+ * binds them to the loop, and the rest of the expressions are assembled by the {@link FunctionAssembler} of the
+ * enclosing function. Instead of function arguments, the {@link #getArgumentLoad(Class) argument loads} access the
+ * loop variables: the slot zero is the accumulator, the slot one is the current element of the range, and the slot
+ * {@code k + 1} is the result of the {@code k}-th map() stage applied to the current element.
+ *
+ * @param <R> the type of the accumulator
+ * @param <E> the expression type used by the implementation
+ * @param <F> the type of a function constructed and used internally by the backend implementation
+ * @author Eldar Abusalimov
+ * @see Backend#createRangeFoldAssembler(Class, Class[])
+ */
+public interface RangeFoldAssembler<R, E, F> extends BodyAssembler<E, F> {
+    /**
+     * Creates a function folding a chunk of a range that can be used to construct a {@link
+     * FunctionAssembler#lambda(Object) lambda} of the enclosing function later on.
+     *
+     * @param stages     the bodies of the map() lambdas, in the order of applying them to an element of the range;
+     *                   the {@code k}-th body takes its argument from the slot {@code k + 1}
+     * @param accumulate the body of the reduce() lambda taking its arguments from the slot zero and the slot of the
+     *                   last stage
+     * @return an object representing the function of the loop
+     */
+    F assembleFold(List<E> stages, E accumulate);
+}
@@ -17,4 +17,20 @@ public interface SequenceMap<D, S, L> {
      * @return the expression performing the map() logic
      */
     D map(S sequence, L lambda);
+
+    /**
+     * Creates an expression mapping the result of the specified sequence expression using the given lambda, which is
+     * estimated to cost the specified number of operations per element.
+     * <p>
+     * The default implementation ignores the estimate.
+     *
+     * @param sequence   the expression yielding a sequence to map
+     * @param lambda     the expression to use for transforming each element of the sequence
+     * @param lambdaCost the estimated cost of a single invocation of the lambda, see {@link
+     *                   com.abusalimov.mrcalc.runtime.Runtime#withCostHint(long)}
+     * @return the expression performing the map() logic
+     */
+    default D map(S sequence, L lambda, long lambdaCost) {
+        return map(sequence, lambda);
+    }
 }
@@ -0,0 +1,29 @@
+package com.abusalimov.mrcalc.backend;
+
+/**
+ * Provides a {@link #fold(Object, Object, Object, Object, Object, long) method} for creating expressions performing a
+ * reduce() of a range mapped through a chain of map() calls, all fused into a single loop.
+ *
+ * @param <E> the type of expressions corresponding to the range boundaries, a neutral element and a resulting
+ *            reduction value; used by the implementation
+ * @param <L> the function type corresponding to the fused loop and the reduction lambda; used by the implementation
+ * @author Eldar Abusalimov
+ * @see RangeFoldAssembler
+ */
+public interface SequenceRangeFold<E, L> {
+    /**
+     * Creates an expression folding a range of integers using the given fused loop, and combining the results of
+     * chunks of the range folded in parallel using the reduction lambda.
+     *
+     * @param start      the expression yielding the start boundary of the range (inclusive)
+     * @param end        the expression yielding the end boundary of the range (inclusive)
+     * @param neutral    the expression yielding a neutral element
+     * @param fold       the function stub of the loop {@link RangeFoldAssembler#assembleFold(java.util.List, Object)
+     *                   assembled} for the whole pipeline
+     * @param combiner   the function stub of the reduction lambda
+     * @param lambdaCost the estimated cost of folding a single element of the range, see {@link
+     *                   com.abusalimov.mrcalc.runtime.Runtime#withCostHint(long)}
+     * @return the expression performing the fused reduce() logic
+     */
+    E fold(E start, E end, E neutral, L fold, L combiner, long lambdaCost);
+}
@@ -20,4 +20,22 @@ public interface SequenceReduce<E, S, L> {
      * @return the expression performing the reduce() logic
      */
     E reduce(S sequence, E neutral, L lambda);
+
+    /**
+     * Creates an expression reducing the result of the specified sequence expression using the given lambda, which is
+     * estimated to cost the specified number of operations per element.
+     * <p>
+     * The default implementation ignores the estimate.
+     *
+     * @param sequence   the expression yielding a sequence to reduce
+     * @param neutral    the expression yielding a neutral element
+     * @param lambda     the function stub to use to combine an accumulated return value with each element of the
+     *                   sequence
+     * @param lambdaCost the estimated cost of a single invocation of the lambda, see {@link
+     *                   com.abusalimov.mrcalc.runtime.Runtime#withCostHint(long)}
+     * @return the expression performing the reduce() logic
+     */
+    default E reduce(S sequence, E neutral, L lambda, long lambdaCost) {
+        return reduce(sequence, neutral, lambda);
+    }
 }
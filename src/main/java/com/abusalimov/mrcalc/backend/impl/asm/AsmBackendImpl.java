@@ -0,0 +1,22 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.backend.Backend;
+import com.abusalimov.mrcalc.backend.FunctionAssembler;
+
+/**
+ * The backend implementation emitting JVM bytecode directly with the ASM library shaded by ByteBuddy.
+ * <p>
+ * Unlike the {@link com.abusalimov.mrcalc.backend.impl.bytebuddy.BytebuddyBackendImpl ByteBuddy backend}, which
+ * generates a class per function and resolves type descriptions of every method call, this one writes a single
+ * {@link AsmStatementClass class} per expression statement in one pass, with all the lambdas of the statement being
+ * static methods of that class. Loop fusion is not supported.
+ *
+ * @author Eldar Abusalimov
+ */
+public class AsmBackendImpl implements Backend<AsmExpr, AsmFunction> {
+    @Override
+    public <R> FunctionAssembler<R, AsmExpr, AsmFunction> createFunctionAssembler(Class<R> returnType,
+                                                                                 Class<?>... parameterTypes) {
+        return new AsmFunctionAssembler<>(returnType, parameterTypes, AsmBackendImpl.class.getClassLoader());
+    }
+}
@@ -0,0 +1,28 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+/**
+ * The class loader of a single statement class, which gets unloaded along with the statement.
+ *
+ * @author Eldar Abusalimov
+ */
+public class AsmClassLoader extends ClassLoader {
+    /**
+     * Creates a new class loader resolving the runtime classes through the given parent.
+     *
+     * @param parent the parent class loader
+     */
+    public AsmClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    /**
+     * Defines the class of a statement.
+     *
+     * @param statementClass the generated statement class
+     * @return the loaded class
+     */
+    public Class<?> define(AsmStatementClass statementClass) {
+        byte[] classFile = statementClass.getClassFile();
+        return defineClass(statementClass.getName(), classFile, 0, classFile.length);
+    }
+}
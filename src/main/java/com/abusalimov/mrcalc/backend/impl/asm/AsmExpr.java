@@ -0,0 +1,20 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import net.bytebuddy.jar.asm.Type;
+
+/**
+ * An expression of the ASM backend, which emits the code evaluating itself into a method once the method is being
+ * generated.
+ *
+ * @author Eldar Abusalimov
+ */
+@FunctionalInterface
+public interface AsmExpr {
+    /**
+     * Emits the code leaving the result of the expression on the operand stack.
+     *
+     * @param method the method being generated
+     * @return the type of the value left on the stack
+     */
+    Type emit(AsmMethod method);
+}
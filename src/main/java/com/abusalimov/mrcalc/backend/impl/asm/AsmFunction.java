@@ -0,0 +1,89 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+import net.bytebuddy.jar.asm.Type;
+
+/**
+ * An assembled function, which is a static method yet to be emitted into a class.
+ * <p>
+ * The method takes the {@link Runtime} followed by the parameters of the function. A function doesn't belong to any
+ * particular class, so a function of a lambda can be shared by several statements: each statement class gets its own
+ * copy of the method.
+ *
+ * @author Eldar Abusalimov
+ */
+public class AsmFunction {
+    private final Class<?> returnType;
+    private final Class<?>[] parameterTypes;
+    private final AsmExpr body;
+
+    /**
+     * Creates a new function.
+     *
+     * @param returnType     the return type of the function
+     * @param parameterTypes the types of parameters taken by the function
+     * @param body           the expression evaluating the result
+     */
+    public AsmFunction(Class<?> returnType, Class<?>[] parameterTypes, AsmExpr body) {
+        this.returnType = returnType;
+        this.parameterTypes = parameterTypes;
+        this.body = body;
+    }
+
+    private static Type erase(Class<?> type) {
+        return Type.getType(type.isPrimitive() ? type : Object.class);
+    }
+
+    public Class<?> getReturnType() {
+        return returnType;
+    }
+
+    public Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    public AsmExpr getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the type of the static method, which takes the {@link Runtime} followed by the parameters.
+     *
+     * @return the method type
+     */
+    public Type getMethodType() {
+        Type[] argumentTypes = new Type[parameterTypes.length + 1];
+        argumentTypes[0] = Type.getType(Runtime.class);
+        for (int i = 0; i < parameterTypes.length; i++) {
+            argumentTypes[i + 1] = Type.getType(parameterTypes[i]);
+        }
+        return Type.getMethodType(Type.getType(returnType), argumentTypes);
+    }
+
+    /**
+     * Returns the type of the function without the runtime parameter.
+     *
+     * @return the method type
+     */
+    public Type getInstantiatedType() {
+        Type[] argumentTypes = new Type[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            argumentTypes[i] = Type.getType(parameterTypes[i]);
+        }
+        return Type.getMethodType(Type.getType(returnType), argumentTypes);
+    }
+
+    /**
+     * Returns the type of the function with all reference types replaced with {@link Object}, which is the type of
+     * the method of a functional interface implemented by a lambda.
+     *
+     * @return the method type
+     */
+    public Type getErasedType() {
+        Type[] argumentTypes = new Type[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            argumentTypes[i] = erase(parameterTypes[i]);
+        }
+        return Type.getMethodType(erase(returnType), argumentTypes);
+    }
+}
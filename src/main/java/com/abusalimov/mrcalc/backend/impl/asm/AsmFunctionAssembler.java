@@ -0,0 +1,115 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.backend.*;
+import com.abusalimov.mrcalc.runtime.Evaluable;
+import net.bytebuddy.jar.asm.Type;
+
+/**
+ * The function assembler emitting the bytecode of functions directly with ASM.
+ * <p>
+ * A function is assembled into a recipe of a static method, which is only emitted once the function is {@link
+ * #toEvaluable(AsmFunction) turned} into an expression statement: the class of the statement gets a method for the
+ * statement itself, and one for each lambda used by it, transitively.
+ *
+ * @param <R> the return type of the function
+ * @author Eldar Abusalimov
+ */
+public class AsmFunctionAssembler<R> implements FunctionAssembler<R, AsmExpr, AsmFunction> {
+    private final Class<R> returnType;
+    private final Class<?>[] parameterTypes;
+    private final ClassLoader parentClassLoader;
+
+    /**
+     * Creates a new assembler of a function of the given signature.
+     *
+     * @param returnType        the return type of the function
+     * @param parameterTypes    the types of parameters taken by the function
+     * @param parentClassLoader the class loader resolving the runtime classes for the statement classes
+     */
+    public AsmFunctionAssembler(Class<R> returnType, Class<?>[] parameterTypes, ClassLoader parentClassLoader) {
+        this.returnType = returnType;
+        this.parameterTypes = parameterTypes;
+        this.parentClassLoader = parentClassLoader;
+    }
+
+    @Override
+    public ArgumentLoad<AsmExpr> getArgumentLoad(Class<?> parameterType) {
+        Type type = Type.getType(parameterType);
+        return slot -> method -> {
+            method.convert(method.loadArgument(slot), type);
+            return type;
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends Number> NumberMath<T, AsmExpr> getNumberMath(Class<T> returnType) {
+        if (returnType == long.class) {
+            return (NumberMath<T, AsmExpr>) AsmNumberMath.LONG;
+        } else if (returnType == double.class) {
+            return (NumberMath<T, AsmExpr>) AsmNumberMath.DOUBLE;
+        }
+        throw new UnsupportedOperationException("Unknown Number class " + returnType);
+    }
+
+    @Override
+    public NumberCast<AsmExpr, AsmExpr> getNumberCast(Class<? extends Number> toType,
+                                                      Class<? extends Number> fromType) {
+        Type type = Type.getType(toType);
+        return expr -> method -> {
+            method.convert(expr.emit(method), type);
+            return type;
+        };
+    }
+
+    @Override
+    public SequenceRange<AsmExpr, AsmExpr> getSequenceRange(Class<? extends Number> elementType) {
+        return AsmSequenceRange.INSTANCE;
+    }
+
+    @Override
+    public SequenceReduce<AsmExpr, AsmExpr, AsmExpr> getSequenceReduce(Class<?> returnType) {
+        return AsmSequenceReduce.forType(returnType);
+    }
+
+    @Override
+    public SequenceReduce<AsmExpr, AsmExpr, AsmExpr> getSequenceSum(Class<?> returnType) {
+        return AsmSequenceReduce.sumForType(returnType);
+    }
+
+    @Override
+    public SequenceMap<AsmExpr, AsmExpr, AsmExpr> getSequenceMap(Class<?> returnElementType, Class<?> elementType) {
+        return AsmSequenceMap.forType(returnElementType, elementType);
+    }
+
+    @Override
+    public SequenceMap<AsmExpr, AsmExpr, AsmExpr> getSequencePolynomialMap(Class<?> elementType, int degree) {
+        return AsmSequenceMap.forPolynomial(elementType, degree);
+    }
+
+    @Override
+    public SequenceMap<AsmExpr, AsmExpr, AsmExpr> getSequenceKernelMap(Class<?> elementType, String program) {
+        return AsmSequenceMap.forKernel(elementType, program);
+    }
+
+    @Override
+    public AsmFunction assemble(AsmExpr expr) {
+        return new AsmFunction(returnType, parameterTypes, expr);
+    }
+
+    @Override
+    public AsmExpr lambda(AsmFunction function) {
+        return method -> method.loadLambda(function);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Evaluable<R> toEvaluable(AsmFunction function) {
+        AsmStatementClass statementClass = new AsmStatementClass(function);
+        try {
+            return (Evaluable<R>) new AsmClassLoader(parentClassLoader).define(statementClass).newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Could not instantiate " + statementClass.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+import net.bytebuddy.jar.asm.Handle;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.jar.asm.commons.GeneratorAdapter;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.*;
+
+/**
+ * A static method of a function being generated, which provides the expressions with the means of loading the
+ * arguments and the lambdas.
+ *
+ * @author Eldar Abusalimov
+ */
+public class AsmMethod {
+    private static final Type RUNTIME_TYPE = Type.getType(Runtime.class);
+    private static final Handle METAFACTORY = new Handle(Opcodes.H_INVOKESTATIC,
+            Type.getInternalName(LambdaMetafactory.class), "metafactory",
+            Type.getMethodDescriptor(Type.getType(CallSite.class), Type.getType(MethodHandles.Lookup.class),
+                    Type.getType(String.class), Type.getType(MethodType.class), Type.getType(MethodType.class),
+                    Type.getType(MethodHandle.class), Type.getType(MethodType.class)), false);
+
+    private static final Map<Type, Class<?>> functionInterfaceMap = new HashMap<>();
+    private static final Map<Type, String> functionInterfaceMethodNameMap = new HashMap<>();
+
+    static {
+        putFunctionInterfaceMethod(BinaryOperator.class, "apply", Object.class, Object.class);
+        putFunctionInterfaceMethod(LongBinaryOperator.class, "applyAsLong", long.class, long.class);
+        putFunctionInterfaceMethod(DoubleBinaryOperator.class, "applyAsDouble", double.class, double.class);
+
+        putFunctionInterfaceMethod(Function.class, "apply", Object.class);
+        putFunctionInterfaceMethod(LongFunction.class, "apply", long.class);
+        putFunctionInterfaceMethod(DoubleFunction.class, "apply", double.class);
+
+        putFunctionInterfaceMethod(ToLongFunction.class, "applyAsLong", Object.class);
+        putFunctionInterfaceMethod(LongUnaryOperator.class, "applyAsLong", long.class);
+        putFunctionInterfaceMethod(DoubleToLongFunction.class, "applyAsLong", double.class);
+
+        putFunctionInterfaceMethod(ToDoubleFunction.class, "applyAsDouble", Object.class);
+        putFunctionInterfaceMethod(LongToDoubleFunction.class, "applyAsDouble", long.class);
+        putFunctionInterfaceMethod(DoubleUnaryOperator.class, "applyAsDouble", double.class);
+    }
+
+    private final AsmStatementClass owner;
+    private final GeneratorAdapter code;
+    private final Type[] parameterTypes;
+
+    /**
+     * Creates a new method emitting the code of a function.
+     *
+     * @param owner    the class the method belongs to
+     * @param code     the generator of the method code
+     * @param function the function implemented by the method
+     */
+    public AsmMethod(AsmStatementClass owner, GeneratorAdapter code, AsmFunction function) {
+        this.owner = owner;
+        this.code = code;
+        this.parameterTypes = function.getInstantiatedType().getArgumentTypes();
+    }
+
+    private static void putFunctionInterfaceMethod(Class<?> cls, String name, Class<?>... parameterTypes) {
+        try {
+            Type methodType = Type.getType(cls.getMethod(name, parameterTypes));
+            functionInterfaceMap.put(methodType, cls);
+            functionInterfaceMethodNameMap.put(methodType, name);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException("Could not locate standard methods", e);
+        }
+    }
+
+    public GeneratorAdapter getCode() {
+        return code;
+    }
+
+    /**
+     * Loads the runtime passed to the function.
+     *
+     * @return the type of the runtime
+     */
+    public Type loadRuntime() {
+        code.loadArg(0);
+        return RUNTIME_TYPE;
+    }
+
+    /**
+     * Loads an argument of the function.
+     *
+     * @param slot the index of the function parameter
+     * @return the type of the parameter
+     */
+    public Type loadArgument(int slot) {
+        code.loadArg(slot + 1);
+        return parameterTypes[slot];
+    }
+
+    /**
+     * Loads an instance of the standard functional interface calling the given function with the runtime of this one.
+     *
+     * @param function the function of the lambda, which becomes a static method of the same class
+     * @return the type of the functional interface
+     * @throws UnsupportedOperationException if there is no standard functional interface of a matching signature
+     */
+    public Type loadLambda(AsmFunction function) {
+        Type erasedType = function.getErasedType();
+        Class<?> functionInterface = functionInterfaceMap.get(erasedType);
+        if (functionInterface == null) {
+            throw new UnsupportedOperationException("No functional interface for " + function.getInstantiatedType());
+        }
+        Type functionInterfaceType = Type.getType(functionInterface);
+
+        loadRuntime();
+        code.invokeDynamic(functionInterfaceMethodNameMap.get(erasedType),
+                Type.getMethodDescriptor(functionInterfaceType, RUNTIME_TYPE), METAFACTORY,
+                erasedType, owner.getMethodHandle(function), function.getInstantiatedType());
+        return functionInterfaceType;
+    }
+
+    /**
+     * Converts the value on the stack to the given type, boxing, unboxing or casting it as needed.
+     *
+     * @param from the type of the value on the stack
+     * @param to   the required type
+     */
+    public void convert(Type from, Type to) {
+        if (from.equals(to)) {
+            return;
+        }
+        boolean fromPrimitive = isPrimitive(from);
+        boolean toPrimitive = isPrimitive(to);
+        if (fromPrimitive && toPrimitive) {
+            code.cast(from, to);
+        } else if (fromPrimitive) {
+            code.valueOf(from);
+            convert(Type.getType(Object.class), to);
+        } else if (toPrimitive) {
+            code.unbox(to);
+        } else if (!to.equals(Type.getType(Object.class))) {
+            code.checkCast(to);
+        }
+    }
+
+    private static boolean isPrimitive(Type type) {
+        return type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY;
+    }
+}
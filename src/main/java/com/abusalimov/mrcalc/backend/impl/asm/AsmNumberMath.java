@@ -0,0 +1,102 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.backend.NumberMath;
+import com.abusalimov.mrcalc.runtime.Runtime;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.jar.asm.commons.GeneratorAdapter;
+import net.bytebuddy.jar.asm.commons.Method;
+
+/**
+ * Implements numeric math by emitting the arithmetic instructions of the primitive type.
+ *
+ * @param <T> the boxed type of numbers
+ * @author Eldar Abusalimov
+ */
+public class AsmNumberMath<T extends Number> implements NumberMath<T, AsmExpr> {
+    public static final AsmNumberMath<Long> LONG = new AsmNumberMath<>(long.class, "powLong");
+    public static final AsmNumberMath<Double> DOUBLE = new AsmNumberMath<>(double.class, "powDouble");
+
+    private static final Type UTIL_TYPE = Type.getType(Runtime.Util.class);
+    private static final Method DIV_LONG_METHOD = new Method("divLong", "(JJ)J");
+
+    private final Type type;
+    private final Method powMethod;
+
+    private AsmNumberMath(Class<?> type, String powMethodName) {
+        this.type = Type.getType(type);
+        try {
+            this.powMethod = Method.getMethod(Runtime.Util.class.getMethod(powMethodName, type, type));
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException("Could not locate math methods", e);
+        }
+    }
+
+    @Override
+    public AsmExpr constant(T literal) {
+        return method -> {
+            if (type.getSort() == Type.LONG) {
+                method.getCode().push(literal.longValue());
+            } else {
+                method.getCode().push(literal.doubleValue());
+            }
+            return type;
+        };
+    }
+
+    private AsmExpr math(int op, AsmExpr leftOperand, AsmExpr rightOperand) {
+        return method -> {
+            method.convert(leftOperand.emit(method), type);
+            method.convert(rightOperand.emit(method), type);
+            method.getCode().math(op, type);
+            return type;
+        };
+    }
+
+    @Override
+    public AsmExpr add(AsmExpr leftOperand, AsmExpr rightOperand) {
+        return math(GeneratorAdapter.ADD, leftOperand, rightOperand);
+    }
+
+    @Override
+    public AsmExpr sub(AsmExpr leftOperand, AsmExpr rightOperand) {
+        return math(GeneratorAdapter.SUB, leftOperand, rightOperand);
+    }
+
+    @Override
+    public AsmExpr mul(AsmExpr leftOperand, AsmExpr rightOperand) {
+        return math(GeneratorAdapter.MUL, leftOperand, rightOperand);
+    }
+
+    @Override
+    public AsmExpr div(AsmExpr leftOperand, AsmExpr rightOperand) {
+        if (type.getSort() != Type.LONG) {
+            return math(GeneratorAdapter.DIV, leftOperand, rightOperand);
+        }
+        /* Unlike LDIV, the runtime reports a zero divisor with a message, see Runtime.Util#divLong(). */
+        return method -> {
+            method.convert(leftOperand.emit(method), type);
+            method.convert(rightOperand.emit(method), type);
+            method.getCode().invokeStatic(UTIL_TYPE, DIV_LONG_METHOD);
+            return type;
+        };
+    }
+
+    @Override
+    public AsmExpr pow(AsmExpr leftOperand, AsmExpr rightOperand) {
+        return method -> {
+            method.convert(leftOperand.emit(method), type);
+            method.convert(rightOperand.emit(method), type);
+            method.getCode().invokeStatic(UTIL_TYPE, powMethod);
+            return type;
+        };
+    }
+
+    @Override
+    public AsmExpr neg(AsmExpr operand) {
+        return method -> {
+            method.convert(operand.emit(method), type);
+            method.getCode().math(GeneratorAdapter.NEG, type);
+            return type;
+        };
+    }
+}
@@ -0,0 +1,75 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.jar.asm.commons.Method;
+
+/**
+ * Helper class for constructing expressions calling a {@link Runtime} method.
+ *
+ * @author Eldar Abusalimov
+ */
+public class AsmRuntimeCall {
+    private static final Type RUNTIME_TYPE = Type.getType(Runtime.class);
+    private static final Method WITH_COST_HINT_METHOD = lookupMethod("withCostHint", long.class);
+
+    private final Method runtimeMethod;
+
+    /**
+     * Creates a call of the {@link Runtime} method specified by its name and signature.
+     *
+     * @param runtimeMethodName the name of the method of the {@link Runtime} class
+     * @param parameterTypes    the array of formal parameters accepted by the method
+     * @throws IllegalArgumentException in case of a method lookup error
+     */
+    public AsmRuntimeCall(String runtimeMethodName, Class<?>... parameterTypes) {
+        this.runtimeMethod = lookupMethod(runtimeMethodName, parameterTypes);
+    }
+
+    protected static Method lookupMethod(String methodName, Class<?>... parameterTypes) {
+        try {
+            return Method.getMethod(Runtime.class.getMethod(methodName, parameterTypes));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(String.format("No Runtime method '%s'", methodName), e);
+        }
+    }
+
+    /**
+     * Creates an expression invoking the target method with the given arguments.
+     *
+     * @param arguments the expressions evaluating the actual arguments to pass to the target method
+     * @return the expression invoking the method
+     */
+    public AsmExpr invokeWithArguments(AsmExpr... arguments) {
+        return method -> {
+            method.loadRuntime();
+            return invoke(method, arguments);
+        };
+    }
+
+    /**
+     * Creates an expression invoking the target method with the given arguments, on the runtime {@link
+     * Runtime#withCostHint(long) hinted} with the estimated cost of the lambda passed to the method.
+     *
+     * @param lambdaCost the estimated cost of a single invocation of the lambda
+     * @param arguments  the expressions evaluating the actual arguments to pass to the target method
+     * @return the expression invoking the method
+     */
+    public AsmExpr invokeWithArguments(long lambdaCost, AsmExpr... arguments) {
+        return method -> {
+            method.loadRuntime();
+            method.getCode().push(lambdaCost);
+            method.getCode().invokeInterface(RUNTIME_TYPE, WITH_COST_HINT_METHOD);
+            return invoke(method, arguments);
+        };
+    }
+
+    private Type invoke(AsmMethod method, AsmExpr... arguments) {
+        Type[] parameterTypes = runtimeMethod.getArgumentTypes();
+        for (int i = 0; i < arguments.length; i++) {
+            method.convert(arguments[i].emit(method), parameterTypes[i]);
+        }
+        method.getCode().invokeInterface(RUNTIME_TYPE, runtimeMethod);
+        return runtimeMethod.getReturnType();
+    }
+}
@@ -0,0 +1,128 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.backend.SequenceMap;
+import com.abusalimov.mrcalc.runtime.ArithmeticKernel;
+import com.abusalimov.mrcalc.runtime.Sequence;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.jar.asm.commons.Method;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.*;
+
+/**
+ * Implements sequence mapping expressions factory, calling the {@link com.abusalimov.mrcalc.runtime.Runtime} method
+ * specific to the types of elements, possibly with extra arguments following the lambda.
+ *
+ * @author Eldar Abusalimov
+ */
+public class AsmSequenceMap implements SequenceMap<AsmExpr, AsmExpr, AsmExpr> {
+    private static final Map<List<Class<?>>, AsmSequenceMap> mapMap = new HashMap<>();
+
+    private static final AsmRuntimeCall POLYNOMIAL_RUNTIME_CALL = new AsmRuntimeCall(
+            "mapLongToLongPolynomial", Sequence.OfLong.class, LongUnaryOperator.class, int.class);
+    private static final AsmRuntimeCall LONG_KERNEL_RUNTIME_CALL = new AsmRuntimeCall(
+            "mapLongToLongKernel", Sequence.OfLong.class, LongUnaryOperator.class, ArithmeticKernel.OfLong.class);
+    private static final AsmRuntimeCall DOUBLE_KERNEL_RUNTIME_CALL = new AsmRuntimeCall(
+            "mapDoubleToDoubleKernel", Sequence.OfDouble.class, DoubleUnaryOperator.class,
+            ArithmeticKernel.OfDouble.class);
+
+    static {
+        putMap(Object.class, Object.class, "mapToObject", Sequence.class, Function.class);
+        putMap(Object.class, long.class, "mapLongToObject", Sequence.OfLong.class, LongFunction.class);
+        putMap(Object.class, double.class, "mapDoubleToObject", Sequence.OfDouble.class, DoubleFunction.class);
+
+        putMap(long.class, Object.class, "mapToLong", Sequence.class, ToLongFunction.class);
+        putMap(long.class, long.class, "mapLongToLong", Sequence.OfLong.class, LongUnaryOperator.class);
+        putMap(long.class, double.class, "mapDoubleToLong", Sequence.OfDouble.class, DoubleToLongFunction.class);
+
+        putMap(double.class, Object.class, "mapToDouble", Sequence.class, ToDoubleFunction.class);
+        putMap(double.class, long.class, "mapLongToDouble", Sequence.OfLong.class, LongToDoubleFunction.class);
+        putMap(double.class, double.class, "mapDoubleToDouble", Sequence.OfDouble.class,
+                DoubleUnaryOperator.class);
+    }
+
+    private final AsmRuntimeCall runtimeCall;
+    private final AsmExpr[] extraArguments;
+
+    /**
+     * Creates a mapping calling the given runtime method.
+     *
+     * @param runtimeCall    the method taking a sequence, a lambda and the extra arguments
+     * @param extraArguments the expressions of arguments passed after the lambda
+     */
+    public AsmSequenceMap(AsmRuntimeCall runtimeCall, AsmExpr... extraArguments) {
+        this.runtimeCall = runtimeCall;
+        this.extraArguments = extraArguments;
+    }
+
+    private static void putMap(Class<?> returnElementType, Class<?> elementType, String runtimeMethodName,
+                               Class<?>... parameterTypes) {
+        mapMap.put(Arrays.asList(returnElementType, elementType),
+                new AsmSequenceMap(new AsmRuntimeCall(runtimeMethodName, parameterTypes)));
+    }
+
+    private static Class<?> erase(Class<?> type) {
+        return type.isPrimitive() ? type : Object.class;
+    }
+
+    public static AsmSequenceMap forType(Class<?> returnElementType, Class<?> elementType) {
+        return mapMap.get(Arrays.asList(erase(returnElementType), erase(elementType)));
+    }
+
+    public static AsmSequenceMap forPolynomial(Class<?> elementType, int degree) {
+        if (elementType != long.class) {
+            return forType(elementType, elementType);
+        }
+        return new AsmSequenceMap(POLYNOMIAL_RUNTIME_CALL, method -> {
+            method.getCode().push(degree);
+            return Type.INT_TYPE;
+        });
+    }
+
+    public static AsmSequenceMap forKernel(Class<?> elementType, String program) {
+        Class<?> kernelType;
+        AsmRuntimeCall runtimeCall;
+        if (elementType == long.class) {
+            kernelType = ArithmeticKernel.OfLong.class;
+            runtimeCall = LONG_KERNEL_RUNTIME_CALL;
+        } else if (elementType == double.class) {
+            kernelType = ArithmeticKernel.OfDouble.class;
+            runtimeCall = DOUBLE_KERNEL_RUNTIME_CALL;
+        } else {
+            return forType(elementType, elementType);
+        }
+        Method forProgramMethod;
+        try {
+            forProgramMethod = Method.getMethod(kernelType.getMethod("forProgram", String.class));
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+        /* The kernel is looked up by its program, which is cheap since the kernels are cached. */
+        return new AsmSequenceMap(runtimeCall, method -> {
+            method.getCode().push(program);
+            method.getCode().invokeStatic(Type.getType(kernelType), forProgramMethod);
+            return Type.getType(kernelType);
+        });
+    }
+
+    private AsmExpr[] getArguments(AsmExpr sequence, AsmExpr lambda) {
+        AsmExpr[] arguments = new AsmExpr[extraArguments.length + 2];
+        arguments[0] = sequence;
+        arguments[1] = lambda;
+        System.arraycopy(extraArguments, 0, arguments, 2, extraArguments.length);
+        return arguments;
+    }
+
+    @Override
+    public AsmExpr map(AsmExpr sequence, AsmExpr lambda) {
+        return runtimeCall.invokeWithArguments(getArguments(sequence, lambda));
+    }
+
+    @Override
+    public AsmExpr map(AsmExpr sequence, AsmExpr lambda, long lambdaCost) {
+        return runtimeCall.invokeWithArguments(lambdaCost, getArguments(sequence, lambda));
+    }
+}
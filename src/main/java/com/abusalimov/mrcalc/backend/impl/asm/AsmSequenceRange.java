@@ -0,0 +1,20 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.backend.SequenceRange;
+
+/**
+ * Implements range-creating expressions factory.
+ *
+ * @author Eldar Abusalimov
+ */
+public class AsmSequenceRange implements SequenceRange<AsmExpr, AsmExpr> {
+    public static final AsmSequenceRange INSTANCE = new AsmSequenceRange();
+
+    private static final AsmRuntimeCall RANGE_RUNTIME_CALL = new AsmRuntimeCall(
+            "createLongRangeInclusive", long.class, long.class);
+
+    @Override
+    public AsmExpr range(AsmExpr start, AsmExpr end) {
+        return RANGE_RUNTIME_CALL.invokeWithArguments(start, end);
+    }
+}
@@ -0,0 +1,48 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.backend.SequenceReduce;
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Implements sequence reduction expressions factory.
+ *
+ * @author Eldar Abusalimov
+ */
+public enum AsmSequenceReduce implements SequenceReduce<AsmExpr, AsmExpr, AsmExpr> {
+    OBJECT("reduce", Sequence.class, Object.class, BinaryOperator.class),
+    LONG("reduceLong", Sequence.OfLong.class, long.class, LongBinaryOperator.class),
+    DOUBLE("reduceDouble", Sequence.OfDouble.class, double.class, DoubleBinaryOperator.class),
+    LONG_SUM("reduceLongSum", Sequence.OfLong.class, long.class, LongBinaryOperator.class);
+
+    private final AsmRuntimeCall runtimeCall;
+
+    AsmSequenceReduce(String runtimeMethodName, Class<?>... parameterTypes) {
+        runtimeCall = new AsmRuntimeCall(runtimeMethodName, parameterTypes);
+    }
+
+    public static AsmSequenceReduce forType(Class<?> type) {
+        if (type.isPrimitive()) {
+            return AsmSequenceReduce.valueOf(type.getName().toUpperCase());
+        } else {
+            return OBJECT;
+        }
+    }
+
+    public static AsmSequenceReduce sumForType(Class<?> type) {
+        return (type == long.class) ? LONG_SUM : forType(type);
+    }
+
+    @Override
+    public AsmExpr reduce(AsmExpr sequence, AsmExpr neutral, AsmExpr lambda) {
+        return runtimeCall.invokeWithArguments(sequence, neutral, lambda);
+    }
+
+    @Override
+    public AsmExpr reduce(AsmExpr sequence, AsmExpr neutral, AsmExpr lambda, long lambdaCost) {
+        return runtimeCall.invokeWithArguments(lambdaCost, sequence, neutral, lambda);
+    }
+}
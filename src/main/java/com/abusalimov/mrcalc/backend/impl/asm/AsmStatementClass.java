@@ -0,0 +1,217 @@
+package com.abusalimov.mrcalc.backend.impl.asm;
+
+import com.abusalimov.mrcalc.runtime.Evaluable;
+import com.abusalimov.mrcalc.runtime.GlobalFrame;
+import com.abusalimov.mrcalc.runtime.Runtime;
+import net.bytebuddy.jar.asm.ClassWriter;
+import net.bytebuddy.jar.asm.Handle;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+import net.bytebuddy.jar.asm.commons.GeneratorAdapter;
+import net.bytebuddy.jar.asm.commons.Method;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the single class of an expression statement, which implements {@link Evaluable}, and has a static method
+ * for the function of the statement and for each lambda used by it.
+ * <p>
+ * Example:
+ * <pre>{@code
+ *     print reduce(map({1, n}, x -> x * x), 0, a b -> a + b)
+ * }</pre>
+ * <p>
+ * The statement is compiled into roughly the following:
+ * <pre><code>
+ *     public class AsmStatement$1 implements Evaluable {
+ *         public Object eval(Runtime runtime, Object[] args) {
+ *             return Long.valueOf(function(runtime, ((Long) args[0]).longValue()));
+ *         }
+ *
+ *         public void evalInto(Runtime runtime, GlobalFrame frame, int[] argSlots, int resultSlot) {
+ *             frame.setLong(resultSlot, function(runtime, frame.getLong(argSlots[0])));
+ *         }
+ *
+ *         private static long function(Runtime runtime, long n) {
+ *             return runtime.reduceLong(runtime.mapLongToLong(runtime.createLongRangeInclusive(1, n),
+ *                             x -{@literal >} lambda$1(runtime, x)),
+ *                     0, (a, b) -{@literal >} lambda$2(runtime, a, b));
+ *         }
+ *
+ *         private static long lambda$1(Runtime runtime, long x) { return x * x; }
+ *
+ *         private static long lambda$2(Runtime runtime, long a, long b) { return a + b; }
+ *     }
+ * </code></pre>
+ * <p>
+ * Lambdas are created through {@code invokedynamic} of the {@link java.lang.invoke.LambdaMetafactory}, just like
+ * the Java compiler does for the lambdas of Java code.
+ *
+ * @author Eldar Abusalimov
+ */
+public class AsmStatementClass {
+    private static final String CLASS_NAME_PREFIX = AsmStatementClass.class.getPackage().getName() + ".AsmStatement$";
+    private static final AtomicLong classCounter = new AtomicLong();
+
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Method CONSTRUCTOR = Method.getMethod("void <init> ()");
+    private static final Type FRAME_TYPE = Type.getType(GlobalFrame.class);
+    private static final Method EVAL = new Method("eval", OBJECT_TYPE,
+            new Type[]{Type.getType(Runtime.class), Type.getType(Object[].class)});
+    private static final Method EVAL_INTO = new Method("evalInto", Type.VOID_TYPE,
+            new Type[]{Type.getType(Runtime.class), FRAME_TYPE, Type.getType(int[].class), Type.INT_TYPE});
+
+    private final String className;
+    private final ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    private final Map<AsmFunction, String> methodNameMap = new IdentityHashMap<>();
+    private final Deque<AsmFunction> pendingFunctions = new ArrayDeque<>();
+    private final byte[] classFile;
+
+    /**
+     * Generates the class of a statement evaluating the given function.
+     *
+     * @param function the function of the statement
+     */
+    public AsmStatementClass(AsmFunction function) {
+        className = CLASS_NAME_PREFIX + classCounter.incrementAndGet();
+        classFile = generateClass(function);
+    }
+
+    /**
+     * Returns the binary name of the class.
+     *
+     * @return the class name
+     */
+    public String getName() {
+        return className;
+    }
+
+    public String getInternalName() {
+        return className.replace('.', '/');
+    }
+
+    public byte[] getClassFile() {
+        return classFile;
+    }
+
+    private byte[] generateClass(AsmFunction function) {
+        classWriter.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+                getInternalName(), null, OBJECT_TYPE.getInternalName(),
+                new String[]{Type.getInternalName(Evaluable.class)});
+
+        GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC, CONSTRUCTOR, null, null, classWriter);
+        constructor.loadThis();
+        constructor.invokeConstructor(OBJECT_TYPE, CONSTRUCTOR);
+        constructor.returnValue();
+        constructor.endMethod();
+
+        Handle functionHandle = getMethodHandle(function);
+        generateEval(function, functionHandle);
+        generateEvalInto(functionHandle);
+
+        while (!pendingFunctions.isEmpty()) {
+            generateMethod(pendingFunctions.poll());
+        }
+
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    private void generateEval(AsmFunction function, Handle functionHandle) {
+        GeneratorAdapter code = new GeneratorAdapter(Opcodes.ACC_PUBLIC, EVAL, null, null, classWriter);
+        Type functionType = Type.getMethodType(functionHandle.getDesc());
+        Type[] argumentTypes = functionType.getArgumentTypes();
+
+        code.loadArg(0);
+        for (int i = 1; i < argumentTypes.length; i++) {
+            code.loadArg(1);
+            code.push(i - 1);
+            code.arrayLoad(OBJECT_TYPE);
+            code.unbox(argumentTypes[i]);
+        }
+        code.invokeStatic(Type.getObjectType(getInternalName()),
+                new Method(functionHandle.getName(), functionHandle.getDesc()));
+        code.valueOf(functionType.getReturnType());
+        code.returnValue();
+        code.endMethod();
+    }
+
+    private void generateEvalInto(Handle functionHandle) {
+        GeneratorAdapter code = new GeneratorAdapter(Opcodes.ACC_PUBLIC, EVAL_INTO, null, null, classWriter);
+        Type functionType = Type.getMethodType(functionHandle.getDesc());
+        Type[] argumentTypes = functionType.getArgumentTypes();
+
+        code.loadArg(1);
+        code.loadArg(3);
+        code.loadArg(0);
+        for (int i = 1; i < argumentTypes.length; i++) {
+            code.loadArg(1);
+            code.loadArg(2);
+            code.push(i - 1);
+            code.arrayLoad(Type.INT_TYPE);
+            Type slotType = getSlotType(argumentTypes[i]);
+            code.invokeVirtual(FRAME_TYPE, new Method("get" + getSlotKind(slotType), slotType,
+                    new Type[]{Type.INT_TYPE}));
+            if (!slotType.equals(argumentTypes[i])) {
+                code.checkCast(argumentTypes[i]);
+            }
+        }
+        code.invokeStatic(Type.getObjectType(getInternalName()),
+                new Method(functionHandle.getName(), functionHandle.getDesc()));
+        Type resultSlotType = getSlotType(functionType.getReturnType());
+        code.invokeVirtual(FRAME_TYPE, new Method("set" + getSlotKind(resultSlotType), Type.VOID_TYPE,
+                new Type[]{Type.INT_TYPE, resultSlotType}));
+        code.returnValue();
+        code.endMethod();
+    }
+
+    /**
+     * Returns the type of the slot of a {@link GlobalFrame} holding a value of the given type.
+     */
+    private static Type getSlotType(Type type) {
+        return (type.getSort() == Type.LONG || type.getSort() == Type.DOUBLE) ? type : OBJECT_TYPE;
+    }
+
+    private static String getSlotKind(Type slotType) {
+        switch (slotType.getSort()) {
+            case Type.LONG:
+                return "Long";
+            case Type.DOUBLE:
+                return "Double";
+            default:
+                return "Object";
+        }
+    }
+
+    private void generateMethod(AsmFunction function) {
+        Method method = new Method(methodNameMap.get(function), function.getMethodType().getDescriptor());
+        GeneratorAdapter code = new GeneratorAdapter(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                method, null, null, classWriter);
+
+        AsmMethod asmMethod = new AsmMethod(this, code, function);
+        Type resultType = function.getBody().emit(asmMethod);
+        asmMethod.convert(resultType, method.getReturnType());
+        code.returnValue();
+        code.endMethod();
+    }
+
+    /**
+     * Returns the handle of the static method implementing the given function, adding the method to the class if
+     * needed.
+     *
+     * @param function the function
+     * @return the handle of the method
+     */
+    public Handle getMethodHandle(AsmFunction function) {
+        String methodName = methodNameMap.computeIfAbsent(function, f -> {
+            pendingFunctions.add(f);
+            return methodNameMap.isEmpty() ? "function" : "lambda$" + methodNameMap.size();
+        });
+        return new Handle(Opcodes.H_INVOKESTATIC, getInternalName(), methodName,
+                function.getMethodType().getDescriptor(), false);
+    }
+}
@@ -2,6 +2,8 @@ package com.abusalimov.mrcalc.backend.impl.bytebuddy;
 
 import com.abusalimov.mrcalc.backend.Backend;
 import com.abusalimov.mrcalc.backend.FunctionAssembler;
+import com.abusalimov.mrcalc.backend.RangeFoldAssembler;
+import com.abusalimov.mrcalc.runtime.RangeFold;
 import net.bytebuddy.dynamic.DynamicType;
 
 import java.lang.reflect.Method;
@@ -11,11 +13,19 @@ import java.util.function.*;
 
 /**
  * The backend implementation that generates JVM bytecode using the ByteBuddy framework.
+ * <p>
+ * In the loop fusion mode, a reduce() of a range mapped through a chain of map() calls is compiled into a single
+ * {@link BytebuddyRangeFoldAssembler counted loop} with the bodies of all the lambdas inlined into it.
+ * <p>
+ * The generated classes are loaded into the regions of a {@link ClassLoaderArena}: the backend returned by
+ * {@link #forCompilation()} loads the classes of a compilation into a region of its own, which gets unloaded once the
+ * compiled program is discarded. The classes assembled by the backend itself share a single region.
  *
  * @author Eldar Abusalimov
  */
 public class BytebuddyBackendImpl implements Backend<StackStub, DynamicType.Unloaded<RuntimeFunction>> {
     private static final Map<Method, Class<?>> functionInterfaceMethodMap = new LinkedHashMap<>();
+    private static final Map<Class<?>, Method> rangeFoldMethodMap = new LinkedHashMap<>();
 
     static {
         putFunctionInterfaceMethod(BinaryOperator.class, "apply", Object.class, Object.class, Object.class);
@@ -34,6 +44,78 @@ public class BytebuddyBackendImpl implements Backend<StackStub, DynamicType.Unlo
         putFunctionInterfaceMethod(ToDoubleFunction.class, "applyAsDouble", double.class, Object.class);
         putFunctionInterfaceMethod(LongToDoubleFunction.class, "applyAsDouble", double.class, long.class);
         putFunctionInterfaceMethod(DoubleUnaryOperator.class, "applyAsDouble", double.class, double.class);
+
+        try {
+            rangeFoldMethodMap.put(long.class, RangeFold.OfLong.class.getMethod("fold", long.class, long.class,
+                    int.class));
+            rangeFoldMethodMap.put(double.class, RangeFold.OfDouble.class.getMethod("fold", double.class, long.class,
+                    int.class));
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException("Could locate fold methods", e);
+        }
+    }
+
+    private final boolean loopFusion;
+    private final ClassLoaderArena arena;
+    private final GeneratedClassLoader classLoader;
+
+    /**
+     * Creates a new backend instance that doesn't fuse loops.
+     */
+    public BytebuddyBackendImpl() {
+        this(false);
+    }
+
+    /**
+     * Creates a new backend instance, which fuses loops, as indicated by the argument.
+     *
+     * @param loopFusion whether to compile a reduce() of a mapped range into a single loop
+     */
+    public BytebuddyBackendImpl(boolean loopFusion) {
+        this(loopFusion, new ClassLoaderArena(BytebuddyBackendImpl.class.getClassLoader()));
+    }
+
+    /**
+     * Creates a new backend instance loading the generated classes into the given arena.
+     *
+     * @param loopFusion whether to compile a reduce() of a mapped range into a single loop
+     * @param arena      the arena to allocate class loader regions from
+     */
+    public BytebuddyBackendImpl(boolean loopFusion, ClassLoaderArena arena) {
+        this(loopFusion, arena, arena.newRegion());
+    }
+
+    private BytebuddyBackendImpl(boolean loopFusion, ClassLoaderArena arena, GeneratedClassLoader classLoader) {
+        this.loopFusion = loopFusion;
+        this.arena = arena;
+        this.classLoader = classLoader;
+    }
+
+    public boolean isLoopFusion() {
+        return loopFusion;
+    }
+
+    public ClassLoaderArena getArena() {
+        return arena;
+    }
+
+    /**
+     * Returns the region, which all the function classes generated by this backend are loaded into.
+     *
+     * @return the class loader
+     */
+    public GeneratedClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Returns a backend of the same configuration, which loads the classes into a new region of the arena.
+     *
+     * @return the backend for a new compilation
+     */
+    @Override
+    public BytebuddyBackendImpl forCompilation() {
+        return new BytebuddyBackendImpl(loopFusion, arena, arena.newRegion());
     }
 
     private static void putFunctionInterfaceMethod(Class<?> cls, String name,
@@ -87,9 +169,35 @@ public class BytebuddyBackendImpl implements Backend<StackStub, DynamicType.Unlo
         Method method = matchFunctionInterfaceMethod(returnType, parameterTypes);
         if (method != null) {
             return new BytebuddyFunctionAssembler.ForInterface<>(returnType, parameterTypes,
-                    functionInterfaceMethodMap.get(method), method);
+                    functionInterfaceMethodMap.get(method), method, classLoader);
         } else {
-            return new BytebuddyFunctionAssembler<>(returnType, parameterTypes);
+            return new BytebuddyFunctionAssembler<>(returnType, parameterTypes, classLoader);
+        }
+    }
+
+    /**
+     * Creates an assembler of a lambda class implementing the functional interface of the lambda, which has the
+     * captured values stored into its fields.
+     */
+    @Override
+    public <R> FunctionAssembler<R, StackStub, DynamicType.Unloaded<RuntimeFunction>> createCapturingFunctionAssembler(
+            Class<R> returnType, Class<?>[] parameterTypes, Class<?>[] capturedTypes) {
+        Method method = matchFunctionInterfaceMethod(returnType, parameterTypes);
+        if (method == null) {
+            return null;
+        }
+        return new BytebuddyFunctionAssembler.ForInterface<>(returnType, parameterTypes, capturedTypes,
+                functionInterfaceMethodMap.get(method), method, classLoader);
+    }
+
+    @Override
+    public <R> RangeFoldAssembler<R, StackStub, DynamicType.Unloaded<RuntimeFunction>> createRangeFoldAssembler(
+            Class<R> accumulatorType, Class<?>... elementTypes) {
+        Method method = rangeFoldMethodMap.get(accumulatorType);
+        if (!loopFusion || method == null) {
+            return null;
         }
+        return new BytebuddyRangeFoldAssembler<>(accumulatorType, elementTypes, method.getDeclaringClass(), method,
+                classLoader);
     }
 }
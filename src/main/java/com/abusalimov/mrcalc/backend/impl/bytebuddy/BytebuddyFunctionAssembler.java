@@ -2,20 +2,27 @@ package com.abusalimov.mrcalc.backend.impl.bytebuddy;
 
 import com.abusalimov.mrcalc.backend.*;
 import com.abusalimov.mrcalc.runtime.Evaluable;
+import com.abusalimov.mrcalc.runtime.GlobalFrame;
 import com.abusalimov.mrcalc.runtime.Runtime;
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.description.field.FieldDescription;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.method.ParameterDescription;
+import net.bytebuddy.description.method.ParameterList;
 import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.dynamic.DynamicType;
-import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
 import net.bytebuddy.implementation.Implementation;
 import net.bytebuddy.implementation.MethodCall;
 import net.bytebuddy.implementation.SuperMethodCall;
+import net.bytebuddy.implementation.bytecode.Duplication;
 import net.bytebuddy.implementation.bytecode.StackManipulation;
+import net.bytebuddy.implementation.bytecode.TypeCreation;
 import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.implementation.bytecode.assign.TypeCasting;
+import net.bytebuddy.implementation.bytecode.collection.ArrayAccess;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
 import net.bytebuddy.implementation.bytecode.member.FieldAccess;
+import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
 import net.bytebuddy.implementation.bytecode.member.MethodReturn;
 import net.bytebuddy.implementation.bytecode.member.MethodVariableAccess;
 import net.bytebuddy.jar.asm.Opcodes;
@@ -68,6 +75,13 @@ import static net.bytebuddy.matcher.ElementMatchers.*;
  *
  *             return Long.valueOf(result);
  *         }
+ *
+ *         // Reads the variables straight from their slots, and stores the result into a slot
+ *         {@literal @Override}
+ *         public void evalInto(Runtime runtime, GlobalFrame frame, int[] argSlots, int resultSlot) {
+ *             frame.setLong(resultSlot, new FunctionImpl$0(runtime).applyExpr(
+ *                     (Sequence.OfLong) frame.getObject(argSlots[0]), frame.getLong(argSlots[1])));
+ *         }
  *     }
  *
  *     // Implements {@literal seq id -> reduce(seq, id, a b -> a + b) }
@@ -97,17 +111,76 @@ import static net.bytebuddy.matcher.ElementMatchers.*;
  *     }
  * </code></pre>
  *
+ * <p>
+ * A lambda {@link BytebuddyBackendImpl#createCapturingFunctionAssembler(Class, Class[], Class[]) capturing} values has
+ * a field for each of them. Such lambda is instantiated by the expression using it rather than by the constructor, and
+ * the captured values are stored into the fields of the new instance right away:
+ * <pre><code>
+ *     // Implements {@literal x -> x * reduce({0, 1000}, 0, a b -> a + b) }
+ *     public class FunctionImpl$2 extends RuntimeFunction implements LongUnaryOperator {
+ *         public long captured$0;
+ *
+ *         {@literal @Override}
+ *         public long applyAsLong(long x) {
+ *             return x * this.captured$0;
+ *         }
+ *     }
+ *
+ *     // Within the enclosing function:
+ *     FunctionImpl$2 lambda = new FunctionImpl$2(this.runtime);
+ *     lambda.captured$0 = this.runtime.reduceLong(...);
+ *     this.runtime.mapLongToLong(seq, lambda);
+ * </code></pre>
+ *
  * @param <R> the return type of the function constructed using this assembler, for additional type check
  * @author Eldar Abusalimov
  */
 public class BytebuddyFunctionAssembler<R> implements FunctionAssembler<R, StackStub, DynamicType.Unloaded<RuntimeFunction>> {
     private final Class<R> returnType;
     private final Class<?>[] parameterTypes;
+    private final Class<?>[] capturedTypes;
+    private final GeneratedClassLoader classLoader;
     private final List<DynamicType.Unloaded<RuntimeFunction>> lambdas = new ArrayList<>();
-
+    private final List<DynamicType.Unloaded<RuntimeFunction>> capturingLambdas = new ArrayList<>();
+
+    /**
+     * Creates a new assembler loading the function into a class loader of its own.
+     *
+     * @param returnType     the return type of the function
+     * @param parameterTypes the types of parameters taken by the function
+     */
     public BytebuddyFunctionAssembler(Class<R> returnType, Class<?>[] parameterTypes) {
+        this(returnType, parameterTypes, new GeneratedClassLoader(BytebuddyFunctionAssembler.class.getClassLoader()));
+    }
+
+    /**
+     * Creates a new assembler loading the function into the given class loader, which may already have the classes
+     * of some of the lambdas used by the function.
+     *
+     * @param returnType     the return type of the function
+     * @param parameterTypes the types of parameters taken by the function
+     * @param classLoader    the class loader to load the function into
+     */
+    public BytebuddyFunctionAssembler(Class<R> returnType, Class<?>[] parameterTypes,
+                                      GeneratedClassLoader classLoader) {
+        this(returnType, parameterTypes, new Class<?>[0], classLoader);
+    }
+
+    /**
+     * Creates a new assembler of a lambda capturing values of the given types, which loads the function into the
+     * given class loader.
+     *
+     * @param returnType     the return type of the function
+     * @param parameterTypes the types of parameters taken by the function
+     * @param capturedTypes  the types of the captured values
+     * @param classLoader    the class loader to load the function into
+     */
+    public BytebuddyFunctionAssembler(Class<R> returnType, Class<?>[] parameterTypes, Class<?>[] capturedTypes,
+                                      GeneratedClassLoader classLoader) {
         this.returnType = returnType;
         this.parameterTypes = parameterTypes;
+        this.capturedTypes = capturedTypes;
+        this.classLoader = classLoader;
     }
 
     protected DynamicType.Builder.MethodDefinition.ImplementationDefinition<RuntimeFunction> getDynamicBuilder() {
@@ -124,6 +197,11 @@ public class BytebuddyFunctionAssembler<R> implements FunctionAssembler<R, Stack
                     lambdaTypeDescription,
                     Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC);
         }
+        for (int index = 0; index < capturedTypes.length; index++) {
+            /* Stored by the function instantiating the lambda, which is why the field is public. */
+            builder = builder.defineField(getCapturedName(index), capturedTypes[index],
+                    Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC);
+        }
 
         List<StackStub> lambdaFieldInitializers = lambdaTypeDescriptions.stream()
                 .map(this::createLambdaInitializer)
@@ -156,11 +234,22 @@ public class BytebuddyFunctionAssembler<R> implements FunctionAssembler<R, Stack
 
     @Override
     public DynamicType.Unloaded<RuntimeFunction> assemble(StackStub expr) {
+        return make(new StackStub.Compound(expr, getMethodReturn()));
+    }
+
+    /**
+     * Makes the function class with the method implemented as specified, including the classes of all the lambdas
+     * registered so far.
+     *
+     * @param implementation the complete implementation of the method, including the return
+     * @return the function class
+     */
+    protected DynamicType.Unloaded<RuntimeFunction> make(Implementation implementation) {
         DynamicType.Unloaded<RuntimeFunction> dynamicType = getDynamicBuilder()
-                .intercept(new StackStub.Compound(expr, getMethodReturn()))
+                .intercept(implementation)
                 .make();
 
-        return dynamicType.include(lambdas);
+        return dynamicType.include(lambdas).include(capturingLambdas);
     }
 
     protected StackStub getMethodReturn() {
@@ -179,7 +268,10 @@ public class BytebuddyFunctionAssembler<R> implements FunctionAssembler<R, Stack
 
     @Override
     public StackStub lambda(DynamicType.Unloaded<RuntimeFunction> function) {
-        lambdas.add(function);
+        /* Identical lambdas share the same function, and so the same field. */
+        if (!lambdas.contains(function)) {
+            lambdas.add(function);
+        }
         TypeDescription typeDescription = function.getTypeDescription();
 
         return (implementationTarget, instrumentedMethod) -> {
@@ -192,6 +284,37 @@ public class BytebuddyFunctionAssembler<R> implements FunctionAssembler<R, Stack
         };
     }
 
+    @Override
+    public StackStub lambda(DynamicType.Unloaded<RuntimeFunction> function, List<StackStub> capturedExprs) {
+        if (!capturingLambdas.contains(function)) {
+            capturingLambdas.add(function);
+        }
+        TypeDescription typeDescription = function.getTypeDescription();
+        MethodDescription constructorDescription = typeDescription.getDeclaredMethods()
+                .filter(isConstructor().and(takesArguments(Runtime.class)))
+                .getOnly();
+
+        return new StackStub.Compound(capturedExprs).withEvalCompositor(capturedValues -> {
+            List<StackManipulation> stackManipulations = new ArrayList<>();
+            stackManipulations.add(TypeCreation.of(typeDescription));
+            stackManipulations.add(Duplication.SINGLE);
+            stackManipulations.add(MethodCallStub.loadRuntime());
+            stackManipulations.add(MethodInvocation.invoke(constructorDescription));
+            for (int index = 0; index < capturedValues.length; index++) {
+                FieldDescription fieldDescription = typeDescription.getDeclaredFields()
+                        .filter(named(getCapturedName(index))).getOnly();
+                stackManipulations.add(Duplication.SINGLE);
+                stackManipulations.add(capturedValues[index]);
+                stackManipulations.add(FieldAccess.forField(fieldDescription).putter());
+            }
+            return new StackStub.Simple(stackManipulations);
+        });
+    }
+
+    private static String getCapturedName(int index) {
+        return "captured$" + index;
+    }
+
     protected FieldDescription getLambdaFieldDescription(TypeDescription instrumentedType,
                                                          TypeDescription lambdaTypeDescription) {
         return instrumentedType.getDeclaredFields().filter(named(getLambdaName(lambdaTypeDescription))).getOnly();
@@ -210,10 +333,22 @@ public class BytebuddyFunctionAssembler<R> implements FunctionAssembler<R, Stack
                 .intercept(new StackStub.Compound(constructorCall,
                         new MethodCallStub(evalMethod)
                                 .withArgumentsArray(1, evalMethod.getParameters().size())))
+                .method(named("evalInto"))
+                .intercept(new StackStub.Compound(constructorCall,
+                        new StackStub.Simple(evalMethod.getParameters().stream()
+                                .map(BytebuddyFunctionAssembler::loadFromFrame)
+                                .collect(Collectors.toList())),
+                        new StackStub.Simple(MethodInvocation.invoke(evalMethod)))
+                        .withEvalCompositor(stackManipulations -> new StackStub.Simple(
+                                loadFrame(),
+                                MethodVariableAccess.INTEGER.loadOffset(4),  // resultSlot
+                                new StackManipulation.Compound(stackManipulations),
+                                invokeFrameAccessor("set", evalMethod.getReturnType().asErasure()),
+                                MethodReturn.VOID)))
                 .make();
 
         Class<? extends Evaluable> evaluableClass = dynamicType.include(function)
-                .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+                .load(classLoader, GeneratedClassLoader.Strategy.INSTANCE)
                 .getLoaded();
         try {
             return (Evaluable<R>) evaluableClass.newInstance();
@@ -222,16 +357,70 @@ public class BytebuddyFunctionAssembler<R> implements FunctionAssembler<R, Stack
         }
     }
 
+    /**
+     * Loads the frame passed to {@link Evaluable#evalInto(Runtime, GlobalFrame, int[], int)}.
+     */
+    private static StackManipulation loadFrame() {
+        return MethodVariableAccess.REFERENCE.loadOffset(2);
+    }
+
+    /**
+     * Loads the value of a parameter of the function from the frame: {@code frame.getLong(argSlots[index])}.
+     */
+    private static StackManipulation loadFromFrame(ParameterDescription parameter) {
+        TypeDescription type = parameter.getType().asErasure();
+        StackManipulation load = new StackManipulation.Compound(
+                loadFrame(),
+                MethodVariableAccess.REFERENCE.loadOffset(3),  // argSlots
+                IntegerConstant.forValue(parameter.getIndex()),
+                ArrayAccess.INTEGER.load(),
+                invokeFrameAccessor("get", type));
+        if (type.isPrimitive() || type.represents(Object.class)) {
+            return load;
+        }
+        return new StackManipulation.Compound(load, TypeCasting.to(type));
+    }
+
+    /**
+     * Invokes the getter or the setter of the {@link GlobalFrame} slot holding the values of the given type.
+     */
+    private static StackManipulation invokeFrameAccessor(String prefix, TypeDescription type) {
+        Class<?> slotType = type.represents(long.class) ? long.class :
+                            type.represents(double.class) ? double.class : Object.class;
+        String kind = (slotType == long.class) ? "Long" : (slotType == double.class) ? "Double" : "Object";
+        try {
+            Method method = prefix.equals("get") ? GlobalFrame.class.getMethod(prefix + kind, int.class) :
+                            GlobalFrame.class.getMethod(prefix + kind, int.class, slotType);
+            return MethodInvocation.invoke(new MethodDescription.ForLoadedMethod(method));
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The slots following the parameters of the method refer to the captured values.
+     */
     @Override
     public ArgumentLoad<StackStub> getArgumentLoad(Class<?> parameterType) {
-        return slot -> (StackStub.ForMethod) instrumentedMethod -> {
-            ParameterDescription parameterDescription = instrumentedMethod.getParameters().get(slot);
+        TypeDescription.Generic type = new TypeDescription.ForLoadedType(parameterType).asGenericType();
+        return slot -> (implementationTarget, instrumentedMethod) -> {
+            ParameterList<?> parameters = instrumentedMethod.getParameters();
+            if (slot >= parameters.size()) {
+                String capturedName = getCapturedName(slot - parameters.size());
+                FieldDescription fieldDescription = implementationTarget.getInstrumentedType().getDeclaredFields()
+                        .filter(named(capturedName)).getOnly();
+                return new StackManipulation.Compound(
+                        MethodVariableAccess.REFERENCE.loadOffset(0),  // this
+                        FieldAccess.forField(fieldDescription).getter(),
+                        Assigner.DEFAULT.assign(fieldDescription.getType(), type, Assigner.Typing.DYNAMIC));
+            }
+            ParameterDescription parameterDescription = parameters.get(slot);
             return new StackManipulation.Compound(
                     MethodVariableAccess.of(parameterDescription.getType())
                             .loadOffset(parameterDescription.getOffset()),
-                    Assigner.DEFAULT.assign(parameterDescription.getType(),
-                            new TypeDescription.ForLoadedType(parameterType).asGenericType(),
-                            Assigner.Typing.DYNAMIC));
+                    Assigner.DEFAULT.assign(parameterDescription.getType(), type, Assigner.Typing.DYNAMIC));
         };
     }
 
@@ -260,6 +449,26 @@ public class BytebuddyFunctionAssembler<R> implements FunctionAssembler<R, Stack
         return BytebuddySequenceReduce.forType(returnType);
     }
 
+    @Override
+    public SequenceReduce<StackStub, StackStub, StackStub> getSequenceSum(Class<?> returnType) {
+        return BytebuddySequenceReduce.sumForType(returnType);
+    }
+
+    @Override
+    public SequenceRangeFold<StackStub, StackStub> getSequenceRangeFold(Class<?> returnType) {
+        return BytebuddySequenceRangeFold.forType(returnType);
+    }
+
+    @Override
+    public SequenceMap<StackStub, StackStub, StackStub> getSequencePolynomialMap(Class<?> elementType, int degree) {
+        return BytebuddySequenceMap.forPolynomial(elementType, degree);
+    }
+
+    @Override
+    public SequenceMap<StackStub, StackStub, StackStub> getSequenceKernelMap(Class<?> elementType, String program) {
+        return BytebuddySequenceMap.forKernel(elementType, program);
+    }
+
     @Override
     public SequenceMap<StackStub, StackStub, StackStub> getSequenceMap(Class<?> returnElementType,
                                                                        Class<?> elementType) {
@@ -271,7 +480,18 @@ public class BytebuddyFunctionAssembler<R> implements FunctionAssembler<R, Stack
         private final Method method;
 
         public ForInterface(Class<R> returnType, Class<?>[] parameterTypes, Class<?> methodInterface, Method method) {
-            super(returnType, parameterTypes);
+            this(returnType, parameterTypes, methodInterface, method,
+                    new GeneratedClassLoader(BytebuddyFunctionAssembler.class.getClassLoader()));
+        }
+
+        public ForInterface(Class<R> returnType, Class<?>[] parameterTypes, Class<?> methodInterface, Method method,
+                            GeneratedClassLoader classLoader) {
+            this(returnType, parameterTypes, new Class<?>[0], methodInterface, method, classLoader);
+        }
+
+        public ForInterface(Class<R> returnType, Class<?>[] parameterTypes, Class<?>[] capturedTypes,
+                            Class<?> methodInterface, Method method, GeneratedClassLoader classLoader) {
+            super(returnType, parameterTypes, capturedTypes, classLoader);
 
             this.methodInterface = methodInterface;
             this.method = method;
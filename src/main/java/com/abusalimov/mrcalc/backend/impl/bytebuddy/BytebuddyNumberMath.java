@@ -22,7 +22,7 @@ import java.util.function.Function;
  */
 public enum BytebuddyNumberMath implements NumberMath<Number, StackStub> {
     LONG(LongConstant::forValue, NumberOpStackStub.ForLong::valueOf, RuntimeNumberOpStackStub.ForLong::valueOf),
-    DOUBLE(DoubleConstant::forValue, NumberOpStackStub.ForDouble::valueOf, RuntimeNumberOpStackStub.ForDouble::valueOf);
+    DOUBLE(BytebuddyNumberMath::doubleConstant, NumberOpStackStub.ForDouble::valueOf, RuntimeNumberOpStackStub.ForDouble::valueOf);
 
     private final Function<Number, StackManipulation> constantProvider;
     private final Function<String, StackStub> opStackStubProvider;
@@ -45,6 +45,17 @@ public enum BytebuddyNumberMath implements NumberMath<Number, StackStub> {
         }
     }
 
+    /**
+     * Pushes a double constant. Unlike {@link DoubleConstant#forValue(double)}, which pushes a negative zero as a
+     * positive one, this preserves the sign of a zero.
+     */
+    private static StackManipulation doubleConstant(Double value) {
+        if (value == 0d && Double.doubleToRawLongBits(value) != 0) {
+            return new StackManipulation.Compound(DoubleConstant.ZERO, NumberOpStackStub.ForDouble.NEG);
+        }
+        return DoubleConstant.forValue(value);
+    }
+
     @Override
     public StackStub constant(Number literal) {
         return new StackStub.Simple(constantProvider.apply(literal));
@@ -67,7 +78,9 @@ public enum BytebuddyNumberMath implements NumberMath<Number, StackStub> {
 
     @Override
     public StackStub div(StackStub leftOperand, StackStub rightOperand) {
-        return new StackStub.Compound(leftOperand, rightOperand, getOpStackStub("DIV"));
+        /* Unlike LDIV, the runtime reports a zero divisor with a message, see Runtime.Util#divLong(). */
+        return new StackStub.Compound(leftOperand, rightOperand,
+                (this == LONG) ? runtimeOpStackStubProvider.apply("DIV") : getOpStackStub("DIV"));
     }
 
     @Override
@@ -148,7 +161,6 @@ public enum BytebuddyNumberMath implements NumberMath<Number, StackStub> {
             ADD(Opcodes.LADD, -1),
             SUB(Opcodes.LSUB, -1),
             MUL(Opcodes.LMUL, -1),
-            DIV(Opcodes.LDIV, -1),
             NEG(Opcodes.LNEG, 0);
 
             private final int opcode;
@@ -212,7 +224,7 @@ public enum BytebuddyNumberMath implements NumberMath<Number, StackStub> {
     }
 
     /**
-     * Implementation of the number power operations.
+     * Implementation of the number operations calling the {@link Runtime.Util} methods.
      *
      * @author Eldar Abusalimov
      */
@@ -248,6 +260,7 @@ public enum BytebuddyNumberMath implements NumberMath<Number, StackStub> {
          * Stack stubs of instructions for math operation on longs.
          */
         enum ForLong implements RuntimeNumberOpStackStub<Long> {
+            DIV("divLong"),
             POW("powLong");
 
             private final String runtimeMethodName;
@@ -0,0 +1,244 @@
+package com.abusalimov.mrcalc.backend.impl.bytebuddy;
+
+import com.abusalimov.mrcalc.backend.ArgumentLoad;
+import com.abusalimov.mrcalc.backend.RangeFoldAssembler;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.scaffold.InstrumentedType;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.implementation.bytecode.ByteCodeAppender;
+import net.bytebuddy.implementation.bytecode.StackManipulation;
+import net.bytebuddy.implementation.bytecode.StackSize;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.implementation.bytecode.member.MethodVariableAccess;
+import net.bytebuddy.jar.asm.Label;
+import net.bytebuddy.jar.asm.MethodVisitor;
+import net.bytebuddy.jar.asm.Opcodes;
+import net.bytebuddy.jar.asm.Type;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The function assembler generating a {@link com.abusalimov.mrcalc.runtime.RangeFold} class, which method is a single
+ * counted loop over a chunk of a range with the bodies of map() and reduce() lambdas inlined into it.
+ * <p>
+ * Example:
+ * <pre>{@code
+ *     print reduce(map({1, n}, x -> 1 / x), 0.0, a b -> a + b)
+ * }</pre>
+ * <p>
+ * The fold passed to the {@link com.abusalimov.mrcalc.runtime.Runtime#reduceDoubleRangeInclusive(long, long, double,
+ * com.abusalimov.mrcalc.runtime.RangeFold.OfDouble, java.util.function.DoubleBinaryOperator) runtime} is compiled
+ * into roughly the following:
+ * <pre><code>
+ *     public class FunctionImpl$1 extends RuntimeFunction implements RangeFold.OfDouble {
+ *         {@literal @Override}
+ *         public double fold(double acc, long start, int count) {
+ *             for (int k = 0; k {@literal <} count; k++) {
+ *                 long x = start + k;         // slot 1: the range element
+ *                 double x1 = 1 / (double) x; // slot 2: the map() lambda body
+ *                 acc = acc + x1;             // slot 0: the reduce() lambda body
+ *             }
+ *             return acc;
+ *         }
+ *     }
+ * </code></pre>
+ * <p>
+ * The loop variables are kept in the locals following the method parameters: the loop counter goes first, then the
+ * range element and the result of each stage. The stack map frames of the loop are emitted explicitly.
+ *
+ * @param <R> the type of the accumulator
+ * @author Eldar Abusalimov
+ */
+public class BytebuddyRangeFoldAssembler<R> extends BytebuddyFunctionAssembler.ForInterface<R>
+        implements RangeFoldAssembler<R, StackStub, DynamicType.Unloaded<RuntimeFunction>> {
+    private final Class<?>[] slotTypes;
+
+    /**
+     * Creates a new assembler for a fold implementing the given interface method.
+     *
+     * @param accumulatorType the type of the accumulator
+     * @param elementTypes    the types of the range element and of the results of map() stages
+     * @param methodInterface the {@link com.abusalimov.mrcalc.runtime.RangeFold} interface
+     * @param method          the fold method of the interface: {@code acc, start, count -> acc}
+     * @param classLoader     the class loader of the backend
+     */
+    public BytebuddyRangeFoldAssembler(Class<R> accumulatorType, Class<?>[] elementTypes,
+                                       Class<?> methodInterface, Method method, GeneratedClassLoader classLoader) {
+        super(accumulatorType, method.getParameterTypes(), methodInterface, method, classLoader);
+
+        slotTypes = new Class<?>[elementTypes.length + 1];
+        slotTypes[0] = accumulatorType;
+        System.arraycopy(elementTypes, 0, slotTypes, 1, elementTypes.length);
+    }
+
+    /**
+     * Returns the offset of the local holding the loop variable of the given slot.
+     */
+    private int getSlotOffset(MethodDescription instrumentedMethod, int slot) {
+        if (slot == 0) {
+            return instrumentedMethod.getParameters().get(0).getOffset();
+        }
+        int offset = getCounterOffset(instrumentedMethod) + StackSize.SINGLE.getSize();
+        for (int i = 1; i < slot; i++) {
+            offset += StackSize.of(slotTypes[i]).getSize();
+        }
+        return offset;
+    }
+
+    private static int getCounterOffset(MethodDescription instrumentedMethod) {
+        return instrumentedMethod.getStackSize();
+    }
+
+    @Override
+    public ArgumentLoad<StackStub> getArgumentLoad(Class<?> parameterType) {
+        return slot -> (StackStub.ForMethod) instrumentedMethod -> {
+            TypeDescription.Generic slotType = new TypeDescription.ForLoadedType(slotTypes[slot]).asGenericType();
+            return new StackManipulation.Compound(
+                    MethodVariableAccess.of(slotType).loadOffset(getSlotOffset(instrumentedMethod, slot)),
+                    Assigner.DEFAULT.assign(slotType,
+                            new TypeDescription.ForLoadedType(parameterType).asGenericType(),
+                            Assigner.Typing.DYNAMIC));
+        };
+    }
+
+    @Override
+    public DynamicType.Unloaded<RuntimeFunction> assembleFold(List<StackStub> stages, StackStub accumulate) {
+        return make(new LoopStub(stages, accumulate));
+    }
+
+    /**
+     * The complete implementation of the fold method, which also accounts the loop variables in the size of locals.
+     */
+    protected class LoopStub implements StackStub {
+        private final List<StackStub> slotStubs;
+
+        /**
+         * @param stages     the bodies of the map() lambdas
+         * @param accumulate the body of the reduce() lambda
+         */
+        public LoopStub(List<StackStub> stages, StackStub accumulate) {
+            slotStubs = new ArrayList<>();
+            slotStubs.add(accumulate);
+            slotStubs.addAll(stages);
+        }
+
+        @Override
+        public InstrumentedType prepare(InstrumentedType instrumentedType) {
+            return new StackStub.Compound(slotStubs).prepare(instrumentedType);
+        }
+
+        @Override
+        public StackManipulation eval(Implementation.Target implementationTarget,
+                                      MethodDescription instrumentedMethod) {
+            List<StackManipulation> slotManipulations = new ArrayList<>();
+            for (StackStub slotStub : slotStubs) {
+                slotManipulations.add(slotStub.eval(implementationTarget, instrumentedMethod));
+            }
+            return new StackManipulation.Compound(
+                    new Loop(implementationTarget.getInstrumentedType(), instrumentedMethod, slotManipulations),
+                    getMethodReturn().eval(implementationTarget, instrumentedMethod));
+        }
+
+        @Override
+        public ByteCodeAppender appender(Implementation.Target implementationTarget) {
+            return (methodVisitor, implementationContext, instrumentedMethod) -> {
+                StackManipulation stackManipulation = eval(implementationTarget, instrumentedMethod);
+                StackManipulation.Size stackSize = stackManipulation.apply(methodVisitor, implementationContext);
+                return new ByteCodeAppender.Size(stackSize.getMaximalSize(),
+                        getSlotOffset(instrumentedMethod, slotTypes.length));
+            };
+        }
+    }
+
+    /**
+     * Emits the loop itself, leaving the accumulator on the stack.
+     */
+    protected class Loop implements StackManipulation {
+        private final TypeDescription instrumentedType;
+        private final MethodDescription instrumentedMethod;
+        private final List<StackManipulation> slotManipulations;
+
+        /**
+         * @param instrumentedType   the type declaring the fold method
+         * @param instrumentedMethod the fold method
+         * @param slotManipulations  the body of the reduce() lambda followed by the bodies of map() lambdas
+         */
+        public Loop(TypeDescription instrumentedType, MethodDescription instrumentedMethod,
+                    List<StackManipulation> slotManipulations) {
+            this.instrumentedType = instrumentedType;
+            this.instrumentedMethod = instrumentedMethod;
+            this.slotManipulations = slotManipulations;
+        }
+
+        @Override
+        public boolean isValid() {
+            return slotManipulations.stream().allMatch(StackManipulation::isValid);
+        }
+
+        @Override
+        public Size apply(MethodVisitor methodVisitor, Implementation.Context implementationContext) {
+            int accOffset = getSlotOffset(instrumentedMethod, 0);
+            int startOffset = instrumentedMethod.getParameters().get(1).getOffset();
+            int countOffset = instrumentedMethod.getParameters().get(2).getOffset();
+            int counterOffset = getCounterOffset(instrumentedMethod);
+            Type accType = Type.getType(slotTypes[0]);
+
+            Label loop = new Label();
+            Label exit = new Label();
+
+            methodVisitor.visitInsn(Opcodes.ICONST_0);
+            methodVisitor.visitVarInsn(Opcodes.ISTORE, counterOffset);
+
+            methodVisitor.visitLabel(loop);
+            methodVisitor.visitFrame(Opcodes.F_FULL,
+                    5, new Object[]{instrumentedType.getInternalName(), getFrameType(accType),
+                                    Opcodes.LONG, Opcodes.INTEGER, Opcodes.INTEGER},
+                    0, new Object[0]);
+            methodVisitor.visitVarInsn(Opcodes.ILOAD, counterOffset);
+            methodVisitor.visitVarInsn(Opcodes.ILOAD, countOffset);
+            methodVisitor.visitJumpInsn(Opcodes.IF_ICMPGE, exit);
+
+            /* The range element: start + k */
+            methodVisitor.visitVarInsn(Opcodes.LLOAD, startOffset);
+            methodVisitor.visitVarInsn(Opcodes.ILOAD, counterOffset);
+            methodVisitor.visitInsn(Opcodes.I2L);
+            methodVisitor.visitInsn(Opcodes.LADD);
+            methodVisitor.visitVarInsn(Opcodes.LSTORE, getSlotOffset(instrumentedMethod, 1));
+            int maximalSize = 2 * StackSize.DOUBLE.getSize();
+
+            /* Each map() stage, then the reduce() accumulation. */
+            for (int slot = 2; slot <= slotManipulations.size(); slot++) {
+                maximalSize = Math.max(maximalSize, applyAndStore(methodVisitor, implementationContext, slot,
+                        slotManipulations.get(slot - 1)));
+            }
+            maximalSize = Math.max(maximalSize, applyAndStore(methodVisitor, implementationContext, 0,
+                    slotManipulations.get(0)));
+
+            methodVisitor.visitIincInsn(counterOffset, 1);
+            methodVisitor.visitJumpInsn(Opcodes.GOTO, loop);
+
+            methodVisitor.visitLabel(exit);
+            methodVisitor.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+            methodVisitor.visitVarInsn(accType.getOpcode(Opcodes.ILOAD), accOffset);
+
+            int accSize = accType.getSize();
+            return new Size(accSize, Math.max(maximalSize, accSize));
+        }
+
+        private int applyAndStore(MethodVisitor methodVisitor, Implementation.Context implementationContext,
+                                  int slot, StackManipulation stackManipulation) {
+            Size size = stackManipulation.apply(methodVisitor, implementationContext);
+            methodVisitor.visitVarInsn(Type.getType(slotTypes[slot]).getOpcode(Opcodes.ISTORE),
+                    getSlotOffset(instrumentedMethod, slot));
+            return size.getMaximalSize();
+        }
+
+        private Object getFrameType(Type type) {
+            return (type.getSort() == Type.DOUBLE) ? Opcodes.DOUBLE : Opcodes.LONG;
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package com.abusalimov.mrcalc.backend.impl.bytebuddy;
 
 import com.abusalimov.mrcalc.backend.SequenceMap;
+import com.abusalimov.mrcalc.runtime.ArithmeticKernel;
 import com.abusalimov.mrcalc.runtime.Sequence;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.implementation.bytecode.StackManipulation;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+import net.bytebuddy.implementation.bytecode.constant.TextConstant;
+import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
 
 import java.util.function.*;
 
@@ -13,6 +19,14 @@ public enum BytebuddySequenceMap {
     LONG(FromAny.ToLong::valueOf),
     DOUBLE(FromAny.ToDouble::valueOf);
 
+    private static final RuntimeMethodInvoke POLYNOMIAL_RUNTIME_METHOD_INVOKE = new RuntimeMethodInvoke(
+            "mapLongToLongPolynomial", Sequence.OfLong.class, LongUnaryOperator.class, int.class);
+    private static final RuntimeMethodInvoke LONG_KERNEL_RUNTIME_METHOD_INVOKE = new RuntimeMethodInvoke(
+            "mapLongToLongKernel", Sequence.OfLong.class, LongUnaryOperator.class, ArithmeticKernel.OfLong.class);
+    private static final RuntimeMethodInvoke DOUBLE_KERNEL_RUNTIME_METHOD_INVOKE = new RuntimeMethodInvoke(
+            "mapDoubleToDoubleKernel", Sequence.OfDouble.class, DoubleUnaryOperator.class,
+            ArithmeticKernel.OfDouble.class);
+
     private final Function<String, SequenceMap<StackStub, StackStub, StackStub>> delegateValueOf;
 
     BytebuddySequenceMap(Function<String, SequenceMap<StackStub, StackStub, StackStub>> delegateValueOf) {
@@ -28,10 +42,66 @@ public enum BytebuddySequenceMap {
         return BytebuddySequenceMap.valueOf(nameForType(returnElementType)).forElementType(elementType);
     }
 
+    public static SequenceMap<StackStub, StackStub, StackStub> forPolynomial(Class<?> elementType, int degree) {
+        if (elementType != long.class) {
+            return forType(elementType, elementType);
+        }
+        return new WithExtraArgument(POLYNOMIAL_RUNTIME_METHOD_INVOKE, IntegerConstant.forValue(degree));
+    }
+
+    public static SequenceMap<StackStub, StackStub, StackStub> forKernel(Class<?> elementType, String program) {
+        Class<?> kernelType;
+        RuntimeMethodInvoke runtimeMethodInvoke;
+        if (elementType == long.class) {
+            kernelType = ArithmeticKernel.OfLong.class;
+            runtimeMethodInvoke = LONG_KERNEL_RUNTIME_METHOD_INVOKE;
+        } else if (elementType == double.class) {
+            kernelType = ArithmeticKernel.OfDouble.class;
+            runtimeMethodInvoke = DOUBLE_KERNEL_RUNTIME_METHOD_INVOKE;
+        } else {
+            return forType(elementType, elementType);
+        }
+        MethodDescription forProgramMethod;
+        try {
+            forProgramMethod = new MethodDescription.ForLoadedMethod(
+                    kernelType.getDeclaredMethod("forProgram", String.class));
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+        /* The kernel is looked up by its program, which is cheap since the kernels are cached. */
+        return new WithExtraArgument(runtimeMethodInvoke,
+                new TextConstant(program), MethodInvocation.invoke(forProgramMethod));
+    }
+
     public SequenceMap<StackStub, StackStub, StackStub> forElementType(Class<?> elementType) {
         return delegateValueOf.apply(nameForType(elementType));
     }
 
+    /**
+     * Maps a sequence of primitives with a runtime method accepting an extra argument after the lambda.
+     */
+    protected static class WithExtraArgument implements SequenceMap<StackStub, StackStub, StackStub> {
+        private final RuntimeMethodInvoke runtimeMethodInvoke;
+        private final StackStub extraArgument;
+
+        public WithExtraArgument(RuntimeMethodInvoke runtimeMethodInvoke, StackManipulation... extraArgument) {
+            this.runtimeMethodInvoke = runtimeMethodInvoke;
+            this.extraArgument = new StackStub.Simple(extraArgument);
+        }
+
+        @Override
+        public StackStub map(StackStub sequence, StackStub lambda) {
+            return new StackStub.Compound(sequence, lambda, extraArgument)
+                    .withEvalCompositor(runtimeMethodInvoke::invokeWithArguments);
+        }
+
+        @Override
+        public StackStub map(StackStub sequence, StackStub lambda, long lambdaCost) {
+            return new StackStub.Compound(sequence, lambda, extraArgument)
+                    .withEvalCompositor(args -> runtimeMethodInvoke.invokeWithArguments(lambdaCost, args));
+        }
+    }
+
     protected interface FromAny extends SequenceMap<StackStub, StackStub, StackStub> {
         @Override
         default StackStub map(StackStub sequence, StackStub lambda) {
@@ -39,6 +109,12 @@ public enum BytebuddySequenceMap {
                     .withEvalCompositor(getRuntimeMethodInvoke()::invokeWithArguments);
         }
 
+        @Override
+        default StackStub map(StackStub sequence, StackStub lambda, long lambdaCost) {
+            return new StackStub.Compound(sequence, lambda)
+                    .withEvalCompositor(args -> getRuntimeMethodInvoke().invokeWithArguments(lambdaCost, args));
+        }
+
         RuntimeMethodInvoke getRuntimeMethodInvoke();
 
         enum ToObject implements FromAny {
@@ -0,0 +1,34 @@
+package com.abusalimov.mrcalc.backend.impl.bytebuddy;
+
+import com.abusalimov.mrcalc.backend.SequenceRangeFold;
+import com.abusalimov.mrcalc.runtime.RangeFold;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * @author Eldar Abusalimov
+ */
+public enum BytebuddySequenceRangeFold implements SequenceRangeFold<StackStub, StackStub> {
+    LONG("reduceLongRangeInclusive", long.class, long.class, long.class, RangeFold.OfLong.class,
+            LongBinaryOperator.class),
+    DOUBLE("reduceDoubleRangeInclusive", long.class, long.class, double.class, RangeFold.OfDouble.class,
+            DoubleBinaryOperator.class);
+
+    private final RuntimeMethodInvoke runtimeMethodInvoke;
+
+    BytebuddySequenceRangeFold(String runtimeMethodName, Class<?>... parameterTypes) {
+        runtimeMethodInvoke = new RuntimeMethodInvoke(runtimeMethodName, parameterTypes);
+    }
+
+    public static BytebuddySequenceRangeFold forType(Class<?> type) {
+        return BytebuddySequenceRangeFold.valueOf(type.getName().toUpperCase());
+    }
+
+    @Override
+    public StackStub fold(StackStub start, StackStub end, StackStub neutral, StackStub fold, StackStub combiner,
+                          long lambdaCost) {
+        return new StackStub.Compound(start, end, neutral, fold, combiner)
+                .withEvalCompositor(args -> runtimeMethodInvoke.invokeWithArguments(lambdaCost, args));
+    }
+}
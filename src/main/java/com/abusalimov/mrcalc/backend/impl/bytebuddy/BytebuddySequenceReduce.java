@@ -13,7 +13,8 @@ import java.util.function.LongBinaryOperator;
 public enum BytebuddySequenceReduce implements SequenceReduce<StackStub, StackStub, StackStub> {
     OBJECT("reduce", Sequence.class, Object.class, BinaryOperator.class),
     LONG("reduceLong", Sequence.OfLong.class, long.class, LongBinaryOperator.class),
-    DOUBLE("reduceDouble", Sequence.OfDouble.class, double.class, DoubleBinaryOperator.class);
+    DOUBLE("reduceDouble", Sequence.OfDouble.class, double.class, DoubleBinaryOperator.class),
+    LONG_SUM("reduceLongSum", Sequence.OfLong.class, long.class, LongBinaryOperator.class);
 
     private final RuntimeMethodInvoke runtimeMethodInvoke;
 
@@ -29,9 +30,19 @@ public enum BytebuddySequenceReduce implements SequenceReduce<StackStub, StackSt
         }
     }
 
+    public static BytebuddySequenceReduce sumForType(Class<?> type) {
+        return (type == long.class) ? LONG_SUM : forType(type);
+    }
+
     @Override
     public StackStub reduce(StackStub sequence, StackStub neutral, StackStub lambda) {
         return new StackStub.Compound(sequence, neutral, lambda)
                 .withEvalCompositor(runtimeMethodInvoke::invokeWithArguments);
     }
+
+    @Override
+    public StackStub reduce(StackStub sequence, StackStub neutral, StackStub lambda, long lambdaCost) {
+        return new StackStub.Compound(sequence, neutral, lambda)
+                .withEvalCompositor(args -> runtimeMethodInvoke.invokeWithArguments(lambdaCost, args));
+    }
 }
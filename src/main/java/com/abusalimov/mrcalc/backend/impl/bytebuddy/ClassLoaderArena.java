@@ -0,0 +1,293 @@
+package com.abusalimov.mrcalc.backend.impl.bytebuddy;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Manages the class loaders of generated code, so that the classes of programs that are no longer used get unloaded.
+ * <p>
+ * The classes generated during a single compilation are grouped into a {@link #newRegion() region}, which is a
+ * {@link GeneratedClassLoader} of its own. The JVM unloads the classes of a region all at once, as soon as nothing
+ * references the region loader, its classes, or their instances, that is, when the owning program is discarded.
+ * <p>
+ * The arena keeps the regions in the least recently used order. Once the classes of the regions in use exceed the
+ * class or the byte budget, the least recently used regions get evicted: the arena notifies the
+ * {@link #addEvictionListener(Consumer) listeners}, which are expected to drop the references they hold to the
+ * evicted functions, e.g. from a function cache. The arena itself only holds the regions weakly.
+ *
+ * @author Eldar Abusalimov
+ */
+public class ClassLoaderArena {
+    /**
+     * The default maximum number of classes of regions in use.
+     */
+    public static final int DEFAULT_MAX_CLASSES = 1 << 12;
+    /**
+     * The default maximum size of class files of regions in use.
+     */
+    public static final long DEFAULT_MAX_BYTES = 16L << 20;
+
+    private static final String METASPACE_POOL_NAME = "Metaspace";
+
+    private final ClassLoader parent;
+    private final int maxClasses;
+    private final long maxBytes;
+
+    private final ReferenceQueue<GeneratedClassLoader> queue = new ReferenceQueue<>();
+    private final Map<RegionRef, Boolean> liveRegions = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<RegionRef> evictedRegions = new ArrayList<>();
+    private final List<Consumer<ClassLoader>> evictionListeners = new CopyOnWriteArrayList<>();
+
+    private int retainedClassCount;
+    private long retainedBytes;
+    private long loadedClassCount;
+    private long loadedBytes;
+    private long unloadedClassCount;
+    private long unloadedBytes;
+    private long evictedRegionCount;
+
+    /**
+     * Creates a new arena of the default budget.
+     *
+     * @param parent the parent class loader resolving the runtime classes
+     */
+    public ClassLoaderArena(ClassLoader parent) {
+        this(parent, DEFAULT_MAX_CLASSES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a new arena, which evicts the least recently used regions once the classes of the rest exceed the given
+     * budget.
+     *
+     * @param parent     the parent class loader resolving the runtime classes
+     * @param maxClasses the maximum number of classes of regions in use
+     * @param maxBytes   the maximum size of class files of regions in use
+     * @throws IllegalArgumentException if the budget is not positive
+     */
+    public ClassLoaderArena(ClassLoader parent, int maxClasses, long maxBytes) {
+        if (maxClasses < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Arena budget must be positive");
+        }
+        this.parent = parent;
+        this.maxClasses = maxClasses;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a new region for the classes of a single compilation.
+     *
+     * @return the new region class loader
+     */
+    public GeneratedClassLoader newRegion() {
+        return new GeneratedClassLoader(parent, this);
+    }
+
+    /**
+     * Registers a listener notified with the class loader of each region evicted from the arena.
+     *
+     * @param listener the listener to be called
+     */
+    public void addEvictionListener(Consumer<ClassLoader> listener) {
+        evictionListeners.add(listener);
+    }
+
+    public void removeEvictionListener(Consumer<ClassLoader> listener) {
+        evictionListeners.remove(listener);
+    }
+
+    /**
+     * Marks the region of the given function as recently used. Does nothing unless the function class was generated
+     * within this arena.
+     *
+     * @param function the function instance or its class
+     */
+    public void touch(Object function) {
+        Class<?> cls = (function instanceof Class) ? (Class<?>) function : function.getClass();
+        ClassLoader classLoader = cls.getClassLoader();
+        if (classLoader instanceof GeneratedClassLoader) {
+            GeneratedClassLoader region = (GeneratedClassLoader) classLoader;
+            if (region.getArena() == this) {
+                synchronized (this) {
+                    liveRegions.get(region.getRegionRef());
+                }
+            }
+        }
+    }
+
+    /**
+     * Accounts a class defined by a region of this arena, evicting other regions if the budget is exceeded.
+     */
+    void classDefined(GeneratedClassLoader region, int size) {
+        List<ClassLoader> evicted = new ArrayList<>();
+        synchronized (this) {
+            expungeUnloadedRegions();
+
+            RegionRef ref = region.getRegionRef();
+            if (ref == null) {
+                ref = new RegionRef(region, queue);
+                region.setRegionRef(ref);
+            }
+            if (!ref.evicted) {
+                liveRegions.put(ref, Boolean.TRUE);
+                retainedClassCount++;
+                retainedBytes += size;
+            }
+            ref.classCount++;
+            ref.bytes += size;
+            loadedClassCount++;
+            loadedBytes += size;
+
+            Iterator<RegionRef> iterator = liveRegions.keySet().iterator();
+            while ((retainedClassCount > maxClasses || retainedBytes > maxBytes) && iterator.hasNext()) {
+                RegionRef eldest = iterator.next();
+                if (eldest == ref) {
+                    /* Never evict the region being populated. */
+                    continue;
+                }
+                iterator.remove();
+                evict(eldest);
+                ClassLoader classLoader = eldest.get();
+                if (classLoader != null) {
+                    evicted.add(classLoader);
+                }
+            }
+        }
+
+        for (ClassLoader classLoader : evicted) {
+            for (Consumer<ClassLoader> listener : evictionListeners) {
+                listener.accept(classLoader);
+            }
+        }
+    }
+
+    private void evict(RegionRef ref) {
+        ref.evicted = true;
+        retainedClassCount -= ref.classCount;
+        retainedBytes -= ref.bytes;
+        evictedRegions.add(ref);
+        evictedRegionCount++;
+    }
+
+    private void expungeUnloadedRegions() {
+        for (Reference<? extends GeneratedClassLoader> reference; (reference = queue.poll()) != null; ) {
+            RegionRef ref = (RegionRef) reference;
+            if (ref.evicted) {
+                evictedRegions.remove(ref);
+            } else {
+                liveRegions.remove(ref);
+                retainedClassCount -= ref.classCount;
+                retainedBytes -= ref.bytes;
+            }
+            unloadedClassCount += ref.classCount;
+            unloadedBytes += ref.bytes;
+        }
+    }
+
+    public int getMaxClasses() {
+        return maxClasses;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of regions, which classes haven't been evicted nor unloaded yet.
+     *
+     * @return the number of regions in use
+     */
+    public synchronized int getRegionCount() {
+        expungeUnloadedRegions();
+        return liveRegions.size();
+    }
+
+    /**
+     * Returns the number of classes of the regions in use, which is what the class budget is checked against.
+     *
+     * @return the number of classes
+     */
+    public synchronized int getRetainedClassCount() {
+        expungeUnloadedRegions();
+        return retainedClassCount;
+    }
+
+    /**
+     * Returns the size of class files of the regions in use, which is what the byte budget is checked against.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getRetainedBytes() {
+        expungeUnloadedRegions();
+        return retainedBytes;
+    }
+
+    /**
+     * Returns the total number of classes ever defined within this arena.
+     *
+     * @return the number of classes
+     */
+    public synchronized long getLoadedClassCount() {
+        return loadedClassCount;
+    }
+
+    public synchronized long getLoadedBytes() {
+        return loadedBytes;
+    }
+
+    /**
+     * Returns the number of classes, which region loaders have been garbage collected, and thus have been unloaded.
+     *
+     * @return the number of classes
+     */
+    public synchronized long getUnloadedClassCount() {
+        expungeUnloadedRegions();
+        return unloadedClassCount;
+    }
+
+    public synchronized long getUnloadedBytes() {
+        expungeUnloadedRegions();
+        return unloadedBytes;
+    }
+
+    public synchronized long getEvictedRegionCount() {
+        return evictedRegionCount;
+    }
+
+    /**
+     * Returns the amount of metaspace used by the JVM, which includes, but is not limited to the classes of this
+     * arena.
+     *
+     * @return the number of bytes, or -1 if the JVM has no metaspace memory pool
+     */
+    public static long getMetaspaceUsed() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (METASPACE_POOL_NAME.equals(pool.getName())) {
+                return pool.getUsage().getUsed();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Tracks a region until its loader is collected, along with the accounting of its classes.
+     */
+    static class RegionRef extends WeakReference<GeneratedClassLoader> {
+        private int classCount;
+        private long bytes;
+        private boolean evicted;
+
+        RegionRef(GeneratedClassLoader region, ReferenceQueue<GeneratedClassLoader> queue) {
+            super(region, queue);
+        }
+    }
+}
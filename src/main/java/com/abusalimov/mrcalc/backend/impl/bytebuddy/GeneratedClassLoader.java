@@ -0,0 +1,110 @@
+package com.abusalimov.mrcalc.backend.impl.bytebuddy;
+
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The class loader for generated function classes, which defines each class at most once.
+ * <p>
+ * A lambda function class is included into each function class that uses it. When the same lambda is shared by
+ * several functions, its class is defined upon loading the first of them, and then reused by the rest.
+ * <p>
+ * A loader created by a {@link ClassLoaderArena} is a region of that arena, and reports each class it defines to it.
+ *
+ * @author Eldar Abusalimov
+ */
+public class GeneratedClassLoader extends ClassLoader {
+    private final ClassLoaderArena arena;
+    private ClassLoaderArena.RegionRef regionRef;
+    private int definedClassCount;
+
+    /**
+     * Creates a new class loader resolving the runtime classes through the given parent.
+     *
+     * @param parent the parent class loader
+     */
+    public GeneratedClassLoader(ClassLoader parent) {
+        this(parent, null);
+    }
+
+    /**
+     * Creates a new region of the given arena.
+     *
+     * @param parent the parent class loader
+     * @param arena  the arena accounting the classes of this loader, or null
+     */
+    GeneratedClassLoader(ClassLoader parent, ClassLoaderArena arena) {
+        super(parent);
+        this.arena = arena;
+    }
+
+    /**
+     * Returns the arena this loader is a region of.
+     *
+     * @return the arena, or null if the loader is not managed by an arena
+     */
+    public ClassLoaderArena getArena() {
+        return arena;
+    }
+
+    ClassLoaderArena.RegionRef getRegionRef() {
+        return regionRef;
+    }
+
+    void setRegionRef(ClassLoaderArena.RegionRef regionRef) {
+        this.regionRef = regionRef;
+    }
+
+    /**
+     * Defines the class of the given binary representation, unless this loader already has the class of that name.
+     *
+     * @param name                 the binary name of the class
+     * @param binaryRepresentation the class file
+     * @return the class of the given name
+     */
+    public Class<?> define(String name, byte[] binaryRepresentation) {
+        Class<?> type;
+        synchronized (this) {
+            type = findLoadedClass(name);
+            if (type != null) {
+                return type;
+            }
+            type = defineClass(name, binaryRepresentation, 0, binaryRepresentation.length);
+            definedClassCount++;
+        }
+        /* Outside the lock, as eviction calls back the listeners of the arena. */
+        if (arena != null) {
+            arena.classDefined(this, binaryRepresentation.length);
+        }
+        return type;
+    }
+
+    /**
+     * Returns the number of classes defined by this loader.
+     *
+     * @return the number of classes
+     */
+    public synchronized int getDefinedClassCount() {
+        return definedClassCount;
+    }
+
+    /**
+     * The strategy for loading the types of a dynamic type into a {@link GeneratedClassLoader}.
+     */
+    public enum Strategy implements ClassLoadingStrategy {
+        INSTANCE;
+
+        @Override
+        public Map<TypeDescription, Class<?>> load(ClassLoader classLoader, Map<TypeDescription, byte[]> types) {
+            GeneratedClassLoader generatedClassLoader = (GeneratedClassLoader) classLoader;
+            Map<TypeDescription, Class<?>> loadedTypes = new LinkedHashMap<>();
+            for (Map.Entry<TypeDescription, byte[]> entry : types.entrySet()) {
+                loadedTypes.put(entry.getKey(), generatedClassLoader.define(entry.getKey().getName(), entry.getValue()));
+            }
+            return loadedTypes;
+        }
+    }
+}
@@ -14,7 +14,9 @@ import net.bytebuddy.implementation.bytecode.StackSize;
 import net.bytebuddy.implementation.bytecode.assign.Assigner;
 import net.bytebuddy.implementation.bytecode.collection.ArrayAccess;
 import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+import net.bytebuddy.implementation.bytecode.constant.LongConstant;
 import net.bytebuddy.implementation.bytecode.member.FieldAccess;
+import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
 import net.bytebuddy.implementation.bytecode.member.MethodVariableAccess;
 import net.bytebuddy.jar.asm.MethodVisitor;
 import net.bytebuddy.utility.CompoundList;
@@ -34,11 +36,13 @@ import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
  */
 public class MethodCallStub extends MethodCall implements StackStub {
     private static final Field RUNTIME_FIELD;
+    private static final Method WITH_COST_HINT_METHOD;
 
     static {
         try {
             RUNTIME_FIELD = RuntimeFunction.class.getDeclaredField("runtime");
-        } catch (NoSuchFieldException e) {
+            WITH_COST_HINT_METHOD = Runtime.class.getDeclaredMethod("withCostHint", long.class);
+        } catch (NoSuchFieldException | NoSuchMethodException e) {
             throw new RuntimeException(e);
         }
     }
@@ -156,6 +160,17 @@ public class MethodCallStub extends MethodCall implements StackStub {
                 .withArgumentLoader(new ArgumentLoader.ForMethodParameter.Factory(0));
     }
 
+    /**
+     * Loads the instance of {@link Runtime} found in the "runtime" field of this instance.
+     *
+     * @return the stack manipulation pushing the runtime
+     */
+    public static StackManipulation loadRuntime() {
+        return new StackManipulation.Compound(
+                MethodVariableAccess.REFERENCE.loadOffset(0),  // this
+                FieldAccess.forField(new FieldDescription.ForLoadedField(RUNTIME_FIELD)).getter());
+    }
+
     /**
      * Invokes a runtime method on the instance found in the "runtime" field of this instance.
      *
@@ -164,8 +179,32 @@ public class MethodCallStub extends MethodCall implements StackStub {
      * @return a method call that invokes the given runtime method
      */
     public static MethodCallStub invokeRuntime(Method method, StackManipulation... arguments) {
-        return new MethodCallStub(method,
+        return invokeRuntime(method,
                 new TargetHandler.ForSuperInstanceField(new FieldDescription.ForLoadedField(RUNTIME_FIELD)),
+                arguments);
+    }
+
+    /**
+     * Invokes a runtime method on the instance obtained by calling {@link Runtime#withCostHint(long)} on the
+     * instance found in the "runtime" field of this instance.
+     *
+     * @param method     the runtime method being invoked
+     * @param lambdaCost the cost hint to pass to the runtime
+     * @param arguments  the arguments to pass
+     * @return a method call that invokes the given runtime method
+     */
+    public static MethodCallStub invokeRuntime(Method method, long lambdaCost, StackManipulation... arguments) {
+        return invokeRuntime(method,
+                new TargetHandler.ForCostHintedSuperInstanceField(
+                        new FieldDescription.ForLoadedField(RUNTIME_FIELD),
+                        new MethodDescription.ForLoadedMethod(WITH_COST_HINT_METHOD), lambdaCost),
+                arguments);
+    }
+
+    private static MethodCallStub invokeRuntime(Method method, MethodCall.TargetHandler targetHandler,
+                                                StackManipulation... arguments) {
+        return new MethodCallStub(method,
+                targetHandler,
                 Collections.singletonList(new ArgumentLoader.ForStackManipulations(arguments)),
                 MethodInvoker.ForVirtualInvocation.WithImplicitType.INSTANCE,
                 TerminationHandler.ForStub.INSTANCE,
@@ -437,7 +476,7 @@ public class MethodCallStub extends MethodCall implements StackStub {
          * Creates a target handler that stores the instance to invoke a method on in an instance field.
          */
         class ForSuperInstanceField implements TargetHandler {
-            private FieldDescription fieldDescription;
+            protected final FieldDescription fieldDescription;
 
             public ForSuperInstanceField(FieldDescription fieldDescription) {
                 this.fieldDescription = fieldDescription;
@@ -476,6 +515,50 @@ public class MethodCallStub extends MethodCall implements StackStub {
                        "fieldDescription=" + fieldDescription + '}';
             }
         }
+
+        /**
+         * Creates a target handler that passes a cost hint to the instance stored in an instance field, and invokes a
+         * method on the returned instance.
+         */
+        class ForCostHintedSuperInstanceField extends ForSuperInstanceField {
+            private final MethodDescription withCostHintMethod;
+            private final long lambdaCost;
+
+            public ForCostHintedSuperInstanceField(FieldDescription fieldDescription,
+                                                   MethodDescription withCostHintMethod, long lambdaCost) {
+                super(fieldDescription);
+                this.withCostHintMethod = withCostHintMethod;
+                this.lambdaCost = lambdaCost;
+            }
+
+            @Override
+            public StackManipulation resolve(MethodDescription invokedMethod, MethodDescription instrumentedMethod,
+                                             TypeDescription instrumentedType, Assigner assigner,
+                                             Assigner.Typing typing) {
+                return new StackManipulation.Compound(
+                        super.resolve(invokedMethod, instrumentedMethod, instrumentedType, assigner, typing),
+                        LongConstant.forValue(lambdaCost),
+                        MethodInvocation.invoke(withCostHintMethod));
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                return super.equals(other) &&
+                       withCostHintMethod.equals(((ForCostHintedSuperInstanceField) other).withCostHintMethod) &&
+                       lambdaCost == ((ForCostHintedSuperInstanceField) other).lambdaCost;
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * super.hashCode() + Long.hashCode(lambdaCost);
+            }
+
+            @Override
+            public String toString() {
+                return "MethodCall.TargetHandler.ForCostHintedInstanceField{" +
+                       "fieldDescription=" + fieldDescription + ", lambdaCost=" + lambdaCost + '}';
+            }
+        }
     }
 
     /**
@@ -50,4 +50,16 @@ public class RuntimeMethodInvoke {
     public StackStub invokeWithArguments(StackManipulation... arguments) {
         return MethodCallStub.invokeRuntime(runtimeMethod, arguments);
     }
+
+    /**
+     * Creates a {@link StackStub} implementing an invocation of the target method with the given arguments, on the
+     * runtime {@link Runtime#withCostHint(long) hinted} with the estimated cost of the lambda passed to the method.
+     *
+     * @param lambdaCost the estimated cost of a single invocation of the lambda
+     * @param arguments  the actual arguments to pass to the target method
+     * @return a {@link StackStub} invoking the method with the arguments
+     */
+    public StackStub invokeWithArguments(long lambdaCost, StackManipulation... arguments) {
+        return MethodCallStub.invokeRuntime(runtimeMethod, lambdaCost, arguments);
+    }
 }
@@ -0,0 +1,38 @@
+package com.abusalimov.mrcalc.backend.impl.exprfunc;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+/**
+ * SAM interface for expression functions evaluating to a primitive {@code double}.
+ *
+ * @author Eldar Abusalimov
+ */
+@FunctionalInterface
+public interface DoubleFunc extends Func<Double> {
+    /**
+     * Adapts the given function to this interface, unboxing its result if needed.
+     *
+     * @param func the function returning a {@link Double}
+     * @return the function itself, if it is already a {@link DoubleFunc}, or a wrapper otherwise
+     */
+    static DoubleFunc of(Func<?> func) {
+        if (func instanceof DoubleFunc) {
+            return (DoubleFunc) func;
+        }
+        return (runtime, frame) -> (Double) func.eval(runtime, frame);
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param runtime the runtime to evaluate the expression with
+     * @param frame   the arguments of the function containing the expression
+     * @return the value of the expression
+     */
+    double evalDouble(Runtime runtime, Frame frame);
+
+    @Override
+    default Double eval(Runtime runtime, Frame frame) {
+        return evalDouble(runtime, frame);
+    }
+}
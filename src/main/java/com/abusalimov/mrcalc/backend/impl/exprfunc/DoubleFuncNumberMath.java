@@ -4,42 +4,58 @@ import com.abusalimov.mrcalc.backend.NumberMath;
 import com.abusalimov.mrcalc.runtime.Runtime;
 
 /**
- * Implements numeric math on boxed {@link Double}s.
+ * Implements numeric math on primitive {@code double}s.
  *
  * @author Eldar Abusalimov
  */
-public class DoubleFuncNumberMath extends AbstractFuncNumberMath<Double>
-        implements NumberMath<Double, Func<Double>> {
+public class DoubleFuncNumberMath implements NumberMath<Double, Func<Double>> {
     public static final DoubleFuncNumberMath INSTANCE = new DoubleFuncNumberMath();
 
     @Override
-    public Func<Double> add(Func<Double> leftOperand, Func<Double> rightOperand) {
-        return (runtime, args) -> leftOperand.eval(runtime, args) + rightOperand.eval(runtime, args);
+    public DoubleFunc constant(Double literal) {
+        double value = literal;
+        return (runtime, frame) -> value;
     }
 
     @Override
-    public Func<Double> sub(Func<Double> leftOperand, Func<Double> rightOperand) {
-        return (runtime, args) -> leftOperand.eval(runtime, args) - rightOperand.eval(runtime, args);
+    public DoubleFunc add(Func<Double> leftOperand, Func<Double> rightOperand) {
+        DoubleFunc left = DoubleFunc.of(leftOperand);
+        DoubleFunc right = DoubleFunc.of(rightOperand);
+        return (runtime, frame) -> left.evalDouble(runtime, frame) + right.evalDouble(runtime, frame);
     }
 
     @Override
-    public Func<Double> mul(Func<Double> leftOperand, Func<Double> rightOperand) {
-        return (runtime, args) -> leftOperand.eval(runtime, args) * rightOperand.eval(runtime, args);
+    public DoubleFunc sub(Func<Double> leftOperand, Func<Double> rightOperand) {
+        DoubleFunc left = DoubleFunc.of(leftOperand);
+        DoubleFunc right = DoubleFunc.of(rightOperand);
+        return (runtime, frame) -> left.evalDouble(runtime, frame) - right.evalDouble(runtime, frame);
     }
 
     @Override
-    public Func<Double> div(Func<Double> leftOperand, Func<Double> rightOperand) {
-        return (runtime, args) -> leftOperand.eval(runtime, args) / rightOperand.eval(runtime, args);
+    public DoubleFunc mul(Func<Double> leftOperand, Func<Double> rightOperand) {
+        DoubleFunc left = DoubleFunc.of(leftOperand);
+        DoubleFunc right = DoubleFunc.of(rightOperand);
+        return (runtime, frame) -> left.evalDouble(runtime, frame) * right.evalDouble(runtime, frame);
     }
 
     @Override
-    public Func<Double> pow(Func<Double> leftOperand, Func<Double> rightOperand) {
-        return (runtime, args) -> Runtime.Util
-                .powDouble(leftOperand.eval(runtime, args), rightOperand.eval(runtime, args));
+    public DoubleFunc div(Func<Double> leftOperand, Func<Double> rightOperand) {
+        DoubleFunc left = DoubleFunc.of(leftOperand);
+        DoubleFunc right = DoubleFunc.of(rightOperand);
+        return (runtime, frame) -> left.evalDouble(runtime, frame) / right.evalDouble(runtime, frame);
     }
 
     @Override
-    public Func<Double> neg(Func<Double> operand) {
-        return (runtime, args) -> -operand.eval(runtime, args);
+    public DoubleFunc pow(Func<Double> leftOperand, Func<Double> rightOperand) {
+        DoubleFunc left = DoubleFunc.of(leftOperand);
+        DoubleFunc right = DoubleFunc.of(rightOperand);
+        return (runtime, frame) -> Runtime.Util.powDouble(left.evalDouble(runtime, frame),
+                right.evalDouble(runtime, frame));
+    }
+
+    @Override
+    public DoubleFunc neg(Func<Double> operand) {
+        DoubleFunc value = DoubleFunc.of(operand);
+        return (runtime, frame) -> -value.evalDouble(runtime, frame);
     }
 }
@@ -0,0 +1,151 @@
+package com.abusalimov.mrcalc.backend.impl.exprfunc;
+
+import com.abusalimov.mrcalc.runtime.GlobalFrame;
+
+/**
+ * The arguments of an interpreted function. Arguments of primitive types are stored in arrays of primitives, so that
+ * passing them doesn't involve boxing.
+ * <p>
+ * A frame of a lambda is reused for subsequent evaluations of the lambda, which makes a frame bound to the thread that
+ * has created it. A frame is marked as busy during the evaluation, so that a re-entrant evaluation of the same lambda
+ * in the same thread, e.g. due to work stealing in a nested map(), gets a frame of its own.
+ *
+ * @author Eldar Abusalimov
+ */
+public final class Frame {
+    private final Thread owner = Thread.currentThread();
+    private final long[] longs;
+    private final double[] doubles;
+    private final Object[] objects;
+    private boolean busy;
+
+    /**
+     * Creates a new frame for the arguments of the given types.
+     *
+     * @param parameterTypes the types of parameters of the function
+     */
+    public Frame(Class<?>[] parameterTypes) {
+        int size = parameterTypes.length;
+        boolean hasLongs = false;
+        boolean hasDoubles = false;
+        boolean hasObjects = false;
+        for (Class<?> parameterType : parameterTypes) {
+            if (parameterType == long.class) {
+                hasLongs = true;
+            } else if (parameterType == double.class) {
+                hasDoubles = true;
+            } else {
+                hasObjects = true;
+            }
+        }
+        longs = hasLongs ? new long[size] : null;
+        doubles = hasDoubles ? new double[size] : null;
+        objects = hasObjects ? new Object[size] : null;
+    }
+
+    /**
+     * Creates a new frame filled with the given boxed arguments.
+     *
+     * @param parameterTypes the types of parameters of the function
+     * @param args           the arguments
+     * @return the new frame
+     */
+    public static Frame of(Class<?>[] parameterTypes, Object[] args) {
+        Frame frame = new Frame(parameterTypes);
+        frame.setAll(parameterTypes, 0, args);
+        return frame;
+    }
+
+    /**
+     * Stores the given boxed values into the consecutive slots.
+     *
+     * @param parameterTypes the types of parameters of the function
+     * @param fromSlot       the slot to store the first value into
+     * @param values         the values
+     */
+    public void setAll(Class<?>[] parameterTypes, int fromSlot, Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            int slot = fromSlot + i;
+            if (parameterTypes[slot] == long.class) {
+                setLong(slot, (Long) values[i]);
+            } else if (parameterTypes[slot] == double.class) {
+                setDouble(slot, (Double) values[i]);
+            } else {
+                setObject(slot, values[i]);
+            }
+        }
+    }
+
+    /**
+     * Copies the values of the given slots of a global frame into the consecutive slots, starting from the first one.
+     *
+     * @param parameterTypes the types of parameters of the function
+     * @param globalFrame    the frame to copy the values from
+     * @param globalSlots    the slots of the global frame to copy
+     */
+    public void setAll(Class<?>[] parameterTypes, GlobalFrame globalFrame, int[] globalSlots) {
+        for (int slot = 0; slot < globalSlots.length; slot++) {
+            if (parameterTypes[slot] == long.class) {
+                setLong(slot, globalFrame.getLong(globalSlots[slot]));
+            } else if (parameterTypes[slot] == double.class) {
+                setDouble(slot, globalFrame.getDouble(globalSlots[slot]));
+            } else {
+                setObject(slot, globalFrame.getObject(globalSlots[slot]));
+            }
+        }
+    }
+
+    /**
+     * Tells whether the frame can be reused by the current thread, and if so, marks the frame as busy.
+     *
+     * @return whether the frame has been acquired
+     */
+    boolean tryAcquire() {
+        if (owner != Thread.currentThread() || busy) {
+            return false;
+        }
+        busy = true;
+        return true;
+    }
+
+    /**
+     * Releases the frame acquired by a lambda, so that the lambda can reuse it for the next evaluation.
+     */
+    public void release() {
+        busy = false;
+    }
+
+    /**
+     * Marks a newly created frame as busy.
+     *
+     * @return this frame
+     */
+    Frame acquired() {
+        busy = true;
+        return this;
+    }
+
+    public long getLong(int slot) {
+        return longs[slot];
+    }
+
+    public void setLong(int slot, long value) {
+        longs[slot] = value;
+    }
+
+    public double getDouble(int slot) {
+        return doubles[slot];
+    }
+
+    public void setDouble(int slot, double value) {
+        doubles[slot] = value;
+    }
+
+    public Object getObject(int slot) {
+        return objects[slot];
+    }
+
+    public void setObject(int slot, Object value) {
+        objects[slot] = value;
+    }
+}
@@ -1,12 +1,24 @@
 package com.abusalimov.mrcalc.backend.impl.exprfunc;
 
-import com.abusalimov.mrcalc.runtime.Evaluable;
+import com.abusalimov.mrcalc.runtime.Runtime;
 
 /**
  * SAM interface for expression functions.
+ * <p>
+ * Expressions of primitive types are represented by the {@link LongFunc} and {@link DoubleFunc} subinterfaces, which
+ * evaluate to primitives without boxing.
  *
  * @param <T> the return type of the function (used for more strict type checking)
  * @author Eldar Abusalimov
  */
-interface Func<T> extends Evaluable<T> {
+@FunctionalInterface
+public interface Func<T> {
+    /**
+     * Evaluates the expression.
+     *
+     * @param runtime the runtime to evaluate the expression with
+     * @param frame   the arguments of the function containing the expression
+     * @return the value of the expression
+     */
+    T eval(Runtime runtime, Frame frame);
 }
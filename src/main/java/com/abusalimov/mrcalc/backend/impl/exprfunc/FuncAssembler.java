@@ -12,10 +12,15 @@ import static java.util.Arrays.asList;
 
 /**
  * The function assembler implementation.
+ * <p>
+ * Expressions of primitive types are assembled into {@link LongFunc}s and {@link DoubleFunc}s, and the arguments are
+ * loaded from the primitive slots of the {@link Frame}, so that evaluating a lambda doesn't box anything, unless the
+ * values are boxed by the program itself, e.g. when stored in a sequence of objects.
  *
+ * @param <R> the return type of the function
  * @author Eldar Abusalimov
  */
-public class FuncAssembler<R> implements FunctionAssembler<R, Func<?>, Func<R>> {
+public class FuncAssembler<R> implements FunctionAssembler<R, Func<?>, FuncFunction> {
     private static final Map<Class<?>, NumberMath<?, ?>> mathMap = new HashMap<>();
     private static final Map<List<Class<? extends Number>>, NumberCast<?, ?>> numberCastMap = new HashMap<>();
 
@@ -25,8 +30,28 @@ public class FuncAssembler<R> implements FunctionAssembler<R, Func<?>, Func<R>>
     }
 
     static {
-        putNumberCast(Double.TYPE, Long.TYPE, expr -> (runtime, args) -> expr.eval(runtime, args).doubleValue());
-        putNumberCast(Long.TYPE, Double.TYPE, expr -> (runtime, args) -> expr.eval(runtime, args).longValue());
+        putNumberCast(Double.TYPE, Long.TYPE, expr -> {
+            LongFunc longExpr = LongFunc.of(expr);
+            return (DoubleFunc) (runtime, frame) -> longExpr.evalLong(runtime, frame);
+        });
+        putNumberCast(Long.TYPE, Double.TYPE, expr -> {
+            DoubleFunc doubleExpr = DoubleFunc.of(expr);
+            return (LongFunc) (runtime, frame) -> (long) doubleExpr.evalDouble(runtime, frame);
+        });
+    }
+
+    private final Class<R> returnType;
+    private final Class<?>[] parameterTypes;
+
+    /**
+     * Creates a new assembler of a function of the given signature.
+     *
+     * @param returnType     the return type of the function
+     * @param parameterTypes the types of parameters taken by the function
+     */
+    public FuncAssembler(Class<R> returnType, Class<?>[] parameterTypes) {
+        this.returnType = returnType;
+        this.parameterTypes = parameterTypes;
     }
 
     private static <F extends Number, T extends Number> void putNumberCast(Class<T> toType, Class<F> fromType,
@@ -36,7 +61,13 @@ public class FuncAssembler<R> implements FunctionAssembler<R, Func<?>, Func<R>>
 
     @Override
     public ArgumentLoad<Func<?>> getArgumentLoad(Class<?> parameterType) {
-        return (slot) -> (runtime, args) -> args[slot];
+        if (parameterType == Long.TYPE) {
+            return slot -> (LongFunc) (runtime, frame) -> frame.getLong(slot);
+        }
+        if (parameterType == Double.TYPE) {
+            return slot -> (DoubleFunc) (runtime, frame) -> frame.getDouble(slot);
+        }
+        return slot -> (runtime, frame) -> frame.getObject(slot);
     }
 
     @SuppressWarnings("unchecked")
@@ -60,31 +91,62 @@ public class FuncAssembler<R> implements FunctionAssembler<R, Func<?>, Func<R>>
         return FuncSequenceRange.INSTANCE;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public SequenceReduce getSequenceReduce(Class<?> returnType) {
-        return FuncSequenceReduce.INSTANCE;
+    public SequenceReduce<Func<?>, Func<?>, Func<?>> getSequenceReduce(Class<?> returnType) {
+        return FuncSequenceReduce.forType(returnType);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public SequenceMap getSequenceMap(Class<?> returnElementType, Class<?> elementType) {
-        return FuncSequenceMap.INSTANCE;
+    public SequenceReduce<Func<?>, Func<?>, Func<?>> getSequenceSum(Class<?> returnType) {
+        return FuncSequenceReduce.sumForType(returnType);
+    }
+
+    @Override
+    public SequenceMap<Func<?>, Func<?>, Func<?>> getSequenceMap(Class<?> returnElementType, Class<?> elementType) {
+        return FuncSequenceMap.forType(returnElementType, elementType);
+    }
+
+    @Override
+    public SequenceMap<Func<?>, Func<?>, Func<?>> getSequencePolynomialMap(Class<?> elementType, int degree) {
+        return FuncSequenceMap.forPolynomial(elementType, degree);
+    }
+
+    @Override
+    public SequenceMap<Func<?>, Func<?>, Func<?>> getSequenceKernelMap(Class<?> elementType, String program) {
+        return FuncSequenceMap.forKernel(elementType, program);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public Func<R> assemble(Func<?> expr) {
-        return (Func<R>) expr;
+    public FuncFunction assemble(Func<?> expr) {
+        Func<?> body = expr;
+        if (returnType == Long.TYPE) {
+            body = LongFunc.of(expr);
+        } else if (returnType == Double.TYPE) {
+            body = DoubleFunc.of(expr);
+        }
+        return new FuncFunction(parameterTypes, body);
     }
 
     @Override
-    public Func<?> lambda(Func<R> function) {
-        return function;
+    public Func<?> lambda(FuncFunction function) {
+        return (runtime, frame) -> function.instantiate(runtime);
     }
 
     @Override
-    public Evaluable<R> toEvaluable(Func<R> function) {
-        return function;
+    public Func<?> lambda(FuncFunction function, List<Func<?>> capturedExprs) {
+        Func<?>[] capturedExprArray = capturedExprs.toArray(new Func<?>[0]);
+        return (runtime, frame) -> {
+            Object[] capturedValues = new Object[capturedExprArray.length];
+            for (int i = 0; i < capturedExprArray.length; i++) {
+                capturedValues[i] = capturedExprArray[i].eval(runtime, frame);
+            }
+            return function.instantiate(runtime, capturedValues);
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Evaluable<R> toEvaluable(FuncFunction function) {
+        return new FuncEvaluable<>(returnType, parameterTypes, (Func<R>) function.getBody());
     }
 }
@@ -3,17 +3,30 @@ package com.abusalimov.mrcalc.backend.impl.exprfunc;
 import com.abusalimov.mrcalc.backend.Backend;
 import com.abusalimov.mrcalc.backend.FunctionAssembler;
 
+import java.util.Arrays;
+
 /**
  * The backend implementation using functions as the expression type and evaluating expressions by calling the
  * corresponding functions.
  *
  * @author Eldar Abusalimov
  */
-public class FuncBackendImpl implements Backend<Func<?>, Func<?>> {
-    @SuppressWarnings("unchecked")
+public class FuncBackendImpl implements Backend<Func<?>, FuncFunction> {
+    @Override
+    public <R> FunctionAssembler<R, Func<?>, FuncFunction> createFunctionAssembler(Class<R> returnType,
+                                                                               Class<?>... parameterTypes) {
+        return new FuncAssembler<>(returnType, parameterTypes);
+    }
+
+    /**
+     * Creates an assembler of a lambda, which stores the captured values into its {@link Frame} right after the
+     * arguments.
+     */
     @Override
-    public <R> FunctionAssembler<R, Func<?>, Func<?>> createFunctionAssembler(Class<R> returnType,
-                                                                              Class<?>... parameterTypes) {
-        return new FuncAssembler();
+    public <R> FunctionAssembler<R, Func<?>, FuncFunction> createCapturingFunctionAssembler(
+            Class<R> returnType, Class<?>[] parameterTypes, Class<?>[] capturedTypes) {
+        Class<?>[] allParameterTypes = Arrays.copyOf(parameterTypes, parameterTypes.length + capturedTypes.length);
+        System.arraycopy(capturedTypes, 0, allParameterTypes, parameterTypes.length, capturedTypes.length);
+        return new FuncAssembler<>(returnType, allParameterTypes);
     }
 }
@@ -0,0 +1,52 @@
+package com.abusalimov.mrcalc.backend.impl.exprfunc;
+
+import com.abusalimov.mrcalc.runtime.Evaluable;
+import com.abusalimov.mrcalc.runtime.GlobalFrame;
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+/**
+ * The {@link Evaluable} of an interpreted function. Evaluating it {@link #evalInto(Runtime, GlobalFrame, int[], int)
+ * into a frame} copies the arguments from the primitive slots of the global frame right into the ones of the
+ * {@link Frame}, and evaluates a function of a primitive type with no boxing of the result.
+ *
+ * @param <R> the return type of the function
+ * @author Eldar Abusalimov
+ */
+public class FuncEvaluable<R> implements Evaluable<R> {
+    private final Class<?>[] parameterTypes;
+    private final Func<R> body;
+    private final LongFunc longBody;
+    private final DoubleFunc doubleBody;
+
+    /**
+     * Creates a new evaluable of the given function body.
+     *
+     * @param returnType     the return type of the function
+     * @param parameterTypes the types of parameters of the function
+     * @param body           the body of the function
+     */
+    public FuncEvaluable(Class<R> returnType, Class<?>[] parameterTypes, Func<R> body) {
+        this.parameterTypes = parameterTypes;
+        this.body = body;
+        this.longBody = (returnType == long.class) ? LongFunc.of(body) : null;
+        this.doubleBody = (returnType == double.class) ? DoubleFunc.of(body) : null;
+    }
+
+    @Override
+    public R eval(Runtime runtime, Object... args) {
+        return body.eval(runtime, Frame.of(parameterTypes, args));
+    }
+
+    @Override
+    public void evalInto(Runtime runtime, GlobalFrame globalFrame, int[] argSlots, int resultSlot) {
+        Frame frame = new Frame(parameterTypes);
+        frame.setAll(parameterTypes, globalFrame, argSlots);
+        if (longBody != null) {
+            globalFrame.setLong(resultSlot, longBody.evalLong(runtime, frame));
+        } else if (doubleBody != null) {
+            globalFrame.setDouble(resultSlot, doubleBody.evalDouble(runtime, frame));
+        } else {
+            globalFrame.setObject(resultSlot, body.eval(runtime, frame));
+        }
+    }
+}
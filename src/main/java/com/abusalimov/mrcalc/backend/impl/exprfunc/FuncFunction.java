@@ -0,0 +1,88 @@
+package com.abusalimov.mrcalc.backend.impl.exprfunc;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+/**
+ * An interpreted function: the expression of its body along with the types of its parameters, which define the layout
+ * of the {@link Frame} the body is evaluated with.
+ *
+ * @author Eldar Abusalimov
+ */
+public class FuncFunction {
+    private final Class<?>[] parameterTypes;
+    private final Func<?> body;
+
+    /**
+     * Creates a new function.
+     *
+     * @param parameterTypes the types of parameters taken by the function
+     * @param body           the expression of the function body, which must be a {@link LongFunc} or a
+     *                       {@link DoubleFunc} for functions returning primitives
+     */
+    public FuncFunction(Class<?>[] parameterTypes, Func<?> body) {
+        this.parameterTypes = parameterTypes;
+        this.body = body;
+    }
+
+    public Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    public Func<?> getBody() {
+        return body;
+    }
+
+    /**
+     * Creates a new frame for the arguments of the function.
+     *
+     * @return the new frame
+     */
+    public Frame newFrame() {
+        return new Frame(parameterTypes);
+    }
+
+    /**
+     * Creates a new frame for the arguments of the function, which has the given captured values stored into the
+     * trailing slots.
+     *
+     * @param capturedValues the boxed values of the captured parameters
+     * @return the new frame
+     */
+    public Frame newFrame(Object[] capturedValues) {
+        Frame frame = newFrame();
+        frame.setAll(parameterTypes, parameterTypes.length - capturedValues.length, capturedValues);
+        return frame;
+    }
+
+    /**
+     * Creates an instance of the standard functional interface evaluating the function as a lambda.
+     *
+     * @param runtime the runtime to evaluate the function with
+     * @return the new {@link FuncLambda} instance
+     * @throws UnsupportedOperationException if the function takes neither one nor two parameters
+     */
+    public Object instantiate(Runtime runtime) {
+        return instantiate(runtime, FuncLambda.NO_CAPTURED_VALUES);
+    }
+
+    /**
+     * Creates an instance of the standard functional interface evaluating the function as a lambda, which takes the
+     * given captured values as the trailing parameters.
+     *
+     * @param runtime        the runtime to evaluate the function with
+     * @param capturedValues the boxed values of the captured parameters
+     * @return the new {@link FuncLambda} instance
+     * @throws UnsupportedOperationException if the lambda takes neither one nor two arguments
+     */
+    public Object instantiate(Runtime runtime, Object[] capturedValues) {
+        int arity = parameterTypes.length - capturedValues.length;
+        switch (arity) {
+            case 1:
+                return new FuncLambda.Unary(this, runtime, capturedValues);
+            case 2:
+                return new FuncLambda.Binary(this, runtime, capturedValues);
+            default:
+                throw new UnsupportedOperationException("No functional interface for " + arity + " parameters");
+        }
+    }
+}
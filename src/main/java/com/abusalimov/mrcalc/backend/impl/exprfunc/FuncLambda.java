@@ -0,0 +1,177 @@
+package com.abusalimov.mrcalc.backend.impl.exprfunc;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+import java.util.function.*;
+
+/**
+ * An instance of a lambda, which interprets a {@link FuncFunction}.
+ * <p>
+ * There is a single class for the lambdas of each arity, which implements all the standard functional interfaces of
+ * that arity. Only the interface matching the signature of the function is used though, so that the primitive
+ * arguments are stored right into the {@link Frame}, and the primitive result is returned as is.
+ * <p>
+ * The values captured by the lambda, if any, are stored into the trailing slots of each frame it creates.
+ * <p>
+ * The lambda keeps a frame per thread evaluating it, so that the worker threads of a parallel runtime reuse their
+ * own frames instead of replacing each other's one. The frame is left busy if the evaluation throws, and a new one is
+ * created next time.
+ *
+ * @author Eldar Abusalimov
+ */
+public abstract class FuncLambda {
+    protected static final Object[] NO_CAPTURED_VALUES = {};
+
+    protected final FuncFunction function;
+    protected final Runtime runtime;
+    protected final Func<?> body;
+    private final Object[] capturedValues;
+    private final ThreadLocal<Frame> spareFrame = new ThreadLocal<>();
+
+    protected FuncLambda(FuncFunction function, Runtime runtime, Object[] capturedValues) {
+        this.function = function;
+        this.runtime = runtime;
+        this.body = function.getBody();
+        this.capturedValues = capturedValues;
+    }
+
+    /**
+     * Returns a frame to evaluate the function with, which must be {@link Frame#release() released} afterwards.
+     *
+     * @return the spare frame of the current thread, if it is not used by another evaluation, or a new one
+     */
+    protected Frame acquireFrame() {
+        Frame frame = spareFrame.get();
+        if (frame == null || !frame.tryAcquire()) {
+            frame = function.newFrame(capturedValues).acquired();
+            spareFrame.set(frame);
+        }
+        return frame;
+    }
+
+    public static class Unary extends FuncLambda implements Function<Object, Object>, LongFunction<Object>,
+            DoubleFunction<Object>, ToLongFunction<Object>, LongUnaryOperator, DoubleToLongFunction,
+            ToDoubleFunction<Object>, LongToDoubleFunction, DoubleUnaryOperator {
+        protected Unary(FuncFunction function, Runtime runtime, Object[] capturedValues) {
+            super(function, runtime, capturedValues);
+        }
+
+        @Override
+        public Object apply(Object value) {
+            Frame frame = acquireFrame();
+            frame.setObject(0, value);
+            Object result = body.eval(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public Object apply(long value) {
+            Frame frame = acquireFrame();
+            frame.setLong(0, value);
+            Object result = body.eval(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public Object apply(double value) {
+            Frame frame = acquireFrame();
+            frame.setDouble(0, value);
+            Object result = body.eval(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public long applyAsLong(Object value) {
+            Frame frame = acquireFrame();
+            frame.setObject(0, value);
+            long result = ((LongFunc) body).evalLong(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public long applyAsLong(long value) {
+            Frame frame = acquireFrame();
+            frame.setLong(0, value);
+            long result = ((LongFunc) body).evalLong(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public long applyAsLong(double value) {
+            Frame frame = acquireFrame();
+            frame.setDouble(0, value);
+            long result = ((LongFunc) body).evalLong(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public double applyAsDouble(Object value) {
+            Frame frame = acquireFrame();
+            frame.setObject(0, value);
+            double result = ((DoubleFunc) body).evalDouble(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public double applyAsDouble(long value) {
+            Frame frame = acquireFrame();
+            frame.setLong(0, value);
+            double result = ((DoubleFunc) body).evalDouble(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public double applyAsDouble(double value) {
+            Frame frame = acquireFrame();
+            frame.setDouble(0, value);
+            double result = ((DoubleFunc) body).evalDouble(runtime, frame);
+            frame.release();
+            return result;
+        }
+    }
+
+    public static class Binary extends FuncLambda implements BinaryOperator<Object>, LongBinaryOperator,
+            DoubleBinaryOperator {
+        protected Binary(FuncFunction function, Runtime runtime, Object[] capturedValues) {
+            super(function, runtime, capturedValues);
+        }
+
+        @Override
+        public Object apply(Object left, Object right) {
+            Frame frame = acquireFrame();
+            frame.setObject(0, left);
+            frame.setObject(1, right);
+            Object result = body.eval(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public long applyAsLong(long left, long right) {
+            Frame frame = acquireFrame();
+            frame.setLong(0, left);
+            frame.setLong(1, right);
+            long result = ((LongFunc) body).evalLong(runtime, frame);
+            frame.release();
+            return result;
+        }
+
+        @Override
+        public double applyAsDouble(double left, double right) {
+            Frame frame = acquireFrame();
+            frame.setDouble(0, left);
+            frame.setDouble(1, right);
+            double result = ((DoubleFunc) body).evalDouble(runtime, frame);
+            frame.release();
+            return result;
+        }
+    }
+}
@@ -1,22 +1,125 @@
 package com.abusalimov.mrcalc.backend.impl.exprfunc;
 
 import com.abusalimov.mrcalc.backend.SequenceMap;
+import com.abusalimov.mrcalc.runtime.ArithmeticKernel;
+import com.abusalimov.mrcalc.runtime.Runtime;
 import com.abusalimov.mrcalc.runtime.Sequence;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.*;
+
 /**
- * Implements sequence mapping expressions factory.
+ * Implements sequence mapping expressions factory. The expression calls the {@link Runtime} method specific to the
+ * types of elements, passing it a {@link FuncLambda}, so that neither the elements nor the results get boxed.
  *
- * @param <T> the type of a sequence elements
  * @author Eldar Abusalimov
  */
-public class FuncSequenceMap<T> implements SequenceMap<Func<Sequence<T>>, Func<Sequence<?>>, Func<T>> {
-    public static final FuncSequenceMap INSTANCE = new FuncSequenceMap();
+public class FuncSequenceMap implements SequenceMap<Func<?>, Func<?>, Func<?>> {
+    private static final Map<List<Class<?>>, MapCall> mapCallMap = new HashMap<>();
+
+    static {
+        putMapCalls();
+    }
+
+    private final MapCall mapCall;
+
+    private FuncSequenceMap(MapCall mapCall) {
+        this.mapCall = mapCall;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putMapCalls() {
+        putMapCall(Object.class, Object.class, (runtime, sequence, mapper) ->
+                runtime.mapToObject((Sequence<Object>) sequence, (Function<Object, Object>) mapper));
+        putMapCall(Object.class, long.class, (runtime, sequence, mapper) ->
+                runtime.mapLongToObject((Sequence.OfLong) sequence, (LongFunction<Object>) mapper));
+        putMapCall(Object.class, double.class, (runtime, sequence, mapper) ->
+                runtime.mapDoubleToObject((Sequence.OfDouble) sequence, (DoubleFunction<Object>) mapper));
+
+        putMapCall(long.class, Object.class, (runtime, sequence, mapper) ->
+                runtime.mapToLong((Sequence<Object>) sequence, (ToLongFunction<Object>) mapper));
+        putMapCall(long.class, long.class, (runtime, sequence, mapper) ->
+                runtime.mapLongToLong((Sequence.OfLong) sequence, (LongUnaryOperator) mapper));
+        putMapCall(long.class, double.class, (runtime, sequence, mapper) ->
+                runtime.mapDoubleToLong((Sequence.OfDouble) sequence, (DoubleToLongFunction) mapper));
+
+        putMapCall(double.class, Object.class, (runtime, sequence, mapper) ->
+                runtime.mapToDouble((Sequence<Object>) sequence, (ToDoubleFunction<Object>) mapper));
+        putMapCall(double.class, long.class, (runtime, sequence, mapper) ->
+                runtime.mapLongToDouble((Sequence.OfLong) sequence, (LongToDoubleFunction) mapper));
+        putMapCall(double.class, double.class, (runtime, sequence, mapper) ->
+                runtime.mapDoubleToDouble((Sequence.OfDouble) sequence, (DoubleUnaryOperator) mapper));
+    }
+
+    private static void putMapCall(Class<?> returnElementType, Class<?> elementType, MapCall mapCall) {
+        mapCallMap.put(Arrays.asList(returnElementType, elementType), mapCall);
+    }
+
+    private static Class<?> erase(Class<?> type) {
+        return type.isPrimitive() ? type : Object.class;
+    }
+
+    public static FuncSequenceMap forType(Class<?> returnElementType, Class<?> elementType) {
+        return new FuncSequenceMap(mapCallMap.get(Arrays.asList(erase(returnElementType), erase(elementType))));
+    }
+
+    /**
+     * Creates a new factory for mapping sequences of longs using a polynomial, which lets the runtime sum up the
+     * resulting sequence in a closed form.
+     *
+     * @param elementType the type of elements of both the source and the resulting sequences
+     * @param degree      the degree of the polynomial
+     * @return the new factory, which maps the sequence as usual, unless the elements are longs
+     */
+    public static FuncSequenceMap forPolynomial(Class<?> elementType, int degree) {
+        if (elementType != long.class) {
+            return forType(elementType, elementType);
+        }
+        return new FuncSequenceMap((runtime, sequence, mapper) -> runtime.mapLongToLongPolynomial(
+                (Sequence.OfLong) sequence, (LongUnaryOperator) mapper, degree));
+    }
+
+    /**
+     * Creates a new factory for mapping sequences of primitives using a pure arithmetic lambda, which lets the runtime
+     * map the sequence with an equivalent {@link ArithmeticKernel}.
+     *
+     * @param elementType the type of elements of both the source and the resulting sequences
+     * @param program     the kernel program
+     * @return the new factory, which maps the sequence as usual, unless the elements are primitives
+     */
+    public static FuncSequenceMap forKernel(Class<?> elementType, String program) {
+        if (elementType == long.class) {
+            ArithmeticKernel.OfLong kernel = ArithmeticKernel.OfLong.forProgram(program);
+            return new FuncSequenceMap((runtime, sequence, mapper) -> runtime.mapLongToLongKernel(
+                    (Sequence.OfLong) sequence, (LongUnaryOperator) mapper, kernel));
+        }
+        if (elementType == double.class) {
+            ArithmeticKernel.OfDouble kernel = ArithmeticKernel.OfDouble.forProgram(program);
+            return new FuncSequenceMap((runtime, sequence, mapper) -> runtime.mapDoubleToDoubleKernel(
+                    (Sequence.OfDouble) sequence, (DoubleUnaryOperator) mapper, kernel));
+        }
+        return forType(elementType, elementType);
+    }
+
+    @Override
+    public Func<?> map(Func<?> sequenceExpr, Func<?> lambdaExpr) {
+        return map(sequenceExpr, lambdaExpr, 0);
+    }
 
     @Override
-    public Func<Sequence<T>> map(Func<Sequence<?>> sequenceExpr, Func<T> lambda) {
-        return (runtime, args) -> {
-            Sequence<?> sequence = sequenceExpr.eval(runtime, args);
-            return runtime.mapToObject(sequence, x -> lambda.eval(runtime, new Object[]{x}));
-        };
+    public Func<?> map(Func<?> sequenceExpr, Func<?> lambdaExpr, long lambdaCost) {
+        return (runtime, frame) -> mapCall.map(runtime.withCostHint(lambdaCost), sequenceExpr.eval(runtime, frame),
+                lambdaExpr.eval(runtime, frame));
+    }
+
+    /**
+     * Calls the mapping method of the runtime.
+     */
+    @FunctionalInterface
+    private interface MapCall {
+        Object map(Runtime runtime, Object sequence, Object mapper);
     }
 }
@@ -13,9 +13,11 @@ public class FuncSequenceRange implements SequenceRange<Func<Sequence<Long>>, Fu
 
     @Override
     public Func<Sequence<Long>> range(Func<Long> startOperand, Func<Long> endOperand) {
-        return (runtime, args) -> {
-            long start = startOperand.eval(runtime, args);
-            long end = endOperand.eval(runtime, args);
+        LongFunc startExpr = LongFunc.of(startOperand);
+        LongFunc endExpr = LongFunc.of(endOperand);
+        return (runtime, frame) -> {
+            long start = startExpr.evalLong(runtime, frame);
+            long end = endExpr.evalLong(runtime, frame);
             return runtime.createLongRange(start, end + 1);
         };
     }
@@ -1,23 +1,89 @@
 package com.abusalimov.mrcalc.backend.impl.exprfunc;
 
 import com.abusalimov.mrcalc.backend.SequenceReduce;
+import com.abusalimov.mrcalc.runtime.Runtime;
 import com.abusalimov.mrcalc.runtime.Sequence;
 
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.LongBinaryOperator;
+
 /**
- * Implements sequence reduction expressions factory.
+ * Implements sequence reduction expressions factory. The expression calls the {@link Runtime} method specific to the
+ * type of elements, passing it a {@link FuncLambda}, and evaluates to a primitive, if the elements are primitives.
  *
- * @param <T> the type of a sequence elements and a reduction result
  * @author Eldar Abusalimov
  */
-public class FuncSequenceReduce<T> implements SequenceReduce<Func<T>, Func<Sequence<T>>, Func<T>> {
-    public static final FuncSequenceReduce INSTANCE = new FuncSequenceReduce();
+@SuppressWarnings("unchecked")
+public enum FuncSequenceReduce implements SequenceReduce<Func<?>, Func<?>, Func<?>> {
+    OBJECT {
+        @Override
+        public Func<?> reduce(Func<?> sequenceExpr, Func<?> neutralExpr, Func<?> lambdaExpr, long lambdaCost) {
+            return (runtime, frame) -> {
+                Sequence<Object> sequence = (Sequence<Object>) sequenceExpr.eval(runtime, frame);
+                Object neutral = neutralExpr.eval(runtime, frame);
+                BinaryOperator<Object> operator = (BinaryOperator<Object>) lambdaExpr.eval(runtime, frame);
+                return runtime.withCostHint(lambdaCost).reduce(sequence, neutral, operator);
+            };
+        }
+    },
+    LONG {
+        @Override
+        public LongFunc reduce(Func<?> sequenceExpr, Func<?> neutralExpr, Func<?> lambdaExpr, long lambdaCost) {
+            LongFunc neutralLongExpr = LongFunc.of(neutralExpr);
+            return (runtime, frame) -> {
+                Sequence.OfLong sequence = (Sequence.OfLong) sequenceExpr.eval(runtime, frame);
+                long neutral = neutralLongExpr.evalLong(runtime, frame);
+                LongBinaryOperator operator = (LongBinaryOperator) lambdaExpr.eval(runtime, frame);
+                return runtime.withCostHint(lambdaCost).reduceLong(sequence, neutral, operator);
+            };
+        }
+    },
+    DOUBLE {
+        @Override
+        public DoubleFunc reduce(Func<?> sequenceExpr, Func<?> neutralExpr, Func<?> lambdaExpr, long lambdaCost) {
+            DoubleFunc neutralDoubleExpr = DoubleFunc.of(neutralExpr);
+            return (runtime, frame) -> {
+                Sequence.OfDouble sequence = (Sequence.OfDouble) sequenceExpr.eval(runtime, frame);
+                double neutral = neutralDoubleExpr.evalDouble(runtime, frame);
+                DoubleBinaryOperator operator = (DoubleBinaryOperator) lambdaExpr.eval(runtime, frame);
+                return runtime.withCostHint(lambdaCost).reduceDouble(sequence, neutral, operator);
+            };
+        }
+    },
+    /**
+     * Sums up a sequence of longs, which lets the runtime do that in a closed form, where possible.
+     */
+    LONG_SUM {
+        @Override
+        public LongFunc reduce(Func<?> sequenceExpr, Func<?> neutralExpr, Func<?> lambdaExpr, long lambdaCost) {
+            LongFunc neutralLongExpr = LongFunc.of(neutralExpr);
+            return (runtime, frame) -> {
+                Sequence.OfLong sequence = (Sequence.OfLong) sequenceExpr.eval(runtime, frame);
+                long neutral = neutralLongExpr.evalLong(runtime, frame);
+                LongBinaryOperator operator = (LongBinaryOperator) lambdaExpr.eval(runtime, frame);
+                return runtime.withCostHint(lambdaCost).reduceLongSum(sequence, neutral, operator);
+            };
+        }
+    };
+
+    public static FuncSequenceReduce forType(Class<?> type) {
+        if (type.isPrimitive()) {
+            return FuncSequenceReduce.valueOf(type.getName().toUpperCase());
+        } else {
+            return OBJECT;
+        }
+    }
+
+    public static FuncSequenceReduce sumForType(Class<?> type) {
+        return (type == long.class) ? LONG_SUM : forType(type);
+    }
 
     @Override
-    public Func<T> reduce(Func<Sequence<T>> sequenceExpr, Func<T> neutralExpr, Func<T> lambda) {
-        return (runtime, args) -> {
-            Sequence<T> sequence = sequenceExpr.eval(runtime, args);
-            T neutral = neutralExpr.eval(runtime, args);
-            return runtime.reduce(sequence, neutral, (x, y) -> lambda.eval(runtime, new Object[]{x, y}));
-        };
+    public Func<?> reduce(Func<?> sequenceExpr, Func<?> neutralExpr, Func<?> lambdaExpr) {
+        return reduce(sequenceExpr, neutralExpr, lambdaExpr, 0);
     }
+
+    @Override
+    public abstract Func<?> reduce(Func<?> sequenceExpr, Func<?> neutralExpr, Func<?> lambdaExpr, long lambdaCost);
 }
@@ -0,0 +1,38 @@
+package com.abusalimov.mrcalc.backend.impl.exprfunc;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+/**
+ * SAM interface for expression functions evaluating to a primitive {@code long}.
+ *
+ * @author Eldar Abusalimov
+ */
+@FunctionalInterface
+public interface LongFunc extends Func<Long> {
+    /**
+     * Adapts the given function to this interface, unboxing its result if needed.
+     *
+     * @param func the function returning a {@link Long}
+     * @return the function itself, if it is already a {@link LongFunc}, or a wrapper otherwise
+     */
+    static LongFunc of(Func<?> func) {
+        if (func instanceof LongFunc) {
+            return (LongFunc) func;
+        }
+        return (runtime, frame) -> (Long) func.eval(runtime, frame);
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param runtime the runtime to evaluate the expression with
+     * @param frame   the arguments of the function containing the expression
+     * @return the value of the expression
+     */
+    long evalLong(Runtime runtime, Frame frame);
+
+    @Override
+    default Long eval(Runtime runtime, Frame frame) {
+        return evalLong(runtime, frame);
+    }
+}
@@ -4,42 +4,59 @@ import com.abusalimov.mrcalc.backend.NumberMath;
 import com.abusalimov.mrcalc.runtime.Runtime;
 
 /**
- * Implements numeric math on boxed {@link Long}s.
+ * Implements numeric math on primitive {@code long}s.
  *
  * @author Eldar Abusalimov
  */
-public class LongFuncNumberMath extends AbstractFuncNumberMath<Long>
-        implements NumberMath<Long, Func<Long>> {
+public class LongFuncNumberMath implements NumberMath<Long, Func<Long>> {
     public static final LongFuncNumberMath INSTANCE = new LongFuncNumberMath();
 
     @Override
-    public Func<Long> add(Func<Long> leftOperand, Func<Long> rightOperand) {
-        return (runtime, args) -> leftOperand.eval(runtime, args) + rightOperand.eval(runtime, args);
+    public LongFunc constant(Long literal) {
+        long value = literal;
+        return (runtime, frame) -> value;
     }
 
     @Override
-    public Func<Long> sub(Func<Long> leftOperand, Func<Long> rightOperand) {
-        return (runtime, args) -> leftOperand.eval(runtime, args) - rightOperand.eval(runtime, args);
+    public LongFunc add(Func<Long> leftOperand, Func<Long> rightOperand) {
+        LongFunc left = LongFunc.of(leftOperand);
+        LongFunc right = LongFunc.of(rightOperand);
+        return (runtime, frame) -> left.evalLong(runtime, frame) + right.evalLong(runtime, frame);
     }
 
     @Override
-    public Func<Long> mul(Func<Long> leftOperand, Func<Long> rightOperand) {
-        return (runtime, args) -> leftOperand.eval(runtime, args) * rightOperand.eval(runtime, args);
+    public LongFunc sub(Func<Long> leftOperand, Func<Long> rightOperand) {
+        LongFunc left = LongFunc.of(leftOperand);
+        LongFunc right = LongFunc.of(rightOperand);
+        return (runtime, frame) -> left.evalLong(runtime, frame) - right.evalLong(runtime, frame);
     }
 
     @Override
-    public Func<Long> div(Func<Long> leftOperand, Func<Long> rightOperand) {
-        return (runtime, args) -> leftOperand.eval(runtime, args) / rightOperand.eval(runtime, args);
+    public LongFunc mul(Func<Long> leftOperand, Func<Long> rightOperand) {
+        LongFunc left = LongFunc.of(leftOperand);
+        LongFunc right = LongFunc.of(rightOperand);
+        return (runtime, frame) -> left.evalLong(runtime, frame) * right.evalLong(runtime, frame);
     }
 
     @Override
-    public Func<Long> pow(Func<Long> leftOperand, Func<Long> rightOperand) {
-        return (runtime, args) -> Runtime.Util
-                .powLong(leftOperand.eval(runtime, args), rightOperand.eval(runtime, args));
+    public LongFunc div(Func<Long> leftOperand, Func<Long> rightOperand) {
+        LongFunc left = LongFunc.of(leftOperand);
+        LongFunc right = LongFunc.of(rightOperand);
+        return (runtime, frame) -> Runtime.Util.divLong(left.evalLong(runtime, frame),
+                right.evalLong(runtime, frame));
     }
 
     @Override
-    public Func<Long> neg(Func<Long> operand) {
-        return (runtime, args) -> -operand.eval(runtime, args);
+    public LongFunc pow(Func<Long> leftOperand, Func<Long> rightOperand) {
+        LongFunc left = LongFunc.of(leftOperand);
+        LongFunc right = LongFunc.of(rightOperand);
+        return (runtime, frame) -> Runtime.Util.powLong(left.evalLong(runtime, frame),
+                right.evalLong(runtime, frame));
+    }
+
+    @Override
+    public LongFunc neg(Func<Long> operand) {
+        LongFunc value = LongFunc.of(operand);
+        return (runtime, frame) -> -value.evalLong(runtime, frame);
     }
 }
@@ -0,0 +1,23 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.backend.Backend;
+import com.abusalimov.mrcalc.backend.FunctionAssembler;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * The backend implementation composing expressions into trees of {@link MethodHandle}s.
+ * <p>
+ * Unlike the bytecode backend, this one doesn't generate a class per function: the JVM spins the code of method
+ * handles lazily, and shares it among the handles of the same shape. Lambdas are instances of the standard functional
+ * interfaces created by the {@link java.lang.invoke.LambdaMetafactory}. Loop fusion is not supported.
+ *
+ * @author Eldar Abusalimov
+ */
+public class MethodHandleBackendImpl implements Backend<MethodHandleExpr, MethodHandle> {
+    @Override
+    public <R> FunctionAssembler<R, MethodHandleExpr, MethodHandle> createFunctionAssembler(
+            Class<R> returnType, Class<?>... parameterTypes) {
+        return new MethodHandleFunctionAssembler<>(returnType, parameterTypes);
+    }
+}
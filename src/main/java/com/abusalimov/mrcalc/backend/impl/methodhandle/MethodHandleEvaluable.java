@@ -0,0 +1,128 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.runtime.Evaluable;
+import com.abusalimov.mrcalc.runtime.GlobalFrame;
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * The {@link Evaluable} calling a function handle with the arguments spread from the array.
+ * <p>
+ * Evaluating it {@link #evalInto(Runtime, GlobalFrame, int[], int) into a frame} calls another handle, which has each
+ * parameter of the function filtered through a getter of the corresponding slot of the frame, so that the primitives
+ * go straight from the frame to the function and back with no boxing.
+ *
+ * @param <R> the return type of the function
+ * @author Eldar Abusalimov
+ */
+public class MethodHandleEvaluable<R> implements Evaluable<R> {
+    private static final MethodHandle GET_LONG;
+    private static final MethodHandle GET_DOUBLE;
+    private static final MethodHandle GET_OBJECT;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            GET_LONG = lookup.findStatic(MethodHandleEvaluable.class, "getLong",
+                    methodType(long.class, GlobalFrame.class, int[].class, int.class));
+            GET_DOUBLE = lookup.findStatic(MethodHandleEvaluable.class, "getDouble",
+                    methodType(double.class, GlobalFrame.class, int[].class, int.class));
+            GET_OBJECT = lookup.findStatic(MethodHandleEvaluable.class, "getObject",
+                    methodType(Object.class, GlobalFrame.class, int[].class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Could not locate frame getters", e);
+        }
+    }
+
+    private final MethodHandle function;
+    private final MethodHandle frameFunction;
+
+    /**
+     * Wraps the given function.
+     *
+     * @param function the handle taking the {@link Runtime} followed by the arguments of the function
+     */
+    public MethodHandleEvaluable(MethodHandle function) {
+        int parameterCount = function.type().parameterCount() - 1;
+        this.function = function
+                .asType(MethodType.genericMethodType(parameterCount + 1).changeParameterType(0, Runtime.class))
+                .asSpreader(Object[].class, parameterCount);
+        this.frameFunction = readingFrame(function);
+    }
+
+    /**
+     * Turns a function into the one taking the {@link Runtime}, the frame and the slots of the arguments.
+     */
+    private static MethodHandle readingFrame(MethodHandle function) {
+        MethodType type = function.type();
+        int parameterCount = type.parameterCount() - 1;
+
+        MethodHandle handle = function;
+        /* Going backwards keeps the positions of the preceding parameters. */
+        for (int index = parameterCount - 1; index >= 0; index--) {
+            Class<?> parameterType = type.parameterType(index + 1);
+            MethodHandle getter = (parameterType == long.class) ? GET_LONG :
+                                  (parameterType == double.class) ? GET_DOUBLE : GET_OBJECT;
+            getter = MethodHandles.insertArguments(getter, 2, index)
+                    .asType(methodType(parameterType, GlobalFrame.class, int[].class));
+            handle = MethodHandles.collectArguments(handle, index + 1, getter);
+        }
+
+        int[] reorder = new int[1 + 2 * parameterCount];
+        for (int index = 0; index < parameterCount; index++) {
+            reorder[1 + 2 * index] = 1;
+            reorder[2 + 2 * index] = 2;
+        }
+        Class<?> returnType = type.returnType().isPrimitive() ? type.returnType() : Object.class;
+        return MethodHandles.permuteArguments(handle.asType(handle.type().changeReturnType(returnType)),
+                methodType(returnType, Runtime.class, GlobalFrame.class, int[].class), reorder);
+    }
+
+    private static long getLong(GlobalFrame frame, int[] slots, int index) {
+        return frame.getLong(slots[index]);
+    }
+
+    private static double getDouble(GlobalFrame frame, int[] slots, int index) {
+        return frame.getDouble(slots[index]);
+    }
+
+    private static Object getObject(GlobalFrame frame, int[] slots, int index) {
+        return frame.getObject(slots[index]);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public R eval(Runtime runtime, Object... args) {
+        try {
+            return (R) (Object) function.invokeExact(runtime, args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
+    @Override
+    public void evalInto(Runtime runtime, GlobalFrame frame, int[] argSlots, int resultSlot) {
+        Class<?> returnType = frameFunction.type().returnType();
+        try {
+            if (returnType == long.class) {
+                frame.setLong(resultSlot, (long) frameFunction.invokeExact(runtime, frame, argSlots));
+            } else if (returnType == double.class) {
+                frame.setDouble(resultSlot, (double) frameFunction.invokeExact(runtime, frame, argSlots));
+            } else {
+                frame.setObject(resultSlot, (Object) frameFunction.invokeExact(runtime, frame, argSlots));
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+}
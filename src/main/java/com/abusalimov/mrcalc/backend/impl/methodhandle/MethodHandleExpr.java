@@ -0,0 +1,103 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * An expression of the method handle backend, which is resolved into a {@link MethodHandle} once the signature of the
+ * function containing the expression is known.
+ * <p>
+ * The handle of an expression takes the same arguments as the function does: the {@link Runtime} followed by the
+ * parameters of the function. A compound expression is resolved into a tree of handles: the handles of operands
+ * {@link MethodHandles#collectArguments(MethodHandle, int, MethodHandle) compute} the arguments of the operation, and
+ * then the duplicate function arguments are {@link MethodHandles#permuteArguments(MethodHandle, MethodType, int...)
+ * merged} back into a single list.
+ *
+ * @author Eldar Abusalimov
+ */
+@FunctionalInterface
+public interface MethodHandleExpr {
+    /**
+     * Resolves the expression within a function of the given signature.
+     *
+     * @param functionType the type of the function, which first parameter is the {@link Runtime}
+     * @return the handle taking the parameters of the function and returning the result of the expression
+     */
+    MethodHandle resolve(MethodType functionType);
+
+    /**
+     * Creates an expression yielding the given constant.
+     *
+     * @param type  the type of the constant
+     * @param value the value of the constant
+     * @return the constant expression
+     */
+    static MethodHandleExpr constant(Class<?> type, Object value) {
+        MethodHandle constant = MethodHandles.constant(type, value);
+        return functionType -> MethodHandles.dropArguments(constant, 0, functionType.parameterList());
+    }
+
+    /**
+     * Creates an expression loading the argument of the function at the given slot. The very first argument, which
+     * is the runtime, is not counted.
+     *
+     * @param slot the index of the function parameter
+     * @param type the type of the value to load
+     * @return the argument loading expression
+     */
+    static MethodHandleExpr argument(int slot, Class<?> type) {
+        return functionType -> {
+            Class<?> parameterType = functionType.parameterType(slot + 1);
+            return MethodHandles.permuteArguments(MethodHandles.identity(parameterType),
+                    functionType.changeReturnType(parameterType), slot + 1)
+                    .asType(functionType.changeReturnType(type));
+        };
+    }
+
+    /**
+     * Creates an expression loading the runtime, which is the first argument of any function.
+     *
+     * @return the runtime loading expression
+     */
+    static MethodHandleExpr runtime() {
+        return functionType -> MethodHandles.permuteArguments(MethodHandles.identity(Runtime.class),
+                functionType.changeReturnType(Runtime.class), 0);
+    }
+
+    /**
+     * Creates an expression applying the given operation to the results of operand expressions.
+     *
+     * @param operation the handle of the operation, which takes as many arguments as there are operands
+     * @param operands  the expressions evaluating the arguments of the operation
+     * @return the compound expression
+     */
+    static MethodHandleExpr combine(MethodHandle operation, MethodHandleExpr... operands) {
+        MethodType operationType = operation.type();
+        if (operationType.parameterCount() != operands.length) {
+            throw new IllegalArgumentException("Operation " + operationType + " takes " +
+                                               operationType.parameterCount() + " operands");
+        }
+        return functionType -> {
+            if (operands.length == 0) {
+                return MethodHandles.dropArguments(operation, 0, functionType.parameterList());
+            }
+            /* Right to left, so that the position of each operation parameter stays the same. */
+            MethodHandle handle = operation;
+            for (int i = operands.length - 1; i >= 0; i--) {
+                handle = MethodHandles.collectArguments(handle, i, operands[i].resolve(functionType)
+                        .asType(functionType.changeReturnType(operationType.parameterType(i))));
+            }
+
+            int arity = functionType.parameterCount();
+            int[] reorder = new int[arity * operands.length];
+            for (int i = 0; i < reorder.length; i++) {
+                reorder[i] = i % arity;
+            }
+            return MethodHandles.permuteArguments(handle,
+                    functionType.changeReturnType(operationType.returnType()), reorder);
+        };
+    }
+}
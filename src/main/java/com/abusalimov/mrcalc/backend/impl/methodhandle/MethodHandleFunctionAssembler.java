@@ -0,0 +1,106 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.backend.*;
+import com.abusalimov.mrcalc.runtime.Evaluable;
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The function assembler resolving an expression into a single {@link MethodHandle} of the function.
+ * <p>
+ * The handle of a function takes the {@link Runtime} followed by the parameters of the function. A lambda is loaded
+ * as a functional interface instance, which calls the handle of the lambda with the runtime it was created with.
+ *
+ * @param <R> the return type of the function
+ * @author Eldar Abusalimov
+ */
+public class MethodHandleFunctionAssembler<R> implements FunctionAssembler<R, MethodHandleExpr, MethodHandle> {
+    private final MethodType functionType;
+
+    /**
+     * Creates a new assembler of a function of the given signature.
+     *
+     * @param returnType     the return type of the function
+     * @param parameterTypes the types of parameters taken by the function
+     */
+    public MethodHandleFunctionAssembler(Class<R> returnType, Class<?>... parameterTypes) {
+        this.functionType = MethodType.methodType(returnType, parameterTypes).insertParameterTypes(0, Runtime.class);
+    }
+
+    @Override
+    public ArgumentLoad<MethodHandleExpr> getArgumentLoad(Class<?> parameterType) {
+        return slot -> MethodHandleExpr.argument(slot, parameterType);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends Number> NumberMath<T, MethodHandleExpr> getNumberMath(Class<T> returnType) {
+        if (returnType == long.class) {
+            return (NumberMath<T, MethodHandleExpr>) MethodHandleNumberMath.LONG;
+        } else if (returnType == double.class) {
+            return (NumberMath<T, MethodHandleExpr>) MethodHandleNumberMath.DOUBLE;
+        }
+        throw new UnsupportedOperationException("Unknown Number class " + returnType);
+    }
+
+    @Override
+    public NumberCast<MethodHandleExpr, MethodHandleExpr> getNumberCast(Class<? extends Number> toType,
+                                                                        Class<? extends Number> fromType) {
+        return expr -> type -> {
+            MethodHandle handle = expr.resolve(type);
+            return MethodHandles.explicitCastArguments(handle, handle.type().changeReturnType(toType));
+        };
+    }
+
+    @Override
+    public SequenceRange<MethodHandleExpr, MethodHandleExpr> getSequenceRange(Class<? extends Number> elementType) {
+        return MethodHandleSequenceRange.INSTANCE;
+    }
+
+    @Override
+    public SequenceReduce<MethodHandleExpr, MethodHandleExpr, MethodHandleExpr> getSequenceReduce(
+            Class<?> returnType) {
+        return MethodHandleSequenceReduce.forType(returnType);
+    }
+
+    @Override
+    public SequenceReduce<MethodHandleExpr, MethodHandleExpr, MethodHandleExpr> getSequenceSum(Class<?> returnType) {
+        return MethodHandleSequenceReduce.sumForType(returnType);
+    }
+
+    @Override
+    public SequenceMap<MethodHandleExpr, MethodHandleExpr, MethodHandleExpr> getSequenceMap(
+            Class<?> returnElementType, Class<?> elementType) {
+        return MethodHandleSequenceMap.forType(returnElementType, elementType);
+    }
+
+    @Override
+    public SequenceMap<MethodHandleExpr, MethodHandleExpr, MethodHandleExpr> getSequencePolynomialMap(
+            Class<?> elementType, int degree) {
+        return MethodHandleSequenceMap.forPolynomial(elementType, degree);
+    }
+
+    @Override
+    public SequenceMap<MethodHandleExpr, MethodHandleExpr, MethodHandleExpr> getSequenceKernelMap(
+            Class<?> elementType, String program) {
+        return MethodHandleSequenceMap.forKernel(elementType, program);
+    }
+
+    @Override
+    public MethodHandle assemble(MethodHandleExpr expr) {
+        return expr.resolve(functionType).asType(functionType);
+    }
+
+    @Override
+    public MethodHandleExpr lambda(MethodHandle function) {
+        return MethodHandleExpr.combine(MethodHandleLambdas.toLambdaFactory(function), MethodHandleExpr.runtime());
+    }
+
+    @Override
+    public Evaluable<R> toEvaluable(MethodHandle function) {
+        return new MethodHandleEvaluable<>(function);
+    }
+}
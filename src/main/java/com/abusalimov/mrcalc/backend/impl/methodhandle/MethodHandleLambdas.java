@@ -0,0 +1,144 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+import java.lang.invoke.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.*;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Turns functions into instances of the standard functional interfaces accepted by the {@link Runtime}.
+ * <p>
+ * For each interface, the {@link LambdaMetafactory} spins a single class capturing the handle of a function along with
+ * the runtime, which method calls the handle through one of the static invokers declared below. Thus, creating a lambda
+ * instance is as cheap as allocating a Java lambda capturing two variables, and doesn't generate any classes nor
+ * handles.
+ * <p>
+ * The invokers are declared as throwing {@link Throwable}, as required by {@link MethodHandle#invokeExact(Object...)},
+ * yet the handles of functions only ever throw unchecked exceptions.
+ *
+ * @author Eldar Abusalimov
+ */
+final class MethodHandleLambdas {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Map<MethodType, MethodHandle> factoryMap = new HashMap<>();
+
+    static {
+        try {
+            putFactory(BinaryOperator.class, "apply", "binaryOperator", Object.class, Object.class, Object.class);
+            putFactory(LongBinaryOperator.class, "applyAsLong", "longBinaryOperator", long.class, long.class,
+                    long.class);
+            putFactory(DoubleBinaryOperator.class, "applyAsDouble", "doubleBinaryOperator", double.class,
+                    double.class, double.class);
+
+            putFactory(Function.class, "apply", "function", Object.class, Object.class);
+            putFactory(LongFunction.class, "apply", "longFunction", Object.class, long.class);
+            putFactory(DoubleFunction.class, "apply", "doubleFunction", Object.class, double.class);
+
+            putFactory(ToLongFunction.class, "applyAsLong", "toLongFunction", long.class, Object.class);
+            putFactory(LongUnaryOperator.class, "applyAsLong", "longUnaryOperator", long.class, long.class);
+            putFactory(DoubleToLongFunction.class, "applyAsLong", "doubleToLongFunction", long.class, double.class);
+
+            putFactory(ToDoubleFunction.class, "applyAsDouble", "toDoubleFunction", double.class, Object.class);
+            putFactory(LongToDoubleFunction.class, "applyAsDouble", "longToDoubleFunction", double.class,
+                    long.class);
+            putFactory(DoubleUnaryOperator.class, "applyAsDouble", "doubleUnaryOperator", double.class, double.class);
+        } catch (ReflectiveOperationException | LambdaConversionException e) {
+            throw new RuntimeException("Could not create lambda factories", e);
+        }
+    }
+
+    private MethodHandleLambdas() {
+    }
+
+    private static void putFactory(Class<?> functionInterface, String methodName, String invokerName,
+                                   Class<?> returnType, Class<?>... parameterTypes)
+            throws ReflectiveOperationException, LambdaConversionException {
+        MethodType methodType = methodType(returnType, parameterTypes);
+        MethodHandle invoker = LOOKUP.findStatic(MethodHandleLambdas.class, invokerName,
+                methodType.insertParameterTypes(0, MethodHandle.class, Runtime.class));
+        CallSite callSite = LambdaMetafactory.metafactory(LOOKUP, methodName,
+                methodType(functionInterface, MethodHandle.class, Runtime.class), methodType, invoker, methodType);
+        factoryMap.put(methodType, callSite.getTarget());
+    }
+
+    private static Class<?> erase(Class<?> type) {
+        return type.isPrimitive() ? type : Object.class;
+    }
+
+    /**
+     * Returns the handle creating an instance of a functional interface, which method calls the given function with
+     * the runtime passed to the handle.
+     *
+     * @param function the handle of the function, which first parameter is the {@link Runtime}
+     * @return the handle taking the {@link Runtime} and returning the lambda instance
+     * @throws UnsupportedOperationException if there is no standard functional interface of a matching signature
+     */
+    static MethodHandle toLambdaFactory(MethodHandle function) {
+        MethodType methodType = function.type().dropParameterTypes(0, 1);
+        MethodType erasedType = methodType(erase(methodType.returnType()),
+                methodType.parameterList().stream().map(MethodHandleLambdas::erase).toArray(Class<?>[]::new));
+
+        MethodHandle factory = factoryMap.get(erasedType);
+        if (factory == null) {
+            throw new UnsupportedOperationException("No functional interface for " + methodType);
+        }
+
+        return MethodHandles.insertArguments(factory, 0,
+                function.asType(erasedType.insertParameterTypes(0, Runtime.class)));
+    }
+
+    private static Object binaryOperator(MethodHandle target, Runtime runtime, Object a, Object b)
+            throws Throwable {
+        return target.invokeExact(runtime, a, b);
+    }
+
+    private static long longBinaryOperator(MethodHandle target, Runtime runtime, long a, long b)
+            throws Throwable {
+        return (long) target.invokeExact(runtime, a, b);
+    }
+
+    private static double doubleBinaryOperator(MethodHandle target, Runtime runtime, double a, double b)
+            throws Throwable {
+        return (double) target.invokeExact(runtime, a, b);
+    }
+
+    private static Object function(MethodHandle target, Runtime runtime, Object a) throws Throwable {
+        return target.invokeExact(runtime, a);
+    }
+
+    private static Object longFunction(MethodHandle target, Runtime runtime, long a) throws Throwable {
+        return target.invokeExact(runtime, a);
+    }
+
+    private static Object doubleFunction(MethodHandle target, Runtime runtime, double a) throws Throwable {
+        return target.invokeExact(runtime, a);
+    }
+
+    private static long toLongFunction(MethodHandle target, Runtime runtime, Object a) throws Throwable {
+        return (long) target.invokeExact(runtime, a);
+    }
+
+    private static long longUnaryOperator(MethodHandle target, Runtime runtime, long a) throws Throwable {
+        return (long) target.invokeExact(runtime, a);
+    }
+
+    private static long doubleToLongFunction(MethodHandle target, Runtime runtime, double a) throws Throwable {
+        return (long) target.invokeExact(runtime, a);
+    }
+
+    private static double toDoubleFunction(MethodHandle target, Runtime runtime, Object a) throws Throwable {
+        return (double) target.invokeExact(runtime, a);
+    }
+
+    private static double longToDoubleFunction(MethodHandle target, Runtime runtime, long a) throws Throwable {
+        return (double) target.invokeExact(runtime, a);
+    }
+
+    private static double doubleUnaryOperator(MethodHandle target, Runtime runtime, double a) throws Throwable {
+        return (double) target.invokeExact(runtime, a);
+    }
+}
@@ -0,0 +1,120 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.backend.NumberMath;
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Implements numeric math by combining the handles of static methods performing each operation on primitives.
+ *
+ * @param <T> the boxed type of numbers
+ * @author Eldar Abusalimov
+ */
+public class MethodHandleNumberMath<T extends Number> implements NumberMath<T, MethodHandleExpr> {
+    public static final MethodHandleNumberMath<Long> LONG = new MethodHandleNumberMath<>(long.class);
+    public static final MethodHandleNumberMath<Double> DOUBLE = new MethodHandleNumberMath<>(double.class);
+
+    private final Class<?> type;
+    private final MethodHandle add;
+    private final MethodHandle sub;
+    private final MethodHandle mul;
+    private final MethodHandle div;
+    private final MethodHandle pow;
+    private final MethodHandle neg;
+
+    private MethodHandleNumberMath(Class<?> type) {
+        this.type = type;
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            add = lookup.findStatic(MethodHandleNumberMath.class, "add", methodType(type, type, type));
+            sub = lookup.findStatic(MethodHandleNumberMath.class, "sub", methodType(type, type, type));
+            mul = lookup.findStatic(MethodHandleNumberMath.class, "mul", methodType(type, type, type));
+            div = lookup.findStatic(MethodHandleNumberMath.class, "div", methodType(type, type, type));
+            neg = lookup.findStatic(MethodHandleNumberMath.class, "neg", methodType(type, type));
+            pow = lookup.findStatic(Runtime.Util.class, (type == long.class) ? "powLong" : "powDouble",
+                    methodType(type, type, type));
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Could not locate math methods", e);
+        }
+    }
+
+    @Override
+    public MethodHandleExpr constant(T literal) {
+        return MethodHandleExpr.constant(type, literal);
+    }
+
+    @Override
+    public MethodHandleExpr add(MethodHandleExpr leftOperand, MethodHandleExpr rightOperand) {
+        return MethodHandleExpr.combine(add, leftOperand, rightOperand);
+    }
+
+    @Override
+    public MethodHandleExpr sub(MethodHandleExpr leftOperand, MethodHandleExpr rightOperand) {
+        return MethodHandleExpr.combine(sub, leftOperand, rightOperand);
+    }
+
+    @Override
+    public MethodHandleExpr mul(MethodHandleExpr leftOperand, MethodHandleExpr rightOperand) {
+        return MethodHandleExpr.combine(mul, leftOperand, rightOperand);
+    }
+
+    @Override
+    public MethodHandleExpr div(MethodHandleExpr leftOperand, MethodHandleExpr rightOperand) {
+        return MethodHandleExpr.combine(div, leftOperand, rightOperand);
+    }
+
+    @Override
+    public MethodHandleExpr pow(MethodHandleExpr leftOperand, MethodHandleExpr rightOperand) {
+        return MethodHandleExpr.combine(pow, leftOperand, rightOperand);
+    }
+
+    @Override
+    public MethodHandleExpr neg(MethodHandleExpr operand) {
+        return MethodHandleExpr.combine(neg, operand);
+    }
+
+    private static long add(long a, long b) {
+        return a + b;
+    }
+
+    private static long sub(long a, long b) {
+        return a - b;
+    }
+
+    private static long mul(long a, long b) {
+        return a * b;
+    }
+
+    private static long div(long a, long b) {
+        return Runtime.Util.divLong(a, b);
+    }
+
+    private static long neg(long a) {
+        return -a;
+    }
+
+    private static double add(double a, double b) {
+        return a + b;
+    }
+
+    private static double sub(double a, double b) {
+        return a - b;
+    }
+
+    private static double mul(double a, double b) {
+        return a * b;
+    }
+
+    private static double div(double a, double b) {
+        return a / b;
+    }
+
+    private static double neg(double a) {
+        return -a;
+    }
+}
@@ -0,0 +1,118 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.backend.SequenceMap;
+import com.abusalimov.mrcalc.runtime.ArithmeticKernel;
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.*;
+
+/**
+ * Implements sequence mapping expressions factory, calling the {@link com.abusalimov.mrcalc.runtime.Runtime} method
+ * specific to the types of elements, possibly with extra arguments following the lambda.
+ *
+ * @author Eldar Abusalimov
+ */
+public class MethodHandleSequenceMap implements SequenceMap<MethodHandleExpr, MethodHandleExpr, MethodHandleExpr> {
+    private static final Map<List<Class<?>>, MethodHandleSequenceMap> mapMap = new HashMap<>();
+
+    private static final RuntimeMethodHandle POLYNOMIAL_RUNTIME_METHOD_HANDLE = new RuntimeMethodHandle(
+            "mapLongToLongPolynomial", Sequence.OfLong.class, Sequence.OfLong.class, LongUnaryOperator.class,
+            int.class);
+    private static final RuntimeMethodHandle LONG_KERNEL_RUNTIME_METHOD_HANDLE = new RuntimeMethodHandle(
+            "mapLongToLongKernel", Sequence.OfLong.class, Sequence.OfLong.class, LongUnaryOperator.class,
+            ArithmeticKernel.OfLong.class);
+    private static final RuntimeMethodHandle DOUBLE_KERNEL_RUNTIME_METHOD_HANDLE = new RuntimeMethodHandle(
+            "mapDoubleToDoubleKernel", Sequence.OfDouble.class, Sequence.OfDouble.class, DoubleUnaryOperator.class,
+            ArithmeticKernel.OfDouble.class);
+
+    static {
+        putMap(Object.class, Object.class, "mapToObject", Sequence.class, Function.class);
+        putMap(Object.class, long.class, "mapLongToObject", Sequence.OfLong.class, LongFunction.class);
+        putMap(Object.class, double.class, "mapDoubleToObject", Sequence.OfDouble.class, DoubleFunction.class);
+
+        putMap(long.class, Object.class, "mapToLong", Sequence.class, ToLongFunction.class);
+        putMap(long.class, long.class, "mapLongToLong", Sequence.OfLong.class, LongUnaryOperator.class);
+        putMap(long.class, double.class, "mapDoubleToLong", Sequence.OfDouble.class, DoubleToLongFunction.class);
+
+        putMap(double.class, Object.class, "mapToDouble", Sequence.class, ToDoubleFunction.class);
+        putMap(double.class, long.class, "mapLongToDouble", Sequence.OfLong.class, LongToDoubleFunction.class);
+        putMap(double.class, double.class, "mapDoubleToDouble", Sequence.OfDouble.class,
+                DoubleUnaryOperator.class);
+    }
+
+    private final RuntimeMethodHandle runtimeMethodHandle;
+    private final MethodHandleExpr[] extraArguments;
+
+    /**
+     * Creates a mapping calling the given runtime method.
+     *
+     * @param runtimeMethodHandle the method taking a sequence, a lambda and the extra arguments
+     * @param extraArguments      the expressions of arguments passed after the lambda
+     */
+    public MethodHandleSequenceMap(RuntimeMethodHandle runtimeMethodHandle, MethodHandleExpr... extraArguments) {
+        this.runtimeMethodHandle = runtimeMethodHandle;
+        this.extraArguments = extraArguments;
+    }
+
+    private static void putMap(Class<?> returnElementType, Class<?> elementType, String runtimeMethodName,
+                               Class<?> sequenceType, Class<?> lambdaType) {
+        Class<?> returnType = returnElementType.isPrimitive()
+                ? (returnElementType == long.class) ? Sequence.OfLong.class : Sequence.OfDouble.class
+                : Sequence.class;
+        mapMap.put(Arrays.asList(returnElementType, elementType), new MethodHandleSequenceMap(
+                new RuntimeMethodHandle(runtimeMethodName, returnType, sequenceType, lambdaType)));
+    }
+
+    private static Class<?> erase(Class<?> type) {
+        return type.isPrimitive() ? type : Object.class;
+    }
+
+    public static MethodHandleSequenceMap forType(Class<?> returnElementType, Class<?> elementType) {
+        return mapMap.get(Arrays.asList(erase(returnElementType), erase(elementType)));
+    }
+
+    public static MethodHandleSequenceMap forPolynomial(Class<?> elementType, int degree) {
+        if (elementType != long.class) {
+            return forType(elementType, elementType);
+        }
+        return new MethodHandleSequenceMap(POLYNOMIAL_RUNTIME_METHOD_HANDLE,
+                MethodHandleExpr.constant(int.class, degree));
+    }
+
+    public static MethodHandleSequenceMap forKernel(Class<?> elementType, String program) {
+        /* The kernel is resolved right away, since the kernels are cached anyway. */
+        if (elementType == long.class) {
+            return new MethodHandleSequenceMap(LONG_KERNEL_RUNTIME_METHOD_HANDLE,
+                    MethodHandleExpr.constant(ArithmeticKernel.OfLong.class,
+                            ArithmeticKernel.OfLong.forProgram(program)));
+        } else if (elementType == double.class) {
+            return new MethodHandleSequenceMap(DOUBLE_KERNEL_RUNTIME_METHOD_HANDLE,
+                    MethodHandleExpr.constant(ArithmeticKernel.OfDouble.class,
+                            ArithmeticKernel.OfDouble.forProgram(program)));
+        } else {
+            return forType(elementType, elementType);
+        }
+    }
+
+    private MethodHandleExpr[] getArguments(MethodHandleExpr sequence, MethodHandleExpr lambda) {
+        MethodHandleExpr[] arguments = new MethodHandleExpr[extraArguments.length + 2];
+        arguments[0] = sequence;
+        arguments[1] = lambda;
+        System.arraycopy(extraArguments, 0, arguments, 2, extraArguments.length);
+        return arguments;
+    }
+
+    @Override
+    public MethodHandleExpr map(MethodHandleExpr sequence, MethodHandleExpr lambda) {
+        return runtimeMethodHandle.invokeWithArguments(getArguments(sequence, lambda));
+    }
+
+    @Override
+    public MethodHandleExpr map(MethodHandleExpr sequence, MethodHandleExpr lambda, long lambdaCost) {
+        return runtimeMethodHandle.invokeWithArguments(lambdaCost, getArguments(sequence, lambda));
+    }
+}
@@ -0,0 +1,21 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.backend.SequenceRange;
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+/**
+ * Implements range-creating expressions factory.
+ *
+ * @author Eldar Abusalimov
+ */
+public class MethodHandleSequenceRange implements SequenceRange<MethodHandleExpr, MethodHandleExpr> {
+    public static final MethodHandleSequenceRange INSTANCE = new MethodHandleSequenceRange();
+
+    private static final RuntimeMethodHandle RANGE_RUNTIME_METHOD_HANDLE = new RuntimeMethodHandle(
+            "createLongRangeInclusive", Sequence.OfLong.class, long.class, long.class);
+
+    @Override
+    public MethodHandleExpr range(MethodHandleExpr start, MethodHandleExpr end) {
+        return RANGE_RUNTIME_METHOD_HANDLE.invokeWithArguments(start, end);
+    }
+}
@@ -0,0 +1,50 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.backend.SequenceReduce;
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Implements sequence reduction expressions factory.
+ *
+ * @author Eldar Abusalimov
+ */
+public enum MethodHandleSequenceReduce
+        implements SequenceReduce<MethodHandleExpr, MethodHandleExpr, MethodHandleExpr> {
+    OBJECT("reduce", Object.class, Sequence.class, Object.class, BinaryOperator.class),
+    LONG("reduceLong", long.class, Sequence.OfLong.class, long.class, LongBinaryOperator.class),
+    DOUBLE("reduceDouble", double.class, Sequence.OfDouble.class, double.class, DoubleBinaryOperator.class),
+    LONG_SUM("reduceLongSum", long.class, Sequence.OfLong.class, long.class, LongBinaryOperator.class);
+
+    private final RuntimeMethodHandle runtimeMethodHandle;
+
+    MethodHandleSequenceReduce(String runtimeMethodName, Class<?> returnType, Class<?>... parameterTypes) {
+        runtimeMethodHandle = new RuntimeMethodHandle(runtimeMethodName, returnType, parameterTypes);
+    }
+
+    public static MethodHandleSequenceReduce forType(Class<?> type) {
+        if (type.isPrimitive()) {
+            return MethodHandleSequenceReduce.valueOf(type.getName().toUpperCase());
+        } else {
+            return OBJECT;
+        }
+    }
+
+    public static MethodHandleSequenceReduce sumForType(Class<?> type) {
+        return (type == long.class) ? LONG_SUM : forType(type);
+    }
+
+    @Override
+    public MethodHandleExpr reduce(MethodHandleExpr sequence, MethodHandleExpr neutral, MethodHandleExpr lambda) {
+        return runtimeMethodHandle.invokeWithArguments(sequence, neutral, lambda);
+    }
+
+    @Override
+    public MethodHandleExpr reduce(MethodHandleExpr sequence, MethodHandleExpr neutral, MethodHandleExpr lambda,
+                                   long lambdaCost) {
+        return runtimeMethodHandle.invokeWithArguments(lambdaCost, sequence, neutral, lambda);
+    }
+}
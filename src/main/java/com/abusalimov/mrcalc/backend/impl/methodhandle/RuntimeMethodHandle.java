@@ -0,0 +1,69 @@
+package com.abusalimov.mrcalc.backend.impl.methodhandle;
+
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Helper class for constructing expressions calling a {@link Runtime} method.
+ *
+ * @author Eldar Abusalimov
+ */
+public class RuntimeMethodHandle {
+    private static final MethodHandle WITH_COST_HINT = lookupMethod("withCostHint", Runtime.class, long.class);
+
+    private final MethodHandle runtimeMethod;
+
+    /**
+     * Creates a handle of the {@link Runtime} method specified by its name and signature.
+     *
+     * @param runtimeMethodName the name of the method of the {@link Runtime} class
+     * @param returnType        the return type of the method
+     * @param parameterTypes    the array of formal parameters accepted by the method
+     * @throws IllegalArgumentException in case of a method lookup error
+     */
+    public RuntimeMethodHandle(String runtimeMethodName, Class<?> returnType, Class<?>... parameterTypes) {
+        this.runtimeMethod = lookupMethod(runtimeMethodName, returnType, parameterTypes);
+    }
+
+    protected static MethodHandle lookupMethod(String methodName, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Runtime.class, methodName,
+                    MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException(String.format("No Runtime method '%s'", methodName), e);
+        }
+    }
+
+    /**
+     * Creates an expression invoking the target method with the given arguments.
+     *
+     * @param arguments the expressions evaluating the actual arguments to pass to the target method
+     * @return the expression invoking the method
+     */
+    public MethodHandleExpr invokeWithArguments(MethodHandleExpr... arguments) {
+        return invoke(runtimeMethod, arguments);
+    }
+
+    /**
+     * Creates an expression invoking the target method with the given arguments, on the runtime {@link
+     * Runtime#withCostHint(long) hinted} with the estimated cost of the lambda passed to the method.
+     *
+     * @param lambdaCost the estimated cost of a single invocation of the lambda
+     * @param arguments  the expressions evaluating the actual arguments to pass to the target method
+     * @return the expression invoking the method
+     */
+    public MethodHandleExpr invokeWithArguments(long lambdaCost, MethodHandleExpr... arguments) {
+        return invoke(MethodHandles.filterArguments(runtimeMethod, 0,
+                MethodHandles.insertArguments(WITH_COST_HINT, 1, lambdaCost)), arguments);
+    }
+
+    private static MethodHandleExpr invoke(MethodHandle method, MethodHandleExpr... arguments) {
+        MethodHandleExpr[] operands = new MethodHandleExpr[arguments.length + 1];
+        operands[0] = MethodHandleExpr.runtime();
+        System.arraycopy(arguments, 0, operands, 1, arguments.length);
+        return MethodHandleExpr.combine(method, operands);
+    }
+}
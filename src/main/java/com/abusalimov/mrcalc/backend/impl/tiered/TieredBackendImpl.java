@@ -0,0 +1,107 @@
+package com.abusalimov.mrcalc.backend.impl.tiered;
+
+import com.abusalimov.mrcalc.backend.Backend;
+import com.abusalimov.mrcalc.backend.FunctionAssembler;
+import com.abusalimov.mrcalc.backend.impl.asm.AsmFunction;
+import com.abusalimov.mrcalc.backend.impl.asm.AsmFunctionAssembler;
+import com.abusalimov.mrcalc.runtime.Evaluable;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The backend implementation, which interprets the program first, and compiles the lambdas that get hot.
+ * <p>
+ * Each function is assembled both as an interpreted {@link com.abusalimov.mrcalc.backend.impl.exprfunc.Func} and as
+ * a recipe of the {@link com.abusalimov.mrcalc.backend.impl.asm.AsmBackendImpl ASM backend}, which costs nothing
+ * until the bytecode is emitted. Thus, a program starts running as fast as with the interpreter. The interpreted
+ * lambdas count their evaluations, and once a lambda is evaluated more times than the threshold, its bytecode is
+ * emitted in the background. The running map() or reduce() swaps the {@link TieredLambda} for the compiled one at the
+ * next chunk boundary, and so do all the subsequent operations using the same lambda.
+ *
+ * @author Eldar Abusalimov
+ */
+public class TieredBackendImpl implements Backend<TieredExpr, TieredFunction> {
+    /**
+     * The default number of evaluations of a lambda, after which it gets compiled.
+     */
+    public static final long DEFAULT_COMPILE_THRESHOLD = 1 << 14;
+
+    private static final ExecutorService DEFAULT_COMPILE_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mrcalc-tiered-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long compileThreshold;
+    private final Executor compileExecutor;
+    private final ClassLoader parentClassLoader = TieredBackendImpl.class.getClassLoader();
+    private final AtomicLong compiledLambdaCount = new AtomicLong();
+
+    /**
+     * Creates a new backend instance compiling the hot lambdas in a shared background thread.
+     */
+    public TieredBackendImpl() {
+        this(DEFAULT_COMPILE_THRESHOLD, DEFAULT_COMPILE_EXECUTOR);
+    }
+
+    /**
+     * Creates a new backend instance compiling the lambdas evaluated more times than the given threshold.
+     *
+     * @param compileThreshold the number of evaluations of a lambda, after which it gets compiled, counted by each
+     *                         thread in batches of a few dozen
+     * @param compileExecutor  the executor to compile the lambdas in
+     * @throws IllegalArgumentException if the threshold is not positive
+     */
+    public TieredBackendImpl(long compileThreshold, Executor compileExecutor) {
+        if (compileThreshold < 1) {
+            throw new IllegalArgumentException("Compile threshold must be positive");
+        }
+        this.compileThreshold = compileThreshold;
+        this.compileExecutor = compileExecutor;
+    }
+
+    public long getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    public Executor getCompileExecutor() {
+        return compileExecutor;
+    }
+
+    ClassLoader getParentClassLoader() {
+        return parentClassLoader;
+    }
+
+    /**
+     * Returns the number of lambdas compiled so far.
+     *
+     * @return the number of compiled lambdas
+     */
+    public long getCompiledLambdaCount() {
+        return compiledLambdaCount.get();
+    }
+
+    @Override
+    public <R> FunctionAssembler<R, TieredExpr, TieredFunction> createFunctionAssembler(Class<R> returnType,
+                                                                                       Class<?>... parameterTypes) {
+        return new TieredFunctionAssembler<>(this, returnType, parameterTypes);
+    }
+
+    /**
+     * Emits the bytecode of a lambda, along with the lambdas it uses, into a class of its own.
+     *
+     * @param function the function of the lambda
+     * @return the {@link Evaluable} taking no arguments, which creates an instance of the standard functional
+     * interface calling the compiled function with the runtime passed to it
+     */
+    Evaluable<?> compileLambdaFactory(AsmFunction function) {
+        AsmFunctionAssembler<Object> assembler = new AsmFunctionAssembler<>(Object.class, new Class<?>[0],
+                parentClassLoader);
+        Evaluable<Object> lambdaFactory = assembler.toEvaluable(assembler.assemble(assembler.lambda(function)));
+        compiledLambdaCount.incrementAndGet();
+        return lambdaFactory;
+    }
+}
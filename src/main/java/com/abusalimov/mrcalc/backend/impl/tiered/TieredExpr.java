@@ -0,0 +1,34 @@
+package com.abusalimov.mrcalc.backend.impl.tiered;
+
+import com.abusalimov.mrcalc.backend.impl.asm.AsmExpr;
+import com.abusalimov.mrcalc.backend.impl.exprfunc.Func;
+
+/**
+ * An expression of the tiered backend, which is built for both tiers at once: as an interpreted {@link Func} and as
+ * an {@link AsmExpr} recipe, which only turns into bytecode if the function containing it gets hot.
+ *
+ * @author Eldar Abusalimov
+ */
+public final class TieredExpr {
+    private final Func<?> interpreted;
+    private final AsmExpr compiled;
+
+    /**
+     * Creates a new expression out of its tiers.
+     *
+     * @param interpreted the interpreted expression
+     * @param compiled    the expression to be compiled
+     */
+    public TieredExpr(Func<?> interpreted, AsmExpr compiled) {
+        this.interpreted = interpreted;
+        this.compiled = compiled;
+    }
+
+    public Func<?> getInterpreted() {
+        return interpreted;
+    }
+
+    public AsmExpr getCompiled() {
+        return compiled;
+    }
+}
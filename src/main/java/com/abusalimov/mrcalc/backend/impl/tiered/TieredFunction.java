@@ -0,0 +1,155 @@
+package com.abusalimov.mrcalc.backend.impl.tiered;
+
+import com.abusalimov.mrcalc.backend.impl.asm.AsmFunction;
+import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncFunction;
+import com.abusalimov.mrcalc.runtime.Evaluable;
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A function of the tiered backend, which is interpreted until used as a lambda evaluated more times than the
+ * {@link TieredBackendImpl#getCompileThreshold() threshold}, and then gets compiled in the background.
+ * <p>
+ * The function is shared by all instances of the lambda, so that the evaluations are counted across all the map() and
+ * reduce() operations using it, including the ones of other programs, when the function is cached.
+ *
+ * @author Eldar Abusalimov
+ */
+public class TieredFunction {
+    private static final Object[] NO_ARGS = {};
+    /**
+     * The number of evaluations a thread counts on its own, before adding them to the shared count and checking it
+     * against the threshold. Must be a power of two.
+     */
+    private static final int COUNT_BATCH = 64;
+
+    private final TieredBackendImpl backend;
+    private final FuncFunction interpreted;
+    private final AsmFunction compiled;
+
+    private final AtomicBoolean compilationRequested = new AtomicBoolean();
+    private volatile Evaluable<?> compiledLambdaFactory;
+    private volatile Throwable compilationFailure;
+    /* Added to by all the threads evaluating the lambdas, so contended writes go to separate cells. */
+    private final LongAdder evaluationCount = new LongAdder();
+    private final ThreadLocal<long[]> localEvaluationCount = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * Creates a new function out of its tiers.
+     *
+     * @param backend     the backend compiling the function
+     * @param interpreted the interpreted function
+     * @param compiled    the function to be compiled
+     */
+    public TieredFunction(TieredBackendImpl backend, FuncFunction interpreted, AsmFunction compiled) {
+        this.backend = backend;
+        this.interpreted = interpreted;
+        this.compiled = compiled;
+    }
+
+    public FuncFunction getInterpreted() {
+        return interpreted;
+    }
+
+    public AsmFunction getCompiled() {
+        return compiled;
+    }
+
+    /**
+     * Returns the number of interpreted evaluations counted until the compilation has been requested. The threads
+     * count the evaluations in batches, so up to a batch per thread is not reflected yet.
+     *
+     * @return the number of evaluations
+     */
+    public long getEvaluationCount() {
+        return evaluationCount.sum();
+    }
+
+    public boolean isCompiled() {
+        return compiledLambdaFactory != null;
+    }
+
+    /**
+     * Returns the error raised while compiling the function, in which case it stays interpreted.
+     *
+     * @return the error, or {@code null} if the compilation hasn't failed
+     */
+    public Throwable getCompilationFailure() {
+        return compilationFailure;
+    }
+
+    /**
+     * Creates an instance of the standard functional interface evaluating the function as a lambda.
+     *
+     * @param runtime the runtime to evaluate the function with
+     * @return the compiled lambda, if the function has already been compiled, or a new {@link TieredLambda} instance
+     * @throws UnsupportedOperationException if the function takes neither one nor two parameters
+     */
+    public Object instantiate(Runtime runtime) {
+        Object compiledLambda = instantiateCompiled(runtime);
+        if (compiledLambda != null) {
+            return compiledLambda;
+        }
+        switch (interpreted.getParameterTypes().length) {
+            case 1:
+                return new TieredLambda.Unary(this, runtime);
+            case 2:
+                return new TieredLambda.Binary(this, runtime);
+            default:
+                throw new UnsupportedOperationException("No functional interface for " +
+                                                        interpreted.getParameterTypes().length + " parameters");
+        }
+    }
+
+    /**
+     * Creates an instance of the standard functional interface calling the compiled function.
+     *
+     * @param runtime the runtime to evaluate the function with
+     * @return the compiled lambda, or {@code null} if the function hasn't been compiled yet
+     */
+    Object instantiateCompiled(Runtime runtime) {
+        Evaluable<?> factory = compiledLambdaFactory;
+        return (factory != null) ? factory.eval(runtime, NO_ARGS) : null;
+    }
+
+    /**
+     * Counts an interpreted evaluation, and requests the compilation once the function gets hot. The shared count is
+     * only updated and checked once per batch of evaluations of the calling thread, since summing it up is as costly
+     * as the contention it avoids.
+     */
+    void countEvaluation() {
+        if (compilationRequested.get()) {
+            return;
+        }
+        long[] localCount = localEvaluationCount.get();
+        if ((++localCount[0] & (COUNT_BATCH - 1)) != 0) {
+            return;
+        }
+        evaluationCount.add(COUNT_BATCH);
+        if (evaluationCount.sum() >= backend.getCompileThreshold()) {
+            requestCompilation();
+        }
+    }
+
+    /**
+     * Schedules the compilation of the function, unless it has already been requested.
+     * <p>
+     * If the compilation fails, the failure is {@link #getCompilationFailure() recorded}, and the function keeps being
+     * interpreted. It is not retried, since the same function would fail the same way.
+     */
+    public void requestCompilation() {
+        if (compilationRequested.compareAndSet(false, true)) {
+            backend.getCompileExecutor().execute(this::compile);
+        }
+    }
+
+    private void compile() {
+        try {
+            compiledLambdaFactory = backend.compileLambdaFactory(compiled);
+        } catch (RuntimeException | LinkageError e) {
+            compilationFailure = e;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.abusalimov.mrcalc.backend.impl.tiered;
+
+import com.abusalimov.mrcalc.backend.*;
+import com.abusalimov.mrcalc.backend.impl.asm.AsmExpr;
+import com.abusalimov.mrcalc.backend.impl.asm.AsmFunctionAssembler;
+import com.abusalimov.mrcalc.backend.impl.exprfunc.Func;
+import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncAssembler;
+import com.abusalimov.mrcalc.runtime.Evaluable;
+
+/**
+ * The function assembler building each expression for both tiers: the scalar operations are delegated to the
+ * assemblers of the tiers, while the interpreted lambdas are passed to the runtime as {@link TieredLambda}s.
+ *
+ * @param <R> the return type of the function
+ * @author Eldar Abusalimov
+ */
+public class TieredFunctionAssembler<R> implements FunctionAssembler<R, TieredExpr, TieredFunction> {
+    private final TieredBackendImpl backend;
+    private final FuncAssembler<R> interpreter;
+    private final AsmFunctionAssembler<R> compiler;
+
+    /**
+     * Creates a new assembler of a function of the given signature.
+     *
+     * @param backend        the backend compiling the hot functions
+     * @param returnType     the return type of the function
+     * @param parameterTypes the types of parameters taken by the function
+     */
+    public TieredFunctionAssembler(TieredBackendImpl backend, Class<R> returnType, Class<?>[] parameterTypes) {
+        this.backend = backend;
+        this.interpreter = new FuncAssembler<>(returnType, parameterTypes);
+        this.compiler = new AsmFunctionAssembler<>(returnType, parameterTypes, backend.getParentClassLoader());
+    }
+
+    @Override
+    public ArgumentLoad<TieredExpr> getArgumentLoad(Class<?> parameterType) {
+        ArgumentLoad<Func<?>> interpretedLoad = interpreter.getArgumentLoad(parameterType);
+        ArgumentLoad<AsmExpr> compiledLoad = compiler.getArgumentLoad(parameterType);
+        return slot -> new TieredExpr(interpretedLoad.load(slot), compiledLoad.load(slot));
+    }
+
+    @Override
+    public <T extends Number> NumberMath<T, TieredExpr> getNumberMath(Class<T> returnType) {
+        return new TieredNumberMath<>(interpreter.getNumberMath(returnType), compiler.getNumberMath(returnType));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public NumberCast<TieredExpr, TieredExpr> getNumberCast(Class<? extends Number> toType,
+                                                           Class<? extends Number> fromType) {
+        NumberCast<Func<?>, Func<?>> interpretedCast = interpreter.getNumberCast(toType, fromType);
+        NumberCast<AsmExpr, AsmExpr> compiledCast = compiler.getNumberCast(toType, fromType);
+        return expr -> new TieredExpr(interpretedCast.cast(expr.getInterpreted()),
+                compiledCast.cast(expr.getCompiled()));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public SequenceRange<TieredExpr, TieredExpr> getSequenceRange(Class<? extends Number> elementType) {
+        SequenceRange<Func<?>, Func<?>> interpretedRange = interpreter.getSequenceRange(elementType);
+        SequenceRange<AsmExpr, AsmExpr> compiledRange = compiler.getSequenceRange(elementType);
+        return (start, end) -> new TieredExpr(interpretedRange.range(start.getInterpreted(), end.getInterpreted()),
+                compiledRange.range(start.getCompiled(), end.getCompiled()));
+    }
+
+    @Override
+    public SequenceReduce<TieredExpr, TieredExpr, TieredExpr> getSequenceReduce(Class<?> returnType) {
+        return TieredSequenceReduce.forType(returnType);
+    }
+
+    @Override
+    public SequenceReduce<TieredExpr, TieredExpr, TieredExpr> getSequenceSum(Class<?> returnType) {
+        return TieredSequenceReduce.sumForType(returnType);
+    }
+
+    @Override
+    public SequenceMap<TieredExpr, TieredExpr, TieredExpr> getSequenceMap(Class<?> returnElementType,
+                                                                          Class<?> elementType) {
+        return TieredSequenceMap.forType(returnElementType, elementType);
+    }
+
+    @Override
+    public SequenceMap<TieredExpr, TieredExpr, TieredExpr> getSequencePolynomialMap(Class<?> elementType,
+                                                                                    int degree) {
+        return TieredSequenceMap.forPolynomial(elementType, degree);
+    }
+
+    @Override
+    public SequenceMap<TieredExpr, TieredExpr, TieredExpr> getSequenceKernelMap(Class<?> elementType,
+                                                                                String program) {
+        return TieredSequenceMap.forKernel(elementType, program);
+    }
+
+    @Override
+    public TieredFunction assemble(TieredExpr expr) {
+        return new TieredFunction(backend, interpreter.assemble(expr.getInterpreted()),
+                compiler.assemble(expr.getCompiled()));
+    }
+
+    @Override
+    public TieredExpr lambda(TieredFunction function) {
+        return new TieredExpr((runtime, frame) -> function.instantiate(runtime),
+                compiler.lambda(function.getCompiled()));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * An expression statement is evaluated once per execution, so it is always interpreted, while its lambdas get
+     * compiled as needed.
+     */
+    @Override
+    public Evaluable<R> toEvaluable(TieredFunction function) {
+        return interpreter.toEvaluable(function.getInterpreted());
+    }
+}
@@ -0,0 +1,188 @@
+package com.abusalimov.mrcalc.backend.impl.tiered;
+
+import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncLambda;
+import com.abusalimov.mrcalc.runtime.Runtime;
+import com.abusalimov.mrcalc.runtime.SwappableLambda;
+
+import java.util.function.*;
+
+/**
+ * The instances of a lambda, which interpret the {@link TieredFunction} and count the evaluations, until the compiled
+ * function is available. After that, the lambda is {@link SwappableLambda#getCurrent() swapped} for the compiled one.
+ * <p>
+ * The interpretation itself is inherited from the {@link FuncLambda} of the same arity.
+ *
+ * @author Eldar Abusalimov
+ */
+final class TieredLambda {
+    private TieredLambda() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static class Unary extends FuncLambda.Unary implements SwappableLambda {
+        private final TieredFunction tieredFunction;
+        private Object compiled;
+
+        Unary(TieredFunction function, Runtime runtime) {
+            super(function.getInterpreted(), runtime, NO_CAPTURED_VALUES);
+            this.tieredFunction = function;
+        }
+
+        @Override
+        public Object getCurrent() {
+            Object lambda = compiled;
+            if (lambda == null) {
+                lambda = tieredFunction.instantiateCompiled(runtime);
+                if (lambda == null) {
+                    return this;
+                }
+                compiled = lambda;
+            }
+            return lambda;
+        }
+
+        @Override
+        public Object apply(Object value) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((Function<Object, Object>) current).apply(value);
+            }
+            tieredFunction.countEvaluation();
+            return super.apply(value);
+        }
+
+        @Override
+        public Object apply(long value) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((LongFunction<Object>) current).apply(value);
+            }
+            tieredFunction.countEvaluation();
+            return super.apply(value);
+        }
+
+        @Override
+        public Object apply(double value) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((DoubleFunction<Object>) current).apply(value);
+            }
+            tieredFunction.countEvaluation();
+            return super.apply(value);
+        }
+
+        @Override
+        public long applyAsLong(Object value) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((ToLongFunction<Object>) current).applyAsLong(value);
+            }
+            tieredFunction.countEvaluation();
+            return super.applyAsLong(value);
+        }
+
+        @Override
+        public long applyAsLong(long value) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((LongUnaryOperator) current).applyAsLong(value);
+            }
+            tieredFunction.countEvaluation();
+            return super.applyAsLong(value);
+        }
+
+        @Override
+        public long applyAsLong(double value) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((DoubleToLongFunction) current).applyAsLong(value);
+            }
+            tieredFunction.countEvaluation();
+            return super.applyAsLong(value);
+        }
+
+        @Override
+        public double applyAsDouble(Object value) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((ToDoubleFunction<Object>) current).applyAsDouble(value);
+            }
+            tieredFunction.countEvaluation();
+            return super.applyAsDouble(value);
+        }
+
+        @Override
+        public double applyAsDouble(long value) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((LongToDoubleFunction) current).applyAsDouble(value);
+            }
+            tieredFunction.countEvaluation();
+            return super.applyAsDouble(value);
+        }
+
+        @Override
+        public double applyAsDouble(double value) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((DoubleUnaryOperator) current).applyAsDouble(value);
+            }
+            tieredFunction.countEvaluation();
+            return super.applyAsDouble(value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static class Binary extends FuncLambda.Binary implements SwappableLambda {
+        private final TieredFunction tieredFunction;
+        private Object compiled;
+
+        Binary(TieredFunction function, Runtime runtime) {
+            super(function.getInterpreted(), runtime, NO_CAPTURED_VALUES);
+            this.tieredFunction = function;
+        }
+
+        @Override
+        public Object getCurrent() {
+            Object lambda = compiled;
+            if (lambda == null) {
+                lambda = tieredFunction.instantiateCompiled(runtime);
+                if (lambda == null) {
+                    return this;
+                }
+                compiled = lambda;
+            }
+            return lambda;
+        }
+
+        @Override
+        public Object apply(Object left, Object right) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((BinaryOperator<Object>) current).apply(left, right);
+            }
+            tieredFunction.countEvaluation();
+            return super.apply(left, right);
+        }
+
+        @Override
+        public long applyAsLong(long left, long right) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((LongBinaryOperator) current).applyAsLong(left, right);
+            }
+            tieredFunction.countEvaluation();
+            return super.applyAsLong(left, right);
+        }
+
+        @Override
+        public double applyAsDouble(double left, double right) {
+            Object current = getCurrent();
+            if (current != this) {
+                return ((DoubleBinaryOperator) current).applyAsDouble(left, right);
+            }
+            tieredFunction.countEvaluation();
+            return super.applyAsDouble(left, right);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.abusalimov.mrcalc.backend.impl.tiered;
+
+import com.abusalimov.mrcalc.backend.NumberMath;
+import com.abusalimov.mrcalc.backend.impl.asm.AsmExpr;
+import com.abusalimov.mrcalc.backend.impl.exprfunc.Func;
+
+/**
+ * Implements numeric math by performing each operation in both tiers.
+ *
+ * @param <T> the boxed type of numbers
+ * @author Eldar Abusalimov
+ */
+public class TieredNumberMath<T extends Number> implements NumberMath<T, TieredExpr> {
+    private final NumberMath<T, Func<?>> interpreter;
+    private final NumberMath<T, AsmExpr> compiler;
+
+    /**
+     * Creates a new math combining the math of the tiers.
+     *
+     * @param interpreter the math of interpreted expressions
+     * @param compiler    the math of compiled expressions
+     */
+    public TieredNumberMath(NumberMath<T, Func<?>> interpreter, NumberMath<T, AsmExpr> compiler) {
+        this.interpreter = interpreter;
+        this.compiler = compiler;
+    }
+
+    @Override
+    public TieredExpr constant(T literal) {
+        return new TieredExpr(interpreter.constant(literal), compiler.constant(literal));
+    }
+
+    @Override
+    public TieredExpr add(TieredExpr leftOperand, TieredExpr rightOperand) {
+        return new TieredExpr(interpreter.add(leftOperand.getInterpreted(), rightOperand.getInterpreted()),
+                compiler.add(leftOperand.getCompiled(), rightOperand.getCompiled()));
+    }
+
+    @Override
+    public TieredExpr sub(TieredExpr leftOperand, TieredExpr rightOperand) {
+        return new TieredExpr(interpreter.sub(leftOperand.getInterpreted(), rightOperand.getInterpreted()),
+                compiler.sub(leftOperand.getCompiled(), rightOperand.getCompiled()));
+    }
+
+    @Override
+    public TieredExpr mul(TieredExpr leftOperand, TieredExpr rightOperand) {
+        return new TieredExpr(interpreter.mul(leftOperand.getInterpreted(), rightOperand.getInterpreted()),
+                compiler.mul(leftOperand.getCompiled(), rightOperand.getCompiled()));
+    }
+
+    @Override
+    public TieredExpr div(TieredExpr leftOperand, TieredExpr rightOperand) {
+        return new TieredExpr(interpreter.div(leftOperand.getInterpreted(), rightOperand.getInterpreted()),
+                compiler.div(leftOperand.getCompiled(), rightOperand.getCompiled()));
+    }
+
+    @Override
+    public TieredExpr pow(TieredExpr leftOperand, TieredExpr rightOperand) {
+        return new TieredExpr(interpreter.pow(leftOperand.getInterpreted(), rightOperand.getInterpreted()),
+                compiler.pow(leftOperand.getCompiled(), rightOperand.getCompiled()));
+    }
+
+    @Override
+    public TieredExpr neg(TieredExpr operand) {
+        return new TieredExpr(interpreter.neg(operand.getInterpreted()), compiler.neg(operand.getCompiled()));
+    }
+}
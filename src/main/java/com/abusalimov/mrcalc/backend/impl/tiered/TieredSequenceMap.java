@@ -0,0 +1,50 @@
+package com.abusalimov.mrcalc.backend.impl.tiered;
+
+import com.abusalimov.mrcalc.backend.SequenceMap;
+import com.abusalimov.mrcalc.backend.impl.asm.AsmExpr;
+import com.abusalimov.mrcalc.backend.impl.asm.AsmSequenceMap;
+import com.abusalimov.mrcalc.backend.impl.exprfunc.Func;
+import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncSequenceMap;
+
+/**
+ * Implements sequence mapping expressions factory by mapping the sequence in both tiers. The interpreted tier passes
+ * the runtime a {@link TieredLambda}, which is instantiated by the lambda expression.
+ *
+ * @author Eldar Abusalimov
+ */
+public class TieredSequenceMap implements SequenceMap<TieredExpr, TieredExpr, TieredExpr> {
+    private final SequenceMap<Func<?>, Func<?>, Func<?>> interpretedMap;
+    private final SequenceMap<AsmExpr, AsmExpr, AsmExpr> compiledMap;
+
+    private TieredSequenceMap(SequenceMap<Func<?>, Func<?>, Func<?>> interpretedMap,
+                              SequenceMap<AsmExpr, AsmExpr, AsmExpr> compiledMap) {
+        this.interpretedMap = interpretedMap;
+        this.compiledMap = compiledMap;
+    }
+
+    public static TieredSequenceMap forType(Class<?> returnElementType, Class<?> elementType) {
+        return new TieredSequenceMap(FuncSequenceMap.forType(returnElementType, elementType),
+                AsmSequenceMap.forType(returnElementType, elementType));
+    }
+
+    public static TieredSequenceMap forPolynomial(Class<?> elementType, int degree) {
+        return new TieredSequenceMap(FuncSequenceMap.forPolynomial(elementType, degree),
+                AsmSequenceMap.forPolynomial(elementType, degree));
+    }
+
+    public static TieredSequenceMap forKernel(Class<?> elementType, String program) {
+        return new TieredSequenceMap(FuncSequenceMap.forKernel(elementType, program),
+                AsmSequenceMap.forKernel(elementType, program));
+    }
+
+    @Override
+    public TieredExpr map(TieredExpr sequence, TieredExpr lambda) {
+        return map(sequence, lambda, 0);
+    }
+
+    @Override
+    public TieredExpr map(TieredExpr sequence, TieredExpr lambda, long lambdaCost) {
+        return new TieredExpr(interpretedMap.map(sequence.getInterpreted(), lambda.getInterpreted(), lambdaCost),
+                compiledMap.map(sequence.getCompiled(), lambda.getCompiled(), lambdaCost));
+    }
+}
@@ -0,0 +1,50 @@
+package com.abusalimov.mrcalc.backend.impl.tiered;
+
+import com.abusalimov.mrcalc.backend.SequenceReduce;
+import com.abusalimov.mrcalc.backend.impl.asm.AsmSequenceReduce;
+import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncSequenceReduce;
+
+/**
+ * Implements sequence reduction expressions factory by reducing the sequence in both tiers. The interpreted tier
+ * passes the runtime a {@link TieredLambda}, which is instantiated by the lambda expression.
+ *
+ * @author Eldar Abusalimov
+ */
+public enum TieredSequenceReduce implements SequenceReduce<TieredExpr, TieredExpr, TieredExpr> {
+    OBJECT(FuncSequenceReduce.OBJECT, AsmSequenceReduce.OBJECT),
+    LONG(FuncSequenceReduce.LONG, AsmSequenceReduce.LONG),
+    DOUBLE(FuncSequenceReduce.DOUBLE, AsmSequenceReduce.DOUBLE),
+    LONG_SUM(FuncSequenceReduce.LONG_SUM, AsmSequenceReduce.LONG_SUM);
+
+    private final FuncSequenceReduce interpretedReduce;
+    private final AsmSequenceReduce compiledReduce;
+
+    TieredSequenceReduce(FuncSequenceReduce interpretedReduce, AsmSequenceReduce compiledReduce) {
+        this.interpretedReduce = interpretedReduce;
+        this.compiledReduce = compiledReduce;
+    }
+
+    public static TieredSequenceReduce forType(Class<?> type) {
+        if (type.isPrimitive()) {
+            return TieredSequenceReduce.valueOf(type.getName().toUpperCase());
+        } else {
+            return OBJECT;
+        }
+    }
+
+    public static TieredSequenceReduce sumForType(Class<?> type) {
+        return (type == long.class) ? LONG_SUM : forType(type);
+    }
+
+    @Override
+    public TieredExpr reduce(TieredExpr sequence, TieredExpr neutral, TieredExpr lambda) {
+        return reduce(sequence, neutral, lambda, 0);
+    }
+
+    @Override
+    public TieredExpr reduce(TieredExpr sequence, TieredExpr neutral, TieredExpr lambda, long lambdaCost) {
+        return new TieredExpr(interpretedReduce.reduce(sequence.getInterpreted(), neutral.getInterpreted(),
+                lambda.getInterpreted(), lambdaCost),
+                compiledReduce.reduce(sequence.getCompiled(), neutral.getCompiled(), lambda.getCompiled(), lambdaCost));
+    }
+}
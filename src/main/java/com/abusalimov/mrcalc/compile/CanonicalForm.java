@@ -0,0 +1,219 @@
+package com.abusalimov.mrcalc.compile;
+
+import com.abusalimov.mrcalc.ast.LambdaNode;
+import com.abusalimov.mrcalc.ast.Node;
+import com.abusalimov.mrcalc.ast.NodeArgVisitor;
+import com.abusalimov.mrcalc.ast.expr.*;
+import com.abusalimov.mrcalc.ast.expr.literal.FloatLiteralNode;
+import com.abusalimov.mrcalc.ast.expr.literal.IntegerLiteralNode;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Renders an expression into a canonical string, which is the same for any two expressions compiling into the same
+ * function.
+ * <p>
+ * The canonical form starts with the signature of the function, that is, the return type and the types of the
+ * referenced variables, followed by the fully parenthesized expression. A variable reference is rendered as its index
+ * among the referenced variables, so the names of the variables don't matter, as well as whitespace and redundant
+ * parentheses of the source. For example, both {@code a + b*2} and {@code (x+(y * 2))} of integer variables are
+ * rendered as {@code integer(integer,integer)=($0+($1*2))}.
+ * <p>
+ * A sub-expression of a statement can also be rendered on its own, with the global variables rendered by name, so
+ * that any two sub-expressions rendered the same way evaluate to the same value within a program.
+ * <p>
+ * Combined with the fingerprints of the referenced variables, the canonical form of a statement gives a
+ * {@link #fingerprint(ExprTypeInfo, List) fingerprint} of its value, which is the same across the programs.
+ *
+ * @author Eldar Abusalimov
+ */
+class CanonicalForm implements NodeArgVisitor<Void, ExprTypeInfo> {
+    private final StringBuilder sb = new StringBuilder();
+    private final List<ExprNode> capturedExprs;
+    private final ExprTypeInfo namedVariablesTypeInfo;
+
+    private CanonicalForm(List<ExprNode> capturedExprs, ExprTypeInfo namedVariablesTypeInfo) {
+        this.capturedExprs = capturedExprs;
+        this.namedVariablesTypeInfo = namedVariablesTypeInfo;
+    }
+
+    /**
+     * Returns the canonical form of the expression held by the given type info.
+     *
+     * @param exprTypeInfo the complete type info of the expression
+     * @return the canonical string
+     */
+    static String of(ExprTypeInfo exprTypeInfo) {
+        return of(exprTypeInfo, Collections.emptyList());
+    }
+
+    /**
+     * Returns the canonical form of a lambda capturing the values of the given sub-expressions. The captured values
+     * are rendered as the variables following the arguments of the lambda, e.g. {@code x -> x * reduce(...)} is
+     * rendered as {@code integer(integer|integer)=($0*$1)}.
+     *
+     * @param exprTypeInfo  the complete type info of the lambda
+     * @param capturedExprs the captured sub-expressions of the lambda
+     * @return the canonical string
+     */
+    static String of(ExprTypeInfo exprTypeInfo, List<ExprNode> capturedExprs) {
+        CanonicalForm canonicalForm = new CanonicalForm(capturedExprs, null);
+        canonicalForm.appendFunction(exprTypeInfo, capturedExprs);
+        return canonicalForm.sb.toString();
+    }
+
+    /**
+     * Returns the canonical form of a sub-expression of a statement, which renders the global variables by name, e.g.
+     * {@code reduce(xs, 0, a b -> a + b)} is rendered as
+     * {@code integer=reduce(xs,0,[integer(integer,integer)=($0+$1)])}.
+     *
+     * @param node         the sub-expression, which must be out of any lambda of the statement
+     * @param exprTypeInfo the complete type info of the statement
+     * @return the canonical string
+     */
+    static String ofSubexpr(ExprNode node, ExprTypeInfo exprTypeInfo) {
+        CanonicalForm canonicalForm = new CanonicalForm(Collections.emptyList(), exprTypeInfo);
+        canonicalForm.sb.append(exprTypeInfo.getExprType(node)).append('=');
+        canonicalForm.visit(node, exprTypeInfo);
+        return canonicalForm.sb.toString();
+    }
+
+    /**
+     * Returns the fingerprint of the value of a statement, that is, the digest of the canonical form of its expression
+     * followed by the fingerprints of the referenced variables. Since an expression has no side effects, any two
+     * statements having the same fingerprint evaluate to the same value, even if compiled separately.
+     *
+     * @param exprTypeInfo      the complete type info of the statement
+     * @param inputFingerprints the fingerprints of the referenced variables, in the same order
+     * @return the fingerprint string
+     */
+    static String fingerprint(ExprTypeInfo exprTypeInfo, List<String> inputFingerprints) {
+        StringBuilder sb = new StringBuilder(of(exprTypeInfo));
+        for (String inputFingerprint : inputFingerprints) {
+            sb.append(';').append(inputFingerprint);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    private void appendFunction(ExprTypeInfo exprTypeInfo, List<ExprNode> capturedExprs) {
+        sb.append(exprTypeInfo.getExprType()).append('(');
+        String separator = "";
+        for (Variable variable : exprTypeInfo.getReferencedVariables()) {
+            sb.append(separator).append(variable.getType());
+            separator = ",";
+        }
+        separator = "|";
+        for (ExprNode capturedExpr : capturedExprs) {
+            sb.append(separator).append(exprTypeInfo.getExprType(capturedExpr));
+            separator = ",";
+        }
+        sb.append(")=");
+        visit(exprTypeInfo.getExprNode(), exprTypeInfo);
+    }
+
+    @Override
+    public Void visit(Node node, ExprTypeInfo exprTypeInfo) {
+        int index = capturedExprs.indexOf(node);
+        if (index >= 0) {
+            sb.append('$').append(exprTypeInfo.getReferencedVariables().size() + index);
+            return null;
+        }
+        return NodeArgVisitor.super.visit(node, exprTypeInfo);
+    }
+
+    @Override
+    public Void doVisit(Node node, ExprTypeInfo exprTypeInfo) {
+        throw new UnsupportedOperationException("Expressions only");
+    }
+
+    @Override
+    public Void doVisit(VarRefNode node, ExprTypeInfo exprTypeInfo) {
+        if (exprTypeInfo == namedVariablesTypeInfo) {
+            sb.append(node.getName());
+            return null;
+        }
+        sb.append('$').append(exprTypeInfo.getReferencedVariableIndex(node.getName()));
+        return null;
+    }
+
+    @Override
+    public Void doVisit(IntegerLiteralNode node, ExprTypeInfo exprTypeInfo) {
+        sb.append(node.getValue().longValue());
+        return null;
+    }
+
+    @Override
+    public Void doVisit(FloatLiteralNode node, ExprTypeInfo exprTypeInfo) {
+        /* Always has either a dot or an exponent, unlike an integer. */
+        sb.append(Double.toString(node.getValue()));
+        return null;
+    }
+
+    @Override
+    public Void doVisit(BinaryOpNode node, ExprTypeInfo exprTypeInfo) {
+        sb.append('(');
+        visit(node.getOperandA(), exprTypeInfo);
+        sb.append(node.getOp().getSign());
+        visit(node.getOperandB(), exprTypeInfo);
+        sb.append(')');
+        return null;
+    }
+
+    @Override
+    public Void doVisit(UnaryOpNode node, ExprTypeInfo exprTypeInfo) {
+        sb.append('(').append(node.getOp().getSign());
+        visit(node.getOperand(), exprTypeInfo);
+        sb.append(')');
+        return null;
+    }
+
+    @Override
+    public Void doVisit(RangeNode node, ExprTypeInfo exprTypeInfo) {
+        sb.append('{');
+        visit(node.getStart(), exprTypeInfo);
+        sb.append(',');
+        visit(node.getEnd(), exprTypeInfo);
+        sb.append('}');
+        return null;
+    }
+
+    @Override
+    public Void doVisit(MapNode node, ExprTypeInfo exprTypeInfo) {
+        sb.append("map(");
+        visit(node.getSequence(), exprTypeInfo);
+        sb.append(',');
+        visit(node.getLambda(), exprTypeInfo);
+        sb.append(')');
+        return null;
+    }
+
+    @Override
+    public Void doVisit(ReduceNode node, ExprTypeInfo exprTypeInfo) {
+        sb.append("reduce(");
+        visit(node.getSequence(), exprTypeInfo);
+        sb.append(',');
+        visit(node.getNeutral(), exprTypeInfo);
+        sb.append(',');
+        visit(node.getLambda(), exprTypeInfo);
+        sb.append(')');
+        return null;
+    }
+
+    @Override
+    public Void doVisit(LambdaNode node, ExprTypeInfo exprTypeInfo) {
+        sb.append('[');
+        appendFunction(exprTypeInfo.getChild(node), Collections.emptyList());
+        sb.append(']');
+        return null;
+    }
+}
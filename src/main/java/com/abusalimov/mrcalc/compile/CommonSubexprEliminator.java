@@ -0,0 +1,186 @@
+package com.abusalimov.mrcalc.compile;
+
+import com.abusalimov.mrcalc.ast.ExprHolderNode;
+import com.abusalimov.mrcalc.ast.Node;
+import com.abusalimov.mrcalc.ast.NodeArgVisitor;
+import com.abusalimov.mrcalc.ast.expr.*;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the sub-expressions repeated within a program, such as the {@code reduce()} of both
+ * {@code print reduce(xs, 0, a b -> a + b) / 2} and {@code var sum = reduce(xs, 0, x y -> x + y)}, and rewrites the
+ * statements, so that each of them is evaluated once into a hidden variable, which is then referenced instead.
+ * <p>
+ * Two sub-expressions are the same, if they have the same {@link CanonicalForm#ofSubexpr(ExprNode, ExprTypeInfo)
+ * canonical form}, that is, they reference the same global variables, and their lambdas only differ in the names of
+ * the arguments. Since the expressions have no side effects, the value of a repeated one is the same each time.
+ * <p>
+ * Only the map() and reduce() out of any lambda are worth sharing, the rest is cheap to evaluate. A map() consumed by
+ * a reduce() right away is not shared on its own, since the reduction fuses with the mapping, or even sums it up in
+ * a closed form, without allocating the mapped sequence at all. Neither is a sub-expression that only repeats within
+ * another shared one, which is evaluated once anyway.
+ * <p>
+ * The AST is never modified: the rewritten nodes are new ones, located at the original nodes, while the unchanged
+ * subtrees are shared with the original expressions.
+ *
+ * @author Eldar Abusalimov
+ */
+class CommonSubexprEliminator implements NodeArgVisitor<ExprNode, ExprTypeInfo> {
+    private final Set<String> sharedKeys;
+    private final Function<ExprNode, String> variableDefiner;
+    private final Map<String, String> sharedVariableNames = new HashMap<>();
+
+    /**
+     * Creates a new eliminator for the statements of a program.
+     *
+     * @param exprTypeInfos   the complete type infos of the statements in the order of execution
+     * @param variableDefiner the callback defining a hidden variable to hold the value of a (rewritten) shared
+     *                        sub-expression, which is evaluated prior to the statement being rewritten; it returns the
+     *                        name of the variable
+     */
+    CommonSubexprEliminator(List<ExprTypeInfo> exprTypeInfos, Function<ExprNode, String> variableDefiner) {
+        this.variableDefiner = variableDefiner;
+
+        Set<String> repeatedKeys = getRepeatedKeys(exprTypeInfos, Collections.emptySet());
+        /* Leave out the ones only repeated within the other repeated sub-expressions. */
+        sharedKeys = getRepeatedKeys(exprTypeInfos, repeatedKeys);
+    }
+
+    /**
+     * Rewrites the expression of a statement, replacing the shared sub-expressions with references to the hidden
+     * variables. Must be called for each statement in the order of execution.
+     *
+     * @param exprTypeInfo the type info of the statement, as passed to the constructor
+     * @return the holder node of the rewritten expression, which is the {@link ExprTypeInfo#getExprHolderNode()
+     * original one} in case there is nothing to share
+     */
+    ExprHolderNode eliminate(ExprTypeInfo exprTypeInfo) {
+        ExprNode expr = rewrite(exprTypeInfo.getExprNode(), exprTypeInfo, false);
+        if (expr == exprTypeInfo.getExprNode()) {
+            return exprTypeInfo.getExprHolderNode();
+        }
+        return new SyntheticExprHolderNode(expr);
+    }
+
+    /**
+     * Counts the sub-expressions worth sharing, assuming the ones with the given keys to be evaluated only once, and
+     * returns the keys of the ones that occur more than once.
+     */
+    private static Set<String> getRepeatedKeys(List<ExprTypeInfo> exprTypeInfos, Set<String> sharedKeys) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (ExprTypeInfo exprTypeInfo : exprTypeInfos) {
+            count(exprTypeInfo.getExprNode(), exprTypeInfo, false, sharedKeys, counts);
+        }
+        return counts.entrySet().stream()
+                .filter(entry -> entry.getValue() > 1)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    private static void count(ExprNode node, ExprTypeInfo exprTypeInfo, boolean consumed, Set<String> sharedKeys,
+                              Map<String, Integer> counts) {
+        if (isWorthSharing(node, consumed)) {
+            String key = CanonicalForm.ofSubexpr(node, exprTypeInfo);
+            if (counts.merge(key, 1, Integer::sum) > 1 && sharedKeys.contains(key)) {
+                return;
+            }
+        }
+        /* Lambdas are not expressions, and can't reference the global variables. */
+        for (Node child : node.getChildren()) {
+            if (child instanceof ExprNode) {
+                count((ExprNode) child, exprTypeInfo, isConsumedBy(child, node), sharedKeys, counts);
+            }
+        }
+    }
+
+    private static boolean isWorthSharing(ExprNode node, boolean consumed) {
+        return node instanceof ReduceNode || (node instanceof MapNode && !consumed);
+    }
+
+    private static boolean isConsumedBy(Node child, ExprNode node) {
+        return node instanceof ReduceNode && child == ((ReduceNode) node).getSequence();
+    }
+
+    private ExprNode rewrite(ExprNode node, ExprTypeInfo exprTypeInfo, boolean consumed) {
+        if (!isWorthSharing(node, consumed)) {
+            return visit(node, exprTypeInfo);
+        }
+        String key = CanonicalForm.ofSubexpr(node, exprTypeInfo);
+        if (!sharedKeys.contains(key)) {
+            return visit(node, exprTypeInfo);
+        }
+        String name = sharedVariableNames.get(key);
+        if (name == null) {
+            /* The nested shared sub-expressions get defined first. */
+            name = variableDefiner.apply(visit(node, exprTypeInfo));
+            sharedVariableNames.put(key, name);
+        }
+        return locate(new VarRefNode(name), node);
+    }
+
+    @Override
+    public ExprNode doVisit(Node node, ExprTypeInfo exprTypeInfo) {
+        throw new UnsupportedOperationException("Expressions only");
+    }
+
+    @Override
+    public ExprNode doVisit(ExprNode node, ExprTypeInfo exprTypeInfo) {
+        return node;
+    }
+
+    @Override
+    public ExprNode doVisit(UnaryOpNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode operand = rewrite(node.getOperand(), exprTypeInfo, false);
+        if (operand == node.getOperand()) {
+            return node;
+        }
+        return locate(new UnaryOpNode(node.getOp(), operand), node);
+    }
+
+    @Override
+    public ExprNode doVisit(BinaryOpNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode operandA = rewrite(node.getOperandA(), exprTypeInfo, false);
+        ExprNode operandB = rewrite(node.getOperandB(), exprTypeInfo, false);
+        if (operandA == node.getOperandA() && operandB == node.getOperandB()) {
+            return node;
+        }
+        return locate(new BinaryOpNode(node.getOp(), operandA, operandB), node);
+    }
+
+    @Override
+    public ExprNode doVisit(RangeNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode start = rewrite(node.getStart(), exprTypeInfo, false);
+        ExprNode end = rewrite(node.getEnd(), exprTypeInfo, false);
+        if (start == node.getStart() && end == node.getEnd()) {
+            return node;
+        }
+        return locate(new RangeNode(start, end), node);
+    }
+
+    @Override
+    public ExprNode doVisit(MapNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode sequence = rewrite(node.getSequence(), exprTypeInfo, false);
+        if (sequence == node.getSequence()) {
+            return node;
+        }
+        return locate(new MapNode(sequence, node.getLambda()), node);
+    }
+
+    @Override
+    public ExprNode doVisit(ReduceNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode sequence = rewrite(node.getSequence(), exprTypeInfo, true);
+        ExprNode neutral = rewrite(node.getNeutral(), exprTypeInfo, false);
+        if (sequence == node.getSequence() && neutral == node.getNeutral()) {
+            return node;
+        }
+        return locate(new ReduceNode(sequence, neutral, node.getLambda()), node);
+    }
+
+    private static <N extends Node> N locate(N newNode, Node node) {
+        newNode.setLocation(node.getLocation());
+        return newNode;
+    }
+}
@@ -1,22 +1,24 @@
 package com.abusalimov.mrcalc.compile;
 
 import com.abusalimov.mrcalc.ast.ExprHolderNode;
+import com.abusalimov.mrcalc.ast.LambdaNode;
 import com.abusalimov.mrcalc.ast.Node;
 import com.abusalimov.mrcalc.ast.NodeVisitor;
 import com.abusalimov.mrcalc.ast.ProgramNode;
+import com.abusalimov.mrcalc.ast.expr.VarRefNode;
 import com.abusalimov.mrcalc.ast.stmt.OutStmtNode;
 import com.abusalimov.mrcalc.ast.stmt.PrintStmtNode;
 import com.abusalimov.mrcalc.ast.stmt.StmtNode;
 import com.abusalimov.mrcalc.ast.stmt.VarDefStmtNode;
 import com.abusalimov.mrcalc.backend.Backend;
 import com.abusalimov.mrcalc.compile.type.PrimitiveType;
+import com.abusalimov.mrcalc.compile.type.Type;
+import com.abusalimov.mrcalc.location.Location;
 import com.abusalimov.mrcalc.runtime.Evaluable;
+import com.abusalimov.mrcalc.runtime.GlobalFrame;
 import com.abusalimov.mrcalc.runtime.Runtime;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -29,22 +31,37 @@ import java.util.stream.Collectors;
  * with a proper {@link com.abusalimov.mrcalc.compile.type.Type} of each sub-expression of the statement. The
  * TypeInferrer is also responsible for reporting all the possible type errors that get emitted by the compiler.
  * <p>
+ * <li> Then, it lets the {@link ExprSimplifier} fold the constants and the identities of the expression, and infers
+ * the types of the simplified expression, if anything has changed. When compiling a whole program, it also lets the
+ * {@link CommonSubexprEliminator} share the sub-expressions repeated across the statements through hidden variables.
+ * <p>
+ * <li> After that, it finds the last use of each variable, so that the {@link Stmt#getDeadVariables() dead} values can
+ * be released once the statement using them last is executed, and counts the reads of each variable, so that the lazy
+ * values read more than once are materialized instead of being computed anew by each read.
+ * <p>
  * <li> Next, it calls {@link ExprBuilder#buildFunction(ExprTypeInfo)} which, in turn, based on the inferred type of
  * each expression, delegates to a proper {@code backend} expression builder to compose the expression into a callable.
  * <p>
  * A Compiler instance is stateful: it maintains and preserves a list of defined {@link Variable}s so that one can refer
- * to a variable defined through another call to the {@link #compile(ProgramNode)} method.
+ * to a variable defined through another call to the {@link #compile(ProgramNode)} method. Each variable it defines,
+ * including the synthetic ones, gets a slot of its own in a {@link GlobalFrame frame},
+ * which is thus shared by all the statements compiled by the same instance. All the functions it
+ * assembles belong to a single {@link Backend#forCompilation() compilation} of the backend.
  *
  * @author Eldar Abusalimov
  */
 public class Compiler extends AbstractNodeDiagnosticEmitter {
 
+    private static final String HIDDEN_VARIABLE_PREFIX = "$cse";
+
     private final Map<String, Variable> globalVariableMap = new LinkedHashMap<>();
+    private final Map<Variable, String> variableFingerprints = new HashMap<>();
 
     private final TypeInferrer typeInferrer;
     private final ExprBuilder exprBuilder;
 
     private int syntheticVariableCounter;
+    private int slotCounter;
 
     /**
      * Creates a new Compiler instance that will use the specified backend to compose the resulting callable.
@@ -53,11 +70,25 @@ public class Compiler extends AbstractNodeDiagnosticEmitter {
      */
     public Compiler(Backend<?, ?> backend) {
         typeInferrer = new TypeInferrer();
-        exprBuilder = new ExprBuilder<>(backend);
+        exprBuilder = new ExprBuilder<>(backend.forCompilation());
     }
 
     /**
-     * Compiles an AST root into a list of {@link Stmt#exec(Runtime, Map) executable} statements.
+     * Creates a new Compiler instance that will use the specified backend to compose the resulting callable, reusing
+     * the functions cached by previous compilations with the same backend.
+     *
+     * @param backend       the backend implementation
+     * @param functionCache the cache of functions assembled by the backend
+     */
+    @SuppressWarnings("unchecked")
+    public Compiler(Backend<?, ?> backend, FunctionCache<?> functionCache) {
+        typeInferrer = new TypeInferrer();
+        exprBuilder = new ExprBuilder<>((Backend<Object, Object>) backend.forCompilation(),
+                (FunctionCache<Object>) functionCache);
+    }
+
+    /**
+     * Compiles an AST root into a list of {@link Stmt#exec(Runtime, GlobalFrame) executable} statements.
      * <p>
      * Calling this method is almost identical to invoking {@link #compile(StmtNode)} multiple times, except that all
      * diagnostics reported, if any, are composed into a single {@link CompileErrorException exception} instance.
@@ -98,15 +129,29 @@ public class Compiler extends AbstractNodeDiagnosticEmitter {
 
     /**
      * Naked version of {@link #compile(ProgramNode)} that doesn't throw errors.
+     * <p>
+     * Unlike compiling the statements one by one, this {@link CommonSubexprEliminator eliminates} the sub-expressions
+     * repeated across the statements, which adds the statements evaluating them into hidden variables.
      *
      * @param node a {@link ProgramNode root} node to compile
      * @return a list of compiled statements, some of that may be {@link Stmt#isComplete() incomplete} (in case of
      * diagnostic errors)
      */
     protected List<Stmt> compileProgram(ProgramNode node) {
-        return node.getStmts().stream()
-                .map(this::compileStmt)
-                .collect(Collectors.toList());
+        List<TypedStmt> typedStmts = eliminateCommonSubexprs(node.getStmts().stream()
+                .map(this::inferStmt)
+                .collect(Collectors.toList()));
+        List<List<Variable>> deadVariables = getDeadVariables(typedStmts);
+        Set<Variable> sharedVariables = getSharedVariables(typedStmts);
+
+        List<Stmt> stmts = new ArrayList<>(typedStmts.size());
+        for (int i = 0; i < typedStmts.size(); i++) {
+            TypedStmt stmt = typedStmts.get(i);
+            /* A hidden variable is only there to be computed once, no matter how many times it is read. */
+            stmts.add(buildStmt(stmt, deadVariables.get(i),
+                    isHidden(stmt.outputVariable) || sharedVariables.contains(stmt.outputVariable)));
+        }
+        return stmts;
     }
 
     /**
@@ -116,9 +161,14 @@ public class Compiler extends AbstractNodeDiagnosticEmitter {
      * @return a compiled statement, {@link Stmt#isComplete() incomplete} in case of diagnostic errors
      */
     protected Stmt compileStmt(StmtNode node) {
-        return new NodeVisitor<Stmt>() {
+        TypedStmt stmt = inferStmt(node);
+        return buildStmt(stmt, getDeadVariables(Collections.singletonList(stmt)).get(0), false);
+    }
+
+    private TypedStmt inferStmt(StmtNode node) {
+        return new NodeVisitor<TypedStmt>() {
             @Override
-            public Stmt doVisit(VarDefStmtNode node) {
+            public TypedStmt doVisit(VarDefStmtNode node) {
                 String name = node.getName();
                 /*
                  * Need to visit the value prior to defining a variable in the scope in order
@@ -126,46 +176,175 @@ public class Compiler extends AbstractNodeDiagnosticEmitter {
                  *
                  *   var r = r  # error
                  */
-                Stmt stmt = compileInternal(node, name);
+                TypedStmt stmt = inferInternal(node, name);
 
                 if (globalVariableMap.containsKey(name)) {
                     emitNodeDiagnostic(node,
                             String.format("Variable '%s' is already defined", name));
                 } else {
-                    globalVariableMap.put(name, stmt.getOutputVariable());
+                    globalVariableMap.put(name, stmt.outputVariable);
                 }
 
                 return stmt;
             }
 
             @Override
-            public Stmt doVisit(PrintStmtNode node) {
-                return compileInternal(node, nextSyntheticVariableName());
+            public TypedStmt doVisit(PrintStmtNode node) {
+                return inferInternal(node, nextSyntheticVariableName());
             }
 
             @Override
-            public Stmt doVisit(OutStmtNode node) {
+            public TypedStmt doVisit(OutStmtNode node) {
                 String string = node.getString();
-                return new Stmt((runtime, args) -> string, Collections.emptyList(),
-                        new Variable(nextSyntheticVariableName(), PrimitiveType.UNKNOWN));
+                return new TypedStmt((runtime, args) -> string,
+                        newVariable(nextSyntheticVariableName(), PrimitiveType.UNKNOWN));
             }
 
             @Override
-            public Stmt doVisit(Node node) {
+            public TypedStmt doVisit(Node node) {
                 throw new UnsupportedOperationException("Statements only");
             }
         }.visit(node);
     }
 
-    protected Stmt compileInternal(ExprHolderNode node, String outputVariableName) {
+    private TypedStmt inferInternal(ExprHolderNode node, String outputVariableName) {
         ExprTypeInfo exprTypeInfo = inferTypeInfo(node);
+        if (exprTypeInfo.isComplete()) {
+            exprTypeInfo = simplify(exprTypeInfo);
+        }
+        Variable outputVariable = newVariable(outputVariableName, exprTypeInfo.getExprType());
+        return new TypedStmt(exprTypeInfo, outputVariable, node.getExpr().getLocation());
+    }
+
+    /**
+     * Rewrites the statements to evaluate each repeated sub-expression once into a hidden variable, which is only
+     * visible to these statements.
+     *
+     * @param typedStmts the statements of a program in the order of execution
+     * @return the rewritten statements interleaved with the statements defining the hidden variables, or the same
+     * list in case of any errors
+     */
+    private List<TypedStmt> eliminateCommonSubexprs(List<TypedStmt> typedStmts) {
+        if (!typedStmts.stream().allMatch(TypedStmt::isComplete)) {
+            return typedStmts;
+        }
+        Map<String, Variable> variableMap = new LinkedHashMap<>(globalVariableMap);
+        List<TypedStmt> ret = new ArrayList<>();
+
+        CommonSubexprEliminator eliminator = new CommonSubexprEliminator(typedStmts.stream()
+                .map(stmt -> stmt.exprTypeInfo)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()), expr -> {
+            ExprTypeInfo exprTypeInfo = typeInferrer.infer(new SyntheticExprHolderNode(expr), variableMap);
+            Variable variable = newVariable(nextHiddenVariableName(), exprTypeInfo.getExprType());
+            variableMap.put(variable.getName(), variable);
+            ret.add(new TypedStmt(exprTypeInfo, variable, expr.getLocation()));
+            return variable.getName();
+        });
+
+        for (TypedStmt stmt : typedStmts) {
+            if (stmt.exprTypeInfo != null) {
+                ExprHolderNode rewrittenNode = eliminator.eliminate(stmt.exprTypeInfo);
+                if (rewrittenNode != stmt.exprTypeInfo.getExprHolderNode()) {
+                    stmt = new TypedStmt(typeInferrer.infer(rewrittenNode, variableMap), stmt.outputVariable,
+                            stmt.location);
+                }
+            }
+            ret.add(stmt);
+        }
+        return ret;
+    }
+
+    /**
+     * Finds the last use of each variable going through the statements backwards, from the last one to the first.
+     *
+     * @param typedStmts the statements of a program in the order of execution
+     * @return the list of the {@link Stmt#getDeadVariables() dead} variables for each of the statements
+     */
+    private static List<List<Variable>> getDeadVariables(List<TypedStmt> typedStmts) {
+        Set<Variable> liveVariables = new HashSet<>();
+        LinkedList<List<Variable>> ret = new LinkedList<>();
+
+        for (ListIterator<TypedStmt> it = typedStmts.listIterator(typedStmts.size()); it.hasPrevious(); ) {
+            TypedStmt stmt = it.previous();
+            List<Variable> deadVariables = new ArrayList<>();
+
+            if (!liveVariables.remove(stmt.outputVariable)) {
+                deadVariables.add(stmt.outputVariable);
+            }
+            for (Variable variable : stmt.getInputVariables()) {
+                if (liveVariables.add(variable)) {
+                    deadVariables.add(variable);
+                }
+            }
+            ret.addFirst(deadVariables);
+        }
+        return ret;
+    }
+
+    /**
+     * Finds the variables read more than once by the statements, counting each reference outside of the lambdas as a
+     * read, since a lazy sequence evaluates its elements anew each time it is traversed.
+     *
+     * @param typedStmts the statements of a program
+     * @return the variables read several times
+     */
+    private static Set<Variable> getSharedVariables(List<TypedStmt> typedStmts) {
+        Map<Variable, Integer> readCounts = new HashMap<>();
+        for (TypedStmt stmt : typedStmts) {
+            if (stmt.exprTypeInfo != null) {
+                countReads(stmt.exprTypeInfo.getExprNode(), stmt.exprTypeInfo, readCounts);
+            }
+        }
+        return readCounts.entrySet().stream()
+                .filter(entry -> entry.getValue() > 1)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
 
-        Evaluable<?> exprFunction = exprTypeInfo.isComplete() ? buildExprFunction(exprTypeInfo) : null;
+    private static void countReads(Node node, ExprTypeInfo exprTypeInfo, Map<Variable, Integer> readCounts) {
+        if (node instanceof VarRefNode) {
+            Variable variable = exprTypeInfo.getVariable(((VarRefNode) node).getName());
+            if (variable != null) {
+                readCounts.merge(variable, 1, Integer::sum);
+            }
+        }
+        /* Lambdas can't reference the global variables. */
+        for (Node child : node.getChildren()) {
+            if (!(child instanceof LambdaNode)) {
+                countReads(child, exprTypeInfo, readCounts);
+            }
+        }
+    }
 
-        List<Variable> inputVariables = exprTypeInfo.getReferencedVariables();
-        Variable outputVariable = new Variable(outputVariableName, exprTypeInfo.getExprType());
+    private Stmt buildStmt(TypedStmt stmt, List<Variable> deadVariables, boolean shared) {
+        Evaluable<?> exprFunction = stmt.exprFunction;
+        String fingerprint = null;
+        if (stmt.exprTypeInfo != null && stmt.isComplete()) {
+            exprFunction = buildExprFunction(stmt.exprTypeInfo);
+            fingerprint = fingerprint(stmt.exprTypeInfo);
+            if (fingerprint != null) {
+                variableFingerprints.put(stmt.outputVariable, fingerprint);
+            }
+        }
+        return new Stmt(exprFunction, stmt.getInputVariables(), stmt.outputVariable, stmt.location, deadVariables,
+                fingerprint, shared);
+    }
 
-        return new Stmt(exprFunction, inputVariables, outputVariable, node.getExpr().getLocation());
+    /**
+     * Computes the {@link Stmt#getFingerprint() fingerprint} of a statement, unless any of the referenced variables
+     * has no fingerprint, like the one defined by an incomplete statement.
+     */
+    private String fingerprint(ExprTypeInfo exprTypeInfo) {
+        List<String> inputFingerprints = new ArrayList<>();
+        for (Variable variable : exprTypeInfo.getReferencedVariables()) {
+            String inputFingerprint = variableFingerprints.get(variable);
+            if (inputFingerprint == null) {
+                return null;
+            }
+            inputFingerprints.add(inputFingerprint);
+        }
+        return CanonicalForm.fingerprint(exprTypeInfo, inputFingerprints);
     }
 
     /**
@@ -179,6 +358,21 @@ public class Compiler extends AbstractNodeDiagnosticEmitter {
         return typeInferrer.infer(node, globalVariableMap, this::emitDiagnostic);
     }
 
+    /**
+     * Given a {@link ExprTypeInfo#isComplete() complete} {@link ExprTypeInfo} instance, {@link ExprSimplifier
+     * simplifies} the expression, and infers the types of the simplified one.
+     *
+     * @param exprTypeInfo the expression type info
+     * @return the type info of the simplified expression, or the same instance if there is nothing to simplify
+     */
+    protected ExprTypeInfo simplify(ExprTypeInfo exprTypeInfo) {
+        ExprHolderNode simplifiedNode = ExprSimplifier.simplify(exprTypeInfo);
+        if (simplifiedNode == exprTypeInfo.getExprHolderNode()) {
+            return exprTypeInfo;
+        }
+        return typeInferrer.infer(simplifiedNode, globalVariableMap);
+    }
+
     /**
      * Given a {@link ExprTypeInfo#isComplete() complete} {@link ExprTypeInfo} instance, invokes the {@link ExprBuilder
      * expression builder} that assembles the expression into a callable function.
@@ -191,8 +385,55 @@ public class Compiler extends AbstractNodeDiagnosticEmitter {
         return exprBuilder.buildFunction(exprTypeInfo);
     }
 
+    private Variable newVariable(String name, Type type) {
+        return new Variable(name, type, slotCounter++);
+    }
+
     private String nextSyntheticVariableName() {
         return "$print" + (++syntheticVariableCounter);
     }
 
+    private String nextHiddenVariableName() {
+        return HIDDEN_VARIABLE_PREFIX + (++syntheticVariableCounter);
+    }
+
+    private static boolean isHidden(Variable variable) {
+        return variable.getName().startsWith(HIDDEN_VARIABLE_PREFIX);
+    }
+
+    /**
+     * A statement which types are inferred, but which is not assembled into a function yet.
+     */
+    private static class TypedStmt {
+        /**
+         * The type info of the expression, or {@code null} for a statement with a constant function.
+         */
+        private final ExprTypeInfo exprTypeInfo;
+        private final Evaluable<?> exprFunction;
+        private final Variable outputVariable;
+        private final Location location;
+
+        TypedStmt(ExprTypeInfo exprTypeInfo, Variable outputVariable, Location location) {
+            this.exprTypeInfo = exprTypeInfo;
+            this.exprFunction = null;
+            this.outputVariable = outputVariable;
+            this.location = location;
+        }
+
+        TypedStmt(Evaluable<?> exprFunction, Variable outputVariable) {
+            this.exprTypeInfo = null;
+            this.exprFunction = exprFunction;
+            this.outputVariable = outputVariable;
+            this.location = Location.UNKNOWN_LOCATION;
+        }
+
+        boolean isComplete() {
+            return exprTypeInfo == null || exprTypeInfo.isComplete();
+        }
+
+        List<Variable> getInputVariables() {
+            return exprTypeInfo != null ? exprTypeInfo.getReferencedVariables() : Collections.emptyList();
+        }
+    }
+
 }
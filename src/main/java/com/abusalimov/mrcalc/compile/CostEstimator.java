@@ -0,0 +1,83 @@
+package com.abusalimov.mrcalc.compile;
+
+import com.abusalimov.mrcalc.ast.LambdaNode;
+import com.abusalimov.mrcalc.ast.Node;
+import com.abusalimov.mrcalc.ast.NodeVisitor;
+import com.abusalimov.mrcalc.ast.expr.*;
+
+/**
+ * Estimates the cost of evaluating a lambda once, which lets the runtime decide whether it is worth running a map() or
+ * a reduce() with the lambda in parallel.
+ * <p>
+ * The cost is measured in simple arithmetic operations: each node costs a unit, except for the power operation which
+ * is way more expensive. A nested map() or reduce() is assumed to run over a sequence of {@link
+ * #NESTED_SEQUENCE_SIZE} elements, since the actual size is unknown until the lambda is run. The estimate saturates
+ * at {@link #MAX_COST}.
+ *
+ * @author Eldar Abusalimov
+ */
+class CostEstimator implements NodeVisitor<Long> {
+    /**
+     * The assumed number of elements of a sequence processed within a lambda.
+     */
+    static final long NESTED_SEQUENCE_SIZE = 1 << 10;
+
+    /**
+     * The upper bound for the estimate.
+     */
+    static final long MAX_COST = 1L << 40;
+
+    private static final long POW_COST = 16;
+
+    private static final CostEstimator INSTANCE = new CostEstimator();
+
+    /**
+     * Estimates the cost of a single invocation of the given lambda.
+     *
+     * @param lambdaTypeInfo the type info of the lambda
+     * @return the estimated cost, at least 1
+     */
+    static long estimateCost(ExprTypeInfo lambdaTypeInfo) {
+        return INSTANCE.visit(lambdaTypeInfo.getExprNode());
+    }
+
+    private static long add(long a, long b) {
+        return Math.min(a + b, MAX_COST);
+    }
+
+    private static long multiply(long a, long b) {
+        /* Saturate instead of overflowing. */
+        return (a > MAX_COST / b) ? MAX_COST : a * b;
+    }
+
+    @Override
+    public Long doVisit(Node node) {
+        return node.getChildren().stream()
+                .map(this::visit)
+                .reduce(1L, CostEstimator::add);
+    }
+
+    @Override
+    public Long doVisit(BinaryOpNode node) {
+        long cost = doVisit((Node) node);
+        return (node.getOp() == BinaryOpNode.Op.POW) ? add(cost, POW_COST) : cost;
+    }
+
+    @Override
+    public Long doVisit(LambdaNode node) {
+        return visit(node.getExpr());
+    }
+
+    @Override
+    public Long doVisit(MapNode node) {
+        long lambdaCost = visit(node.getLambda());
+        return add(visit(node.getSequence()), multiply(NESTED_SEQUENCE_SIZE, lambdaCost));
+    }
+
+    @Override
+    public Long doVisit(ReduceNode node) {
+        long lambdaCost = visit(node.getLambda());
+        return add(add(visit(node.getSequence()), visit(node.getNeutral())),
+                multiply(NESTED_SEQUENCE_SIZE, lambdaCost));
+    }
+}
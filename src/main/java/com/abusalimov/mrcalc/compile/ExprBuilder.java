@@ -11,7 +11,11 @@ import com.abusalimov.mrcalc.compile.type.SequenceType;
 import com.abusalimov.mrcalc.compile.type.Type;
 import com.abusalimov.mrcalc.runtime.Evaluable;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
 
 /**
@@ -26,15 +30,31 @@ import java.util.stream.Collectors;
  * @author Eldar Abusalimov
  */
 public class ExprBuilder<E, F> implements NodeArgVisitor<E, ExprBuilder.FunctionContext<?, E, F>> {
+    private static final Type INTEGER_SEQUENCE = SequenceType.of(PrimitiveType.INTEGER);
+
     private final Backend<E, F> backend;
+    private final FunctionCache<F> functionCache;
 
     /**
-     * Creates a new {@code ExprBuilder} assembling the expression using the specified backend.
+     * Creates a new {@code ExprBuilder} assembling the expression using the specified backend. Identical expressions
+     * and lambdas built by this instance share the same function.
      *
      * @param backend the backend implementation
      */
     public ExprBuilder(Backend<E, F> backend) {
+        this(backend, new FunctionCache<>());
+    }
+
+    /**
+     * Creates a new {@code ExprBuilder} assembling the expression using the specified backend, which reuses the
+     * functions already assembled for identical expressions through the given cache.
+     *
+     * @param backend       the backend implementation
+     * @param functionCache the cache of functions assembled by the same backend
+     */
+    public ExprBuilder(Backend<E, F> backend, FunctionCache<F> functionCache) {
         this.backend = Objects.requireNonNull(backend);
+        this.functionCache = Objects.requireNonNull(functionCache);
     }
 
     /**
@@ -49,16 +69,62 @@ public class ExprBuilder<E, F> implements NodeArgVisitor<E, ExprBuilder.Function
         if (!eti.isComplete()) {
             throw new IllegalArgumentException("Incomplete ExprTypeInfo");
         }
-        FunctionContext<?, E, F> fctx = new FunctionContext<>(backend, eti);
-        F func = build(fctx);
-        return fctx.getFunctionAssembler().toEvaluable(func);
+        return functionCache.getEvaluable(CanonicalForm.of(eti), () -> {
+            FunctionContext<?, E, F> fctx = new FunctionContext<>(backend, eti);
+            F func = build(fctx);
+            return fctx.getFunctionAssembler().toEvaluable(func);
+        });
     }
 
     protected E buildChild(FunctionContext<?, E, F> parent, ExprHolderNode node) {
         ExprTypeInfo eti = parent.getExprTypeInfo().getChild(node);
-        FunctionContext<?, E, F> fctx = new FunctionContext<>(backend, eti);
-        F func = build(fctx);
-        return parent.getFunctionAssembler().lambda(func);
+
+        List<ExprNode> invariantExprs = InvariantAnalyzer.getInvariantExprs(eti);
+        if (!invariantExprs.isEmpty()) {
+            E lambda = buildCapturingChild(parent, eti, invariantExprs);
+            if (lambda != null) {
+                return lambda;
+            }
+        }
+
+        F func = functionCache.getFunction(CanonicalForm.of(eti), () -> build(new FunctionContext<>(backend, eti)));
+        return parent.getBodyAssembler().lambda(func);
+    }
+
+    /**
+     * Hoists the invariant sub-expressions out of a lambda, if the backend supports that. The invariants are
+     * evaluated along with the expression instantiating the lambda, that is, once per map() or reduce() call, and
+     * the lambda loads their values from the captured parameters.
+     *
+     * @param parent         the context of the function instantiating the lambda
+     * @param eti            the type info of the lambda
+     * @param invariantExprs the sub-expressions of the lambda not depending on its arguments
+     * @return the expression instantiating the lambda, or {@code null} if the backend doesn't capture values
+     */
+    protected E buildCapturingChild(FunctionContext<?, E, F> parent, ExprTypeInfo eti,
+                                    List<ExprNode> invariantExprs) {
+        Class<?> returnType = eti.getExprType().getTypeClass();
+        Class<?>[] parameterTypes = FunctionContext.getParameterTypes(eti);
+        Class<?>[] capturedTypes = invariantExprs.stream()
+                .map(eti::getExprType)
+                .map(Type::getTypeClass)
+                .collect(Collectors.toList()).toArray(new Class<?>[0]);
+
+        FunctionAssembler<?, E, F> functionAssembler = backend.createCapturingFunctionAssembler(returnType,
+                parameterTypes, capturedTypes);
+        if (functionAssembler == null) {
+            return null;
+        }
+        F func = functionCache.getFunction(CanonicalForm.of(eti, invariantExprs),
+                () -> build(new FunctionContext<>(eti, functionAssembler, invariantExprs)));
+
+        /* The invariants can't reference any arguments, so there is nothing to map. */
+        FunctionContext<?, E, F> invariantContext = new FunctionContext<>(eti, parent, parent.getBodyAssembler(),
+                IntUnaryOperator.identity());
+        List<E> capturedExprs = invariantExprs.stream()
+                .map(invariantExpr -> visit(invariantExpr, invariantContext))
+                .collect(Collectors.toList());
+        return parent.getBodyAssembler().lambda(func, capturedExprs);
     }
 
     protected F build(FunctionContext<?, E, F> fctx) {
@@ -71,6 +137,15 @@ public class ExprBuilder<E, F> implements NodeArgVisitor<E, ExprBuilder.Function
         return fctx.getNumberCast(resultNode, nodeToVisit).cast(expr);
     }
 
+    @Override
+    public E visit(Node node, FunctionContext<?, E, F> fctx) {
+        int capturedSlot = fctx.getCapturedSlot(node);
+        if (capturedSlot >= 0) {
+            return fctx.getArgumentLoad((ExprNode) node).load(capturedSlot);
+        }
+        return NodeArgVisitor.super.visit(node, fctx);
+    }
+
     @Override
     public E doVisit(VarRefNode node, FunctionContext<?, E, F> fctx) {
         String name = node.getName();
@@ -125,17 +200,150 @@ public class ExprBuilder<E, F> implements NodeArgVisitor<E, ExprBuilder.Function
     public E doVisit(MapNode node, FunctionContext<?, E, F> fctx) {
         E sequence = visit(node.getSequence(), fctx);
         E lambda = buildChild(fctx, node.getLambda());
+        long lambdaCost = CostEstimator.estimateCost(fctx.getExprTypeInfo().getChild(node.getLambda()));
+
+        int degree = getPolynomialDegree(node, fctx);
+        if (degree >= 0) {
+            return fctx.getSequencePolynomialMap(node.getSequence(), degree).map(sequence, lambda, lambdaCost);
+        }
 
-        return fctx.getSequenceMap(node, node.getSequence()).map(sequence, lambda);
+        String kernelProgram = getKernelProgram(node, fctx);
+        if (kernelProgram != null) {
+            return fctx.getSequenceKernelMap(node.getSequence(), kernelProgram).map(sequence, lambda, lambdaCost);
+        }
+
+        return fctx.getSequenceMap(node, node.getSequence()).map(sequence, lambda, lambdaCost);
     }
 
     @Override
     public E doVisit(ReduceNode node, FunctionContext<?, E, F> fctx) {
+        E fused = buildRangeFold(node, fctx);
+        if (fused != null) {
+            return fused;
+        }
+
         E sequence = visit(node.getSequence(), fctx);
         E neutral = visit(node.getNeutral(), fctx);
         E lambda = buildChild(fctx, node.getLambda());
+        ExprTypeInfo lambdaTypeInfo = fctx.getExprTypeInfo().getChild(node.getLambda());
+        long lambdaCost = CostEstimator.estimateCost(lambdaTypeInfo);
+
+        if (PolynomialAnalyzer.isSum(lambdaTypeInfo)) {
+            return fctx.getSequenceSum(node).reduce(sequence, neutral, lambda, lambdaCost);
+        }
+
+        return fctx.getSequenceReduce(node).reduce(sequence, neutral, lambda, lambdaCost);
+    }
+
+    /**
+     * Fuses a reduce() of a range mapped through a chain of map() calls into a single loop, if the backend supports
+     * that. The bodies of all the lambdas are assembled right into the loop, with their arguments
+     * {@link RangeFoldAssembler remapped} to the loop variables. All the elements and the result must be primitives.
+     * <p>
+     * A sum of integer polynomials is left to the runtime, as it is evaluated in a closed form, which is even better
+     * than a loop. A pipeline of lambdas having {@link InvariantAnalyzer invariants} is not fused either, since the
+     * loop would evaluate them for each element, instead of hoisting them out.
+     *
+     * @param node the reduce() node
+     * @param fctx the function context
+     * @return the expression calling the fused loop, or {@code null} if the pipeline can't be fused
+     */
+    protected E buildRangeFold(ReduceNode node, FunctionContext<?, E, F> fctx) {
+        Type returnType = fctx.getExprType(node);
+        if (!(returnType instanceof PrimitiveType)) {
+            return null;
+        }
+
+        List<MapNode> mapNodes = new ArrayList<>();
+        ExprNode sequenceNode = node.getSequence();
+        while (sequenceNode instanceof MapNode) {
+            mapNodes.add(0, (MapNode) sequenceNode);
+            sequenceNode = ((MapNode) sequenceNode).getSequence();
+        }
+        if (!(sequenceNode instanceof RangeNode)) {
+            return null;
+        }
+
+        ExprTypeInfo lambdaTypeInfo = fctx.getExprTypeInfo().getChild(node.getLambda());
+        if (returnType == PrimitiveType.INTEGER && PolynomialAnalyzer.isSum(lambdaTypeInfo) &&
+            mapNodes.stream().allMatch(mapNode -> getPolynomialDegree(mapNode, fctx) >= 0)) {
+            return null;
+        }
+        if (!InvariantAnalyzer.getInvariantExprs(lambdaTypeInfo).isEmpty() || mapNodes.stream()
+                .map(mapNode -> fctx.getExprTypeInfo().getChild(mapNode.getLambda()))
+                .anyMatch(stageTypeInfo -> !InvariantAnalyzer.getInvariantExprs(stageTypeInfo).isEmpty())) {
+            return null;
+        }
+
+        List<Class<?>> elementTypes = new ArrayList<>();
+        elementTypes.add(PrimitiveType.INTEGER.getTypeClass());
+        for (MapNode mapNode : mapNodes) {
+            Type elementType = ((SequenceType) fctx.getExprType(mapNode)).getElementType();
+            if (!(elementType instanceof PrimitiveType)) {
+                return null;
+            }
+            elementTypes.add(elementType.getTypeClass());
+        }
+
+        RangeFoldAssembler<?, E, F> foldAssembler = backend.createRangeFoldAssembler(returnType.getTypeClass(),
+                elementTypes.toArray(new Class<?>[0]));
+        if (foldAssembler == null) {
+            return null;
+        }
+
+        RangeNode rangeNode = (RangeNode) sequenceNode;
+        E start = visit(rangeNode.getStart(), fctx);
+        E end = visit(rangeNode.getEnd(), fctx);
+        E neutral = visit(node.getNeutral(), fctx);
+
+        long cost = CostEstimator.estimateCost(lambdaTypeInfo);
+        List<E> stages = new ArrayList<>();
+        for (int k = 0; k < mapNodes.size(); k++) {
+            ExprTypeInfo stageTypeInfo = fctx.getExprTypeInfo().getChild(mapNodes.get(k).getLambda());
+            int elementSlot = k + 1;
+            stages.add(visit(stageTypeInfo.getExprNode(),
+                    new FunctionContext<>(stageTypeInfo, fctx, foldAssembler, slot -> elementSlot)));
+            cost += CostEstimator.estimateCost(stageTypeInfo);
+        }
+        int lastSlot = mapNodes.size() + 1;
+        E accumulate = visit(lambdaTypeInfo.getExprNode(),
+                new FunctionContext<>(lambdaTypeInfo, fctx, foldAssembler, slot -> (slot == 0) ? 0 : lastSlot));
+
+        E fold = fctx.getBodyAssembler().lambda(foldAssembler.assembleFold(stages, accumulate));
+        E combiner = buildChild(fctx, node.getLambda());
+
+        return fctx.getSequenceRangeFold(node).fold(start, end, neutral, fold, combiner, cost);
+    }
+
+    /**
+     * Tells whether the map() lambda computes an integer polynomial of an element of a sequence of integers. Such
+     * hint lets the runtime evaluate the sum of the resulting sequence in a closed form.
+     *
+     * @param node the map() node
+     * @param fctx the function context
+     * @return the degree of the polynomial, or -1 if the mapping is not a polynomial one
+     */
+    protected int getPolynomialDegree(MapNode node, FunctionContext<?, E, F> fctx) {
+        if (!INTEGER_SEQUENCE.equals(fctx.getExprType(node.getSequence()))) {
+            return -1;
+        }
+        return PolynomialAnalyzer.getPolynomialDegree(fctx.getExprTypeInfo().getChild(node.getLambda()));
+    }
 
-        return fctx.getSequenceReduce(node).reduce(sequence, neutral, lambda);
+    /**
+     * Translates the map() lambda into an arithmetic kernel program, if the lambda is a pure arithmetic function
+     * mapping each element of a sequence of primitives to a value of the same type. Such hint lets the runtime map
+     * the sequence a block of elements at a time.
+     *
+     * @param node the map() node
+     * @param fctx the function context
+     * @return the kernel program, or {@code null} if the lambda can't be turned into a kernel
+     */
+    protected String getKernelProgram(MapNode node, FunctionContext<?, E, F> fctx) {
+        if (!fctx.getExprType(node).equals(fctx.getExprType(node.getSequence()))) {
+            return null;
+        }
+        return KernelAnalyzer.getKernelProgram(fctx.getExprTypeInfo().getChild(node.getLambda()));
     }
 
     @Override
@@ -145,6 +353,10 @@ public class ExprBuilder<E, F> implements NodeArgVisitor<E, ExprBuilder.Function
 
     /**
      * Encapsulates the backend access within a context of given {@link ExprTypeInfo} and {@link FunctionAssembler}.
+     * <p>
+     * The arguments and the lambdas are bound by the {@link BodyAssembler} of the function being assembled, which is
+     * the function assembler itself, unless the expression is inlined into a function of another kind, like a fused
+     * loop. In the latter case, the rest of the expressions are assembled by the assembler of the enclosing function.
      *
      * @param <R> the return type of the function being assembled
      * @param <E> the internal type of expressions used by the backend
@@ -153,17 +365,66 @@ public class ExprBuilder<E, F> implements NodeArgVisitor<E, ExprBuilder.Function
     static class FunctionContext<R, E, F> {
         private final ExprTypeInfo exprTypeInfo;
         private final FunctionAssembler<R, E, F> functionAssembler;
+        private final BodyAssembler<E, F> bodyAssembler;
+        private final IntUnaryOperator slotMapping;
+        private final List<ExprNode> capturedExprs;
 
         public FunctionContext(Backend<E, F> backend, ExprTypeInfo exprTypeInfo) {
             this.exprTypeInfo = exprTypeInfo;
 
             @SuppressWarnings("unchecked") Class<R> returnType = (Class<R>) getExprType().getTypeClass();
-            Class<?>[] parameterTypes = exprTypeInfo.getReferencedVariables().stream()
+
+            this.functionAssembler = backend.createFunctionAssembler(returnType, getParameterTypes(exprTypeInfo));
+            this.bodyAssembler = functionAssembler;
+            this.slotMapping = IntUnaryOperator.identity();
+            this.capturedExprs = Collections.emptyList();
+        }
+
+        /**
+         * Creates a context for assembling an expression inlined into a function of another assembler, which loads
+         * its arguments from the slots given by the mapping.
+         *
+         * @param exprTypeInfo  the type info of the inlined expression
+         * @param enclosing     the context of the function the expression is assembled within
+         * @param bodyAssembler the assembler binding the expression to the function it is inlined into
+         * @param slotMapping   maps an index of a referenced variable to a slot of the function
+         */
+        public FunctionContext(ExprTypeInfo exprTypeInfo, FunctionContext<?, E, F> enclosing,
+                               BodyAssembler<E, F> bodyAssembler, IntUnaryOperator slotMapping) {
+            this(exprTypeInfo, enclosing.functionAssembler, bodyAssembler, slotMapping, Collections.emptyList());
+        }
+
+        /**
+         * Creates a context for assembling a lambda, which loads the values of the given sub-expressions from the
+         * captured parameters following the arguments of the lambda.
+         *
+         * @param exprTypeInfo      the type info of the lambda
+         * @param functionAssembler the {@link Backend#createCapturingFunctionAssembler(Class, Class[], Class[])
+         *                          capturing} assembler of the lambda
+         * @param capturedExprs     the sub-expressions of the lambda evaluated outside of it
+         */
+        public FunctionContext(ExprTypeInfo exprTypeInfo, FunctionAssembler<?, E, F> functionAssembler,
+                               List<ExprNode> capturedExprs) {
+            this(exprTypeInfo, functionAssembler, functionAssembler, IntUnaryOperator.identity(), capturedExprs);
+        }
+
+        private FunctionContext(ExprTypeInfo exprTypeInfo, FunctionAssembler<?, E, F> functionAssembler,
+                                BodyAssembler<E, F> bodyAssembler, IntUnaryOperator slotMapping,
+                                List<ExprNode> capturedExprs) {
+            this.exprTypeInfo = exprTypeInfo;
+            @SuppressWarnings("unchecked") FunctionAssembler<R, E, F> assembler =
+                    (FunctionAssembler<R, E, F>) functionAssembler;
+            this.functionAssembler = assembler;
+            this.bodyAssembler = bodyAssembler;
+            this.slotMapping = slotMapping;
+            this.capturedExprs = capturedExprs;
+        }
+
+        static Class<?>[] getParameterTypes(ExprTypeInfo exprTypeInfo) {
+            return exprTypeInfo.getReferencedVariables().stream()
                     .map(Variable::getType)
                     .map(Type::getTypeClass)
                     .collect(Collectors.toList()).toArray(new Class<?>[0]);
-
-            this.functionAssembler = backend.createFunctionAssembler(returnType, parameterTypes);
         }
 
         public ExprTypeInfo getExprTypeInfo() {
@@ -174,6 +435,10 @@ public class ExprBuilder<E, F> implements NodeArgVisitor<E, ExprBuilder.Function
             return functionAssembler;
         }
 
+        public BodyAssembler<E, F> getBodyAssembler() {
+            return bodyAssembler;
+        }
+
         public Type getExprType() {
             return exprTypeInfo.getExprType();
         }
@@ -182,12 +447,24 @@ public class ExprBuilder<E, F> implements NodeArgVisitor<E, ExprBuilder.Function
             return exprTypeInfo.getExprType(node);
         }
 
+        /**
+         * Returns the parameter slot of a captured sub-expression.
+         *
+         * @param node the node of the expression being assembled
+         * @return the slot following the arguments of the lambda, or -1 if the node is not captured
+         */
+        public int getCapturedSlot(Node node) {
+            int index = capturedExprs.indexOf(node);
+            return (index >= 0) ? exprTypeInfo.getReferencedVariables().size() + index : -1;
+        }
+
         public ArgumentLoad<E> getArgumentLoad(ExprNode node) {
             return getArgumentLoad(getExprType(node));
         }
 
         public ArgumentLoad<E> getArgumentLoad(Type exprType) {
-            return functionAssembler.getArgumentLoad(exprType.getTypeClass());
+            ArgumentLoad<E> argumentLoad = bodyAssembler.getArgumentLoad(exprType.getTypeClass());
+            return slot -> argumentLoad.load(slotMapping.applyAsInt(slot));
         }
 
         public <T extends Number> NumberMath<T, E> getNumberMath(ExprNode node) {
@@ -231,6 +508,24 @@ public class ExprBuilder<E, F> implements NodeArgVisitor<E, ExprBuilder.Function
             return functionAssembler.getSequenceReduce(returnType.getTypeClass());
         }
 
+        public SequenceReduce<E, E, E> getSequenceSum(ExprNode returnNode) {
+            return functionAssembler.getSequenceSum(getExprType(returnNode).getTypeClass());
+        }
+
+        public SequenceRangeFold<E, E> getSequenceRangeFold(ExprNode returnNode) {
+            return functionAssembler.getSequenceRangeFold(getExprType(returnNode).getTypeClass());
+        }
+
+        public SequenceMap<E, E, E> getSequencePolynomialMap(ExprNode sequenceNode, int degree) {
+            return functionAssembler.getSequencePolynomialMap(
+                    getSequenceElementType(getExprType(sequenceNode)).getTypeClass(), degree);
+        }
+
+        public SequenceMap<E, E, E> getSequenceKernelMap(ExprNode sequenceNode, String program) {
+            return functionAssembler.getSequenceKernelMap(
+                    getSequenceElementType(getExprType(sequenceNode)).getTypeClass(), program);
+        }
+
         public SequenceMap<E, E, E> getSequenceMap(ExprNode returnNode, ExprNode sequenceNode) {
             return getSequenceMap(getExprType(returnNode), getExprType(sequenceNode));
         }
@@ -0,0 +1,278 @@
+package com.abusalimov.mrcalc.compile;
+
+import com.abusalimov.mrcalc.ast.ExprHolderNode;
+import com.abusalimov.mrcalc.ast.LambdaNode;
+import com.abusalimov.mrcalc.ast.Node;
+import com.abusalimov.mrcalc.ast.NodeArgVisitor;
+import com.abusalimov.mrcalc.ast.expr.*;
+import com.abusalimov.mrcalc.ast.expr.literal.FloatLiteralNode;
+import com.abusalimov.mrcalc.ast.expr.literal.IntegerLiteralNode;
+import com.abusalimov.mrcalc.ast.expr.literal.LiteralNode;
+import com.abusalimov.mrcalc.compile.type.PrimitiveType;
+import com.abusalimov.mrcalc.compile.type.Type;
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+/**
+ * Rewrites an expression into a simpler one evaluating to exactly the same value, so that the backends don't spend
+ * any time on operations with a result known in advance, which matters the most for lambdas evaluated once per element.
+ * <p>
+ * The simplifier folds the operations on constants, such as {@code 2^10 * x} into {@code 1024 * x}, and the identities,
+ * such as {@code x * 1}, {@code x - 0} or {@code -(-x)}, into the operand itself. The operands of mixed types are
+ * promoted as usual prior to folding, and the identities only apply to the operands of the same type as the result.
+ * <p>
+ * An operation is left as is, if it would throw an {@link ArithmeticException} at runtime, like an integer division
+ * by zero, so that the error is still reported when evaluating the expression. The floating-point identities that
+ * don't hold for negative zeros or NaNs, such as {@code x + 0} or {@code 0 - x}, only apply to integers.
+ * <p>
+ * The AST is never modified: the rewritten nodes are new ones, located at the original nodes, while the unchanged
+ * subtrees are shared with the original expression.
+ *
+ * @author Eldar Abusalimov
+ */
+class ExprSimplifier implements NodeArgVisitor<ExprNode, ExprTypeInfo> {
+    private static final ExprSimplifier INSTANCE = new ExprSimplifier();
+
+    /**
+     * Simplifies the expression held by the given type info.
+     *
+     * @param exprTypeInfo the complete type info of the expression
+     * @return the holder node of the simplified expression, which is the {@link ExprTypeInfo#getExprHolderNode()
+     * original one} in case there is nothing to simplify
+     */
+    static ExprHolderNode simplify(ExprTypeInfo exprTypeInfo) {
+        ExprNode expr = INSTANCE.visit(exprTypeInfo.getExprNode(), exprTypeInfo);
+        if (expr == exprTypeInfo.getExprNode()) {
+            return exprTypeInfo.getExprHolderNode();
+        }
+        return new SyntheticExprHolderNode(expr);
+    }
+
+    private LambdaNode simplifyLambda(LambdaNode lambda, ExprTypeInfo exprTypeInfo) {
+        ExprNode expr = visit(lambda.getExpr(), exprTypeInfo.getChild(lambda));
+        if (expr == lambda.getExpr()) {
+            return lambda;
+        }
+        return locate(new LambdaNode(lambda.getArgNames(), expr), lambda);
+    }
+
+    @Override
+    public ExprNode doVisit(Node node, ExprTypeInfo exprTypeInfo) {
+        throw new UnsupportedOperationException("Expressions only");
+    }
+
+    @Override
+    public ExprNode doVisit(ExprNode node, ExprTypeInfo exprTypeInfo) {
+        return node;
+    }
+
+    @Override
+    public ExprNode doVisit(UnaryOpNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode operand = visit(node.getOperand(), exprTypeInfo);
+        if (node.getOp() == UnaryOpNode.Op.PLUS) {
+            return operand;
+        }
+        if (operand instanceof LiteralNode || operand instanceof UnaryOpNode) {
+            return negate(operand, node);
+        }
+        return (operand == node.getOperand()) ? node : locate(new UnaryOpNode(node.getOp(), operand), node);
+    }
+
+    @Override
+    public ExprNode doVisit(BinaryOpNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode operandA = visit(node.getOperandA(), exprTypeInfo);
+        ExprNode operandB = visit(node.getOperandB(), exprTypeInfo);
+        Type type = exprTypeInfo.getExprType(node);
+
+        if (operandA instanceof LiteralNode && operandB instanceof LiteralNode) {
+            Number a = ((LiteralNode<?>) operandA).getValue();
+            Number b = ((LiteralNode<?>) operandB).getValue();
+            ExprNode folded = (type == PrimitiveType.INTEGER)
+                    ? foldInteger(node, a.longValue(), b.longValue())
+                    : foldFloat(node, a.doubleValue(), b.doubleValue());
+            if (folded != null) {
+                return folded;
+            }
+        }
+
+        boolean keepsA = exprTypeInfo.getExprType(node.getOperandA()) == type;
+        boolean keepsB = exprTypeInfo.getExprType(node.getOperandB()) == type;
+        boolean integer = (type == PrimitiveType.INTEGER);
+        switch (node.getOp()) {
+            case ADD:
+                if (integer && isZero(operandB)) {
+                    return operandA;
+                }
+                if (integer && isZero(operandA)) {
+                    return operandB;
+                }
+                break;
+            case SUB:
+                if (keepsA && isZero(operandB)) {
+                    return operandA;
+                }
+                if (integer && isZero(operandA)) {
+                    return negate(operandB, node);
+                }
+                break;
+            case MUL:
+                if (keepsA && isConstant(operandB, 1)) {
+                    return operandA;
+                }
+                if (keepsB && isConstant(operandA, 1)) {
+                    return operandB;
+                }
+                if (keepsA && isConstant(operandB, -1)) {
+                    return negate(operandA, node);
+                }
+                if (keepsB && isConstant(operandA, -1)) {
+                    return negate(operandB, node);
+                }
+                break;
+            case DIV:
+                if (keepsA && isConstant(operandB, 1)) {
+                    return operandA;
+                }
+                if (keepsA && isConstant(operandB, -1)) {
+                    return negate(operandA, node);
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (operandA == node.getOperandA() && operandB == node.getOperandB()) {
+            return node;
+        }
+        return locate(new BinaryOpNode(node.getOp(), operandA, operandB), node);
+    }
+
+    private ExprNode foldInteger(BinaryOpNode node, long a, long b) {
+        long value;
+        switch (node.getOp()) {
+            case ADD:
+                value = a + b;
+                break;
+            case SUB:
+                value = a - b;
+                break;
+            case MUL:
+                value = a * b;
+                break;
+            case DIV:
+                if (b == 0) {
+                    return null;
+                }
+                value = a / b;
+                break;
+            case POW:
+                try {
+                    value = Runtime.Util.powLong(a, b);
+                } catch (ArithmeticException e) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+        }
+        return locate(new IntegerLiteralNode(value), node);
+    }
+
+    private ExprNode foldFloat(BinaryOpNode node, double a, double b) {
+        double value;
+        switch (node.getOp()) {
+            case ADD:
+                value = a + b;
+                break;
+            case SUB:
+                value = a - b;
+                break;
+            case MUL:
+                value = a * b;
+                break;
+            case DIV:
+                value = a / b;
+                break;
+            case POW:
+                value = Runtime.Util.powDouble(a, b);
+                break;
+            default:
+                return null;
+        }
+        return locate(new FloatLiteralNode(value), node);
+    }
+
+    /**
+     * Negates an already simplified operand, folding the negation of a constant, and cancelling a double negation.
+     *
+     * @param operand the operand to negate
+     * @param node    the node to locate the negation at
+     * @return the expression of the same type as the operand
+     */
+    private ExprNode negate(ExprNode operand, Node node) {
+        if (operand instanceof IntegerLiteralNode) {
+            return locate(new IntegerLiteralNode(-((IntegerLiteralNode) operand).getValue()), node);
+        }
+        if (operand instanceof FloatLiteralNode) {
+            return locate(new FloatLiteralNode(-((FloatLiteralNode) operand).getValue()), node);
+        }
+        if (operand instanceof UnaryOpNode && ((UnaryOpNode) operand).getOp() == UnaryOpNode.Op.MINUS) {
+            return ((UnaryOpNode) operand).getOperand();
+        }
+        return locate(new UnaryOpNode(UnaryOpNode.Op.MINUS, operand), node);
+    }
+
+    /**
+     * Tells whether the operand is a positive zero, which is an identity of addition for integers, and of subtraction
+     * for both integers and floats.
+     */
+    private static boolean isZero(ExprNode operand) {
+        if (operand instanceof IntegerLiteralNode) {
+            return ((IntegerLiteralNode) operand).getValue() == 0;
+        }
+        return (operand instanceof FloatLiteralNode &&
+                Double.doubleToRawLongBits(((FloatLiteralNode) operand).getValue()) == 0);
+    }
+
+    private static boolean isConstant(ExprNode operand, long value) {
+        if (operand instanceof IntegerLiteralNode) {
+            return ((IntegerLiteralNode) operand).getValue() == value;
+        }
+        return (operand instanceof FloatLiteralNode && ((FloatLiteralNode) operand).getValue() == value);
+    }
+
+    @Override
+    public ExprNode doVisit(RangeNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode start = visit(node.getStart(), exprTypeInfo);
+        ExprNode end = visit(node.getEnd(), exprTypeInfo);
+        if (start == node.getStart() && end == node.getEnd()) {
+            return node;
+        }
+        return locate(new RangeNode(start, end), node);
+    }
+
+    @Override
+    public ExprNode doVisit(MapNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode sequence = visit(node.getSequence(), exprTypeInfo);
+        LambdaNode lambda = simplifyLambda(node.getLambda(), exprTypeInfo);
+        if (sequence == node.getSequence() && lambda == node.getLambda()) {
+            return node;
+        }
+        return locate(new MapNode(sequence, lambda), node);
+    }
+
+    @Override
+    public ExprNode doVisit(ReduceNode node, ExprTypeInfo exprTypeInfo) {
+        ExprNode sequence = visit(node.getSequence(), exprTypeInfo);
+        ExprNode neutral = visit(node.getNeutral(), exprTypeInfo);
+        LambdaNode lambda = simplifyLambda(node.getLambda(), exprTypeInfo);
+        if (sequence == node.getSequence() && neutral == node.getNeutral() && lambda == node.getLambda()) {
+            return node;
+        }
+        return locate(new ReduceNode(sequence, neutral, lambda), node);
+    }
+
+    private static <N extends Node> N locate(N newNode, Node node) {
+        newNode.setLocation(node.getLocation());
+        return newNode;
+    }
+}
@@ -0,0 +1,146 @@
+package com.abusalimov.mrcalc.compile;
+
+import com.abusalimov.mrcalc.runtime.Evaluable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Caches the functions assembled by the {@link ExprBuilder}, so that an expression is only assembled once, no matter
+ * how many times the program containing it gets recompiled, and identical lambdas share the same function.
+ * <p>
+ * The functions are keyed by the {@link CanonicalForm canonical form} of the expression, which includes the types of
+ * the referenced variables and the type of the result. Both maps are bounded and evict the least recently used entries.
+ * <p>
+ * The functions are backend-specific, therefore a cache must only be shared by compilers using the same backend. A
+ * backend releasing its functions can {@link #removeIf(Predicate) remove} them from the cache, and track their use
+ * through a {@link #setHitListener(Consumer) hit listener}.
+ *
+ * @param <F> the internal type of assembled functions used by the backend
+ * @author Eldar Abusalimov
+ */
+public class FunctionCache<F> {
+    /**
+     * The default maximum number of cached functions of each kind.
+     */
+    public static final int DEFAULT_MAX_SIZE = 1 << 10;
+
+    private final Map<String, Evaluable<?>> evaluables;
+    private final Map<String, F> functions;
+    private Consumer<Object> hitListener;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Creates a new cache of the default size.
+     */
+    public FunctionCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a new cache holding at most the given number of expression statements and lambdas each.
+     *
+     * @param maxSize the maximum number of cached functions of each kind
+     * @throws IllegalArgumentException if the size is not positive
+     */
+    public FunctionCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.evaluables = createLruMap(maxSize);
+        this.functions = createLruMap(maxSize);
+    }
+
+    private static <V> Map<String, V> createLruMap(int maxSize) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached {@link Evaluable} for an expression statement, assembling it if needed.
+     *
+     * @param key      the canonical form of the expression
+     * @param assemble assembles the expression on a cache miss
+     * @return the cached or the newly assembled evaluable
+     */
+    public synchronized Evaluable<?> getEvaluable(String key, Supplier<? extends Evaluable<?>> assemble) {
+        return get(evaluables, key, assemble);
+    }
+
+    /**
+     * Returns the cached function of a lambda, assembling it if needed.
+     *
+     * @param key      the canonical form of the lambda
+     * @param assemble assembles the lambda on a cache miss
+     * @return the cached or the newly assembled function
+     */
+    public synchronized F getFunction(String key, Supplier<? extends F> assemble) {
+        return get(functions, key, assemble);
+    }
+
+    private <V> V get(Map<String, V> map, String key, Supplier<? extends V> assemble) {
+        V value = map.get(key);
+        if (value != null) {
+            hitCount++;
+            if (hitListener != null) {
+                hitListener.accept(value);
+            }
+            return value;
+        }
+        missCount++;
+        /* Not computeIfAbsent(), as assembling a lambda caches its nested lambdas in the very same map. */
+        value = assemble.get();
+        map.put(key, value);
+        return value;
+    }
+
+    /**
+     * Sets the listener called with each function found in the cache.
+     *
+     * @param hitListener the listener, or null
+     */
+    public synchronized void setHitListener(Consumer<Object> hitListener) {
+        this.hitListener = hitListener;
+    }
+
+    /**
+     * Removes the cached functions matching the given predicate, both the evaluables and the functions of lambdas.
+     *
+     * @param predicate tells whether to remove a function
+     * @return the number of functions removed
+     */
+    public synchronized int removeIf(Predicate<Object> predicate) {
+        int size = size();
+        evaluables.values().removeIf(predicate);
+        functions.values().removeIf(predicate);
+        return size - size();
+    }
+
+    /**
+     * Removes all the cached functions.
+     */
+    public synchronized void clear() {
+        evaluables.clear();
+        functions.clear();
+    }
+
+    public synchronized int size() {
+        return evaluables.size() + functions.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,103 @@
+package com.abusalimov.mrcalc.compile;
+
+import com.abusalimov.mrcalc.ast.LambdaNode;
+import com.abusalimov.mrcalc.ast.Node;
+import com.abusalimov.mrcalc.ast.NodeArgVisitor;
+import com.abusalimov.mrcalc.ast.expr.BinaryOpNode;
+import com.abusalimov.mrcalc.ast.expr.ExprNode;
+import com.abusalimov.mrcalc.ast.expr.VarRefNode;
+import com.abusalimov.mrcalc.ast.expr.literal.LiteralNode;
+import com.abusalimov.mrcalc.compile.type.PrimitiveType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the sub-expressions of a lambda that don't depend on the lambda arguments, such as the {@code reduce()} of
+ * {@code x -> x * reduce({0, 1000}, 0, a b -> a + b)}. Such an invariant is worth evaluating once for all the
+ * elements of a sequence, and passing its value to the lambda as a captured one.
+ * <p>
+ * Since lambdas can only reference their own arguments, a sub-expression is invariant, unless it references a
+ * variable outside of any nested lambda. The analyzer only reports the largest invariants, leaving out the literals,
+ * which are cheap to evaluate anyway.
+ * <p>
+ * An invariant is evaluated even if the lambda is never called, e.g. for an empty sequence. That is why the ones
+ * that may fail at runtime, that is, involving an integer division or power, are left within the lambda.
+ *
+ * @author Eldar Abusalimov
+ */
+class InvariantAnalyzer implements NodeArgVisitor<Boolean, ExprTypeInfo> {
+    private final List<ExprNode> invariantExprs = new ArrayList<>();
+
+    private InvariantAnalyzer() {
+    }
+
+    /**
+     * Returns the largest sub-expressions of the given lambda that don't depend on its arguments and are worth
+     * evaluating out of the lambda.
+     *
+     * @param lambdaTypeInfo the type info of the lambda
+     * @return the invariant sub-expressions in the order of their appearance, which may include the whole lambda
+     * expression
+     */
+    static List<ExprNode> getInvariantExprs(ExprTypeInfo lambdaTypeInfo) {
+        InvariantAnalyzer analyzer = new InvariantAnalyzer();
+        ExprNode expr = lambdaTypeInfo.getExprNode();
+        if (analyzer.visit(expr, lambdaTypeInfo)) {
+            analyzer.addIfWorthHoisting(expr, lambdaTypeInfo);
+        }
+        return analyzer.invariantExprs;
+    }
+
+    private void addIfWorthHoisting(ExprNode node, ExprTypeInfo exprTypeInfo) {
+        if (!(node instanceof LiteralNode) && !mayFail(node, exprTypeInfo)) {
+            invariantExprs.add(node);
+        }
+    }
+
+    private static boolean mayFail(Node node, ExprTypeInfo exprTypeInfo) {
+        if (node instanceof LambdaNode) {
+            LambdaNode lambda = (LambdaNode) node;
+            return mayFail(lambda.getExpr(), exprTypeInfo.getChild(lambda));
+        }
+        if (node instanceof BinaryOpNode) {
+            BinaryOpNode.Op op = ((BinaryOpNode) node).getOp();
+            if ((op == BinaryOpNode.Op.DIV || op == BinaryOpNode.Op.POW) &&
+                exprTypeInfo.getExprType((ExprNode) node) == PrimitiveType.INTEGER) {
+                return true;
+            }
+        }
+        return node.getChildren().stream().anyMatch(child -> mayFail(child, exprTypeInfo));
+    }
+
+    @Override
+    public Boolean doVisit(Node node, ExprTypeInfo exprTypeInfo) {
+        throw new UnsupportedOperationException("Expressions only");
+    }
+
+    /**
+     * Tells whether the expression is invariant, and if not, collects its invariant operands.
+     */
+    @Override
+    public Boolean doVisit(ExprNode node, ExprTypeInfo exprTypeInfo) {
+        /* Nested lambdas are not expressions, and can't reference the arguments of this one. */
+        List<ExprNode> operands = node.getChildren().stream()
+                .filter(ExprNode.class::isInstance)
+                .map(ExprNode.class::cast)
+                .collect(Collectors.toList());
+        List<ExprNode> invariantOperands = operands.stream()
+                .filter(operand -> visit(operand, exprTypeInfo))
+                .collect(Collectors.toList());
+        if (invariantOperands.size() == operands.size()) {
+            return true;
+        }
+        invariantOperands.forEach(operand -> addIfWorthHoisting(operand, exprTypeInfo));
+        return false;
+    }
+
+    @Override
+    public Boolean doVisit(VarRefNode node, ExprTypeInfo exprTypeInfo) {
+        return false;
+    }
+}
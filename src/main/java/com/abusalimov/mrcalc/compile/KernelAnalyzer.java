@@ -0,0 +1,128 @@
+package com.abusalimov.mrcalc.compile;
+
+import com.abusalimov.mrcalc.ast.Node;
+import com.abusalimov.mrcalc.ast.NodeVisitor;
+import com.abusalimov.mrcalc.ast.expr.BinaryOpNode;
+import com.abusalimov.mrcalc.ast.expr.ExprNode;
+import com.abusalimov.mrcalc.ast.expr.UnaryOpNode;
+import com.abusalimov.mrcalc.ast.expr.VarRefNode;
+import com.abusalimov.mrcalc.ast.expr.literal.FloatLiteralNode;
+import com.abusalimov.mrcalc.ast.expr.literal.IntegerLiteralNode;
+import com.abusalimov.mrcalc.compile.type.PrimitiveType;
+
+/**
+ * Recognizes map() lambdas that can be evaluated by an {@link com.abusalimov.mrcalc.runtime.ArithmeticKernel}.
+ * <p>
+ * A single-argument lambda built of constants, the argument itself, and {@code +}, {@code -}, {@code *}, {@code /}
+ * operations, all of the same type as the argument, is translated into a kernel program in the postfix notation. The
+ * only exception are integer literals in a floating-point lambda, which are converted at compile time, just like the
+ * lambda itself would do it. Power is not supported, as it is a call rather than a simple arithmetic instruction.
+ *
+ * @author Eldar Abusalimov
+ */
+class KernelAnalyzer implements NodeVisitor<Boolean> {
+    /**
+     * The maximum number of instructions in a kernel program.
+     */
+    static final int MAX_INSTRUCTIONS = 64;
+
+    private final ExprTypeInfo lambdaTypeInfo;
+    private final PrimitiveType elementType;
+    private final StringBuilder program = new StringBuilder();
+    private int instructions;
+
+    private KernelAnalyzer(ExprTypeInfo lambdaTypeInfo, PrimitiveType elementType) {
+        this.lambdaTypeInfo = lambdaTypeInfo;
+        this.elementType = elementType;
+    }
+
+    /**
+     * Translates the given single-argument lambda into a kernel program.
+     *
+     * @param lambdaTypeInfo the type info of the lambda
+     * @return the kernel program, or {@code null} if the lambda is not a pure arithmetic function of its argument
+     */
+    static String getKernelProgram(ExprTypeInfo lambdaTypeInfo) {
+        if (lambdaTypeInfo.getReferencedVariables().size() > 1) {
+            return null;
+        }
+        if (lambdaTypeInfo.getExprType() != PrimitiveType.INTEGER &&
+            lambdaTypeInfo.getExprType() != PrimitiveType.FLOAT) {
+            return null;
+        }
+        KernelAnalyzer analyzer = new KernelAnalyzer(lambdaTypeInfo, (PrimitiveType) lambdaTypeInfo.getExprType());
+        if (!analyzer.visit(lambdaTypeInfo.getExprNode())) {
+            return null;
+        }
+        return analyzer.program.toString();
+    }
+
+    private boolean emit(String token) {
+        if (++instructions > MAX_INSTRUCTIONS) {
+            return false;
+        }
+        if (program.length() > 0) {
+            program.append(' ');
+        }
+        program.append(token);
+        return true;
+    }
+
+    @Override
+    public Boolean visit(Node node) {
+        if (lambdaTypeInfo.getExprType((ExprNode) node) != elementType &&
+            !(node instanceof IntegerLiteralNode && elementType == PrimitiveType.FLOAT)) {
+            return false;
+        }
+        return NodeVisitor.super.visit(node);
+    }
+
+    @Override
+    public Boolean doVisit(Node node) {
+        return false;
+    }
+
+    @Override
+    public Boolean doVisit(VarRefNode node) {
+        /* Lambdas can only reference their own arguments, so this must be the only one. */
+        return emit("x");
+    }
+
+    @Override
+    public Boolean doVisit(IntegerLiteralNode node) {
+        long value = node.getValue();
+        return emit((elementType == PrimitiveType.FLOAT) ? Double.toString((double) value) : Long.toString(value));
+    }
+
+    @Override
+    public Boolean doVisit(FloatLiteralNode node) {
+        return emit(Double.toString(node.getValue()));
+    }
+
+    @Override
+    public Boolean doVisit(UnaryOpNode node) {
+        if (!visit(node.getOperand())) {
+            return false;
+        }
+        return node.getOp() != UnaryOpNode.Op.MINUS || emit("neg");
+    }
+
+    @Override
+    public Boolean doVisit(BinaryOpNode node) {
+        if (!visit(node.getOperandA()) || !visit(node.getOperandB())) {
+            return false;
+        }
+        switch (node.getOp()) {
+            case ADD:
+                return emit("+");
+            case SUB:
+                return emit("-");
+            case MUL:
+                return emit("*");
+            case DIV:
+                return emit("/");
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.abusalimov.mrcalc.compile;
+
+import com.abusalimov.mrcalc.ast.Node;
+import com.abusalimov.mrcalc.ast.NodeArgVisitor;
+import com.abusalimov.mrcalc.ast.expr.BinaryOpNode;
+import com.abusalimov.mrcalc.ast.expr.ExprNode;
+import com.abusalimov.mrcalc.ast.expr.UnaryOpNode;
+import com.abusalimov.mrcalc.ast.expr.VarRefNode;
+import com.abusalimov.mrcalc.ast.expr.literal.IntegerLiteralNode;
+import com.abusalimov.mrcalc.compile.type.PrimitiveType;
+import com.abusalimov.mrcalc.runtime.Runtime;
+
+/**
+ * Recognizes lambdas that allow evaluating a reduction over a range in a closed form.
+ * <p>
+ * A single-argument lambda built of integer constants, the argument itself, and {@code +}, {@code -}, {@code *}
+ * operations computes an integer polynomial of the argument, and the analyzer tells the degree of that polynomial.
+ * Note that the wrapping long arithmetic is a ring homomorphism, so such lambda always yields a value of the
+ * polynomial modulo 2^64, regardless of any intermediate overflows. Division and power are not polynomial operations
+ * in that sense, and neither are floating-point ones.
+ * <p>
+ * A reduction lambda is recognized as a sum, if it merely adds its two integer arguments together.
+ *
+ * @author Eldar Abusalimov
+ */
+class PolynomialAnalyzer implements NodeArgVisitor<Integer, ExprTypeInfo> {
+    private static final int NOT_POLYNOMIAL = -1;
+
+    private static final PolynomialAnalyzer INSTANCE = new PolynomialAnalyzer();
+
+    /**
+     * Returns the degree of the polynomial computed by the given single-argument lambda.
+     *
+     * @param lambdaTypeInfo the type info of the lambda
+     * @return the degree of the polynomial, or -1 if the lambda is not a polynomial of at most {@link
+     * Runtime#MAX_POLYNOMIAL_DEGREE} degree
+     */
+    static int getPolynomialDegree(ExprTypeInfo lambdaTypeInfo) {
+        if (lambdaTypeInfo.getReferencedVariables().size() > 1) {
+            return NOT_POLYNOMIAL;
+        }
+        int degree = INSTANCE.visit(lambdaTypeInfo.getExprNode(), lambdaTypeInfo);
+        return (degree <= Runtime.MAX_POLYNOMIAL_DEGREE) ? degree : NOT_POLYNOMIAL;
+    }
+
+    /**
+     * Tells whether the given two-argument lambda sums its integer arguments up.
+     *
+     * @param lambdaTypeInfo the type info of the lambda
+     * @return true for the {@code x y -> x + y} lambda (or {@code x y -> y + x})
+     */
+    static boolean isSum(ExprTypeInfo lambdaTypeInfo) {
+        ExprNode expr = lambdaTypeInfo.getExprNode();
+        if (!(expr instanceof BinaryOpNode) || ((BinaryOpNode) expr).getOp() != BinaryOpNode.Op.ADD ||
+            lambdaTypeInfo.getExprType() != PrimitiveType.INTEGER) {
+            return false;
+        }
+        ExprNode operandA = ((BinaryOpNode) expr).getOperandA();
+        ExprNode operandB = ((BinaryOpNode) expr).getOperandB();
+        if (!(operandA instanceof VarRefNode && operandB instanceof VarRefNode)) {
+            return false;
+        }
+
+        /* Lambdas can only reference their own arguments, so these must be both of them. */
+        return !((VarRefNode) operandA).getName().equals(((VarRefNode) operandB).getName());
+    }
+
+    @Override
+    public Integer visit(Node node, ExprTypeInfo exprTypeInfo) {
+        if (exprTypeInfo.getExprType((ExprNode) node) != PrimitiveType.INTEGER) {
+            return NOT_POLYNOMIAL;
+        }
+        return NodeArgVisitor.super.visit(node, exprTypeInfo);
+    }
+
+    @Override
+    public Integer doVisit(Node node, ExprTypeInfo exprTypeInfo) {
+        return NOT_POLYNOMIAL;
+    }
+
+    @Override
+    public Integer doVisit(VarRefNode node, ExprTypeInfo exprTypeInfo) {
+        return 1;
+    }
+
+    @Override
+    public Integer doVisit(IntegerLiteralNode node, ExprTypeInfo exprTypeInfo) {
+        return 0;
+    }
+
+    @Override
+    public Integer doVisit(UnaryOpNode node, ExprTypeInfo exprTypeInfo) {
+        return visit(node.getOperand(), exprTypeInfo);
+    }
+
+    @Override
+    public Integer doVisit(BinaryOpNode node, ExprTypeInfo exprTypeInfo) {
+        int degreeA = visit(node.getOperandA(), exprTypeInfo);
+        int degreeB = visit(node.getOperandB(), exprTypeInfo);
+        if (degreeA == NOT_POLYNOMIAL || degreeB == NOT_POLYNOMIAL) {
+            return NOT_POLYNOMIAL;
+        }
+
+        switch (node.getOp()) {
+            case ADD:
+            case SUB:
+                return Math.max(degreeA, degreeB);
+            case MUL:
+                /* Can't overflow: each degree is bounded by the number of nodes. */
+                return degreeA + degreeB;
+            default:
+                return NOT_POLYNOMIAL;
+        }
+    }
+}
@@ -2,13 +2,14 @@ package com.abusalimov.mrcalc.compile;
 
 import com.abusalimov.mrcalc.diagnostic.Diagnostic;
 import com.abusalimov.mrcalc.location.Location;
+import com.abusalimov.mrcalc.runtime.DeferredErrorException;
 import com.abusalimov.mrcalc.runtime.Evaluable;
+import com.abusalimov.mrcalc.runtime.GlobalFrame;
 import com.abusalimov.mrcalc.runtime.Runtime;
 import com.abusalimov.mrcalc.runtime.RuntimeErrorException;
 
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -20,7 +21,11 @@ public class Stmt {
     private final Evaluable<?> exprFunction;
     private final List<Variable> inputVariables;
     private final Variable outputVariable;
+    private final int[] inputSlots;
     private final Location location;
+    private final List<Variable> deadVariables;
+    private final String fingerprint;
+    private final boolean materializeResult;
 
     /**
      * Creates a new instance with given callable (which might be {@code null} for {@link #isComplete() incomplete
@@ -44,52 +49,122 @@ public class Stmt {
      * @param location       the location of the statement in the source code
      */
     public Stmt(Evaluable<?> exprFunction, List<Variable> inputVariables, Variable outputVariable, Location location) {
+        this(exprFunction, inputVariables, outputVariable, location, Collections.emptyList());
+    }
+
+    /**
+     * Creates a new instance with given callable (which might be {@code null} for {@link #isComplete() incomplete
+     * statements}), input and output variables, and the variables which are not used after this statement.
+     *
+     * @param exprFunction   the callable to execute passing the input variable values to it
+     * @param inputVariables the list of global variables referenced from within the statement
+     * @param outputVariable the variable, to which to assign the result of calling the function
+     * @param location       the location of the statement in the source code
+     * @param deadVariables  the variables not referenced by any of the following statements, see
+     *                       {@link #getDeadVariables()}
+     */
+    public Stmt(Evaluable<?> exprFunction, List<Variable> inputVariables, Variable outputVariable, Location location,
+                List<Variable> deadVariables) {
+        this(exprFunction, inputVariables, outputVariable, location, deadVariables, null);
+    }
+
+    /**
+     * Creates a new instance with given callable (which might be {@code null} for {@link #isComplete() incomplete
+     * statements}), input and output variables, the variables which are not used after this statement, and the
+     * fingerprint of its value.
+     *
+     * @param exprFunction   the callable to execute passing the input variable values to it
+     * @param inputVariables the list of global variables referenced from within the statement
+     * @param outputVariable the variable, to which to assign the result of calling the function
+     * @param location       the location of the statement in the source code
+     * @param deadVariables  the variables not referenced by any of the following statements, see
+     *                       {@link #getDeadVariables()}
+     * @param fingerprint    the fingerprint of the value, see {@link #getFingerprint()}, or {@code null}
+     */
+    public Stmt(Evaluable<?> exprFunction, List<Variable> inputVariables, Variable outputVariable, Location location,
+                List<Variable> deadVariables, String fingerprint) {
+        this(exprFunction, inputVariables, outputVariable, location, deadVariables, fingerprint,
+                deadVariables.contains(outputVariable));
+    }
+
+    /**
+     * Creates a new instance with given callable (which might be {@code null} for {@link #isComplete() incomplete
+     * statements}), input and output variables, the variables which are not used after this statement, the
+     * fingerprint of its value, and whether to materialize its value right away.
+     *
+     * @param exprFunction      the callable to execute passing the input variable values to it
+     * @param inputVariables    the list of global variables referenced from within the statement
+     * @param outputVariable    the variable, to which to assign the result of calling the function
+     * @param location          the location of the statement in the source code
+     * @param deadVariables     the variables not referenced by any of the following statements, see
+     *                          {@link #getDeadVariables()}
+     * @param fingerprint       the fingerprint of the value, see {@link #getFingerprint()}, or {@code null}
+     * @param materializeResult whether to materialize a lazy value, even though the following statements read it,
+     *                          which is always done for a printed or an unread one
+     */
+    public Stmt(Evaluable<?> exprFunction, List<Variable> inputVariables, Variable outputVariable, Location location,
+                List<Variable> deadVariables, String fingerprint, boolean materializeResult) {
         this.exprFunction = exprFunction;
         this.inputVariables = Objects.requireNonNull(inputVariables);
         this.outputVariable = Objects.requireNonNull(outputVariable);
+        this.inputSlots = inputVariables.stream().mapToInt(Variable::getSlot).toArray();
         this.location = Objects.requireNonNull(location);
+        this.deadVariables = Objects.requireNonNull(deadVariables);
+        this.fingerprint = fingerprint;
+        this.materializeResult = materializeResult || shouldPrintResult() || deadVariables.contains(outputVariable);
     }
 
     /**
-     * Executes the statement in a given context specified as the `memory` parameter and using the specified {@link
-     * Runtime}. The result is then saved back into the memory and returned.
+     * Executes the statement in a given context specified as the frame of global variables and using the specified
+     * {@link Runtime}. The result is then saved into the slot of the output variable.
+     * <p>
+     * The statement never boxes the values of primitive types on its own, so that the ones of the primitive variables
+     * go straight from one statement to another.
+     * <p>
+     * A lazy result is only left unevaluated if a single following read is expected, in which case the runtime is told
+     * the {@link Runtime#setOrigin(Object, Location) origin} of the result, so that the errors it defers are still
+     * reported at this statement. Otherwise, it is {@link Runtime#materialize(Object) materialized} right away, for the
+     * errors not to get lost, and for the elements not to be computed anew by each of the readers.
      *
      * @param runtime the {@link Runtime} to use
-     * @param memory  the variables-to-values mapping representing the "memory"
-     * @return the result
-     * @throws RuntimeErrorException in case of a runtime error
+     * @param frame   the frame holding the values of all the global variables
+     * @throws RuntimeErrorException    in case of a runtime error
+     * @throws UnboundVariableException if an input variable has no value
      */
-    public Object exec(Runtime runtime, Map<Variable, Object> memory) throws RuntimeErrorException {
+    public void exec(Runtime runtime, GlobalFrame frame) throws RuntimeErrorException {
         if (!isComplete()) {
             throw new UnsupportedOperationException("Incomplete statement");
         }
-        Object[] args = bindVariables(memory);
-        Object result;
+        for (int i = 0; i < inputSlots.length; i++) {
+            if (!frame.isBound(inputSlots[i])) {
+                throw new UnboundVariableException(inputVariables.get(i));
+            }
+        }
+        int outputSlot = outputVariable.getSlot();
         try {
-            result = exprFunction.eval(runtime, args);
+            exprFunction.evalInto(runtime, frame, inputSlots, outputSlot);
+            Object result = frame.getObject(outputSlot);
+            if (result != null) {
+                if (materializeResult) {
+                    /*
+                     * Printing needs all the elements anyway, nothing else is going to evaluate an unread one, and
+                     * the ones read several times are better computed once.
+                     */
+                    frame.setObject(outputSlot, runtime.materialize(result));
+                } else {
+                    runtime.setOrigin(result, location);
+                }
+            }
+        } catch (DeferredErrorException e) {
+            throw new RuntimeErrorException(new Diagnostic(e.getLocation(), e.getCause().toString()), e.getCause());
         } catch (RuntimeException e) {
             throw new RuntimeErrorException(new Diagnostic(location, e.toString()), e);
         }
-        memory.put(outputVariable, result);
-        return result;
-    }
-
-    private Object[] bindVariables(Map<Variable, ?> memory) {
-        Object[] ret = new Object[inputVariables.size()];
-        int idx = 0;
-        for (Variable variable : inputVariables) {
-            Object value = memory.get(variable);
-            if (value == null) {
-                throw new UnboundVariableException(variable);
-            }
-            ret[idx++] = value;
-        }
-        return ret;
     }
 
     /**
-     * Tells whether the statement was compiled successfully and can be {@link #exec(Runtime, Map) executed}. Normally,
-     * incomplete statement are only live within the {@link Compiler} and not accessible from the outside.
+     * Tells whether the statement was compiled successfully and can be {@link #exec(Runtime, GlobalFrame) executed}.
+     * Normally, incomplete statement are only live within the {@link Compiler} and not accessible from the outside.
      *
      * @return it the statement can be executed
      */
@@ -105,6 +180,29 @@ public class Stmt {
         return outputVariable;
     }
 
+    /**
+     * Returns the variables, which this statement is the last one to use among the statements compiled together: the
+     * input variables not referenced by any of the following statements, and the output variable, unless referenced
+     * by any of them. Once the statement is executed, the values of these variables are no longer needed for running
+     * the rest of the program, although the later input, like the next line of a REPL, may still refer to them.
+     *
+     * @return the variables dead after executing the statement
+     */
+    public List<Variable> getDeadVariables() {
+        return Collections.unmodifiableList(deadVariables);
+    }
+
+    /**
+     * Returns the fingerprint of the value of the statement, which is computed from its normalized source and the
+     * fingerprints of its input variables. The statements having the same fingerprint yield the same value, even if
+     * they come from different programs, so that the result of executing one can be reused instead of the other.
+     *
+     * @return the fingerprint string, or {@code null} if the statement is not worth or can't be fingerprinted
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
     public Location getLocation() {
         return location;
     }
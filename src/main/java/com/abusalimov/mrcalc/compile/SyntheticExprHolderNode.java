@@ -0,0 +1,29 @@
+package com.abusalimov.mrcalc.compile;
+
+import com.abusalimov.mrcalc.ast.ExprHolderNode;
+import com.abusalimov.mrcalc.ast.NodeArgVisitor;
+import com.abusalimov.mrcalc.ast.NodeVisitor;
+import com.abusalimov.mrcalc.ast.expr.ExprNode;
+
+/**
+ * Holds an expression produced by the compiler itself rather than parsed from the source, like a simplified expression
+ * of a statement.
+ *
+ * @author Eldar Abusalimov
+ */
+class SyntheticExprHolderNode extends ExprHolderNode {
+    SyntheticExprHolderNode(ExprNode expr) {
+        super(expr);
+        setLocation(expr.getLocation());
+    }
+
+    @Override
+    public <T> T accept(NodeVisitor<T> visitor) {
+        return visitor.doVisit(this);
+    }
+
+    @Override
+    public <T, A> T accept(NodeArgVisitor<T, A> visitor, A arg) {
+        return visitor.doVisit(this, arg);
+    }
+}
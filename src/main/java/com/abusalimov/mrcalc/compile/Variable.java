@@ -13,16 +13,30 @@ import java.util.Objects;
 public class Variable {
     private final String name;
     private final Type type;
+    private final int slot;
 
     /**
-     * Creates a new variable with give name and type.
+     * Creates a new variable with give name and type, which is not stored in any frame, like an argument of a lambda.
      *
      * @param name a non-{@code null} string
      * @param type a non-{@code null} {@link Type} instance
      */
     public Variable(String name, Type type) {
+        this(name, type, -1);
+    }
+
+    /**
+     * Creates a new global variable with give name and type, stored in the given slot of a
+     * {@link com.abusalimov.mrcalc.runtime.GlobalFrame frame}.
+     *
+     * @param name a non-{@code null} string
+     * @param type a non-{@code null} {@link Type} instance
+     * @param slot the slot index assigned by the compiler
+     */
+    public Variable(String name, Type type, int slot) {
         this.name = Objects.requireNonNull(name);
         this.type = Objects.requireNonNull(type);
+        this.slot = slot;
     }
 
     /**
@@ -43,6 +57,25 @@ public class Variable {
         return type;
     }
 
+    /**
+     * Returns the slot of the frame holding the value of the variable.
+     *
+     * @return the slot index, or -1 unless it is a global variable
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Tells whether the variable is defined by the compiler, like the one holding the result of a {@code print}
+     * statement. Such a variable can't be referenced from the source code.
+     *
+     * @return whether the name of the variable is not a valid identifier
+     */
+    public boolean isSynthetic() {
+        return name.startsWith("$");
+    }
+
     @Override
     public String toString() {
         return name + " : " + type;
@@ -16,11 +16,19 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
+ * The parser implementation backed by an ANTLR generated lexer and parser.
+ * <p>
+ * The instances are not thread-safe, since the lexer is reused across the {@link #tokenize(Reader)} calls.
+ *
  * @author Eldar Abusalimov
  */
 public class ANTLRParserImpl extends AbstractDiagnosticEmitter implements Parser {
 
     private ASTConstructor astConstructor;
+    /**
+     * The lexer reused by {@link #tokenize(Reader)} calls, which come for each line being highlighted.
+     */
+    private Lexer tokenizingLexer;
 
     public ANTLRParserImpl() {
         astConstructor = new ASTConstructor();
@@ -28,16 +36,20 @@ public class ANTLRParserImpl extends AbstractDiagnosticEmitter implements Parser
 
     @Override
     public List<TokenSpan> tokenize(Reader reader) throws IOException {
-        Lexer lexer = new CalcLexer(new ANTLRInputStream(reader));
-        lexer.removeErrorListeners();
-        CommonTokenStream tokenStream = new CommonTokenStream(lexer);
-        tokenStream.fill();
-        List<Token> antlrTokens = tokenStream.getTokens();
-        List<TokenSpan> tokens = new ArrayList<>(antlrTokens.size());
+        ANTLRInputStream input = new ANTLRInputStream(reader);
+        if (tokenizingLexer == null) {
+            tokenizingLexer = new CalcLexer(input);
+            tokenizingLexer.removeErrorListeners();
+        } else {
+            tokenizingLexer.setInputStream(input);
+        }
+        List<TokenSpan> tokens = new ArrayList<>();
 
-        for (Token antlrToken : antlrTokens) {
+        Token antlrToken;
+        do {
+            antlrToken = tokenizingLexer.nextToken();
             tokens.add(new TokenSpan.Simple(mapTokenKind(antlrToken.getType()), new TokenLocation(antlrToken)));
-        }
+        } while (antlrToken.getType() != Token.EOF);
 
         return tokens;
     }
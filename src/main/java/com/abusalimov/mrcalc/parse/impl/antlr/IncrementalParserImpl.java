@@ -0,0 +1,296 @@
+package com.abusalimov.mrcalc.parse.impl.antlr;
+
+import com.abusalimov.mrcalc.ast.Node;
+import com.abusalimov.mrcalc.ast.ProgramNode;
+import com.abusalimov.mrcalc.ast.stmt.StmtNode;
+import com.abusalimov.mrcalc.diagnostic.Diagnostic;
+import com.abusalimov.mrcalc.location.Location;
+import com.abusalimov.mrcalc.location.RawLocation;
+import com.abusalimov.mrcalc.parse.SyntaxErrorException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The parser that remembers the last parsed source and, given an edited version of it, only parses the statements
+ * touched by the edit, reusing the {@link StmtNode}s of the rest.
+ * <p>
+ * Since a statement never spans a {@link CalcLexer#STMT_DELIM delimiter}, the source is split into segments at the
+ * delimiters outside string literals, and each segment is parsed on its own. The segments before the edited region
+ * are reused as is. The ones after it are reused as soon as the rescanned text reaches a segment that has started at
+ * the same text before the edit, with the locations of their nodes {@link ShiftedLocation shifted} accordingly.
+ * <p>
+ * Note that the reused nodes are shared with the previously returned program, so the locations of its statements
+ * change with each new parse. The parser is not thread-safe.
+ *
+ * @author Eldar Abusalimov
+ */
+public class IncrementalParserImpl extends ANTLRParserImpl {
+    private final ANTLRParserImpl segmentParser = new ANTLRParserImpl();
+
+    private String lastSource;
+    private List<Segment> lastSegments = Collections.emptyList();
+
+    @Override
+    public ProgramNode parse(Reader reader) throws IOException, SyntaxErrorException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[4096];
+        for (int count; (count = reader.read(buffer)) != -1; ) {
+            sb.append(buffer, 0, count);
+        }
+        return parse(sb.toString());
+    }
+
+    @Override
+    public ProgramNode parse(String source) throws SyntaxErrorException {
+        List<Segment> segments = split(Objects.requireNonNull(source));
+        lastSource = source;
+        lastSegments = segments;
+
+        try (DiagnosticCollectorCloseable<SyntaxErrorException> ignored =
+                     collectDiagnosticsToThrow(SyntaxErrorException::new)) {
+            List<StmtNode> stmts = new ArrayList<>();
+            for (Segment segment : segments) {
+                for (Diagnostic diagnostic : segment.diagnostics) {
+                    emitDiagnostic(new Diagnostic(segment.toAbsolute(diagnostic.getLocation()),
+                            diagnostic.getMessage()));
+                }
+                if (segment.stmt != null) {
+                    stmts.add(segment.stmt);
+                }
+            }
+
+            ProgramNode programNode = new ProgramNode(stmts);
+            programNode.setLocation(new RawLocation(1, 0, 0, 0, source.length()));
+            return programNode;
+        }
+    }
+
+    /**
+     * Splits the source into segments, reusing the ones of the last parsed source outside the edited region.
+     */
+    private List<Segment> split(String source) throws SyntaxErrorException {
+        if (source.equals(lastSource)) {
+            return lastSegments;
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        int oldIndex = 0;
+        int delta = 0;
+        int suffixStart = source.length();
+
+        int pos = 0;
+        int line = 1;
+        int column = 0;
+
+        if (lastSource != null) {
+            int prefix = 0;
+            int maxLength = Math.min(source.length(), lastSource.length());
+            while (prefix < maxLength && source.charAt(prefix) == lastSource.charAt(prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < maxLength - prefix && source.charAt(source.length() - 1 - suffix) ==
+                                                  lastSource.charAt(lastSource.length() - 1 - suffix)) {
+                suffix++;
+            }
+            delta = source.length() - lastSource.length();
+            suffixStart = source.length() - suffix;
+
+            /* A segment is unchanged if all the text looked at while scanning it is. */
+            while (oldIndex < lastSegments.size() && lastSegments.get(oldIndex).lookahead < prefix) {
+                segments.add(lastSegments.get(oldIndex++));
+            }
+            if (!segments.isEmpty()) {
+                Segment last = segments.get(segments.size() - 1);
+                line = last.line;
+                column = last.column;
+                for (pos = last.start; pos <= last.end; pos++) {
+                    if (source.charAt(pos) == '\n') {
+                        line++;
+                        column = 0;
+                    } else {
+                        column++;
+                    }
+                }
+            }
+        }
+
+        int segmentStart = pos;
+        int segmentLine = line;
+        int segmentColumn = column;
+        int lookahead = pos;
+        while (pos < source.length()) {
+            char c = source.charAt(pos);
+            if (c == '"') {
+                int stringEnd = scanString(source, pos);
+                lookahead = Math.max(lookahead, stringEnd);
+                if (stringEnd < source.length() && source.charAt(stringEnd) == '"') {
+                    for (; pos <= stringEnd; pos++) {
+                        if (source.charAt(pos) == '\n') {
+                            line++;
+                            column = 0;
+                        } else {
+                            column++;
+                        }
+                    }
+                    continue;
+                }
+            }
+
+            pos++;
+            if (c == '\n') {
+                line++;
+                column = 0;
+            } else {
+                column++;
+            }
+            if (!isDelimiter(c)) {
+                continue;
+            }
+
+            segments.add(parseSegment(source, segmentStart, pos - 1, Math.max(lookahead, pos - 1),
+                    segmentLine, segmentColumn));
+            segmentStart = pos;
+            segmentLine = line;
+            segmentColumn = column;
+            lookahead = pos;
+
+            if (pos >= suffixStart) {
+                /* The rest of the source is the same as the one starting at this offset in the last source. */
+                int oldStart = pos - delta;
+                while (oldIndex < lastSegments.size() && lastSegments.get(oldIndex).start < oldStart) {
+                    oldIndex++;
+                }
+                if (oldIndex < lastSegments.size() && lastSegments.get(oldIndex).start == oldStart) {
+                    reuseSegments(segments, oldIndex, line, column, delta);
+                    return segments;
+                }
+            }
+        }
+        segments.add(parseSegment(source, segmentStart, source.length(), Math.max(lookahead, source.length()),
+                segmentLine, segmentColumn));
+
+        return segments;
+    }
+
+    /**
+     * Moves the segments of the last source starting from the given one to the specified position.
+     */
+    private void reuseSegments(List<Segment> segments, int fromIndex, int line, int column, int delta) {
+        Segment first = lastSegments.get(fromIndex);
+        int lineShift = line - first.line;
+        int columnShift = column - first.column;
+        for (Segment segment : lastSegments.subList(fromIndex, lastSegments.size())) {
+            /* Only the segments on the same line as the first one have their columns moved. */
+            segments.add(segment.shift(lineShift, (segment.line == first.line) ? columnShift : 0, delta));
+        }
+    }
+
+    private Segment parseSegment(String source, int start, int end, int lookahead, int line,
+                                 int column) throws SyntaxErrorException {
+        if (isBlank(source, start, end)) {
+            return new Segment(start, end, lookahead, line, column, null, Collections.emptyList());
+        }
+        try {
+            StmtNode stmt = segmentParser.parse(source.substring(start, end)).getStmts().get(0);
+            shiftNode(stmt, line - 1, column, start);
+            return new Segment(start, end, lookahead, line, column, stmt, Collections.emptyList());
+        } catch (SyntaxErrorException e) {
+            if (e.getDiagnostics().isEmpty()) {
+                throw e;
+            }
+            return new Segment(start, end, lookahead, line, column, null, e.getDiagnostics());
+        }
+    }
+
+    private static void shiftNode(Node node, int lineShift, int columnShift, int offsetShift) {
+        if (node == null) {
+            return;
+        }
+        if (node.getLocation() != null) {
+            node.setLocation(ShiftedLocation.shift(node.getLocation(), lineShift, columnShift, offsetShift));
+        }
+        for (Node child : node.getChildren()) {
+            shiftNode(child, lineShift, columnShift, offsetShift);
+        }
+    }
+
+    /**
+     * Mimics the lexer matching a {@link CalcLexer#STRING} literal.
+     *
+     * @return the offset of the closing quote, or, if the quote at the given offset doesn't start a string, in which
+     * case the lexer takes it for an invalid char, the offset of the char that breaks the string
+     */
+    private static int scanString(String source, int start) {
+        int pos = start + 1;
+        for (; pos < source.length(); pos++) {
+            char c = source.charAt(pos);
+            if (c == '"' || c == '\r' || c == '\n') {
+                break;
+            }
+            if (c == '\\') {
+                if (++pos >= source.length() || "\r\n\\\"rnt".indexOf(source.charAt(pos)) < 0) {
+                    break;
+                }
+            }
+        }
+        return pos;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == '\r' || c == '\n' || c == ';';
+    }
+
+    private static boolean isBlank(String source, int start, int end) {
+        for (int pos = start; pos < end; pos++) {
+            char c = source.charAt(pos);
+            if (c != ' ' && c != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A piece of the source between two delimiters, along with either the statement parsed from it, or the syntax
+     * errors found in it. The locations of the diagnostics are relative to the start of the segment.
+     * <p>
+     * Scanning a segment may look past its end for the closing quote of an unterminated string, up to the {@code
+     * lookahead} offset, so the segment depends on the text up to there.
+     */
+    private static class Segment {
+        final int start;
+        final int end;
+        final int lookahead;
+        final int line;
+        final int column;
+        final StmtNode stmt;
+        final List<Diagnostic> diagnostics;
+
+        Segment(int start, int end, int lookahead, int line, int column, StmtNode stmt,
+                List<Diagnostic> diagnostics) {
+            this.start = start;
+            this.end = end;
+            this.lookahead = lookahead;
+            this.line = line;
+            this.column = column;
+            this.stmt = stmt;
+            this.diagnostics = diagnostics;
+        }
+
+        Segment shift(int lineShift, int columnShift, int offsetShift) {
+            shiftNode(stmt, lineShift, columnShift, offsetShift);
+            return new Segment(start + offsetShift, end + offsetShift, lookahead + offsetShift, line + lineShift,
+                    column + columnShift, stmt, diagnostics);
+        }
+
+        Location toAbsolute(Location location) {
+            return ShiftedLocation.shift(location, line - 1, column, start);
+        }
+    }
+}
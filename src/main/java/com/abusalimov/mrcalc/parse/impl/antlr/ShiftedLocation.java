@@ -0,0 +1,83 @@
+package com.abusalimov.mrcalc.parse.impl.antlr;
+
+import com.abusalimov.mrcalc.location.Location;
+
+/**
+ * The {@link Location} of a piece of code moved within the source, relative to the location of the code where it has
+ * been parsed.
+ * <p>
+ * The column is only shifted on the first line of the piece, since the rest of its lines start at the same column
+ * regardless of where the piece is. The unknown positions stay unknown.
+ *
+ * @author Eldar Abusalimov
+ */
+public class ShiftedLocation implements Location {
+    private final Location base;
+    private final int lineShift;
+    private final int columnShift;
+    private final int offsetShift;
+
+    /**
+     * Shifts the given location, unless it is shifted already, in which case the shifts are combined.
+     *
+     * @param location    the location to shift
+     * @param lineShift   the number of lines to add
+     * @param columnShift the number of columns to add, if the location is on the first line of the piece
+     * @param offsetShift the number of chars to add to the offsets
+     * @return the shifted location, or {@code null} if the location is {@code null}
+     */
+    public static Location shift(Location location, int lineShift, int columnShift, int offsetShift) {
+        if (location == null) {
+            return null;
+        }
+        if (location instanceof ShiftedLocation) {
+            ShiftedLocation shifted = (ShiftedLocation) location;
+            if (shifted.base.getLineNumber() != 1) {
+                columnShift = 0;
+            }
+            return new ShiftedLocation(shifted.base, shifted.lineShift + lineShift,
+                    shifted.columnShift + columnShift, shifted.offsetShift + offsetShift);
+        }
+        return new ShiftedLocation(location, lineShift, columnShift, offsetShift);
+    }
+
+    private ShiftedLocation(Location base, int lineShift, int columnShift, int offsetShift) {
+        this.base = base;
+        this.lineShift = lineShift;
+        this.columnShift = columnShift;
+        this.offsetShift = offsetShift;
+    }
+
+    public Location getBase() {
+        return base;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return shiftKnown(base.getLineNumber(), lineShift);
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return shiftKnown(base.getColumnNumber(), (base.getLineNumber() == 1) ? columnShift : 0);
+    }
+
+    @Override
+    public int getOffset() {
+        return shiftKnown(base.getOffset(), offsetShift);
+    }
+
+    @Override
+    public int getStartOffset() {
+        return shiftKnown(base.getStartOffset(), offsetShift);
+    }
+
+    @Override
+    public int getEndOffset() {
+        return shiftKnown(base.getEndOffset(), offsetShift);
+    }
+
+    private static int shiftKnown(int position, int shift) {
+        return (position >= 0) ? position + shift : position;
+    }
+}
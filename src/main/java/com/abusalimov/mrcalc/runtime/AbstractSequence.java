@@ -4,34 +4,70 @@ import java.util.AbstractList;
 
 /**
  * Implements pretty-printing {@link #toString()} method.
+ * <p>
+ * The {@link #toString()}, {@link #equals(Object)} and {@link #hashCode()} methods of {@link Sequence.OfLong} and
+ * {@link Sequence.OfDouble} sequences go through the primitive accessors, so that no elements get boxed.
  *
  * @author Eldar Abusalimov
  */
-public abstract class AbstractSequence<E> extends AbstractList<E> {
+public abstract class AbstractSequence<E> extends AbstractList<E> implements Sequence<E> {
     protected static final int MAX_TO_STRING_ELEMENTS = 20;
     protected static final int TO_STRING_FOLD_BOUNDARY_ELEMENTS = Math.max(1, (MAX_TO_STRING_ELEMENTS - 5) / 2);
 
+    /**
+     * Saturates the {@link #longSize()} to fit into an int, as required by the {@link java.util.Collection#size()}
+     * contract.
+     *
+     * @param longSize the actual number of elements
+     * @return the number of elements, or {@link Integer#MAX_VALUE} for larger sequences
+     */
+    protected static int saturatedSize(long longSize) {
+        return (int) Math.min(longSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Checks that the index is within the bounds of a sequence of the given length.
+     *
+     * @param index  the index to check
+     * @param length the number of elements
+     * @throws IndexOutOfBoundsException if the index is out of range ({@code index < 0 || index >= length})
+     */
+    protected static void checkIndex(long index, long length) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + length);
+        }
+    }
+
+    /**
+     * Checks that the range of indices is within the bounds of a sequence of the given length.
+     *
+     * @param fromIndex the index of the first element of the range
+     * @param count     the number of elements in the range
+     * @param length    the number of elements of the sequence
+     * @throws IndexOutOfBoundsException if the range is out of the bounds
+     */
+    protected static void checkRange(long fromIndex, long count, long length) {
+        if (fromIndex < 0 || count < 0 || fromIndex > length - count) {
+            throw new IndexOutOfBoundsException("From index: " + fromIndex + ", Count: " + count +
+                                                ", Size: " + length);
+        }
+    }
+
     @Override
     public String toString() {
-        int length = size();
-        if (length <= MAX_TO_STRING_ELEMENTS) {
-            return super.toString();
-        }
+        long length = longSize();
+        boolean fold = (length > MAX_TO_STRING_ELEMENTS);
 
         StringBuilder sb = new StringBuilder().append('[');
 
-        for (int i = 0; i < length; i++) {
-            Object o;
-
-            if (TO_STRING_FOLD_BOUNDARY_ELEMENTS <= i && i < length - TO_STRING_FOLD_BOUNDARY_ELEMENTS) {
+        for (long i = 0; i < length; i++) {
+            if (fold && TO_STRING_FOLD_BOUNDARY_ELEMENTS <= i && i < length - TO_STRING_FOLD_BOUNDARY_ELEMENTS) {
                 /* Skip the mid elements. */
                 i = length - TO_STRING_FOLD_BOUNDARY_ELEMENTS;
-                o = String.format("(%d more elements)...", length - TO_STRING_FOLD_BOUNDARY_ELEMENTS * 2);
+                sb.append(String.format("(%d more elements)...", length - TO_STRING_FOLD_BOUNDARY_ELEMENTS * 2));
             } else {
-                E e = get(i);
-                o = (e == this) ? "(this Collection)" : e;
+                appendElement(sb, i);
             }
-            sb.append(o);
             if (i < length - 1) {
                 sb.append(',').append(' ');
             }
@@ -39,4 +75,85 @@ public abstract class AbstractSequence<E> extends AbstractList<E> {
 
         return sb.append(']').toString();
     }
+
+    /**
+     * Appends a string representation of the element at the specified index to the string builder.
+     *
+     * @param sb    the string builder to append to
+     * @param index the index of the element
+     */
+    protected void appendElement(StringBuilder sb, long index) {
+        if (this instanceof Sequence.OfLong) {
+            sb.append(((Sequence.OfLong) this).getAsLong(index));
+        } else if (this instanceof Sequence.OfDouble) {
+            sb.append(((Sequence.OfDouble) this).getAsDouble(index));
+        } else {
+            E e = get(index);
+            sb.append((e == this) ? "(this Collection)" : e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+
+        if (this instanceof Sequence.OfLong && o instanceof Sequence.OfLong) {
+            Sequence.OfLong a = (Sequence.OfLong) this;
+            Sequence.OfLong b = (Sequence.OfLong) o;
+            long length = a.longSize();
+            if (length != b.longSize()) {
+                return false;
+            }
+            for (long i = 0; i < length; i++) {
+                if (a.getAsLong(i) != b.getAsLong(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        if (this instanceof Sequence.OfDouble && o instanceof Sequence.OfDouble) {
+            Sequence.OfDouble a = (Sequence.OfDouble) this;
+            Sequence.OfDouble b = (Sequence.OfDouble) o;
+            long length = a.longSize();
+            if (length != b.longSize()) {
+                return false;
+            }
+            for (long i = 0; i < length; i++) {
+                /* The same as Double.equals() does. */
+                if (Double.doubleToLongBits(a.getAsDouble(i)) != Double.doubleToLongBits(b.getAsDouble(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        /* Must be consistent with the List.hashCode() computed over the boxed elements. */
+        if (this instanceof Sequence.OfLong) {
+            Sequence.OfLong a = (Sequence.OfLong) this;
+            int hashCode = 1;
+            for (long i = 0, length = a.longSize(); i < length; i++) {
+                hashCode = 31 * hashCode + Long.hashCode(a.getAsLong(i));
+            }
+            return hashCode;
+        }
+
+        if (this instanceof Sequence.OfDouble) {
+            Sequence.OfDouble a = (Sequence.OfDouble) this;
+            int hashCode = 1;
+            for (long i = 0, length = a.longSize(); i < length; i++) {
+                hashCode = 31 * hashCode + Double.hashCode(a.getAsDouble(i));
+            }
+            return hashCode;
+        }
+
+        return super.hashCode();
+    }
 }
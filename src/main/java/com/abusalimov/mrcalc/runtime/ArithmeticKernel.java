@@ -0,0 +1,508 @@
+package com.abusalimov.mrcalc.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * An element-wise arithmetic function of a single argument, which is evaluated over whole arrays of primitives at
+ * once instead of element by element.
+ * <p>
+ * A kernel is described by a program in the postfix notation: space-separated tokens, where {@code x} pushes the
+ * argument, a number pushes a constant, {@code +}, {@code -}, {@code *} and {@code /} pop two operands and push the
+ * result of the operation, and {@code neg} negates the topmost operand. For example, {@code x -> 2*x + 1} is described
+ * by {@code "2 x * 1 +"}.
+ * <p>
+ * The kernel runs the program one instruction at a time over a block of elements small enough to stay in the L1
+ * cache, so that each instruction is a trivial loop over primitive arrays with no calls and no boxing in it. The JIT
+ * compiler unrolls such loops and turns them into SIMD instructions, where the hardware supports it. The results are
+ * exactly the same as if the function was applied to each element separately, since each element still goes through
+ * the same operations in the same order.
+ *
+ * @author Eldar Abusalimov
+ */
+public abstract class ArithmeticKernel {
+    /**
+     * The number of elements processed by each instruction at once.
+     */
+    public static final int BLOCK_SIZE = 1 << 8;
+
+    private static final int MAX_CACHE_SIZE = 1 << 10;
+
+    protected static final byte LOAD = 0;
+    protected static final byte CONST = 1;
+    protected static final byte ADD = 2;
+    protected static final byte SUB = 3;
+    protected static final byte MUL = 4;
+    protected static final byte DIV = 5;
+    protected static final byte NEG = 6;
+
+    private final String program;
+    protected final byte[] opcodes;
+    protected final int maxDepth;
+
+    /**
+     * Parses the given program.
+     *
+     * @param program   the program in the postfix notation
+     * @param constants the list to add the constant tokens to, one per instruction ({@code null} for instructions
+     *                  other than {@link #CONST})
+     * @throws IllegalArgumentException if the program is malformed
+     */
+    protected ArithmeticKernel(String program, List<String> constants) {
+        this.program = program;
+
+        String[] tokens = program.trim().split("\\s+");
+        opcodes = new byte[tokens.length];
+        int depth = 0;
+        int maxDepth = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            String token = tokens[i];
+            constants.add(null);
+            switch (token) {
+                case "x":
+                    opcodes[i] = LOAD;
+                    break;
+                case "+":
+                    opcodes[i] = ADD;
+                    break;
+                case "-":
+                    opcodes[i] = SUB;
+                    break;
+                case "*":
+                    opcodes[i] = MUL;
+                    break;
+                case "/":
+                    opcodes[i] = DIV;
+                    break;
+                case "neg":
+                    opcodes[i] = NEG;
+                    break;
+                default:
+                    opcodes[i] = CONST;
+                    constants.set(i, token);
+            }
+            depth += getStackEffect(opcodes[i]);
+            if (depth < 1) {
+                throw new IllegalArgumentException("Stack underflow in the kernel program: " + program);
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        if (depth != 1) {
+            throw new IllegalArgumentException("The kernel program must leave a single result: " + program);
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    private static int getStackEffect(byte opcode) {
+        switch (opcode) {
+            case LOAD:
+            case CONST:
+                return 1;
+            case NEG:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns a cached kernel for the given program, or creates a new one.
+     */
+    private static <K extends ArithmeticKernel> K forProgram(Map<String, K> cache, String program,
+                                                             Function<String, K> factory) {
+        K kernel = cache.get(program);
+        if (kernel == null) {
+            if (cache.size() >= MAX_CACHE_SIZE) {
+                cache.clear();
+            }
+            kernel = cache.computeIfAbsent(program, factory);
+        }
+        return kernel;
+    }
+
+    /**
+     * Returns the program describing this kernel.
+     *
+     * @return the program in the postfix notation
+     */
+    public String getProgram() {
+        return program;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + program + "}";
+    }
+
+    /**
+     * A kernel operating on primitive longs using the wrapping long arithmetic.
+     */
+    public static final class OfLong extends ArithmeticKernel {
+        private static final Map<String, OfLong> CACHE = new ConcurrentHashMap<>();
+
+        private final long[] constants;
+
+        private OfLong(String program, List<String> constantTokens) {
+            super(program, constantTokens);
+            constants = new long[opcodes.length];
+            for (int i = 0; i < opcodes.length; i++) {
+                if (opcodes[i] == CONST) {
+                    constants[i] = Long.parseLong(constantTokens.get(i));
+                }
+            }
+        }
+
+        /**
+         * Returns a kernel for the given program, which constants are integers.
+         *
+         * @param program the program in the postfix notation
+         * @return the kernel
+         * @throws IllegalArgumentException if the program is malformed
+         */
+        public static OfLong forProgram(String program) {
+            return ArithmeticKernel.forProgram(CACHE, program, p -> new OfLong(p, new ArrayList<>()));
+        }
+
+        /**
+         * Applies the function to each element of the source array range, and stores the results into the
+         * destination array range, which may be the same as the source one.
+         *
+         * @param src    the source array
+         * @param srcPos the position of the first element in the source array
+         * @param dst    the destination array
+         * @param dstPos the position of the first element in the destination array
+         * @param length the number of elements to process
+         * @throws ArithmeticException in case of an integer division by zero
+         */
+        public void apply(long[] src, int srcPos, long[] dst, int dstPos, int length) {
+            int blockSize = Math.min(length, BLOCK_SIZE);
+            long[][] buffers = new long[maxDepth][blockSize];
+            long[][] arrays = new long[maxDepth][];
+            int[] offsets = new int[maxDepth];
+            long[] scalars = new long[maxDepth];
+
+            for (int start = 0; start < length; start += BLOCK_SIZE) {
+                int n = Math.min(BLOCK_SIZE, length - start);
+                int last = opcodes.length - 1;
+                int sp = 0;
+                for (int i = 0; i <= last; i++) {
+                    byte opcode = opcodes[i];
+                    if (opcode == LOAD) {
+                        arrays[sp] = src;
+                        offsets[sp++] = srcPos + start;
+                        continue;
+                    }
+                    if (opcode == CONST) {
+                        arrays[sp] = null;
+                        scalars[sp++] = constants[i];
+                        continue;
+                    }
+
+                    int a = (opcode == NEG) ? sp - 1 : sp - 2;
+                    long[] r = (i == last) ? dst : buffers[a];
+                    int rOff = (i == last) ? dstPos + start : 0;
+                    if (opcode == NEG) {
+                        if (arrays[a] == null) {
+                            scalars[a] = -scalars[a];
+                            continue;
+                        }
+                        neg(arrays[a], offsets[a], r, rOff, n);
+                    } else {
+                        int b = --sp;
+                        if (arrays[a] == null && arrays[b] == null) {
+                            scalars[a] = apply(opcode, scalars[a], scalars[b]);
+                            continue;
+                        } else if (arrays[b] == null) {
+                            applyVS(opcode, arrays[a], offsets[a], scalars[b], r, rOff, n);
+                        } else if (arrays[a] == null) {
+                            applySV(opcode, scalars[a], arrays[b], offsets[b], r, rOff, n);
+                        } else {
+                            applyVV(opcode, arrays[a], offsets[a], arrays[b], offsets[b], r, rOff, n);
+                        }
+                    }
+                    arrays[a] = r;
+                    offsets[a] = rOff;
+                }
+
+                if (arrays[0] == null) {
+                    Arrays.fill(dst, dstPos + start, dstPos + start + n, scalars[0]);
+                } else if (arrays[0] != dst || offsets[0] != dstPos + start) {
+                    System.arraycopy(arrays[0], offsets[0], dst, dstPos + start, n);
+                }
+            }
+        }
+
+        private static long apply(byte opcode, long a, long b) {
+            switch (opcode) {
+                case ADD:
+                    return a + b;
+                case SUB:
+                    return a - b;
+                case MUL:
+                    return a * b;
+                default:
+                    return Runtime.Util.divLong(a, b);
+            }
+        }
+
+        private static void neg(long[] a, int aOff, long[] r, int rOff, int n) {
+            for (int k = 0; k < n; k++) {
+                r[rOff + k] = -a[aOff + k];
+            }
+        }
+
+        private static void applyVV(byte opcode, long[] a, int aOff, long[] b, int bOff, long[] r, int rOff, int n) {
+            switch (opcode) {
+                case ADD:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] + b[bOff + k];
+                    }
+                    break;
+                case SUB:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] - b[bOff + k];
+                    }
+                    break;
+                case MUL:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] * b[bOff + k];
+                    }
+                    break;
+                default:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = Runtime.Util.divLong(a[aOff + k], b[bOff + k]);
+                    }
+            }
+        }
+
+        private static void applyVS(byte opcode, long[] a, int aOff, long b, long[] r, int rOff, int n) {
+            switch (opcode) {
+                case ADD:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] + b;
+                    }
+                    break;
+                case SUB:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] - b;
+                    }
+                    break;
+                case MUL:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] * b;
+                    }
+                    break;
+                default:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = Runtime.Util.divLong(a[aOff + k], b);
+                    }
+            }
+        }
+
+        private static void applySV(byte opcode, long a, long[] b, int bOff, long[] r, int rOff, int n) {
+            switch (opcode) {
+                case ADD:
+                case MUL:
+                    applyVS(opcode, b, bOff, a, r, rOff, n);
+                    break;
+                case SUB:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a - b[bOff + k];
+                    }
+                    break;
+                default:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = Runtime.Util.divLong(a, b[bOff + k]);
+                    }
+            }
+        }
+    }
+
+    /**
+     * A kernel operating on primitive doubles.
+     */
+    public static final class OfDouble extends ArithmeticKernel {
+        private static final Map<String, OfDouble> CACHE = new ConcurrentHashMap<>();
+
+        private final double[] constants;
+
+        private OfDouble(String program, List<String> constantTokens) {
+            super(program, constantTokens);
+            constants = new double[opcodes.length];
+            for (int i = 0; i < opcodes.length; i++) {
+                if (opcodes[i] == CONST) {
+                    constants[i] = Double.parseDouble(constantTokens.get(i));
+                }
+            }
+        }
+
+        /**
+         * Returns a kernel for the given program, which constants are floating-point numbers.
+         *
+         * @param program the program in the postfix notation
+         * @return the kernel
+         * @throws IllegalArgumentException if the program is malformed
+         */
+        public static OfDouble forProgram(String program) {
+            return ArithmeticKernel.forProgram(CACHE, program, p -> new OfDouble(p, new ArrayList<>()));
+        }
+
+        /**
+         * Applies the function to each element of the source array range, and stores the results into the
+         * destination array range, which may be the same as the source one.
+         *
+         * @param src    the source array
+         * @param srcPos the position of the first element in the source array
+         * @param dst    the destination array
+         * @param dstPos the position of the first element in the destination array
+         * @param length the number of elements to process
+         */
+        public void apply(double[] src, int srcPos, double[] dst, int dstPos, int length) {
+            int blockSize = Math.min(length, BLOCK_SIZE);
+            double[][] buffers = new double[maxDepth][blockSize];
+            double[][] arrays = new double[maxDepth][];
+            int[] offsets = new int[maxDepth];
+            double[] scalars = new double[maxDepth];
+
+            for (int start = 0; start < length; start += BLOCK_SIZE) {
+                int n = Math.min(BLOCK_SIZE, length - start);
+                int last = opcodes.length - 1;
+                int sp = 0;
+                for (int i = 0; i <= last; i++) {
+                    byte opcode = opcodes[i];
+                    if (opcode == LOAD) {
+                        arrays[sp] = src;
+                        offsets[sp++] = srcPos + start;
+                        continue;
+                    }
+                    if (opcode == CONST) {
+                        arrays[sp] = null;
+                        scalars[sp++] = constants[i];
+                        continue;
+                    }
+
+                    int a = (opcode == NEG) ? sp - 1 : sp - 2;
+                    double[] r = (i == last) ? dst : buffers[a];
+                    int rOff = (i == last) ? dstPos + start : 0;
+                    if (opcode == NEG) {
+                        if (arrays[a] == null) {
+                            scalars[a] = -scalars[a];
+                            continue;
+                        }
+                        neg(arrays[a], offsets[a], r, rOff, n);
+                    } else {
+                        int b = --sp;
+                        if (arrays[a] == null && arrays[b] == null) {
+                            scalars[a] = apply(opcode, scalars[a], scalars[b]);
+                            continue;
+                        } else if (arrays[b] == null) {
+                            applyVS(opcode, arrays[a], offsets[a], scalars[b], r, rOff, n);
+                        } else if (arrays[a] == null) {
+                            applySV(opcode, scalars[a], arrays[b], offsets[b], r, rOff, n);
+                        } else {
+                            applyVV(opcode, arrays[a], offsets[a], arrays[b], offsets[b], r, rOff, n);
+                        }
+                    }
+                    arrays[a] = r;
+                    offsets[a] = rOff;
+                }
+
+                if (arrays[0] == null) {
+                    Arrays.fill(dst, dstPos + start, dstPos + start + n, scalars[0]);
+                } else if (arrays[0] != dst || offsets[0] != dstPos + start) {
+                    System.arraycopy(arrays[0], offsets[0], dst, dstPos + start, n);
+                }
+            }
+        }
+
+        private static double apply(byte opcode, double a, double b) {
+            switch (opcode) {
+                case ADD:
+                    return a + b;
+                case SUB:
+                    return a - b;
+                case MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        private static void neg(double[] a, int aOff, double[] r, int rOff, int n) {
+            for (int k = 0; k < n; k++) {
+                r[rOff + k] = -a[aOff + k];
+            }
+        }
+
+        private static void applyVV(byte opcode, double[] a, int aOff, double[] b, int bOff,
+                                    double[] r, int rOff, int n) {
+            switch (opcode) {
+                case ADD:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] + b[bOff + k];
+                    }
+                    break;
+                case SUB:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] - b[bOff + k];
+                    }
+                    break;
+                case MUL:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] * b[bOff + k];
+                    }
+                    break;
+                default:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] / b[bOff + k];
+                    }
+            }
+        }
+
+        private static void applyVS(byte opcode, double[] a, int aOff, double b, double[] r, int rOff, int n) {
+            switch (opcode) {
+                case ADD:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] + b;
+                    }
+                    break;
+                case SUB:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] - b;
+                    }
+                    break;
+                case MUL:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] * b;
+                    }
+                    break;
+                default:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a[aOff + k] / b;
+                    }
+            }
+        }
+
+        private static void applySV(byte opcode, double a, double[] b, int bOff, double[] r, int rOff, int n) {
+            switch (opcode) {
+                case ADD:
+                case MUL:
+                    applyVS(opcode, b, bOff, a, r, rOff, n);
+                    break;
+                case SUB:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a - b[bOff + k];
+                    }
+                    break;
+                default:
+                    for (int k = 0; k < n; k++) {
+                        r[rOff + k] = a / b[bOff + k];
+                    }
+            }
+        }
+    }
+}
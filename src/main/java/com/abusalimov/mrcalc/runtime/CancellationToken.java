@@ -0,0 +1,78 @@
+package com.abusalimov.mrcalc.runtime;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * A flag used to cooperatively cancel a running computation, optionally combined with a deadline.
+ * <p>
+ * Runtimes {@link #checkCancelled() check} the token at the safe points of a computation, like before processing a
+ * chunk of elements or splitting a sequence, and every so many elements in between. They bail out with a {@link
+ * CancellationException} once the token is cancelled or the deadline passes. Unlike interrupting or shutting down the
+ * worker threads, this leaves the threads alive and ready to run the next computation.
+ *
+ * @author Eldar Abusalimov
+ */
+public class CancellationToken {
+    /**
+     * The token which is never cancelled.
+     */
+    public static final CancellationToken NONE = new CancellationToken() {
+        @Override
+        public void cancel() {
+            throw new UnsupportedOperationException("Can't cancel the NONE token");
+        }
+
+        @Override
+        public void setDeadline(long timeoutNanos) {
+            throw new UnsupportedOperationException("Can't set a deadline for the NONE token");
+        }
+    };
+
+    private volatile boolean cancelled;
+    private volatile boolean hasDeadline;
+    private volatile long deadline;
+
+    /**
+     * Requests the cancellation. The computations checking this token will stop at the next safe point.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Sets the deadline, after which the token is considered cancelled, until the deadline is {@link #clearDeadline()
+     * cleared} or reset.
+     *
+     * @param timeoutNanos the time left until the deadline, in nanoseconds
+     */
+    public void setDeadline(long timeoutNanos) {
+        deadline = System.nanoTime() + timeoutNanos;
+        hasDeadline = true;
+    }
+
+    /**
+     * Removes the deadline, if any.
+     */
+    public void clearDeadline() {
+        hasDeadline = false;
+    }
+
+    /**
+     * Checks whether the cancellation has been requested or the deadline has passed. Without a deadline, this costs
+     * a read of a volatile field, and a call to {@link System#nanoTime()} otherwise.
+     *
+     * @throws CancellationException if the token is cancelled or the deadline has passed
+     */
+    public void checkCancelled() throws CancellationException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (hasDeadline && System.nanoTime() - deadline > 0) {
+            throw new CancellationException("Deadline exceeded");
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.abusalimov.mrcalc.runtime;
+
+import com.abusalimov.mrcalc.location.Location;
+
+/**
+ * Wraps an error raised by a lambda of a lazy sequence, which is deferred until the sequence is traversed, possibly by
+ * another statement than the one that has produced the sequence. The error is reported at the {@link
+ * Runtime#setOrigin(Object, Location) origin} of the sequence then.
+ *
+ * @author Eldar Abusalimov
+ */
+public class DeferredErrorException extends RuntimeException {
+    private final Location location;
+
+    /**
+     * Creates a new instance wrapping the given error.
+     *
+     * @param location the location of the statement that has produced the sequence
+     * @param cause    the error raised by the lambda
+     */
+    public DeferredErrorException(Location location, RuntimeException cause) {
+        super(cause);
+        this.location = location;
+    }
+
+    public Location getLocation() {
+        return location;
+    }
+
+    @Override
+    public synchronized RuntimeException getCause() {
+        return (RuntimeException) super.getCause();
+    }
+}
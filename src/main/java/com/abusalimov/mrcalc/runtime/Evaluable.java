@@ -18,4 +18,20 @@ public interface Evaluable<T> {
      * @return the result of evaluating the expression
      */
     T eval(Runtime runtime, Object... args);
+
+    /**
+     * Evaluates the expression reading the arguments straight from the given slots of a frame, and stores the result
+     * into the frame.
+     * <p>
+     * The default implementation boxes the arguments and the result, which the backends avoid by reading and writing
+     * the primitive slots directly.
+     *
+     * @param runtime    the non-null Runtime instance
+     * @param frame      the frame holding the arguments
+     * @param argSlots   the slots of the arguments in the order of the parameters
+     * @param resultSlot the slot to store the result into
+     */
+    default void evalInto(Runtime runtime, GlobalFrame frame, int[] argSlots, int resultSlot) {
+        frame.set(resultSlot, eval(runtime, frame.getAll(argSlots)));
+    }
 }
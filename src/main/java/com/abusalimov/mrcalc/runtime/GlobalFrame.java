@@ -0,0 +1,192 @@
+package com.abusalimov.mrcalc.runtime;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+/**
+ * Holds the values of the global variables of a program, each one in a fixed slot assigned by the compiler.
+ * <p>
+ * The values of primitive types are stored in arrays of primitives, so that neither storing the result of a statement
+ * nor passing it to another one involves boxing. A slot is either unbound, or holds a long, a double, or an object,
+ * depending on the value last stored into it.
+ * <p>
+ * An object stored in the frame may be {@link #soften(int) softened}, so that the garbage collector is free to reclaim
+ * it in case of memory pressure, after which the slot is no longer bound.
+ * <p>
+ * The frame is not synchronized, yet distinct slots can be accessed concurrently, given the frame has
+ * {@link #ensureCapacity(int) grown} large enough beforehand.
+ *
+ * @author Eldar Abusalimov
+ */
+public final class GlobalFrame {
+    private static final byte UNBOUND = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte OBJECT = 3;
+    private static final byte SOFT = 4;
+
+    private byte[] kinds = new byte[0];
+    private long[] longs = new long[0];
+    private double[] doubles = new double[0];
+    private Object[] objects = new Object[0];
+
+    /**
+     * Grows the frame, if needed, to hold the given number of slots.
+     *
+     * @param size the number of slots
+     */
+    public void ensureCapacity(int size) {
+        if (size > kinds.length) {
+            int newSize = Math.max(size, kinds.length * 2);
+            kinds = Arrays.copyOf(kinds, newSize);
+            longs = Arrays.copyOf(longs, newSize);
+            doubles = Arrays.copyOf(doubles, newSize);
+            objects = Arrays.copyOf(objects, newSize);
+        }
+    }
+
+    public int getCapacity() {
+        return kinds.length;
+    }
+
+    /**
+     * Tells whether any value is stored in the slot.
+     *
+     * @param slot the slot
+     * @return whether the slot is bound
+     */
+    public boolean isBound(int slot) {
+        if (slot >= kinds.length) {
+            return false;
+        }
+        return (kinds[slot] == SOFT) ? getObject(slot) != null : kinds[slot] != UNBOUND;
+    }
+
+    /**
+     * Tells whether the slot holds a {@link #soften(int) softened} object, which may be already reclaimed.
+     *
+     * @param slot the slot
+     * @return whether the slot is soft
+     */
+    public boolean isSoft(int slot) {
+        return slot < kinds.length && kinds[slot] == SOFT;
+    }
+
+    /**
+     * Makes the frame only hold the object stored in the slot softly, so that the garbage collector may reclaim it.
+     *
+     * @param slot the slot
+     * @return whether the slot has been softened, which is false unless it holds an object
+     */
+    public boolean soften(int slot) {
+        if (kinds[slot] != OBJECT || objects[slot] == null) {
+            return false;
+        }
+        objects[slot] = new SoftReference<>(objects[slot]);
+        kinds[slot] = SOFT;
+        return true;
+    }
+
+    /**
+     * Makes the frame hold the object of a {@link #soften(int) softened} slot strongly again, unless it has been
+     * reclaimed already.
+     *
+     * @param slot the slot
+     * @return the object, or {@code null} if it has been reclaimed
+     */
+    public Object harden(int slot) {
+        Object value = getObject(slot);
+        if (value != null && kinds[slot] == SOFT) {
+            setObject(slot, value);
+        }
+        return value;
+    }
+
+    /**
+     * Unbinds the slot, releasing the object stored in it, if any.
+     *
+     * @param slot the slot
+     */
+    public void clear(int slot) {
+        kinds[slot] = UNBOUND;
+        objects[slot] = null;
+    }
+
+    public long getLong(int slot) {
+        return longs[slot];
+    }
+
+    public void setLong(int slot, long value) {
+        longs[slot] = value;
+        objects[slot] = null;
+        kinds[slot] = LONG;
+    }
+
+    public double getDouble(int slot) {
+        return doubles[slot];
+    }
+
+    public void setDouble(int slot, double value) {
+        doubles[slot] = value;
+        objects[slot] = null;
+        kinds[slot] = DOUBLE;
+    }
+
+    public Object getObject(int slot) {
+        Object value = objects[slot];
+        /* Checking the value rather than the kind is safe against the slot being softened concurrently. */
+        return (value instanceof SoftReference) ? ((SoftReference<?>) value).get() : value;
+    }
+
+    public void setObject(int slot, Object value) {
+        objects[slot] = value;
+        kinds[slot] = OBJECT;
+    }
+
+    /**
+     * Returns the value of the slot, boxing a primitive.
+     *
+     * @param slot the slot
+     * @return the value, or {@code null} if the slot is unbound
+     */
+    public Object get(int slot) {
+        switch (kinds[slot]) {
+            case LONG:
+                return longs[slot];
+            case DOUBLE:
+                return doubles[slot];
+            default:
+                return getObject(slot);
+        }
+    }
+
+    /**
+     * Stores the value into the slot, unboxing a {@link Long} or a {@link Double}.
+     *
+     * @param slot  the slot
+     * @param value the non-null value
+     */
+    public void set(int slot, Object value) {
+        if (value instanceof Long) {
+            setLong(slot, (Long) value);
+        } else if (value instanceof Double) {
+            setDouble(slot, (Double) value);
+        } else {
+            setObject(slot, value);
+        }
+    }
+
+    /**
+     * Returns the values of the given slots, boxing the primitives.
+     *
+     * @param slots the slots
+     * @return the new array of the values
+     */
+    public Object[] getAll(int[] slots) {
+        Object[] values = new Object[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            values[i] = get(slots[i]);
+        }
+        return values;
+    }
+}
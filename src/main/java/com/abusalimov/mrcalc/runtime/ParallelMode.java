@@ -0,0 +1,48 @@
+package com.abusalimov.mrcalc.runtime;
+
+/**
+ * Tells a runtime whether to run an operation in parallel.
+ *
+ * @author Eldar Abusalimov
+ */
+public enum ParallelMode {
+    /**
+     * Always run sequentially.
+     */
+    SEQUENTIAL,
+    /**
+     * Always run in parallel, where possible.
+     */
+    PARALLEL,
+    /**
+     * Run in parallel only if the estimated amount of work outweighs the overhead of splitting it between threads.
+     */
+    ADAPTIVE;
+
+    /**
+     * The estimated amount of work, in simple arithmetic operations, that is worth running in parallel. Smaller
+     * operations are faster to run right in the calling thread than to fork and join the tasks.
+     */
+    public static final long PARALLEL_WORK_THRESHOLD = 1 << 15;
+
+    /**
+     * Decides whether to run an operation in parallel.
+     *
+     * @param size        the number of elements to process
+     * @param elementCost the estimated cost of processing a single element, see {@link
+     *                    Runtime#withCostHint(long)}
+     * @return true if the operation should run in parallel
+     */
+    public boolean isParallel(long size, long elementCost) {
+        switch (this) {
+            case SEQUENTIAL:
+                return false;
+            case PARALLEL:
+                return true;
+            default:
+                long cost = Math.max(elementCost, 1);
+                /* The same as size * cost >= PARALLEL_WORK_THRESHOLD, but without an overflow. */
+                return size >= (PARALLEL_WORK_THRESHOLD + cost - 1) / cost;
+        }
+    }
+}
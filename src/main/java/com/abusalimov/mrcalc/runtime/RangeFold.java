@@ -0,0 +1,51 @@
+package com.abusalimov.mrcalc.runtime;
+
+/**
+ * A fused {@code reduce(map(...map(range(a, b), ...), ...), neutral, lambda)} pipeline folding a contiguous chunk of
+ * a range of integers into an accumulator in a single counted loop, with the bodies of all the lambdas inlined.
+ * <p>
+ * Chunks are at most {@link #CHUNK_SIZE} long, so that the loop counter is an {@code int}, and the runtime gets a
+ * chance to check for cancellation and to split the range between two chunks.
+ *
+ * @author Eldar Abusalimov
+ * @see Runtime#reduceLongRange(long, long, long, OfLong, java.util.function.LongBinaryOperator)
+ * @see Runtime#reduceDoubleRange(long, long, double, OfDouble, java.util.function.DoubleBinaryOperator)
+ */
+public interface RangeFold {
+    /**
+     * The maximum number of range elements folded by a single call.
+     */
+    int CHUNK_SIZE = 1 << 12;
+
+    /**
+     * The fold accumulating primitive longs.
+     */
+    @FunctionalInterface
+    interface OfLong {
+        /**
+         * Folds the integers {@code start, start + 1, ..., start + count - 1} into the accumulator, in order.
+         *
+         * @param acc   the initial value of the accumulator
+         * @param start the first element of the chunk
+         * @param count the number of elements in the chunk
+         * @return the resulting value of the accumulator
+         */
+        long fold(long acc, long start, int count);
+    }
+
+    /**
+     * The fold accumulating primitive doubles.
+     */
+    @FunctionalInterface
+    interface OfDouble {
+        /**
+         * Folds the integers {@code start, start + 1, ..., start + count - 1} into the accumulator, in order.
+         *
+         * @param acc   the initial value of the accumulator
+         * @param start the first element of the chunk
+         * @param count the number of elements in the chunk
+         * @return the resulting value of the accumulator
+         */
+        double fold(double acc, long start, int count);
+    }
+}
@@ -1,5 +1,7 @@
 package com.abusalimov.mrcalc.runtime;
 
+import com.abusalimov.mrcalc.location.Location;
+
 import java.util.function.*;
 
 /**
@@ -12,6 +14,13 @@ import java.util.function.*;
  */
 @SuppressWarnings("unused")  // may be used through reflection / dynamically generated code
 public interface Runtime {
+    /**
+     * The maximum degree of a polynomial the {@link #mapLongToLongPolynomial(Sequence.OfLong, LongUnaryOperator, int)
+     * polynomial mappings} are known to compute. Mapping a polynomial sequence by one multiplies the degrees, and a
+     * higher degree sequence is summed up by visiting each element.
+     */
+    int MAX_POLYNOMIAL_DEGREE = 16;
+
     /**
      * Creates a new {@link Sequence.OfLong} filled by integers between the specified boundaries.
      *
@@ -72,6 +81,102 @@ public interface Runtime {
      */
     double reduceDouble(Sequence.OfDouble sequence, double identity, DoubleBinaryOperator operator);
 
+    /**
+     * The same as {@link #reduceLong(Sequence.OfLong, long, LongBinaryOperator)}, but the caller guarantees that the
+     * operator merely adds its arguments together. This allows an implementation to compute the sum without visiting
+     * each element, for instance, in case of a range or a {@link #mapLongToLongPolynomial(Sequence.OfLong,
+     * LongUnaryOperator, int) polynomial mapping} of a range.
+     * <p>
+     * The result must be the same as if the elements were summed up one by one using the wrapping long arithmetic.
+     *
+     * @param sequence the sequence of primitive longs to sum up
+     * @param identity the neutral element, which must be an identity for the operator
+     * @param operator the accumulator function: {@code long, long -> long}, which is known to be an addition
+     * @return the sum of the elements
+     */
+    default long reduceLongSum(Sequence.OfLong sequence, long identity, LongBinaryOperator operator) {
+        return reduceLong(sequence, identity, operator);
+    }
+
+    /**
+     * Reduces a range of integers mapped through a chain of map() lambdas, all of them fused together with the
+     * reduction lambda into a {@link RangeFold}. The result is the same as of reducing the mapped {@link
+     * #createLongRange(long, long) range} with the same identity and the operator given as the combiner.
+     * <p>
+     * The implementation calls the fold for each consecutive chunk of the range of at most {@link
+     * RangeFold#CHUNK_SIZE} elements. Chunks folded in parallel start from the identity value, and their results are
+     * then combined in order using the combiner.
+     *
+     * @param startInclusive the start boundary of the range (inclusive)
+     * @param endExclusive   the end boundary of the range (exclusive)
+     * @param identity       the identity value for the combiner
+     * @param fold           the fused loop accumulating a chunk of the range
+     * @param combiner       the reduction lambda: {@code long, long -> long}
+     * @return the reduced value
+     */
+    default long reduceLongRange(long startInclusive, long endExclusive, long identity, RangeFold.OfLong fold,
+                                 LongBinaryOperator combiner) {
+        long size = createLongRange(startInclusive, endExclusive).longSize();
+        long result = identity;
+        for (long i = 0; i < size; i += RangeFold.CHUNK_SIZE) {
+            result = fold.fold(result, startInclusive + i, (int) Math.min(RangeFold.CHUNK_SIZE, size - i));
+        }
+        return result;
+    }
+
+    /**
+     * The same as {@link #reduceLongRange(long, long, long, RangeFold.OfLong, LongBinaryOperator)}, but the range end
+     * boundary is inclusive.
+     *
+     * @param startInclusive the start boundary of the range (inclusive)
+     * @param endInclusive   the end boundary of the range (inclusive)
+     * @param identity       the identity value for the combiner
+     * @param fold           the fused loop accumulating a chunk of the range
+     * @param combiner       the reduction lambda: {@code long, long -> long}
+     * @return the reduced value
+     */
+    default long reduceLongRangeInclusive(long startInclusive, long endInclusive, long identity,
+                                          RangeFold.OfLong fold, LongBinaryOperator combiner) {
+        return reduceLongRange(startInclusive, endInclusive + 1, identity, fold, combiner);
+    }
+
+    /**
+     * The same as {@link #reduceLongRange(long, long, long, RangeFold.OfLong, LongBinaryOperator)}, but the range is
+     * mapped to and reduced as primitive doubles.
+     *
+     * @param startInclusive the start boundary of the range (inclusive)
+     * @param endExclusive   the end boundary of the range (exclusive)
+     * @param identity       the identity value for the combiner
+     * @param fold           the fused loop accumulating a chunk of the range
+     * @param combiner       the reduction lambda: {@code double, double -> double}
+     * @return the reduced value
+     */
+    default double reduceDoubleRange(long startInclusive, long endExclusive, double identity, RangeFold.OfDouble fold,
+                                     DoubleBinaryOperator combiner) {
+        long size = createLongRange(startInclusive, endExclusive).longSize();
+        double result = identity;
+        for (long i = 0; i < size; i += RangeFold.CHUNK_SIZE) {
+            result = fold.fold(result, startInclusive + i, (int) Math.min(RangeFold.CHUNK_SIZE, size - i));
+        }
+        return result;
+    }
+
+    /**
+     * The same as {@link #reduceDoubleRange(long, long, double, RangeFold.OfDouble, DoubleBinaryOperator)}, but the
+     * range end boundary is inclusive.
+     *
+     * @param startInclusive the start boundary of the range (inclusive)
+     * @param endInclusive   the end boundary of the range (inclusive)
+     * @param identity       the identity value for the combiner
+     * @param fold           the fused loop accumulating a chunk of the range
+     * @param combiner       the reduction lambda: {@code double, double -> double}
+     * @return the reduced value
+     */
+    default double reduceDoubleRangeInclusive(long startInclusive, long endInclusive, double identity,
+                                              RangeFold.OfDouble fold, DoubleBinaryOperator combiner) {
+        return reduceDoubleRange(startInclusive, endInclusive + 1, identity, fold, combiner);
+    }
+
     /**
      * Returns a sequence consisting of the results of applying the given function to the elements of the specified
      * sequence.
@@ -138,6 +243,36 @@ public interface Runtime {
      */
     Sequence.OfLong mapLongToLong(Sequence.OfLong sequence, LongUnaryOperator mapper);
 
+    /**
+     * The same as {@link #mapLongToLong(Sequence.OfLong, LongUnaryOperator)}, but the caller guarantees that the
+     * mapper computes an integer polynomial of at most the given degree (using the wrapping long arithmetic, and
+     * without any side effects). The implementation may remember that fact to {@link #reduceLongSum(Sequence.OfLong,
+     * long, LongBinaryOperator) sum up} the resulting sequence in a closed form.
+     *
+     * @param sequence the sequence of primitive longs to map
+     * @param mapper   the function to apply for each element: {@code long -> long}
+     * @param degree   the degree of the polynomial computed by the mapper, at most {@link #MAX_POLYNOMIAL_DEGREE}
+     * @return the sequence of primitive longs
+     */
+    default Sequence.OfLong mapLongToLongPolynomial(Sequence.OfLong sequence, LongUnaryOperator mapper, int degree) {
+        return mapLongToLong(sequence, mapper);
+    }
+
+    /**
+     * The same as {@link #mapLongToLong(Sequence.OfLong, LongUnaryOperator)}, but the caller also provides an
+     * {@link ArithmeticKernel} computing exactly the same function as the mapper. The implementation may use it to
+     * map an array-backed sequence a block of elements at a time.
+     *
+     * @param sequence the sequence of primitive longs to map
+     * @param mapper   the function to apply for each element: {@code long -> long}
+     * @param kernel   the kernel equivalent to the mapper
+     * @return the sequence of primitive longs
+     */
+    default Sequence.OfLong mapLongToLongKernel(Sequence.OfLong sequence, LongUnaryOperator mapper,
+                                                ArithmeticKernel.OfLong kernel) {
+        return mapLongToLong(sequence, mapper);
+    }
+
     /**
      * Returns a sequence of primitive longs consisting of the results of applying the given function to the elements of
      * the specified sequence of primitive doubles.
@@ -185,6 +320,66 @@ public interface Runtime {
      */
     Sequence.OfDouble mapDoubleToDouble(Sequence.OfDouble sequence, DoubleUnaryOperator mapper);
 
+    /**
+     * The same as {@link #mapDoubleToDouble(Sequence.OfDouble, DoubleUnaryOperator)}, but the caller also provides an
+     * {@link ArithmeticKernel} computing exactly the same function as the mapper. The implementation may use it to
+     * map an array-backed sequence a block of elements at a time.
+     *
+     * @param sequence the sequence of primitive doubles to map
+     * @param mapper   the function to apply for each element: {@code double -> double}
+     * @param kernel   the kernel equivalent to the mapper
+     * @return the sequence of primitive doubles
+     */
+    default Sequence.OfDouble mapDoubleToDoubleKernel(Sequence.OfDouble sequence, DoubleUnaryOperator mapper,
+                                                      ArithmeticKernel.OfDouble kernel) {
+        return mapDoubleToDouble(sequence, mapper);
+    }
+
+    /**
+     * Returns a runtime which methods work the same way as the ones of this runtime, but the caller provides an
+     * estimated cost of invoking the lambda passed to them once. The cost is measured in simple arithmetic operations.
+     * An implementation may use it to decide whether it is worth running the operation in parallel.
+     * <p>
+     * The returned runtime is only meant to perform a single operation and must not be retained. By default, the
+     * hint is ignored and the runtime itself is returned.
+     *
+     * @param lambdaCost the estimated cost of a single invocation of the lambda, or a non-positive value if unknown
+     * @return the runtime to perform the operation with
+     */
+    default Runtime withCostHint(long lambdaCost) {
+        return this;
+    }
+
+    /**
+     * Forces evaluation of a value returned by one of the methods of this runtime.
+     * <p>
+     * An implementation is free to return lazy sequences from the map() methods, deferring the actual computation
+     * until the sequence is traversed (which allows fusing a chain of map() calls with a subsequent reduce()). This
+     * method makes sure all the elements of such sequence (and of any nested sequences) are computed, so that the
+     * computation (and any error it might raise) happens right at the call site.
+     *
+     * @param value the value to materialize
+     * @param <T>   the type of the value
+     * @return an equal value with all its elements computed; the value itself by default
+     */
+    default <T> T materialize(T value) {
+        return value;
+    }
+
+    /**
+     * Tells the runtime that a value returned by one of its methods is stored into a variable by the statement at the
+     * given location.
+     * <p>
+     * The errors deferred by a lazy sequence may only be raised once another statement traverses it. An implementation
+     * returning such sequences should then throw a {@link DeferredErrorException} pointing to the given location, so
+     * that the error is reported at the statement that has produced the sequence. Does nothing by default.
+     *
+     * @param value    the value, which is probably a lazy sequence
+     * @param location the location of the statement that has produced the value
+     */
+    default void setOrigin(Object value, Location location) {
+    }
+
     /**
      * Provides the power math operation methods required since Java doesn't have a builtin one.
      */
@@ -195,6 +390,24 @@ public interface Runtime {
         private Util() {
         }
 
+        /**
+         * Divides the first argument by the second one.
+         * <p>
+         * Unlike the implicit exception of the division operator, which a JIT compiler may replace with a preallocated
+         * one without a message once the division gets hot, the exception thrown here always tells what has happened.
+         *
+         * @param a the dividend
+         * @param b the divisor
+         * @return a / b
+         * @throws ArithmeticException if the divisor is zero
+         */
+        public static long divLong(long a, long b) {
+            if (b == 0) {
+                throw new ArithmeticException("/ by zero");
+            }
+            return a / b;
+        }
+
         /**
          * Computes the result of raising the first argument to the power of the second argument.
          *
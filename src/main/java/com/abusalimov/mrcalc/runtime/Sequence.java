@@ -3,9 +3,15 @@ package com.abusalimov.mrcalc.runtime;
 import java.util.List;
 import java.util.RandomAccess;
 import java.util.Spliterator;
+import java.util.function.DoubleConsumer;
+import java.util.function.LongConsumer;
 
 /**
  * The marker interface for object representing a sequence of elements of arbitrary types.
+ * <p>
+ * A sequence may hold more than {@link Integer#MAX_VALUE} elements, in which case the int-indexed {@link List} methods
+ * only provide access to a prefix of the sequence, and the {@link #size()} is saturated. The {@link #longSize()} and
+ * the long-indexed {@link #get(long)} methods should be used to access the whole sequence.
  *
  * @param <E> the type of the sequence elements
  * @author Eldar Abusalimov
@@ -14,19 +20,159 @@ public interface Sequence<E> extends List<E>, RandomAccess {
     @Override
     Spliterator<E> spliterator();
 
+    /**
+     * Returns the number of elements in this sequence, which may exceed {@link Integer#MAX_VALUE}.
+     *
+     * @return the number of elements
+     */
+    default long longSize() {
+        return size();
+    }
+
+    /**
+     * Tells whether the elements are yet to be computed through the pipeline set up by the runtime that created the
+     * sequence, which makes the sequence only usable while the runtime is.
+     *
+     * @return true if the elements are not computed yet, false by default
+     */
+    default boolean isLazy() {
+        return false;
+    }
+
+    /**
+     * Estimates the memory occupied by the elements of the sequence, assuming each element to take as much as a long.
+     *
+     * @return the estimated size in bytes, which is zero for the sequences computing the elements on the fly
+     */
+    default long getMemoryFootprint() {
+        return longSize() * Long.BYTES;
+    }
+
+    /**
+     * Returns the element at the specified position in this sequence.
+     *
+     * @param index the index of the element to return
+     * @return the element at the specified position
+     * @throws IndexOutOfBoundsException if the index is out of range ({@code index < 0 || index >= longSize()})
+     */
+    default E get(long index) {
+        if (index < 0 || index > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return get((int) index);
+    }
+
     /**
      * A Sequence specialized to primitive longs.
+     * <p>
+     * Besides the boxing {@link List} methods, it provides primitive accessors that should be preferred wherever
+     * possible.
      */
     interface OfLong extends Sequence<Long> {
         @Override
         Spliterator.OfLong spliterator();
+
+        /**
+         * Returns the element at the specified position in this sequence as a primitive long.
+         *
+         * @param index the index of the element to return
+         * @return the element at the specified position
+         * @throws IndexOutOfBoundsException if the index is out of range
+         */
+        default long getAsLong(long index) {
+            return get(index);
+        }
+
+        /**
+         * Returns the element at the specified position in this sequence as a primitive long, without boxing it.
+         *
+         * @param index the index of the element to return
+         * @return the element at the specified position
+         * @throws IndexOutOfBoundsException if the index is out of range
+         */
+        default long getAsLong(int index) {
+            return getAsLong((long) index);
+        }
+
+        /**
+         * Performs the given action for each element of the sequence, in order, without boxing the elements.
+         *
+         * @param action the action to perform
+         */
+        default void forEachLong(LongConsumer action) {
+            spliterator().forEachRemaining(action);
+        }
+
+        /**
+         * Copies the specified range of elements of the sequence into the given array.
+         *
+         * @param fromIndex the index of the first element to copy
+         * @param dest      the destination array
+         * @param destPos   the starting position in the destination array
+         * @param length    the number of elements to copy
+         * @throws IndexOutOfBoundsException if copying would cause access outside of the sequence or array bounds
+         */
+        default void copyInto(long fromIndex, long[] dest, int destPos, int length) {
+            for (int i = 0; i < length; i++) {
+                dest[destPos + i] = getAsLong(fromIndex + i);
+            }
+        }
     }
 
     /**
      * A Sequence specialized to primitive doubles.
+     * <p>
+     * Besides the boxing {@link List} methods, it provides primitive accessors that should be preferred wherever
+     * possible.
      */
     interface OfDouble extends Sequence<Double> {
         @Override
         Spliterator.OfDouble spliterator();
+
+        /**
+         * Returns the element at the specified position in this sequence as a primitive double.
+         *
+         * @param index the index of the element to return
+         * @return the element at the specified position
+         * @throws IndexOutOfBoundsException if the index is out of range
+         */
+        default double getAsDouble(long index) {
+            return get(index);
+        }
+
+        /**
+         * Returns the element at the specified position in this sequence as a primitive double, without boxing it.
+         *
+         * @param index the index of the element to return
+         * @return the element at the specified position
+         * @throws IndexOutOfBoundsException if the index is out of range
+         */
+        default double getAsDouble(int index) {
+            return getAsDouble((long) index);
+        }
+
+        /**
+         * Performs the given action for each element of the sequence, in order, without boxing the elements.
+         *
+         * @param action the action to perform
+         */
+        default void forEachDouble(DoubleConsumer action) {
+            spliterator().forEachRemaining(action);
+        }
+
+        /**
+         * Copies the specified range of elements of the sequence into the given array.
+         *
+         * @param fromIndex the index of the first element to copy
+         * @param dest      the destination array
+         * @param destPos   the starting position in the destination array
+         * @param length    the number of elements to copy
+         * @throws IndexOutOfBoundsException if copying would cause access outside of the sequence or array bounds
+         */
+        default void copyInto(long fromIndex, double[] dest, int destPos, int length) {
+            for (int i = 0; i < length; i++) {
+                dest[destPos + i] = getAsDouble(fromIndex + i);
+            }
+        }
     }
 }
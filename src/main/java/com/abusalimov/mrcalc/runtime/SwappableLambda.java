@@ -0,0 +1,33 @@
+package com.abusalimov.mrcalc.runtime;
+
+/**
+ * A lambda, which implementation may be swapped for a faster one while a map() or reduce() is running, for example,
+ * once an interpreted lambda gets hot and is compiled in the background.
+ * <p>
+ * The lambda itself remains valid, delegating each call to the current implementation. However, runtimes processing
+ * a sequence in chunks may {@link #current(Object) resolve} the implementation at the start of each chunk, so that
+ * the elements are passed to it directly.
+ *
+ * @author Eldar Abusalimov
+ */
+public interface SwappableLambda {
+    /**
+     * Returns the current implementation of the lambda, which implements the same functional interface the lambda is
+     * used as. Until swapped, it is the lambda itself.
+     *
+     * @return the lambda to call
+     */
+    Object getCurrent();
+
+    /**
+     * Resolves the current implementation of the given lambda, if it is a {@link SwappableLambda}.
+     *
+     * @param lambda the lambda passed to the runtime
+     * @param <T>    the type of the functional interface
+     * @return the current implementation, or the lambda itself
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T current(T lambda) {
+        return (lambda instanceof SwappableLambda) ? (T) ((SwappableLambda) lambda).getCurrent() : lambda;
+    }
+}
@@ -0,0 +1,73 @@
+package com.abusalimov.mrcalc.runtime.impl.forkjoin;
+
+import com.abusalimov.mrcalc.runtime.CancellationToken;
+
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * Computes a result over a range of indices by splitting the range in halves recursively, until a chunk gets no
+ * larger than the grain size, and combining the results of both halves.
+ *
+ * @param <R> the type of the result
+ * @author Eldar Abusalimov
+ */
+class ChunkedTask<R> extends RecursiveTask<R> {
+    private final long start;
+    private final long end;
+    private final long grainSize;
+    private final CancellationToken cancellationToken;
+    private final Leaf<R> leaf;
+    private final BinaryOperator<R> combiner;
+
+    /**
+     * Creates a new task for the specified range of indices.
+     *
+     * @param start     the start of the range (inclusive)
+     * @param end       the end of the range (exclusive)
+     * @param grainSize         the maximum number of indices processed by a single leaf task
+     * @param cancellationToken the token checked before splitting the range or computing a chunk
+     * @param leaf              the function computing the result over a chunk
+     * @param combiner          the function combining the results of two adjacent ranges, in order
+     */
+    ChunkedTask(long start, long end, long grainSize, CancellationToken cancellationToken,
+                Leaf<R> leaf, BinaryOperator<R> combiner) {
+        this.start = start;
+        this.end = end;
+        this.grainSize = grainSize;
+        this.cancellationToken = cancellationToken;
+        this.leaf = leaf;
+        this.combiner = combiner;
+    }
+
+    @Override
+    protected R compute() {
+        cancellationToken.checkCancelled();
+        if (end - start <= grainSize) {
+            return leaf.compute(start, end);
+        }
+
+        long mid = start + ((end - start) >>> 1);
+        ChunkedTask<R> right = new ChunkedTask<>(mid, end, grainSize, cancellationToken, leaf, combiner);
+        right.fork();
+        R leftResult = new ChunkedTask<>(start, mid, grainSize, cancellationToken, leaf, combiner).compute();
+        return combiner.apply(leftResult, right.join());
+    }
+
+    /**
+     * Computes a result over a single chunk.
+     *
+     * @param <R> the type of the result
+     */
+    @FunctionalInterface
+    interface Leaf<R> {
+        /**
+         * Computes a result over the specified range of indices.
+         *
+         * @param start the start of the range (inclusive)
+         * @param end   the end of the range (exclusive)
+         * @return the result
+         */
+        R compute(long start, long end);
+    }
+}
@@ -0,0 +1,549 @@
+package com.abusalimov.mrcalc.runtime.impl.forkjoin;
+
+import com.abusalimov.mrcalc.location.Location;
+import com.abusalimov.mrcalc.runtime.ArithmeticKernel;
+import com.abusalimov.mrcalc.runtime.CancellationToken;
+import com.abusalimov.mrcalc.runtime.ParallelMode;
+import com.abusalimov.mrcalc.runtime.RangeFold;
+import com.abusalimov.mrcalc.runtime.Runtime;
+import com.abusalimov.mrcalc.runtime.Sequence;
+import com.abusalimov.mrcalc.runtime.SwappableLambda;
+import com.abusalimov.mrcalc.runtime.impl.stream.*;
+
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.*;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The runtime implementation running map() and reduce() as hand-written {@link java.util.concurrent.RecursiveTask}s
+ * in a {@link ForkJoinPool}.
+ * <p>
+ * Unlike the {@link com.abusalimov.mrcalc.runtime.impl.stream.StreamRuntime}, the granularity of splitting is under
+ * control: a range of elements is halved until it gets no larger than the configured grain size, and each leaf task
+ * then runs a plain loop directly over the backing array of a source sequence (or over a small buffer, for sequences
+ * that are not array-backed). The map() methods are eager and write their results right into a preallocated array,
+ * so there is no intermediate node concatenation either.
+ * <p>
+ * The lambdas are resolved through {@link SwappableLambda#current(Object)} at the start of each block of elements,
+ * so that a lambda swapped in the middle of an operation is called directly starting from the next block.
+ *
+ * @author Eldar Abusalimov
+ */
+public class ForkJoinRuntime implements Runtime {
+    /**
+     * The default maximum number of elements processed by a single leaf task.
+     */
+    public static final long DEFAULT_GRAIN_SIZE = 1 << 13;
+
+    /**
+     * The number of elements processed between two checks of the cancellation token, which is also the number of
+     * elements copied at once from a sequence that is not array-backed.
+     */
+    protected static final int BLOCK_SIZE = 1 << 10;
+
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final ForkJoinPool pool;
+    private final long grainSize;
+    private final ParallelMode parallelMode;
+    private final CancellationToken cancellationToken;
+    private final long lambdaCost;
+
+    /**
+     * Creates a new instance running in the common pool with the default grain size.
+     */
+    public ForkJoinRuntime() {
+        this(ForkJoinPool.commonPool(), DEFAULT_GRAIN_SIZE);
+    }
+
+    /**
+     * Creates a new instance running its tasks in the specified pool.
+     * <p>
+     * A grain size of {@link Long#MAX_VALUE} makes every operation run as a single sequential task.
+     *
+     * @param pool      the pool to run the tasks in
+     * @param grainSize the maximum number of elements processed by a single leaf task
+     * @throws IllegalArgumentException if the grain size is not positive
+     */
+    public ForkJoinRuntime(ForkJoinPool pool, long grainSize) {
+        this(pool, grainSize, CancellationToken.NONE);
+    }
+
+    /**
+     * Creates a new instance running its tasks in the specified pool, which tasks stop once the given token is
+     * cancelled.
+     *
+     * @param pool              the pool to run the tasks in
+     * @param grainSize         the maximum number of elements processed by a single leaf task
+     * @param cancellationToken the token checked before splitting a range of elements or processing a chunk
+     * @throws IllegalArgumentException if the grain size is not positive
+     */
+    public ForkJoinRuntime(ForkJoinPool pool, long grainSize, CancellationToken cancellationToken) {
+        this(pool, grainSize, ParallelMode.PARALLEL, cancellationToken);
+    }
+
+    /**
+     * Creates a new instance running its tasks in the specified pool, which decides whether to split an operation
+     * into parallel tasks using the given mode.
+     * <p>
+     * In the {@link ParallelMode#ADAPTIVE adaptive} mode, the grain size is also reduced for expensive lambdas, so
+     * that each leaf task does about {@link ParallelMode#PARALLEL_WORK_THRESHOLD} worth of work.
+     *
+     * @param pool              the pool to run the tasks in
+     * @param grainSize         the maximum number of elements processed by a single leaf task
+     * @param parallelMode      whether to run the operations in parallel
+     * @param cancellationToken the token checked before splitting a range of elements or processing a chunk
+     * @throws IllegalArgumentException if the grain size is not positive
+     */
+    public ForkJoinRuntime(ForkJoinPool pool, long grainSize, ParallelMode parallelMode,
+                           CancellationToken cancellationToken) {
+        this(pool, grainSize, parallelMode, cancellationToken, 0);
+    }
+
+    private ForkJoinRuntime(ForkJoinPool pool, long grainSize, ParallelMode parallelMode,
+                            CancellationToken cancellationToken, long lambdaCost) {
+        if (grainSize < 1) {
+            throw new IllegalArgumentException("Grain size must be positive");
+        }
+        this.pool = Objects.requireNonNull(pool, "pool");
+        this.grainSize = grainSize;
+        this.parallelMode = Objects.requireNonNull(parallelMode, "parallelMode");
+        this.cancellationToken = Objects.requireNonNull(cancellationToken, "cancellationToken");
+        this.lambdaCost = lambdaCost;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public long getGrainSize() {
+        return grainSize;
+    }
+
+    public ParallelMode getParallelMode() {
+        return parallelMode;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    @Override
+    public ForkJoinRuntime withCostHint(long lambdaCost) {
+        if (lambdaCost == this.lambdaCost) {
+            return this;
+        }
+        return new ForkJoinRuntime(pool, grainSize, parallelMode, cancellationToken, lambdaCost);
+    }
+
+    @Override
+    public LongRange createLongRange(long startInclusive, long endExclusive) {
+        return new LongRange(startInclusive, endExclusive);
+    }
+
+    @Override
+    public <E> E reduce(Sequence<E> sequence, E identity, BinaryOperator<E> operator) {
+        return invoke(sequence.longSize(), identity, (start, end) -> {
+            E result = identity;
+            BinaryOperator<E> currentOperator = operator;
+            for (long i = start; i < end; i++) {
+                if (((i - start) & (BLOCK_SIZE - 1)) == 0) {
+                    cancellationToken.checkCancelled();
+                    currentOperator = SwappableLambda.current(operator);
+                }
+                result = currentOperator.apply(result, sequence.get(i));
+            }
+            return result;
+        }, operator);
+    }
+
+    @Override
+    public long reduceLong(Sequence.OfLong sequence, long identity, LongBinaryOperator operator) {
+        return invoke(sequence.longSize(), identity, (start, end) -> {
+            long result = identity;
+            for (LongCursor cursor = new LongCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                LongBinaryOperator currentOperator = SwappableLambda.current(operator);
+                long[] a = cursor.array();
+                for (int i = cursor.from(), to = cursor.to(); i < to; i++) {
+                    result = currentOperator.applyAsLong(result, a[i]);
+                }
+            }
+            return result;
+        }, operator::applyAsLong);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Ranges and polynomial mappings of ranges are summed up in a {@link PolynomialSequence#sum() closed form}.
+     */
+    @Override
+    public long reduceLongSum(Sequence.OfLong sequence, long identity, LongBinaryOperator operator) {
+        if (sequence instanceof PolynomialSequence) {
+            return identity + ((PolynomialSequence) sequence).sum();
+        }
+        return reduceLong(sequence, identity, operator);
+    }
+
+    @Override
+    public long reduceLongRange(long startInclusive, long endExclusive, long identity, RangeFold.OfLong fold,
+                                LongBinaryOperator combiner) {
+        return invoke(createLongRange(startInclusive, endExclusive).longSize(), identity, (start, end) -> {
+            long result = identity;
+            for (long i = start; i < end; i += RangeFold.CHUNK_SIZE) {
+                cancellationToken.checkCancelled();
+                result = fold.fold(result, startInclusive + i, (int) Math.min(RangeFold.CHUNK_SIZE, end - i));
+            }
+            return result;
+        }, combiner::applyAsLong);
+    }
+
+    @Override
+    public double reduceDoubleRange(long startInclusive, long endExclusive, double identity, RangeFold.OfDouble fold,
+                                    DoubleBinaryOperator combiner) {
+        return invoke(createLongRange(startInclusive, endExclusive).longSize(), identity, (start, end) -> {
+            double result = identity;
+            for (long i = start; i < end; i += RangeFold.CHUNK_SIZE) {
+                cancellationToken.checkCancelled();
+                result = fold.fold(result, startInclusive + i, (int) Math.min(RangeFold.CHUNK_SIZE, end - i));
+            }
+            return result;
+        }, combiner::applyAsDouble);
+    }
+
+    @Override
+    public double reduceDouble(Sequence.OfDouble sequence, double identity, DoubleBinaryOperator operator) {
+        return invoke(sequence.longSize(), identity, (start, end) -> {
+            double result = identity;
+            for (DoubleCursor cursor = new DoubleCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                DoubleBinaryOperator currentOperator = SwappableLambda.current(operator);
+                double[] a = cursor.array();
+                for (int i = cursor.from(), to = cursor.to(); i < to; i++) {
+                    result = currentOperator.applyAsDouble(result, a[i]);
+                }
+            }
+            return result;
+        }, operator::applyAsDouble);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E, R> ObjectArraySequence<R> mapToObject(Sequence<E> sequence, Function<? super E, ? extends R> mapper) {
+        R[] result = (R[]) new Object[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            Function<? super E, ? extends R> currentMapper = mapper;
+            for (long i = start; i < end; i++) {
+                if (((i - start) & (BLOCK_SIZE - 1)) == 0) {
+                    cancellationToken.checkCancelled();
+                    currentMapper = SwappableLambda.current(mapper);
+                }
+                result[(int) i] = currentMapper.apply(sequence.get(i));
+            }
+        });
+        return new ObjectArraySequence<>(result);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> ObjectArraySequence<R> mapLongToObject(Sequence.OfLong sequence, LongFunction<? extends R> mapper) {
+        R[] result = (R[]) new Object[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            for (LongCursor cursor = new LongCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                LongFunction<? extends R> currentMapper = SwappableLambda.current(mapper);
+                long[] a = cursor.array();
+                int offset = (int) cursor.index() - cursor.from();
+                for (int i = cursor.from(), to = cursor.to(); i < to; i++) {
+                    result[offset + i] = currentMapper.apply(a[i]);
+                }
+            }
+        });
+        return new ObjectArraySequence<>(result);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> ObjectArraySequence<R> mapDoubleToObject(Sequence.OfDouble sequence,
+                                                        DoubleFunction<? extends R> mapper) {
+        R[] result = (R[]) new Object[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            for (DoubleCursor cursor = new DoubleCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                DoubleFunction<? extends R> currentMapper = SwappableLambda.current(mapper);
+                double[] a = cursor.array();
+                int offset = (int) cursor.index() - cursor.from();
+                for (int i = cursor.from(), to = cursor.to(); i < to; i++) {
+                    result[offset + i] = currentMapper.apply(a[i]);
+                }
+            }
+        });
+        return new ObjectArraySequence<>(result);
+    }
+
+    @Override
+    public <E> LongArraySequence mapToLong(Sequence<E> sequence, ToLongFunction<? super E> mapper) {
+        long[] result = new long[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            ToLongFunction<? super E> currentMapper = mapper;
+            for (long i = start; i < end; i++) {
+                if (((i - start) & (BLOCK_SIZE - 1)) == 0) {
+                    cancellationToken.checkCancelled();
+                    currentMapper = SwappableLambda.current(mapper);
+                }
+                result[(int) i] = currentMapper.applyAsLong(sequence.get(i));
+            }
+        });
+        return new LongArraySequence(result);
+    }
+
+    @Override
+    public LongArraySequence mapLongToLong(Sequence.OfLong sequence, LongUnaryOperator mapper) {
+        long[] result = new long[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            for (LongCursor cursor = new LongCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                LongUnaryOperator currentMapper = SwappableLambda.current(mapper);
+                long[] a = cursor.array();
+                int offset = (int) cursor.index() - cursor.from();
+                for (int i = cursor.from(), to = cursor.to(); i < to; i++) {
+                    result[offset + i] = currentMapper.applyAsLong(a[i]);
+                }
+            }
+        });
+        return new LongArraySequence(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each block read from the source sequence is mapped by the kernel at once.
+     */
+    @Override
+    public LongArraySequence mapLongToLongKernel(Sequence.OfLong sequence, LongUnaryOperator mapper,
+                                                 ArithmeticKernel.OfLong kernel) {
+        long[] result = new long[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            for (LongCursor cursor = new LongCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                kernel.apply(cursor.array(), cursor.from(), result, (int) cursor.index(), cursor.to() - cursor.from());
+            }
+        });
+        return new LongArraySequence(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Unlike other map() methods, a polynomial mapping of a range (or of another polynomial sequence) is not computed
+     * eagerly. Instead, the result is a lazy sequence which elements are only computed when needed, so that {@link
+     * #reduceLongSum(Sequence.OfLong, long, LongBinaryOperator) summing it up} doesn't visit each element.
+     */
+    @Override
+    public Sequence.OfLong mapLongToLongPolynomial(Sequence.OfLong sequence, LongUnaryOperator mapper, int degree) {
+        if (sequence instanceof PolynomialSequence) {
+            PolynomialSequence source = (PolynomialSequence) sequence;
+            long polynomialDegree = (long) source.getPolynomialDegree() * degree;
+            if (polynomialDegree <= MAX_POLYNOMIAL_DEGREE) {
+                long size = sequence.longSize();
+                PipelineOrigin origin = new PipelineOrigin();
+                LongUnaryOperator indexPolynomial =
+                        origin.guardLongToLong(source.getIndexPolynomial().andThen(mapper));
+                boolean isParallel = grainSize < size && parallelMode.isParallel(size, lambdaCost);
+                return new LazyPolynomialLongSequence(size, () -> StreamSupport.longStream(
+                        new CancellableSpliterator.OfLong(LongStream.range(0, size).spliterator(), cancellationToken),
+                        isParallel).map(indexPolynomial), indexPolynomial, (int) polynomialDegree, origin);
+            }
+        }
+        return mapLongToLong(sequence, mapper);
+    }
+
+    @Override
+    public LongArraySequence mapDoubleToLong(Sequence.OfDouble sequence, DoubleToLongFunction mapper) {
+        long[] result = new long[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            for (DoubleCursor cursor = new DoubleCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                DoubleToLongFunction currentMapper = SwappableLambda.current(mapper);
+                double[] a = cursor.array();
+                int offset = (int) cursor.index() - cursor.from();
+                for (int i = cursor.from(), to = cursor.to(); i < to; i++) {
+                    result[offset + i] = currentMapper.applyAsLong(a[i]);
+                }
+            }
+        });
+        return new LongArraySequence(result);
+    }
+
+    @Override
+    public <E> DoubleArraySequence mapToDouble(Sequence<E> sequence, ToDoubleFunction<? super E> mapper) {
+        double[] result = new double[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            ToDoubleFunction<? super E> currentMapper = mapper;
+            for (long i = start; i < end; i++) {
+                if (((i - start) & (BLOCK_SIZE - 1)) == 0) {
+                    cancellationToken.checkCancelled();
+                    currentMapper = SwappableLambda.current(mapper);
+                }
+                result[(int) i] = currentMapper.applyAsDouble(sequence.get(i));
+            }
+        });
+        return new DoubleArraySequence(result);
+    }
+
+    @Override
+    public DoubleArraySequence mapLongToDouble(Sequence.OfLong sequence, LongToDoubleFunction mapper) {
+        double[] result = new double[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            for (LongCursor cursor = new LongCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                LongToDoubleFunction currentMapper = SwappableLambda.current(mapper);
+                long[] a = cursor.array();
+                int offset = (int) cursor.index() - cursor.from();
+                for (int i = cursor.from(), to = cursor.to(); i < to; i++) {
+                    result[offset + i] = currentMapper.applyAsDouble(a[i]);
+                }
+            }
+        });
+        return new DoubleArraySequence(result);
+    }
+
+    @Override
+    public DoubleArraySequence mapDoubleToDouble(Sequence.OfDouble sequence, DoubleUnaryOperator mapper) {
+        double[] result = new double[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            for (DoubleCursor cursor = new DoubleCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                DoubleUnaryOperator currentMapper = SwappableLambda.current(mapper);
+                double[] a = cursor.array();
+                int offset = (int) cursor.index() - cursor.from();
+                for (int i = cursor.from(), to = cursor.to(); i < to; i++) {
+                    result[offset + i] = currentMapper.applyAsDouble(a[i]);
+                }
+            }
+        });
+        return new DoubleArraySequence(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each block read from the source sequence is mapped by the kernel at once.
+     */
+    @Override
+    public DoubleArraySequence mapDoubleToDoubleKernel(Sequence.OfDouble sequence, DoubleUnaryOperator mapper,
+                                                       ArithmeticKernel.OfDouble kernel) {
+        double[] result = new double[arraySize(sequence)];
+        invokeForEach(result.length, (start, end) -> {
+            for (DoubleCursor cursor = new DoubleCursor(sequence, start, end, BLOCK_SIZE, cancellationToken);
+                 cursor.advance(); ) {
+                kernel.apply(cursor.array(), cursor.from(), result, (int) cursor.index(), cursor.to() - cursor.from());
+            }
+        });
+        return new DoubleArraySequence(result);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T materialize(T value) {
+        return (T) LazySequence.materializeIfLazy(value);
+    }
+
+    @Override
+    public void setOrigin(Object value, Location location) {
+        if (value instanceof LazySequence) {
+            ((LazySequence<?, ?, ?>) value).getOrigin().setLocation(location);
+        }
+    }
+
+    /**
+     * Returns the size of an array to hold the results of mapping the given sequence.
+     *
+     * @param sequence the sequence to map
+     * @return the number of elements of the sequence
+     * @throws ArithmeticException if the sequence is too large to fit into an array
+     */
+    protected static int arraySize(Sequence<?> sequence) {
+        long size = sequence.longSize();
+        if (size > MAX_ARRAY_SIZE) {
+            throw new ArithmeticException("Sequence size overflow");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Computes a result over the range of indices from zero to the given size in the pool, or right in the calling
+     * thread, if the {@link ParallelMode} tells the operation is not worth running in parallel.
+     *
+     * @param size     the number of indices to process
+     * @param identity the result for an empty range
+     * @param leaf     the function computing the result over a chunk
+     * @param combiner the function combining the results of two adjacent chunks, in order
+     * @param <R>      the type of the result
+     * @return the combined result over all the chunks
+     */
+    protected <R> R invoke(long size, R identity, ChunkedTask.Leaf<R> leaf, BinaryOperator<R> combiner) {
+        if (size == 0) {
+            return identity;
+        }
+        if (!parallelMode.isParallel(size, lambdaCost)) {
+            cancellationToken.checkCancelled();
+            return leaf.compute(0, size);
+        }
+        ChunkedTask<R> task = new ChunkedTask<>(0, size, getGrainSize(lambdaCost), cancellationToken, leaf,
+                combiner);
+        try {
+            /* Don't go through the submission queue when already running in the pool. */
+            return (ForkJoinTask.getPool() == pool) ? task.invoke() : pool.invoke(task);
+        } catch (RuntimeException e) {
+            throw StreamRuntime.unwrapRethrown(e);
+        } catch (Error e) {
+            throw StreamRuntime.unwrapRethrown(e);
+        }
+    }
+
+    /**
+     * Returns the grain size for an operation with a lambda of the given cost. In the adaptive mode, the grain is
+     * made smaller for expensive lambdas, so that there are enough tasks to balance the load.
+     *
+     * @param elementCost the estimated cost of processing a single element
+     * @return the maximum number of elements processed by a single leaf task
+     */
+    protected long getGrainSize(long elementCost) {
+        if (parallelMode != ParallelMode.ADAPTIVE || elementCost <= 1) {
+            return grainSize;
+        }
+        return Math.max(1, Math.min(grainSize, ParallelMode.PARALLEL_WORK_THRESHOLD / elementCost));
+    }
+
+    /**
+     * Performs an action over each chunk of the range of indices from zero to the given size in the pool.
+     *
+     * @param size   the number of indices to process
+     * @param action the action to perform on each chunk: {@code start, end -> void}
+     */
+    protected void invokeForEach(long size, LongBiConsumer action) {
+        invoke(size, null, (start, end) -> {
+            action.accept(start, end);
+            return null;
+        }, (left, right) -> null);
+    }
+
+    /**
+     * Represents an operation upon a range of indices.
+     */
+    @FunctionalInterface
+    protected interface LongBiConsumer {
+        /**
+         * Performs this operation on the given range.
+         *
+         * @param start the start of the range (inclusive)
+         * @param end   the end of the range (exclusive)
+         */
+        void accept(long start, long end);
+    }
+}
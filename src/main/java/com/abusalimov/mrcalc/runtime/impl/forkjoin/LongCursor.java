@@ -0,0 +1,106 @@
+package com.abusalimov.mrcalc.runtime.impl.forkjoin;
+
+import com.abusalimov.mrcalc.runtime.CancellationToken;
+import com.abusalimov.mrcalc.runtime.Sequence;
+import com.abusalimov.mrcalc.runtime.impl.stream.LongArraySequence;
+
+/**
+ * Reads a range of elements of a sequence of longs block by block.
+ * <p>
+ * An array-backed sequence is read directly from its backing array, and other sequences are {@link
+ * Sequence.OfLong#copyInto(long, long[], int, int) copied} into a small buffer, one block at a time. The cancellation
+ * token is checked before each block.
+ *
+ * @author Eldar Abusalimov
+ */
+final class LongCursor {
+    private final Sequence.OfLong sequence;
+    private final long end;
+    private final int blockSize;
+    private final CancellationToken cancellationToken;
+    private final long[] array;
+    private long index;
+    private int from;
+    private int to;
+
+    /**
+     * Creates a new cursor positioned before the first block.
+     *
+     * @param sequence          the sequence to read
+     * @param start             the index of the first element to read (inclusive)
+     * @param end               the index of the last element to read (exclusive)
+     * @param blockSize         the maximum number of elements in a block
+     * @param cancellationToken the token to check before reading each block
+     */
+    LongCursor(Sequence.OfLong sequence, long start, long end, int blockSize, CancellationToken cancellationToken) {
+        this.sequence = sequence;
+        this.end = end;
+        this.blockSize = blockSize;
+        this.cancellationToken = cancellationToken;
+        this.index = start;
+        if (sequence instanceof LongArraySequence) {
+            this.array = ((LongArraySequence) sequence).getArray();
+        } else {
+            this.array = new long[(int) Math.min(blockSize, end - start)];
+        }
+    }
+
+    /**
+     * Moves to the next block, if any.
+     *
+     * @return true if there is a new block to read, false once the range is exhausted
+     * @throws java.util.concurrent.CancellationException if the token is cancelled
+     */
+    boolean advance() {
+        index += to - from;
+        if (index >= end) {
+            return false;
+        }
+        cancellationToken.checkCancelled();
+        if (sequence instanceof LongArraySequence) {
+            from = (int) index;
+            to = (int) Math.min(end, index + blockSize);
+        } else {
+            from = 0;
+            to = (int) Math.min(array.length, end - index);
+            sequence.copyInto(index, array, 0, to);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the array holding the current block.
+     *
+     * @return the array to read the elements from
+     */
+    long[] array() {
+        return array;
+    }
+
+    /**
+     * Returns the position of the first element of the current block in the {@link #array() array}.
+     *
+     * @return the array index (inclusive)
+     */
+    int from() {
+        return from;
+    }
+
+    /**
+     * Returns the position past the last element of the current block in the {@link #array() array}.
+     *
+     * @return the array index (exclusive)
+     */
+    int to() {
+        return to;
+    }
+
+    /**
+     * Returns the index of the first element of the current block within the sequence.
+     *
+     * @return the sequence index
+     */
+    long index() {
+        return index;
+    }
+}
@@ -0,0 +1,152 @@
+package com.abusalimov.mrcalc.runtime.impl.stream;
+
+import com.abusalimov.mrcalc.runtime.CancellationToken;
+
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Spliterator decorator that checks a cancellation token each time the source is split, before traversing the
+ * remaining elements of a chunk, and then every {@link #POLL_INTERVAL} elements while traversing it. This way even a
+ * sequential stream over a huge range stops shortly after the cancellation.
+ * <p>
+ * The elements are counted by the spliterator itself, which is confined to a single thread during the traversal, so
+ * the polling costs a decrement per element and a volatile read per interval.
+ *
+ * @param <T> the type of elements
+ * @param <S> the type of the source spliterator
+ * @author Eldar Abusalimov
+ */
+public abstract class CancellableSpliterator<T, S extends Spliterator<T>> implements Spliterator<T> {
+    /**
+     * The number of elements traversed between two checks of the cancellation token.
+     */
+    public static final int POLL_INTERVAL = 1 << 10;
+
+    protected final S source;
+    protected final CancellationToken cancellationToken;
+    private int countdown = POLL_INTERVAL;
+
+    protected CancellableSpliterator(S source, CancellationToken cancellationToken) {
+        this.source = source;
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Counts an element and checks the token once the interval is over.
+     */
+    protected final void poll() {
+        if (--countdown == 0) {
+            countdown = POLL_INTERVAL;
+            cancellationToken.checkCancelled();
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        poll();
+        return source.tryAdvance(action);
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        cancellationToken.checkCancelled();
+        source.forEachRemaining(t -> {
+            poll();
+            action.accept(t);
+        });
+    }
+
+    @Override
+    public long estimateSize() {
+        return source.estimateSize();
+    }
+
+    @Override
+    public long getExactSizeIfKnown() {
+        return source.getExactSizeIfKnown();
+    }
+
+    @Override
+    public int characteristics() {
+        return source.characteristics();
+    }
+
+    @Override
+    public Comparator<? super T> getComparator() {
+        return source.getComparator();
+    }
+
+    public static class OfRef<T> extends CancellableSpliterator<T, Spliterator<T>> {
+        public OfRef(Spliterator<T> source, CancellationToken cancellationToken) {
+            super(source, cancellationToken);
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            cancellationToken.checkCancelled();
+            Spliterator<T> prefix = source.trySplit();
+            return (prefix != null) ? new OfRef<>(prefix, cancellationToken) : null;
+        }
+    }
+
+    public static class OfLong extends CancellableSpliterator<Long, Spliterator.OfLong> implements Spliterator.OfLong {
+        public OfLong(Spliterator.OfLong source, CancellationToken cancellationToken) {
+            super(source, cancellationToken);
+        }
+
+        @Override
+        public Spliterator.OfLong trySplit() {
+            cancellationToken.checkCancelled();
+            Spliterator.OfLong prefix = source.trySplit();
+            return (prefix != null) ? new CancellableSpliterator.OfLong(prefix, cancellationToken) : null;
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            poll();
+            return source.tryAdvance(action);
+        }
+
+        @Override
+        public void forEachRemaining(LongConsumer action) {
+            cancellationToken.checkCancelled();
+            source.forEachRemaining((long t) -> {
+                poll();
+                action.accept(t);
+            });
+        }
+    }
+
+    public static class OfDouble extends CancellableSpliterator<Double, Spliterator.OfDouble>
+            implements Spliterator.OfDouble {
+        public OfDouble(Spliterator.OfDouble source, CancellationToken cancellationToken) {
+            super(source, cancellationToken);
+        }
+
+        @Override
+        public Spliterator.OfDouble trySplit() {
+            cancellationToken.checkCancelled();
+            Spliterator.OfDouble prefix = source.trySplit();
+            return (prefix != null) ? new CancellableSpliterator.OfDouble(prefix, cancellationToken) : null;
+        }
+
+        @Override
+        public boolean tryAdvance(DoubleConsumer action) {
+            poll();
+            return source.tryAdvance(action);
+        }
+
+        @Override
+        public void forEachRemaining(DoubleConsumer action) {
+            cancellationToken.checkCancelled();
+            source.forEachRemaining((double t) -> {
+                poll();
+                action.accept(t);
+            });
+        }
+    }
+}
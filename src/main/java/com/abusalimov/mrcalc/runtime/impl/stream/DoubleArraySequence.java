@@ -6,6 +6,7 @@ import com.abusalimov.mrcalc.runtime.Sequence;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.Spliterator;
+import java.util.function.DoubleConsumer;
 
 /**
  * Implementation of specialized double sequence backed by an array of primitive doubles.
@@ -24,6 +25,15 @@ public class DoubleArraySequence extends AbstractSequence<Double> implements Seq
         a = Objects.requireNonNull(array);
     }
 
+    /**
+     * Returns the backing array of the sequence, which must not be modified.
+     *
+     * @return the array of double values
+     */
+    public double[] getArray() {
+        return a;
+    }
+
     @Override
     public int size() {
         return a.length;
@@ -34,6 +44,30 @@ public class DoubleArraySequence extends AbstractSequence<Double> implements Seq
         return a[index];
     }
 
+    @Override
+    public double getAsDouble(int index) {
+        return a[index];
+    }
+
+    @Override
+    public double getAsDouble(long index) {
+        checkIndex(index, a.length);
+        return a[(int) index];
+    }
+
+    @Override
+    public void forEachDouble(DoubleConsumer action) {
+        for (double e : a) {
+            action.accept(e);
+        }
+    }
+
+    @Override
+    public void copyInto(long fromIndex, double[] dest, int destPos, int length) {
+        checkRange(fromIndex, length, a.length);
+        System.arraycopy(a, (int) fromIndex, dest, destPos, length);
+    }
+
     @Override
     public Spliterator.OfDouble spliterator() {
         return Arrays.spliterator(a);
@@ -0,0 +1,71 @@
+package com.abusalimov.mrcalc.runtime.impl.stream;
+
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+import java.util.Spliterator;
+import java.util.function.Supplier;
+import java.util.stream.DoubleStream;
+
+/**
+ * Specialized double sequence which elements are computed lazily by a stream pipeline.
+ *
+ * @author Eldar Abusalimov
+ */
+public class LazyDoubleSequence extends LazySequence<Double, DoubleStream, DoubleArraySequence>
+        implements Sequence.OfDouble {
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline.
+     *
+     * @param size     the number of elements of the sequence
+     * @param pipeline the factory of a stream that yields exactly {@code size} elements
+     */
+    public LazyDoubleSequence(long size, Supplier<DoubleStream> pipeline) {
+        super(size, pipeline);
+    }
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline at the
+     * given estimated cost.
+     *
+     * @param size        the number of elements of the sequence
+     * @param pipeline    the factory of a stream that yields exactly {@code size} elements
+     * @param elementCost the estimated cost of yielding a single element by the pipeline
+     */
+    public LazyDoubleSequence(long size, Supplier<DoubleStream> pipeline, long elementCost) {
+        super(size, pipeline, elementCost);
+    }
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline at the
+     * given estimated cost, and which errors are attributed to the given origin.
+     *
+     * @param size        the number of elements of the sequence
+     * @param pipeline    the factory of a stream that yields exactly {@code size} elements
+     * @param elementCost the estimated cost of yielding a single element by the pipeline
+     * @param origin      the origin guarding the mapper of the pipeline
+     */
+    public LazyDoubleSequence(long size, Supplier<DoubleStream> pipeline, long elementCost, PipelineOrigin origin) {
+        super(size, pipeline, elementCost, origin);
+    }
+
+    @Override
+    protected DoubleArraySequence evaluate(DoubleStream stream) {
+        return new DoubleArraySequence(stream.toArray());
+    }
+
+    @Override
+    public double getAsDouble(long index) {
+        return materialize().getAsDouble(index);
+    }
+
+    @Override
+    public void copyInto(long fromIndex, double[] dest, int destPos, int length) {
+        materialize().copyInto(fromIndex, dest, destPos, length);
+    }
+
+    @Override
+    public Spliterator.OfDouble spliterator() {
+        DoubleStream stream = pipeline();
+        return (stream != null) ? stream.spliterator() : materialize().spliterator();
+    }
+}
@@ -0,0 +1,70 @@
+package com.abusalimov.mrcalc.runtime.impl.stream;
+
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+import java.util.Spliterator;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
+
+/**
+ * Specialized long sequence which elements are computed lazily by a stream pipeline.
+ *
+ * @author Eldar Abusalimov
+ */
+public class LazyLongSequence extends LazySequence<Long, LongStream, LongArraySequence> implements Sequence.OfLong {
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline.
+     *
+     * @param size     the number of elements of the sequence
+     * @param pipeline the factory of a stream that yields exactly {@code size} elements
+     */
+    public LazyLongSequence(long size, Supplier<LongStream> pipeline) {
+        super(size, pipeline);
+    }
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline at the
+     * given estimated cost.
+     *
+     * @param size        the number of elements of the sequence
+     * @param pipeline    the factory of a stream that yields exactly {@code size} elements
+     * @param elementCost the estimated cost of yielding a single element by the pipeline
+     */
+    public LazyLongSequence(long size, Supplier<LongStream> pipeline, long elementCost) {
+        super(size, pipeline, elementCost);
+    }
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline at the
+     * given estimated cost, and which errors are attributed to the given origin.
+     *
+     * @param size        the number of elements of the sequence
+     * @param pipeline    the factory of a stream that yields exactly {@code size} elements
+     * @param elementCost the estimated cost of yielding a single element by the pipeline
+     * @param origin      the origin guarding the mapper of the pipeline
+     */
+    public LazyLongSequence(long size, Supplier<LongStream> pipeline, long elementCost, PipelineOrigin origin) {
+        super(size, pipeline, elementCost, origin);
+    }
+
+    @Override
+    protected LongArraySequence evaluate(LongStream stream) {
+        return new LongArraySequence(stream.toArray());
+    }
+
+    @Override
+    public long getAsLong(long index) {
+        return materialize().getAsLong(index);
+    }
+
+    @Override
+    public void copyInto(long fromIndex, long[] dest, int destPos, int length) {
+        materialize().copyInto(fromIndex, dest, destPos, length);
+    }
+
+    @Override
+    public Spliterator.OfLong spliterator() {
+        LongStream stream = pipeline();
+        return (stream != null) ? stream.spliterator() : materialize().spliterator();
+    }
+}
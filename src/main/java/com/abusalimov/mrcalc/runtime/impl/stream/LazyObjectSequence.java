@@ -0,0 +1,62 @@
+package com.abusalimov.mrcalc.runtime.impl.stream;
+
+import java.util.Spliterator;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Generic sequence which elements are computed lazily by a stream pipeline.
+ * <p>
+ * Materializing the sequence also materializes its elements, if they are lazy sequences themselves, so that a
+ * materialized sequence of sequences never holds references to pipelines of the nested sequences.
+ *
+ * @author Eldar Abusalimov
+ */
+public class LazyObjectSequence<E> extends LazySequence<E, Stream<E>, ObjectArraySequence<E>> {
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline.
+     *
+     * @param size     the number of elements of the sequence
+     * @param pipeline the factory of a stream that yields exactly {@code size} elements
+     */
+    public LazyObjectSequence(long size, Supplier<Stream<E>> pipeline) {
+        super(size, pipeline);
+    }
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline at the
+     * given estimated cost.
+     *
+     * @param size        the number of elements of the sequence
+     * @param pipeline    the factory of a stream that yields exactly {@code size} elements
+     * @param elementCost the estimated cost of yielding a single element by the pipeline
+     */
+    public LazyObjectSequence(long size, Supplier<Stream<E>> pipeline, long elementCost) {
+        super(size, pipeline, elementCost);
+    }
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline at the
+     * given estimated cost, and which errors are attributed to the given origin.
+     *
+     * @param size        the number of elements of the sequence
+     * @param pipeline    the factory of a stream that yields exactly {@code size} elements
+     * @param elementCost the estimated cost of yielding a single element by the pipeline
+     * @param origin      the origin guarding the mapper of the pipeline
+     */
+    public LazyObjectSequence(long size, Supplier<Stream<E>> pipeline, long elementCost, PipelineOrigin origin) {
+        super(size, pipeline, elementCost, origin);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected ObjectArraySequence<E> evaluate(Stream<E> stream) {
+        return new ObjectArraySequence<>((E[]) stream.map(LazySequence::materializeIfLazy).toArray());
+    }
+
+    @Override
+    public Spliterator<E> spliterator() {
+        Stream<E> stream = pipeline();
+        return (stream != null) ? stream.spliterator() : materialize().spliterator();
+    }
+}
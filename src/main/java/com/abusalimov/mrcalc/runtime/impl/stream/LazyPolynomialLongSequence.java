@@ -0,0 +1,60 @@
+package com.abusalimov.mrcalc.runtime.impl.stream;
+
+import java.util.function.LongUnaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
+
+/**
+ * Lazy long sequence which is known to be a polynomial mapping of a range (or of another polynomial sequence).
+ * <p>
+ * Only the composed polynomial is retained besides the pipeline, not the source sequence, so that a materialized
+ * source doesn't get stuck in memory.
+ *
+ * @author Eldar Abusalimov
+ */
+public class LazyPolynomialLongSequence extends LazyLongSequence implements PolynomialSequence {
+    private final LongUnaryOperator indexPolynomial;
+    private final int polynomialDegree;
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline and are also
+     * computed by the polynomial of their indices.
+     *
+     * @param size             the number of elements of the sequence
+     * @param pipeline         the factory of a stream that yields exactly {@code size} elements
+     * @param indexPolynomial  the polynomial computing an element given its index
+     * @param polynomialDegree the degree of the polynomial
+     */
+    public LazyPolynomialLongSequence(long size, Supplier<LongStream> pipeline,
+                                      LongUnaryOperator indexPolynomial, int polynomialDegree) {
+        this(size, pipeline, indexPolynomial, polynomialDegree, new PipelineOrigin());
+    }
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline and are also
+     * computed by the polynomial of their indices, and which errors are attributed to the given origin.
+     *
+     * @param size             the number of elements of the sequence
+     * @param pipeline         the factory of a stream that yields exactly {@code size} elements
+     * @param indexPolynomial  the polynomial computing an element given its index
+     * @param polynomialDegree the degree of the polynomial
+     * @param origin           the origin guarding the mapper of the pipeline
+     */
+    public LazyPolynomialLongSequence(long size, Supplier<LongStream> pipeline,
+                                      LongUnaryOperator indexPolynomial, int polynomialDegree,
+                                      PipelineOrigin origin) {
+        super(size, pipeline, 0, origin);
+        this.indexPolynomial = indexPolynomial;
+        this.polynomialDegree = polynomialDegree;
+    }
+
+    @Override
+    public int getPolynomialDegree() {
+        return polynomialDegree;
+    }
+
+    @Override
+    public LongUnaryOperator getIndexPolynomial() {
+        return indexPolynomial;
+    }
+}
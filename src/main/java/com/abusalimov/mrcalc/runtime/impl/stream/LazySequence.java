@@ -0,0 +1,198 @@
+package com.abusalimov.mrcalc.runtime.impl.stream;
+
+import com.abusalimov.mrcalc.runtime.AbstractSequence;
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.stream.BaseStream;
+
+/**
+ * A sequence which elements are not computed until they are actually needed.
+ * <p>
+ * Instead of holding the elements, a lazy sequence records a pipeline, i.e. a factory of a stream that yields the
+ * elements, usually by mapping elements of another (probably also lazy) sequence. The first traversal of the sequence
+ * {@link #pipeline() streams} directly through that pipeline, so that chaining several map() operations followed by
+ * a reduce() results in a single fused pass with no intermediate arrays allocated at all.
+ * <p>
+ * Once the elements are requested in a way that can't be served by a single stream pass (random access through the
+ * {@link java.util.List} API, printing, or a repeated traversal of a sequence stored in a variable), the sequence gets
+ * {@link #materialize() materialized} into an array-backed sequence, and the pipeline is released. Sequences that are
+ * too large to fit into an array can still be traversed (once) though.
+ *
+ * @param <E> the type of the sequence elements
+ * @param <S> the type of the stream yielding the elements
+ * @param <M> the type of the materialized sequence
+ * @author Eldar Abusalimov
+ */
+public abstract class LazySequence<E, S extends BaseStream<E, S>, M extends Sequence<E>>
+        extends AbstractSequence<E> {
+    /**
+     * The maximum size of an array that can be allocated to hold the elements of a materialized sequence.
+     */
+    protected static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final long size;
+    private final long elementCost;
+    private final PipelineOrigin origin;
+    private Supplier<? extends S> pipeline;
+    private boolean traversed;
+    private volatile M materialized;
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline.
+     *
+     * @param size     the number of elements of the sequence
+     * @param pipeline the factory of a stream that yields exactly {@code size} elements
+     */
+    protected LazySequence(long size, Supplier<? extends S> pipeline) {
+        this(size, pipeline, 0);
+    }
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline at the
+     * given estimated cost.
+     *
+     * @param size        the number of elements of the sequence
+     * @param pipeline    the factory of a stream that yields exactly {@code size} elements
+     * @param elementCost the estimated cost of yielding a single element by the pipeline
+     */
+    protected LazySequence(long size, Supplier<? extends S> pipeline, long elementCost) {
+        this(size, pipeline, elementCost, new PipelineOrigin());
+    }
+
+    /**
+     * Creates a new lazy sequence of the specified size, which elements are yielded by the given pipeline at the
+     * given estimated cost, and which errors are attributed to the given origin.
+     *
+     * @param size        the number of elements of the sequence
+     * @param pipeline    the factory of a stream that yields exactly {@code size} elements
+     * @param elementCost the estimated cost of yielding a single element by the pipeline
+     * @param origin      the origin guarding the mapper of the pipeline
+     */
+    protected LazySequence(long size, Supplier<? extends S> pipeline, long elementCost, PipelineOrigin origin) {
+        this.size = size;
+        this.elementCost = elementCost;
+        this.pipeline = Objects.requireNonNull(pipeline);
+        this.origin = Objects.requireNonNull(origin);
+    }
+
+    /**
+     * Materializes the given object in case it is a lazy sequence, or returns it as is otherwise.
+     *
+     * @param o the object, which is probably a lazy sequence
+     * @return the materialized sequence, or the object itself
+     */
+    public static Object materializeIfLazy(Object o) {
+        return (o instanceof LazySequence) ? ((LazySequence<?, ?, ?>) o).materialize() : o;
+    }
+
+    /**
+     * Returns a stream for a fused single pass through the elements, if the sequence has been neither materialized
+     * nor traversed so far. Otherwise, the caller should fall back to the {@link #materialize() materialized}
+     * sequence.
+     *
+     * @return the stream yielding the elements of the sequence, or {@code null}
+     */
+    public synchronized S pipeline() {
+        if (materialized != null || traversed) {
+            return null;
+        }
+        traversed = true;
+        return pipeline.get();
+    }
+
+    /**
+     * Evaluates all the elements, if not done yet, and returns an array-backed sequence holding them.
+     *
+     * @return the materialized sequence
+     */
+    public M materialize() {
+        M ret = materialized;
+        if (ret == null) {
+            synchronized (this) {
+                ret = materialized;
+                if (ret == null) {
+                    if (size > MAX_ARRAY_SIZE) {
+                        throw new ArithmeticException("Sequence size overflow");
+                    }
+                    materialized = ret = StreamRuntime.unwrappingRethrown(() -> evaluate(pipeline.get()));
+                    pipeline = null;  // let the source sequences go
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A lazy sequence only occupies memory once materialized, as much as the array holding the elements.
+     */
+    @Override
+    public long getMemoryFootprint() {
+        M ret = materialized;
+        return (ret != null) ? ret.getMemoryFootprint() : 0;
+    }
+
+    /**
+     * Returns the estimated cost of computing a single element through the pipeline, that is, the total cost of all
+     * the lambdas fused into it.
+     *
+     * @return the estimated cost, or zero if unknown
+     */
+    public long getElementCost() {
+        return elementCost;
+    }
+
+    /**
+     * Returns the origin, which the errors raised by the pipeline are attributed to.
+     *
+     * @return the origin of the sequence
+     */
+    public PipelineOrigin getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Tells whether the elements has been evaluated and stored already.
+     *
+     * @return true if the sequence is materialized
+     */
+    public boolean isMaterialized() {
+        return materialized != null;
+    }
+
+    @Override
+    public boolean isLazy() {
+        return !isMaterialized();
+    }
+
+    /**
+     * Collects the elements yielded by the specified stream into an array-backed sequence.
+     *
+     * @param stream the stream to consume
+     * @return the new sequence holding the elements
+     */
+    protected abstract M evaluate(S stream);
+
+    @Override
+    public E get(int index) {
+        return materialize().get(index);
+    }
+
+    @Override
+    public E get(long index) {
+        return materialize().get(index);
+    }
+
+    @Override
+    public int size() {
+        return saturatedSize(size);
+    }
+
+    @Override
+    public long longSize() {
+        return size;
+    }
+}
@@ -6,6 +6,7 @@ import com.abusalimov.mrcalc.runtime.Sequence;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.Spliterator;
+import java.util.function.LongConsumer;
 
 /**
  * Implementation of specialized long sequence backed by an array of primitive longs.
@@ -24,6 +25,15 @@ public class LongArraySequence extends AbstractSequence<Long> implements Sequenc
         a = Objects.requireNonNull(array);
     }
 
+    /**
+     * Returns the backing array of the sequence, which must not be modified.
+     *
+     * @return the array of long values
+     */
+    public long[] getArray() {
+        return a;
+    }
+
     @Override
     public int size() {
         return a.length;
@@ -34,6 +44,30 @@ public class LongArraySequence extends AbstractSequence<Long> implements Sequenc
         return a[index];
     }
 
+    @Override
+    public long getAsLong(int index) {
+        return a[index];
+    }
+
+    @Override
+    public long getAsLong(long index) {
+        checkIndex(index, a.length);
+        return a[(int) index];
+    }
+
+    @Override
+    public void forEachLong(LongConsumer action) {
+        for (long e : a) {
+            action.accept(e);
+        }
+    }
+
+    @Override
+    public void copyInto(long fromIndex, long[] dest, int destPos, int length) {
+        checkRange(fromIndex, length, a.length);
+        System.arraycopy(a, (int) fromIndex, dest, destPos, length);
+    }
+
     @Override
     public Spliterator.OfLong spliterator() {
         return Arrays.spliterator(a);
@@ -7,15 +7,16 @@ import java.util.Comparator;
 import java.util.Objects;
 import java.util.Spliterator;
 import java.util.function.LongConsumer;
+import java.util.function.LongUnaryOperator;
 
 /**
  * Lightweight range of longs.
  *
  * @author Eldar Abusalimov
  */
-public class LongRange extends AbstractSequence<Long> implements Sequence.OfLong {
+public class LongRange extends AbstractSequence<Long> implements Sequence.OfLong, PolynomialSequence {
     private final long start;
-    private final int length;
+    private final long length;
 
     /**
      * Creates a new range starting from zero.
@@ -31,15 +32,20 @@ public class LongRange extends AbstractSequence<Long> implements Sequence.OfLong
      *
      * @param startInclusive the start boundary of the range (inclusive)
      * @param endExclusive   the end boundary of the range (exclusive)
+     * @throws ArithmeticException if the range has more than {@link Long#MAX_VALUE} elements
      */
     public LongRange(long startInclusive, long endExclusive) {
         this.start = startInclusive;
 
-        long longLength = Math.max(0, endExclusive - startInclusive);
-        if (longLength > Integer.MAX_VALUE) {
-            throw new ArithmeticException("Sequence range size overflow");
+        if (endExclusive <= startInclusive) {
+            this.length = 0;
+        } else {
+            long longLength = endExclusive - startInclusive;
+            if (longLength < 0) {
+                throw new ArithmeticException("Sequence range size overflow");
+            }
+            this.length = longLength;
         }
-        this.length = (int) longLength;
     }
 
     @Override
@@ -49,14 +55,62 @@ public class LongRange extends AbstractSequence<Long> implements Sequence.OfLong
 
     @Override
     public Long get(int index) {
+        return getAsLong(index);
+    }
+
+    @Override
+    public Long get(long index) {
+        return getAsLong(index);
+    }
+
+    @Override
+    public long getAsLong(long index) {
+        checkIndex(index, length);
         return start + index;
     }
 
+    @Override
+    public void forEachLong(LongConsumer action) {
+        for (long i = start, end = start + length; i < end; i++) {
+            action.accept(i);
+        }
+    }
+
+    @Override
+    public void copyInto(long fromIndex, long[] dest, int destPos, int length) {
+        checkRange(fromIndex, length, this.length);
+        long from = start + fromIndex;
+        for (int i = 0; i < length; i++) {
+            dest[destPos + i] = from + i;
+        }
+    }
+
     @Override
     public int size() {
+        return saturatedSize(length);
+    }
+
+    @Override
+    public long longSize() {
         return length;
     }
 
+    @Override
+    public long getMemoryFootprint() {
+        return 0;
+    }
+
+    @Override
+    public int getPolynomialDegree() {
+        return 1;
+    }
+
+    @Override
+    public LongUnaryOperator getIndexPolynomial() {
+        long start = this.start;
+        return index -> start + index;
+    }
+
     protected static class RangeSpliterator implements Spliterator.OfLong {
         private final long fence;
         private long index;
@@ -68,7 +122,7 @@ public class LongRange extends AbstractSequence<Long> implements Sequence.OfLong
 
         @Override
         public Spliterator.OfLong trySplit() {
-            long lo = index, mid = (lo + fence) >> 1;
+            long lo = index, mid = lo + ((fence - lo) >>> 1);  // don't overflow on 64-bit bounds
             return (lo >= mid)
                     ? null
                     : new RangeSpliterator(lo, index = mid);
@@ -104,6 +158,7 @@ public class LongRange extends AbstractSequence<Long> implements Sequence.OfLong
                     Spliterator.DISTINCT |
                     Spliterator.SORTED |
                     Spliterator.SIZED |
+                    Spliterator.SUBSIZED |
                     Spliterator.NONNULL |
                     Spliterator.IMMUTABLE);
         }
@@ -0,0 +1,139 @@
+package com.abusalimov.mrcalc.runtime.impl.stream;
+
+import com.abusalimov.mrcalc.location.Location;
+import com.abusalimov.mrcalc.runtime.DeferredErrorException;
+
+import java.util.function.*;
+
+/**
+ * Holds the location of the statement that has stored a {@link LazySequence} into a variable, and attributes the
+ * errors raised by the mapper of the sequence to that statement, rather than to the one traversing the sequence.
+ * <p>
+ * The mapper is wrapped before the sequence is created, and is thus {@link #guardLongToLong(LongUnaryOperator)
+ * guarded} by an instance shared with the sequence, which gets the location later. An error raised before that is
+ * thrown as is, as well as an error already attributed to a sequence fused into the same pipeline upstream.
+ *
+ * @author Eldar Abusalimov
+ */
+public final class PipelineOrigin {
+    private volatile Location location;
+
+    public Location getLocation() {
+        return location;
+    }
+
+    /**
+     * Sets the location, unless it is set already, e.g. when assigning one variable to another.
+     *
+     * @param location the location of the statement that has produced the sequence
+     */
+    public void setLocation(Location location) {
+        if (this.location == null) {
+            this.location = location;
+        }
+    }
+
+    /**
+     * Wraps the error into a {@link DeferredErrorException} pointing to the origin, if known.
+     *
+     * @param e the error raised by the mapper
+     * @return the exception to throw
+     */
+    public RuntimeException attribute(RuntimeException e) {
+        Location location = this.location;
+        if (location == null || e instanceof DeferredErrorException) {
+            return e;
+        }
+        return new DeferredErrorException(location, e);
+    }
+
+    public <T, R> Function<T, R> guardToObject(Function<? super T, ? extends R> mapper) {
+        return value -> {
+            try {
+                return mapper.apply(value);
+            } catch (RuntimeException e) {
+                throw attribute(e);
+            }
+        };
+    }
+
+    public <R> LongFunction<R> guardLongToObject(LongFunction<? extends R> mapper) {
+        return value -> {
+            try {
+                return mapper.apply(value);
+            } catch (RuntimeException e) {
+                throw attribute(e);
+            }
+        };
+    }
+
+    public <R> DoubleFunction<R> guardDoubleToObject(DoubleFunction<? extends R> mapper) {
+        return value -> {
+            try {
+                return mapper.apply(value);
+            } catch (RuntimeException e) {
+                throw attribute(e);
+            }
+        };
+    }
+
+    public <T> ToLongFunction<T> guardToLong(ToLongFunction<? super T> mapper) {
+        return value -> {
+            try {
+                return mapper.applyAsLong(value);
+            } catch (RuntimeException e) {
+                throw attribute(e);
+            }
+        };
+    }
+
+    public LongUnaryOperator guardLongToLong(LongUnaryOperator mapper) {
+        return value -> {
+            try {
+                return mapper.applyAsLong(value);
+            } catch (RuntimeException e) {
+                throw attribute(e);
+            }
+        };
+    }
+
+    public DoubleToLongFunction guardDoubleToLong(DoubleToLongFunction mapper) {
+        return value -> {
+            try {
+                return mapper.applyAsLong(value);
+            } catch (RuntimeException e) {
+                throw attribute(e);
+            }
+        };
+    }
+
+    public <T> ToDoubleFunction<T> guardToDouble(ToDoubleFunction<? super T> mapper) {
+        return value -> {
+            try {
+                return mapper.applyAsDouble(value);
+            } catch (RuntimeException e) {
+                throw attribute(e);
+            }
+        };
+    }
+
+    public LongToDoubleFunction guardLongToDouble(LongToDoubleFunction mapper) {
+        return value -> {
+            try {
+                return mapper.applyAsDouble(value);
+            } catch (RuntimeException e) {
+                throw attribute(e);
+            }
+        };
+    }
+
+    public DoubleUnaryOperator guardDoubleToDouble(DoubleUnaryOperator mapper) {
+        return value -> {
+            try {
+                return mapper.applyAsDouble(value);
+            } catch (RuntimeException e) {
+                throw attribute(e);
+            }
+        };
+    }
+}
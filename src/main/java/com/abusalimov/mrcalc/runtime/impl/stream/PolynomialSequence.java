@@ -0,0 +1,89 @@
+package com.abusalimov.mrcalc.runtime.impl.stream;
+
+import com.abusalimov.mrcalc.runtime.Sequence;
+
+import java.math.BigInteger;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A sequence of longs which element at each index is given by an integer polynomial of that index, like a {@link
+ * LongRange range} or a polynomial mapping of a range. Such sequence can be {@link #sum() summed up} in a closed form,
+ * without visiting each element.
+ *
+ * @author Eldar Abusalimov
+ */
+public interface PolynomialSequence extends Sequence.OfLong {
+    /**
+     * Returns the degree of the polynomial yielding the elements of the sequence.
+     *
+     * @return the degree of the polynomial
+     */
+    int getPolynomialDegree();
+
+    /**
+     * Returns the polynomial that computes an element of the sequence given its index, using the wrapping long
+     * arithmetic. Computing an element this way never materializes the sequence.
+     *
+     * @return the function computing the polynomial: {@code index -> element}
+     */
+    LongUnaryOperator getIndexPolynomial();
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The elements of a polynomial sequence are computed on the fly, unless it holds them in an array.
+     */
+    @Override
+    default long getMemoryFootprint() {
+        return 0;
+    }
+
+    /**
+     * Computes the sum of the elements in a closed form using the Newton's forward differences formula:
+     * <pre>
+     *     p(0) + p(1) + ... + p(n-1) = C(n, 1) * p(0) + C(n, 2) * D p(0) + ... + C(n, d+1) * D^d p(0)
+     * </pre>
+     * where {@code D^k p(0)} is the k-th forward difference of the polynomial at zero.
+     * The differences are taken from the first d+1 elements, so the polynomial is evaluated d+1 times regardless of
+     * the length of the sequence.
+     * <p>
+     * The sum is computed exactly and then narrowed to a long, which yields the same result as summing up each
+     * element one by one using the wrapping long arithmetic. This also holds in case of an overflow while computing
+     * the elements themselves, since the wrapping arithmetic preserves the sums and products modulo 2^64.
+     *
+     * @return the sum of the elements, modulo 2^64
+     */
+    default long sum() {
+        long length = longSize();
+        int degree = getPolynomialDegree();
+        LongUnaryOperator polynomial = getIndexPolynomial();
+
+        if (length <= degree + 1) {
+            long sum = 0;
+            for (long i = 0; i < length; i++) {
+                sum += polynomial.applyAsLong(i);
+            }
+            return sum;
+        }
+
+        BigInteger[] differences = new BigInteger[degree + 1];
+        for (int i = 0; i <= degree; i++) {
+            differences[i] = BigInteger.valueOf(polynomial.applyAsLong(i));
+        }
+        for (int k = 1; k <= degree; k++) {
+            for (int i = degree; i >= k; i--) {
+                differences[i] = differences[i].subtract(differences[i - 1]);
+            }
+        }
+
+        BigInteger n = BigInteger.valueOf(length);
+        BigInteger binomial = BigInteger.ONE;
+        BigInteger sum = BigInteger.ZERO;
+        for (int k = 0; k <= degree; k++) {
+            /* C(n, k+1) = C(n, k) * (n - k) / (k + 1) */
+            binomial = binomial.multiply(n.subtract(BigInteger.valueOf(k))).divide(BigInteger.valueOf(k + 1));
+            sum = sum.add(binomial.multiply(differences[k]));
+        }
+        return sum.longValue();
+    }
+}
@@ -1,27 +1,49 @@
 package com.abusalimov.mrcalc.runtime.impl.stream;
 
+import com.abusalimov.mrcalc.location.Location;
+import com.abusalimov.mrcalc.runtime.ArithmeticKernel;
+import com.abusalimov.mrcalc.runtime.CancellationToken;
+import com.abusalimov.mrcalc.runtime.ParallelMode;
+import com.abusalimov.mrcalc.runtime.RangeFold;
 import com.abusalimov.mrcalc.runtime.Runtime;
 import com.abusalimov.mrcalc.runtime.Sequence;
 
+import java.util.Objects;
+import java.util.Spliterator;
 import java.util.function.*;
-import java.util.stream.DoubleStream;
-import java.util.stream.LongStream;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.stream.*;
 
 /**
  * The runtime implementation using Java 8 {@link Stream} API.
+ * <p>
+ * The map() methods return {@link LazySequence lazy sequences}, so that a reduce() over a chain of map() calls runs
+ * as a single fused stream pass with no intermediate arrays.
+ * <p>
+ * Whether a stream runs in parallel is decided by the {@link ParallelMode} for each operation separately, based on the
+ * number of elements and the total {@link #withCostHint(long) estimated cost} of the lambdas fused into the stream.
+ * A reduction of a small array or range is run as a plain loop, with no stream involved at all.
+ * <p>
+ * An array-backed sequence mapped with an {@link ArithmeticKernel} is an exception to laziness: it is mapped eagerly
+ * into a new array, a {@link #KERNEL_CHUNK_SIZE chunk} at a time, which is way faster than streaming the elements
+ * through the mapper one by one.
  *
  * @author Eldar Abusalimov
  */
 public class StreamRuntime implements Runtime {
-    private final boolean parallel;
+    /**
+     * The number of elements mapped by a kernel between two checks of the cancellation token.
+     */
+    protected static final int KERNEL_CHUNK_SIZE = 1 << 12;
+
+    private final ParallelMode parallelMode;
+    private final CancellationToken cancellationToken;
+    private final long lambdaCost;
 
     /**
-     * Creates a new instance providing functions executing in parallel, where possible.
+     * Creates a new instance deciding whether to run each operation in parallel adaptively.
      */
     public StreamRuntime() {
-        this(true);
+        this(ParallelMode.ADAPTIVE, CancellationToken.NONE);
     }
 
     /**
@@ -30,7 +52,44 @@ public class StreamRuntime implements Runtime {
      * @param parallel whether to use parallel operations, where possible, or not
      */
     public StreamRuntime(boolean parallel) {
-        this.parallel = parallel;
+        this(parallel, CancellationToken.NONE);
+    }
+
+    /**
+     * Creates a new instance operating in parallel, as indicated by the argument, which streams stop once the given
+     * token is cancelled.
+     *
+     * @param parallel          whether to use parallel operations, where possible, or not
+     * @param cancellationToken the token checked each time a stream splits its source or starts processing a chunk
+     */
+    public StreamRuntime(boolean parallel, CancellationToken cancellationToken) {
+        this(parallel ? ParallelMode.PARALLEL : ParallelMode.SEQUENTIAL, cancellationToken);
+    }
+
+    /**
+     * Creates a new instance running operations in parallel according to the given mode, which streams stop once the
+     * given token is cancelled.
+     *
+     * @param parallelMode      tells whether to run an operation in parallel
+     * @param cancellationToken the token checked each time a stream splits its source or starts processing a chunk
+     */
+    public StreamRuntime(ParallelMode parallelMode, CancellationToken cancellationToken) {
+        this(parallelMode, cancellationToken, 0);
+    }
+
+    private StreamRuntime(ParallelMode parallelMode, CancellationToken cancellationToken, long lambdaCost) {
+        this.parallelMode = Objects.requireNonNull(parallelMode, "parallelMode");
+        this.cancellationToken = Objects.requireNonNull(cancellationToken, "cancellationToken");
+        this.lambdaCost = lambdaCost;
+    }
+
+    public ParallelMode getParallelMode() {
+        return parallelMode;
+    }
+
+    @Override
+    public StreamRuntime withCostHint(long lambdaCost) {
+        return (lambdaCost == this.lambdaCost) ? this : new StreamRuntime(parallelMode, cancellationToken, lambdaCost);
     }
 
     @Override
@@ -40,77 +99,399 @@ public class StreamRuntime implements Runtime {
 
     @Override
     public <E> E reduce(Sequence<E> sequence, E identity, BinaryOperator<E> operator) {
-        return objectStream(sequence).reduce(identity, operator);
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        if (isSmall(sequence, size, cost)) {
+            E result = identity;
+            for (long i = 0; i < size; i++) {
+                result = operator.apply(result, sequence.get(i));
+            }
+            return result;
+        }
+        return unwrappingRethrown(() -> withParallelism(objectStream(sequence), size, cost).reduce(identity, operator));
     }
 
     @Override
     public long reduceLong(Sequence.OfLong sequence, long identity, LongBinaryOperator operator) {
-        return longStream(sequence).reduce(identity, operator);
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        if (isSmall(sequence, size, cost)) {
+            long result = identity;
+            for (long i = 0; i < size; i++) {
+                result = operator.applyAsLong(result, sequence.getAsLong(i));
+            }
+            return result;
+        }
+        return unwrappingRethrown(() -> withParallelism(longStream(sequence), size, cost).reduce(identity, operator));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Ranges and polynomial mappings of ranges are summed up in a {@link PolynomialSequence#sum() closed form}.
+     */
+    @Override
+    public long reduceLongSum(Sequence.OfLong sequence, long identity, LongBinaryOperator operator) {
+        if (sequence instanceof PolynomialSequence) {
+            return identity + ((PolynomialSequence) sequence).sum();
+        }
+        return reduceLong(sequence, identity, operator);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In parallel, the range is split into chunks, which are folded by a parallel stream.
+     */
+    @Override
+    public long reduceLongRange(long startInclusive, long endExclusive, long identity, RangeFold.OfLong fold,
+                                LongBinaryOperator combiner) {
+        long size = createLongRange(startInclusive, endExclusive).longSize();
+        if (!parallelMode.isParallel(size, Math.max(lambdaCost, 1))) {
+            long result = identity;
+            for (long i = 0; i < size; i += RangeFold.CHUNK_SIZE) {
+                cancellationToken.checkCancelled();
+                result = fold.fold(result, startInclusive + i, (int) Math.min(RangeFold.CHUNK_SIZE, size - i));
+            }
+            return result;
+        }
+        return unwrappingRethrown(() -> rangeChunks(size).parallel().map(i -> {
+            cancellationToken.checkCancelled();
+            return fold.fold(identity, startInclusive + i, (int) Math.min(RangeFold.CHUNK_SIZE, size - i));
+        }).reduce(identity, combiner));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In parallel, the range is split into chunks, which are folded by a parallel stream.
+     */
+    @Override
+    public double reduceDoubleRange(long startInclusive, long endExclusive, double identity, RangeFold.OfDouble fold,
+                                    DoubleBinaryOperator combiner) {
+        long size = createLongRange(startInclusive, endExclusive).longSize();
+        if (!parallelMode.isParallel(size, Math.max(lambdaCost, 1))) {
+            double result = identity;
+            for (long i = 0; i < size; i += RangeFold.CHUNK_SIZE) {
+                cancellationToken.checkCancelled();
+                result = fold.fold(result, startInclusive + i, (int) Math.min(RangeFold.CHUNK_SIZE, size - i));
+            }
+            return result;
+        }
+        return unwrappingRethrown(() -> rangeChunks(size).parallel().mapToDouble(i -> {
+            cancellationToken.checkCancelled();
+            return fold.fold(identity, startInclusive + i, (int) Math.min(RangeFold.CHUNK_SIZE, size - i));
+        }).reduce(identity, combiner));
     }
 
     @Override
     public double reduceDouble(Sequence.OfDouble sequence, double identity, DoubleBinaryOperator operator) {
-        return doubleStream(sequence).reduce(identity, operator);
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        if (isSmall(sequence, size, cost)) {
+            double result = identity;
+            for (long i = 0; i < size; i++) {
+                result = operator.applyAsDouble(result, sequence.getAsDouble(i));
+            }
+            return result;
+        }
+        return unwrappingRethrown(() -> withParallelism(doubleStream(sequence), size, cost).reduce(identity, operator));
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public <E, R> Sequence<R> mapToObject(Sequence<E> sequence, Function<? super E, ? extends R> mapper) {
-        return new ObjectArraySequence(objectStream(sequence).map(mapper).toArray());
+    public <E, R> LazyObjectSequence<R> mapToObject(Sequence<E> sequence, Function<? super E, ? extends R> mapper) {
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        PipelineOrigin origin = new PipelineOrigin();
+        return new LazyObjectSequence<>(size, () -> withParallelism(
+                objectStream(sequence).map(origin.guardToObject(mapper)), size, cost), cost, origin);
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public <R> Sequence<R> mapLongToObject(Sequence.OfLong sequence, LongFunction<? extends R> mapper) {
-        return new ObjectArraySequence(longStream(sequence).mapToObj(mapper).toArray());
+    public <R> LazyObjectSequence<R> mapLongToObject(Sequence.OfLong sequence, LongFunction<? extends R> mapper) {
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        PipelineOrigin origin = new PipelineOrigin();
+        return new LazyObjectSequence<>(size, () -> withParallelism(
+                longStream(sequence).mapToObj(origin.guardLongToObject(mapper)), size, cost), cost, origin);
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public <R> Sequence<R> mapDoubleToObject(Sequence.OfDouble sequence, DoubleFunction<? extends R> mapper) {
-        return new ObjectArraySequence(doubleStream(sequence).mapToObj(mapper).toArray());
+    public <R> LazyObjectSequence<R> mapDoubleToObject(Sequence.OfDouble sequence,
+                                                       DoubleFunction<? extends R> mapper) {
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        PipelineOrigin origin = new PipelineOrigin();
+        return new LazyObjectSequence<>(size, () -> withParallelism(
+                doubleStream(sequence).mapToObj(origin.guardDoubleToObject(mapper)), size, cost), cost, origin);
+    }
+
+    @Override
+    public <E> LazyLongSequence mapToLong(Sequence<E> sequence, ToLongFunction<? super E> mapper) {
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        PipelineOrigin origin = new PipelineOrigin();
+        return new LazyLongSequence(size, () -> withParallelism(
+                objectStream(sequence).mapToLong(origin.guardToLong(mapper)), size, cost), cost, origin);
+    }
+
+    @Override
+    public LazyLongSequence mapLongToLong(Sequence.OfLong sequence, LongUnaryOperator mapper) {
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        PipelineOrigin origin = new PipelineOrigin();
+        return new LazyLongSequence(size, () -> withParallelism(
+                longStream(sequence).map(origin.guardLongToLong(mapper)), size, cost), cost, origin);
+    }
+
+    @Override
+    public LazyLongSequence mapLongToLongPolynomial(Sequence.OfLong sequence, LongUnaryOperator mapper, int degree) {
+        if (sequence instanceof PolynomialSequence) {
+            PolynomialSequence source = (PolynomialSequence) sequence;
+            long polynomialDegree = (long) source.getPolynomialDegree() * degree;
+            if (polynomialDegree <= MAX_POLYNOMIAL_DEGREE) {
+                long size = sequence.longSize();
+                long cost = getElementCost(sequence);
+                PipelineOrigin origin = new PipelineOrigin();
+                LongUnaryOperator indexPolynomial = source.getIndexPolynomial().andThen(mapper);
+                return new LazyPolynomialLongSequence(size,
+                        () -> withParallelism(longStream(sequence).map(origin.guardLongToLong(mapper)), size, cost),
+                        origin.guardLongToLong(indexPolynomial), (int) polynomialDegree, origin);
+            }
+        }
+        return mapLongToLong(sequence, mapper);
     }
 
     @Override
-    public <E> LongArraySequence mapToLong(Sequence<E> sequence, ToLongFunction<? super E> mapper) {
-        return new LongArraySequence(objectStream(sequence).mapToLong(mapper).toArray());
+    public Sequence.OfLong mapLongToLongKernel(Sequence.OfLong sequence, LongUnaryOperator mapper,
+                                               ArithmeticKernel.OfLong kernel) {
+        long[] array = getArray(sequence);
+        if (array == null) {
+            return mapLongToLong(sequence, mapper);
+        }
+        long[] result = new long[array.length];
+        forEachKernelChunk(array.length, (start, length) -> kernel.apply(array, start, result, start, length));
+        return new LongArraySequence(result);
     }
 
     @Override
-    public LongArraySequence mapLongToLong(Sequence.OfLong sequence, LongUnaryOperator mapper) {
-        return new LongArraySequence(longStream(sequence).map(mapper).toArray());
+    public LazyLongSequence mapDoubleToLong(Sequence.OfDouble sequence, DoubleToLongFunction mapper) {
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        PipelineOrigin origin = new PipelineOrigin();
+        return new LazyLongSequence(size, () -> withParallelism(
+                doubleStream(sequence).mapToLong(origin.guardDoubleToLong(mapper)), size, cost), cost, origin);
     }
 
     @Override
-    public LongArraySequence mapDoubleToLong(Sequence.OfDouble sequence, DoubleToLongFunction mapper) {
-        return new LongArraySequence(doubleStream(sequence).mapToLong(mapper).toArray());
+    public <E> LazyDoubleSequence mapToDouble(Sequence<E> sequence, ToDoubleFunction<? super E> mapper) {
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        PipelineOrigin origin = new PipelineOrigin();
+        return new LazyDoubleSequence(size, () -> withParallelism(
+                objectStream(sequence).mapToDouble(origin.guardToDouble(mapper)), size, cost), cost, origin);
     }
 
     @Override
-    public <E> DoubleArraySequence mapToDouble(Sequence<E> sequence, ToDoubleFunction<? super E> mapper) {
-        return new DoubleArraySequence(objectStream(sequence).mapToDouble(mapper).toArray());
+    public LazyDoubleSequence mapLongToDouble(Sequence.OfLong sequence, LongToDoubleFunction mapper) {
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        PipelineOrigin origin = new PipelineOrigin();
+        return new LazyDoubleSequence(size, () -> withParallelism(
+                longStream(sequence).mapToDouble(origin.guardLongToDouble(mapper)), size, cost), cost, origin);
     }
 
     @Override
-    public DoubleArraySequence mapLongToDouble(Sequence.OfLong sequence, LongToDoubleFunction mapper) {
-        return new DoubleArraySequence(longStream(sequence).mapToDouble(mapper).toArray());
+    public LazyDoubleSequence mapDoubleToDouble(Sequence.OfDouble sequence, DoubleUnaryOperator mapper) {
+        long size = sequence.longSize();
+        long cost = getElementCost(sequence);
+        PipelineOrigin origin = new PipelineOrigin();
+        return new LazyDoubleSequence(size, () -> withParallelism(
+                doubleStream(sequence).map(origin.guardDoubleToDouble(mapper)), size, cost), cost, origin);
     }
 
     @Override
-    public DoubleArraySequence mapDoubleToDouble(Sequence.OfDouble sequence, DoubleUnaryOperator mapper) {
-        return new DoubleArraySequence(doubleStream(sequence).map(mapper).toArray());
+    public Sequence.OfDouble mapDoubleToDoubleKernel(Sequence.OfDouble sequence, DoubleUnaryOperator mapper,
+                                                     ArithmeticKernel.OfDouble kernel) {
+        double[] array = getArray(sequence);
+        if (array == null) {
+            return mapDoubleToDouble(sequence, mapper);
+        }
+        double[] result = new double[array.length];
+        forEachKernelChunk(array.length, (start, length) -> kernel.apply(array, start, result, start, length));
+        return new DoubleArraySequence(result);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T materialize(T value) {
+        return (T) LazySequence.materializeIfLazy(value);
+    }
+
+    @Override
+    public void setOrigin(Object value, Location location) {
+        if (value instanceof LazySequence) {
+            ((LazySequence<?, ?, ?>) value).getOrigin().setLocation(location);
+        }
+    }
+
+    /**
+     * Estimates the cost of processing a single element of the sequence with the lambda passed to the current
+     * operation, including the cost of computing the element itself, if the sequence is lazy.
+     *
+     * @param sequence the sequence to process
+     * @return the estimated cost, at least 1
+     */
+    protected long getElementCost(Sequence<?> sequence) {
+        long cost = Math.max(lambdaCost, 1);
+        if (sequence instanceof LazySequence && !((LazySequence<?, ?, ?>) sequence).isMaterialized()) {
+            cost += ((LazySequence<?, ?, ?>) sequence).getElementCost();
+        }
+        return cost;
+    }
+
+    /**
+     * Tells whether a reduction is cheap enough to be run as a plain loop. Lazy sequences are always streamed
+     * though, so that the fused pipeline doesn't get materialized into an intermediate array.
+     */
+    private boolean isSmall(Sequence<?> sequence, long size, long cost) {
+        return !(sequence instanceof LazySequence) && !ParallelMode.ADAPTIVE.isParallel(size, cost);
+    }
+
+    /**
+     * Runs the action over each chunk of an array of the given length, in parallel if it is worth it.
+     *
+     * @param length the length of the array
+     * @param action the action to run on each chunk: {@code start, length -> void}
+     */
+    private void forEachKernelChunk(int length, ChunkAction action) {
+        int chunks = (length + KERNEL_CHUNK_SIZE - 1) / KERNEL_CHUNK_SIZE;
+        unwrappingRethrown(() -> {
+            withParallelism(IntStream.range(0, chunks), length, Math.max(lambdaCost, 1)).forEach(chunk -> {
+                cancellationToken.checkCancelled();
+                int start = chunk * KERNEL_CHUNK_SIZE;
+                action.accept(start, Math.min(KERNEL_CHUNK_SIZE, length - start));
+            });
+            return null;
+        });
+    }
+
+    private static long[] getArray(Sequence.OfLong sequence) {
+        if (sequence instanceof LazyLongSequence && ((LazyLongSequence) sequence).isMaterialized()) {
+            sequence = ((LazyLongSequence) sequence).materialize();
+        }
+        return (sequence instanceof LongArraySequence) ? ((LongArraySequence) sequence).getArray() : null;
+    }
+
+    private static double[] getArray(Sequence.OfDouble sequence) {
+        if (sequence instanceof LazyDoubleSequence && ((LazyDoubleSequence) sequence).isMaterialized()) {
+            sequence = ((LazyDoubleSequence) sequence).materialize();
+        }
+        return (sequence instanceof DoubleArraySequence) ? ((DoubleArraySequence) sequence).getArray() : null;
+    }
+
+    /**
+     * Returns a stream of offsets of consecutive {@link RangeFold#CHUNK_SIZE chunks} of a range of the given size.
+     */
+    private static LongStream rangeChunks(long size) {
+        long chunks = size / RangeFold.CHUNK_SIZE + ((size % RangeFold.CHUNK_SIZE != 0) ? 1 : 0);
+        return LongStream.range(0, chunks).map(chunk -> chunk * RangeFold.CHUNK_SIZE);
+    }
+
+    /**
+     * Runs a terminal operation of a stream, recovering the original exception raised by a lambda in another thread.
+     *
+     * @param operation the operation to run
+     * @param <R>       the type of the result
+     * @return the result of the operation
+     * @see #unwrapRethrown(Throwable)
+     */
+    static <R> R unwrappingRethrown(Supplier<R> operation) {
+        try {
+            return operation.get();
+        } catch (RuntimeException e) {
+            throw unwrapRethrown(e);
+        } catch (Error e) {
+            throw unwrapRethrown(e);
+        }
+    }
+
+    /**
+     * Recovers the original exception from the one thrown by a {@link java.util.concurrent.ForkJoinTask} that has
+     * failed in another thread. The task rethrows a new exception of the same class, created reflectively with the
+     * original one as the cause, but without its message. An exception passed through nested tasks may be rebuilt
+     * several times.
+     *
+     * @param e   the exception caught from the task
+     * @param <T> the type of the exception
+     * @return the original exception, or the given one if it has not been rebuilt
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Throwable> T unwrapRethrown(T e) {
+        while (e.getCause() != null && e.getCause().getClass() == e.getClass()) {
+            e = (T) e.getCause();
+        }
+        return e;
+    }
+
+    private <S extends BaseStream<?, S>> S withParallelism(S stream, long size, long cost) {
+        return parallelMode.isParallel(size, cost) ? stream.parallel() : stream.sequential();
+    }
+
+    /*
+     * The stream factories below continue the pipeline of a lazy sequence instead of wrapping its spliterator,
+     * which fuses chained map() and reduce() operations into a single stream pass. It is up to the caller to make
+     * the returned stream parallel or sequential.
+     */
+
+    @SuppressWarnings("unchecked")
     protected <E> Stream<E> objectStream(Sequence<E> sequence) {
-        return StreamSupport.stream(sequence.spliterator(), parallel);
+        if (sequence instanceof LazyObjectSequence) {
+            Stream<E> stream = ((LazyObjectSequence<E>) sequence).pipeline();
+            if (stream != null) {
+                return stream;
+            }
+        }
+        Spliterator<E> spliterator = sequence.spliterator();
+        if (cancellationToken != CancellationToken.NONE) {
+            spliterator = new CancellableSpliterator.OfRef<>(spliterator, cancellationToken);
+        }
+        return StreamSupport.stream(spliterator, false);
     }
 
     protected LongStream longStream(Sequence.OfLong sequence) {
-        return StreamSupport.longStream(sequence.spliterator(), parallel);
+        if (sequence instanceof LazyLongSequence) {
+            LongStream stream = ((LazyLongSequence) sequence).pipeline();
+            if (stream != null) {
+                return stream;
+            }
+        }
+        Spliterator.OfLong spliterator = sequence.spliterator();
+        if (cancellationToken != CancellationToken.NONE) {
+            spliterator = new CancellableSpliterator.OfLong(spliterator, cancellationToken);
+        }
+        return StreamSupport.longStream(spliterator, false);
     }
 
     protected DoubleStream doubleStream(Sequence.OfDouble sequence) {
-        return StreamSupport.doubleStream(sequence.spliterator(), parallel);
+        if (sequence instanceof LazyDoubleSequence) {
+            DoubleStream stream = ((LazyDoubleSequence) sequence).pipeline();
+            if (stream != null) {
+                return stream;
+            }
+        }
+        Spliterator.OfDouble spliterator = sequence.spliterator();
+        if (cancellationToken != CancellationToken.NONE) {
+            spliterator = new CancellableSpliterator.OfDouble(spliterator, cancellationToken);
+        }
+        return StreamSupport.doubleStream(spliterator, false);
     }
 
+    /**
+     * Represents an operation upon a chunk of an array.
+     */
+    @FunctionalInterface
+    private interface ChunkAction {
+        void accept(int start, int length);
+    }
 }
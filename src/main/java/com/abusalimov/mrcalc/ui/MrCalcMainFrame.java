@@ -15,6 +15,7 @@ public class MrCalcMainFrame extends JFrame {
     public static final int PREFERRED_WIDTH = 800;
 
     private final BackendTypeSwitcher backendTypeSwitcher;
+    private final RuntimeTypeSwitcher runtimeTypeSwitcher;
     private final ParallelModeSwitcher parallelModeSwitcher;
     private final InterruptButton interruptButton;
     private final CodeTextPane codeTextPane;
@@ -25,6 +26,7 @@ public class MrCalcMainFrame extends JFrame {
         super("MrCalc");
 
         backendTypeSwitcher = new BackendTypeSwitcher(calcExecutor);
+        runtimeTypeSwitcher = new RuntimeTypeSwitcher(calcExecutor);
         parallelModeSwitcher = new ParallelModeSwitcher(calcExecutor);
         interruptButton = new InterruptButton(calcExecutor);
         outputTextArea = new OutputTextArea();
@@ -50,6 +52,9 @@ public class MrCalcMainFrame extends JFrame {
         northToolPanel.setLayout(new BoxLayout(northToolPanel, BoxLayout.Y_AXIS));
         backendTypeSwitcher.setBorder(new TitledBorder("Backend"));
         northToolPanel.add(backendTypeSwitcher);
+        runtimeTypeSwitcher.setBorder(new TitledBorder("Runtime"));
+        northToolPanel.add(runtimeTypeSwitcher);
+        parallelModeSwitcher.setBorder(new TitledBorder("Parallelism"));
         northToolPanel.add(parallelModeSwitcher);
         toolPanel.add(northToolPanel, BorderLayout.NORTH);
         toolPanel.add(interruptButton, BorderLayout.SOUTH);
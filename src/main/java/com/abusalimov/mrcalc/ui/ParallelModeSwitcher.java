@@ -1,17 +1,43 @@
 package com.abusalimov.mrcalc.ui;
 
 import com.abusalimov.mrcalc.CalcExecutor;
+import com.abusalimov.mrcalc.runtime.ParallelMode;
 
 import javax.swing.*;
 
 /**
+ * Radio buttons for selecting whether the runtime operations run in parallel.
+ *
  * @author Eldar Abusalimov
  */
-public class ParallelModeSwitcher extends JCheckBox {
+public class ParallelModeSwitcher extends JPanel {
     public ParallelModeSwitcher(CalcExecutor executor) {
-        super("Parallel");
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
 
-        setSelected(executor.isParallel());
-        addActionListener(a -> executor.setParallel(isSelected()));
+        ButtonGroup group = new ButtonGroup();
+
+        for (ParallelMode parallelMode : new ParallelMode[]{
+                ParallelMode.ADAPTIVE, ParallelMode.PARALLEL, ParallelMode.SEQUENTIAL}) {
+            JRadioButton button = new JRadioButton(getName(parallelMode));
+            button.addActionListener(a -> executor.setParallelMode(parallelMode));
+            group.add(button);
+            add(button);
+
+            if (parallelMode == executor.getParallelMode()) {
+                button.setSelected(true);
+            }
+        }
     }
+
+    private static String getName(ParallelMode parallelMode) {
+        switch (parallelMode) {
+            case ADAPTIVE:
+                return "Adaptive";
+            case PARALLEL:
+                return "Always parallel";
+            default:
+                return "Always sequential";
+        }
+    }
+
 }
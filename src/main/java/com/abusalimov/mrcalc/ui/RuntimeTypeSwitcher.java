@@ -0,0 +1,30 @@
+package com.abusalimov.mrcalc.ui;
+
+import com.abusalimov.mrcalc.CalcExecutor;
+
+import javax.swing.*;
+
+/**
+ * Radio buttons for selecting {@link com.abusalimov.mrcalc.runtime.Runtime} implementation.
+ *
+ * @author Eldar Abusalimov
+ */
+public class RuntimeTypeSwitcher extends JPanel {
+    public RuntimeTypeSwitcher(CalcExecutor executor) {
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+
+        ButtonGroup group = new ButtonGroup();
+
+        for (CalcExecutor.RuntimeImplSwitch runtimeImplSwitch : CalcExecutor.RuntimeImplSwitch.values()) {
+            JRadioButton button = new JRadioButton(runtimeImplSwitch.getName());
+            button.addActionListener(a -> executor.setRuntimeImplSwitch(runtimeImplSwitch));
+            group.add(button);
+            add(button);
+
+            if (runtimeImplSwitch == executor.getRuntimeImplSwitch()) {
+                button.setSelected(true);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.abusalimov.mrcalc
+
+import com.abusalimov.mrcalc.ast.ProgramNode
+import com.abusalimov.mrcalc.backend.Backend
+import com.abusalimov.mrcalc.backend.impl.asm.AsmBackendImpl
+import com.abusalimov.mrcalc.backend.impl.bytebuddy.BytebuddyBackendImpl
+import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncBackendImpl
+import com.abusalimov.mrcalc.backend.impl.methodhandle.MethodHandleBackendImpl
+import com.abusalimov.mrcalc.backend.impl.tiered.TieredBackendImpl
+import com.abusalimov.mrcalc.compile.Compiler
+import com.abusalimov.mrcalc.compile.Stmt
+import com.abusalimov.mrcalc.parse.Parser
+import com.abusalimov.mrcalc.parse.impl.antlr.ANTLRParserImpl
+import com.abusalimov.mrcalc.runtime.impl.stream.StreamRuntime
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Compares the compile latency and the steady-state throughput of the backends on the same programs.
+ * <p>
+ * Not a unit test, it is skipped unless run in the {@code benchmark} profile:
+ * <pre>
+ *     mvn test -Pbenchmark
+ * </pre>
+ * Each program is compiled from scratch, without reusing any cached functions, and then executed sequentially
+ * until the JIT settles down.
+ *
+ * @author Eldar Abusalimov
+ */
+class BackendBenchmark {
+    private static final Map<String, Backend> BACKENDS = [
+            "interpreted"   : new FuncBackendImpl(),
+            "bytecode"      : new BytebuddyBackendImpl(),
+            "fused bytecode": new BytebuddyBackendImpl(true),
+            "method handles": new MethodHandleBackendImpl(),
+            "asm"           : new AsmBackendImpl(),
+            "tiered"        : new TieredBackendImpl(),
+    ] as Map<String, Backend>
+
+    private static final Map<String, String> PROGRAMS = [
+            "leibniz pi"   : "print 4 * reduce(map({0, 1000000}, i -> (1 - 2*(i - i/2*2)) / (2.0*i + 1)), 0.0, " +
+                             "a b -> a + b)",
+            "nested reduce": "print reduce(map({1, 1000}, i -> reduce({1, i}, 0, a b -> a + b*b)), 0, a b -> a + b)",
+            "double chain" : "var s = map({1, 300000}, x -> x * 0.5)\n" +
+                             "print reduce(map(map(s, x -> x*x + 1), x -> 1 / x), 0.0, a b -> a + b)",
+    ]
+
+    private static final int COMPILE_WARMUP = 50
+    private static final int COMPILE_RUNS = 200
+    private static final long EXEC_WARMUP_NANOS = 2_000_000_000L
+    private static final int EXEC_RUNS = 20
+
+    @Before
+    void setUp() {
+        Assume.assumeTrue("Run in the benchmark profile", Boolean.getBoolean("mrcalc.benchmark"))
+    }
+
+    @Test
+    void "compares the backends"() {
+        Parser parser = new ANTLRParserImpl()
+
+        printf("%-14s %-15s %15s %15s%n", "program", "backend", "compile, us", "exec, ms")
+        PROGRAMS.each { String programName, String source ->
+            ProgramNode programNode = parser.parse(source)
+            BACKENDS.each { String backendName, Backend backend ->
+                double compileMicros = measureCompile(backend, programNode)
+                double execMillis = measureExec(new Compiler(backend).compile(programNode))
+                printf("%-14s %-15s %15.1f %15.2f%n", programName, backendName, compileMicros, execMillis)
+            }
+        }
+    }
+
+    private static double measureCompile(Backend backend, ProgramNode programNode) {
+        for (int i = 0; i < COMPILE_WARMUP; i++) {
+            new Compiler(backend).compile(programNode)
+        }
+        long start = System.nanoTime()
+        for (int i = 0; i < COMPILE_RUNS; i++) {
+            new Compiler(backend).compile(programNode)
+        }
+        return (System.nanoTime() - start) / 1e3d / COMPILE_RUNS
+    }
+
+    private static double measureExec(List<Stmt> stmts) {
+        def interpreter = new Interpreter(new StreamRuntime())
+        long warmupEnd = System.nanoTime() + EXEC_WARMUP_NANOS
+        while (System.nanoTime() < warmupEnd) {
+            interpreter.exec(stmts)
+        }
+        long start = System.nanoTime()
+        for (int i = 0; i < EXEC_RUNS; i++) {
+            interpreter.exec(stmts)
+        }
+        return (System.nanoTime() - start) / 1e6d / EXEC_RUNS
+    }
+}
@@ -2,8 +2,11 @@ package com.abusalimov.mrcalc
 
 import com.abusalimov.mrcalc.backend.Backend
 import com.abusalimov.mrcalc.backend.FunctionAssembler
+import com.abusalimov.mrcalc.backend.impl.asm.AsmBackendImpl
 import com.abusalimov.mrcalc.backend.impl.bytebuddy.BytebuddyBackendImpl
 import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncBackendImpl
+import com.abusalimov.mrcalc.backend.impl.methodhandle.MethodHandleBackendImpl
+import com.abusalimov.mrcalc.backend.impl.tiered.TieredBackendImpl
 import com.abusalimov.mrcalc.runtime.Runtime
 import com.abusalimov.mrcalc.runtime.Sequence
 import com.abusalimov.mrcalc.runtime.impl.stream.StreamRuntime
@@ -26,7 +29,10 @@ class BackendTest<E, F> {
     @Parameterized.Parameters
     public static Collection<Object[]> data() {
         [[new FuncBackendImpl()] as Object[],
-         [new BytebuddyBackendImpl<>()] as Object[]]
+         [new BytebuddyBackendImpl<>()] as Object[],
+         [new MethodHandleBackendImpl()] as Object[],
+         [new AsmBackendImpl()] as Object[],
+         [new TieredBackendImpl()] as Object[]]
     }
 
     BackendTest(Backend<E, F> backend) {
@@ -173,7 +179,7 @@ class BackendTest<E, F> {
         def iBadLambda = fasm.lambda(createFasm(long, long)) { fasm.lMath.div(fasm.lLoad(0), fasm.lConst(0)) }
         assert [] == fasm.call(fasm.getSequenceMap(long, long).map(emptyRange, iBadLambda)).eval(runtime)
         shouldFail ArithmeticException, {
-            fasm.call(fasm.getSequenceMap(long, long).map(nonEmptyRange, iBadLambda)).eval(runtime)
+            runtime.materialize(fasm.call(fasm.getSequenceMap(long, long).map(nonEmptyRange, iBadLambda)).eval(runtime))
         }
 
 //        def lFasm = createFasm(long)
@@ -0,0 +1,55 @@
+package com.abusalimov.mrcalc
+
+import com.abusalimov.mrcalc.diagnostic.Diagnostic
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests for the {@link CalcExecutor} running the programs the way the GUI does.
+ *
+ * @author Eldar Abusalimov
+ */
+class CalcExecutorTest {
+    private CalcExecutor executor
+    private Semaphore finished = new Semaphore(0)
+
+    @Before
+    void setUp() {
+        executor = new CalcExecutor(2)
+        executor.addAndFireExecutionListener { if (!it) finished.release() }
+    }
+
+    @After
+    void tearDown() {
+        executor.pool.shutdownNow()
+    }
+
+    def run(String source) {
+        def out = new ByteArrayOutputStream()
+        List<Diagnostic> diagnostics = []
+        finished.drainPermits()
+        executor.execute(source, { out }, { diagnostics << it })
+        assert finished.tryAcquire(10, TimeUnit.SECONDS)
+        assert [] == diagnostics
+        out.toString().readLines()
+    }
+
+    @Test
+    void "releases dead variables by default"() {
+        assert RetentionPolicy.RELEASE_DEAD == executor.retentionPolicy
+    }
+
+    @Test
+    void "executes edited programs with dead variables released"() {
+        assert ["12", "7"] == run("var xs = map({1, 3}, x -> x * 2)\nprint reduce(xs, 0, a b -> a + b)\n" +
+                                  "var n = 7\nprint n")
+        assert ["12", "8"] == run("var xs = map({1, 3}, x -> x * 2)\nprint reduce(xs, 0, a b -> a + b)\n" +
+                                  "var n = 7\nprint n + 1")
+        assert ["[2, 4, 6]", "8"] == run("var xs = map({1, 3}, x -> x * 2)\nprint xs\n" +
+                                         "var n = 7\nprint n + 1")
+    }
+}
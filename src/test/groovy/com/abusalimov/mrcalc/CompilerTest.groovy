@@ -1,13 +1,20 @@
 package com.abusalimov.mrcalc
 
 import com.abusalimov.mrcalc.backend.Backend
+import com.abusalimov.mrcalc.backend.impl.bytebuddy.BytebuddyBackendImpl
+import com.abusalimov.mrcalc.backend.impl.bytebuddy.ClassLoaderArena
 import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncBackendImpl
+import com.abusalimov.mrcalc.backend.impl.tiered.TieredBackendImpl
 import com.abusalimov.mrcalc.compile.CompileErrorException
 import com.abusalimov.mrcalc.compile.Compiler
+import com.abusalimov.mrcalc.compile.FunctionCache
 import com.abusalimov.mrcalc.parse.Parser
 import com.abusalimov.mrcalc.parse.impl.antlr.ANTLRParserImpl
+import com.abusalimov.mrcalc.runtime.impl.forkjoin.ForkJoinRuntime
 import org.junit.Before
 import org.junit.Test
+
+import java.util.concurrent.Executor
 /**
  * @author Eldar Abusalimov
  */
@@ -50,6 +57,133 @@ class CompilerTest {
         assert compile("var x = 0; var y = 1; var z = 3; var foo = x+y+z")
     }
 
+    @Test
+    void "reuses functions of identical expressions"() {
+        def cache = new FunctionCache()
+        def first = new Compiler(backend, cache).compile(parser.parse("var a = 1; map({a, 10}, x -> x * 2.0)"))
+        def second = new Compiler(backend, cache).compile(parser.parse("var p = 1; map({ p,10 }, y -> (y*2.0))"))
+        def third = new Compiler(backend, cache).compile(parser.parse("var p = 1; map({p, 10}, y -> y*2)"))
+
+        assert first[1].@exprFunction.is(second[1].@exprFunction)
+        assert !first[1].@exprFunction.is(third[1].@exprFunction)
+        assert 0 < cache.hitCount
+    }
+
+    @Test
+    void "simplifies constants and identities"() {
+        def cache = new FunctionCache()
+        def first = new Compiler(backend, cache).compile(parser.parse("var a = 1; map({a, 2^4}, x -> x * 2^3 + 0)"))
+        def second = new Compiler(backend, cache).compile(parser.parse("var p = 1; map({p, 16}, y -> -(-y) * 8)"))
+
+        assert first[1].@exprFunction.is(second[1].@exprFunction)
+    }
+
+    @Test
+    void "hoists invariants out of lambdas"() {
+        def cache = new FunctionCache()
+        new Compiler(backend, cache).compile(parser.parse("map({1, 3}, x -> x * reduce({0, 1000}, 0, a b -> a + b))"))
+        assert cache.hitCount == 0
+
+        /* The invariants differ, yet both lambdas multiply the argument by a captured value. */
+        new Compiler(backend, cache).compile(parser.parse("map({1, 3}, y -> y * reduce({0, 10}, 0, a b -> b + a))"))
+        assert cache.hitCount == 1
+    }
+
+    @Test
+    void "shares repeated sub-expressions through hidden variables"() {
+        def stmts = compile("var xs = map({1, 5}, x -> x * 2); var s = reduce(xs, 0, a b -> a + b); " +
+                "print reduce(xs, 0, c d -> c + d) / 2")
+        assert 4 == stmts.size()
+        def hidden = stmts[1].outputVariable
+        assert !stmts[1].shouldPrintResult()
+        assert [hidden] == stmts[2].inputVariables
+        assert [hidden] == stmts[3].inputVariables
+        assert stmts[3].shouldPrintResult()
+
+        /* Both reductions fuse with their mappings. */
+        assert 2 == compile("print reduce(map({1, 5}, x -> x * 2), 0, a b -> a + b); " +
+                "print reduce(map({1, 5}, y -> y * 2), 1, a b -> a * b)").size()
+    }
+
+    @Test
+    void "finds the last uses of variables"() {
+        def stmts = compile("var a = 1; var b = a + 1; var c = b * 2; print a + b")
+        def (a, b, c, printed) = stmts*.outputVariable
+        assert [] == stmts[0].deadVariables
+        assert [] == stmts[1].deadVariables
+        assert [c] == stmts[2].deadVariables
+        assert [printed, a, b] as Set == stmts[3].deadVariables as Set
+        assert printed.synthetic && !a.synthetic
+    }
+
+    @Test
+    void "fingerprints statements by their source and inputs"() {
+        def fingerprints = { String source -> new Compiler(backend).compile(parser.parse(source))*.fingerprint }
+
+        def original = fingerprints("var n = 10; var xs = map({1, n}, x -> x * 2); print reduce(xs, 0, a b -> a + b)")
+        assert original == fingerprints("var n = 10;  var ys = map({1, n}, y -> (y*2)); print reduce(ys, 0, c d -> c+d)")
+
+        def changed = fingerprints("var n = 20; var xs = map({1, n}, x -> x * 2); print reduce(xs, 0, a b -> a + b)")
+        assert changed.every { !(it in original) }
+        assert [null] == fingerprints('out "done"')
+    }
+
+    @Test
+    void "shares classes of identical lambdas"() {
+        def bytecodeBackend = new BytebuddyBackendImpl()
+        def bytecodeCompiler = new Compiler(bytecodeBackend, new FunctionCache())
+        def source = "var s = reduce(map({1, 3}, x -> x * 2), 0, a b -> a + b) + reduce(map({4, 6}, x -> x * 2), 0, a b -> a + b)"
+
+        bytecodeCompiler.compile(parser.parse(source))
+        /* The evaluable, the function, and a single class for each distinct lambda. */
+        assert 4 == bytecodeBackend.arena.loadedClassCount
+
+        new Compiler(bytecodeBackend, bytecodeCompiler.@exprBuilder.@functionCache).compile(parser.parse(source))
+        assert 4 == bytecodeBackend.arena.loadedClassCount
+    }
+
+    @Test
+    void "evicts and unloads classes of discarded programs"() {
+        def arena = new ClassLoaderArena(BytebuddyBackendImpl.classLoader, 2, Long.MAX_VALUE)
+        def bytecodeBackend = new BytebuddyBackendImpl(false, arena)
+        def evictedCount = 0
+        arena.addEvictionListener { evictedCount++ }
+
+        for (i in 1..4) {
+            new Compiler(bytecodeBackend).compile(parser.parse("var a = $i + 1"))
+        }
+        assert 8 == arena.loadedClassCount
+        assert 3 == arena.evictedRegionCount
+        assert 3 == evictedCount
+        assert 2 == arena.retainedClassCount
+
+        for (int attempt = 0; attempt < 10 && arena.unloadedClassCount < 8; attempt++) {
+            System.gc()
+            Thread.sleep(10)
+        }
+        assert 8 == arena.unloadedClassCount
+        assert 0 == arena.regionCount
+        assert 0 < ClassLoaderArena.metaspaceUsed
+    }
+
+    @Test
+    void "compiles hot lambdas of the tiered backend"() {
+        def tieredBackend = new TieredBackendImpl(1000, { it.run() } as Executor)
+        def tieredCompiler = new Compiler(tieredBackend, new FunctionCache())
+        def interpreter = new Interpreter(new ForkJoinRuntime())
+        def source = "reduce(map({1, 100000}, x -> x^2 / 3), 0, a b -> a + b)"
+
+        assert (1L..100000L).sum { (it * it).intdiv(3) } == interpreter.exec(tieredCompiler.compile(parser.parse(source)))
+        /* Both lambdas got hot in the middle of the first run. */
+        assert 2 == tieredBackend.compiledLambdaCount
+
+        assert 10100L == interpreter.exec(tieredCompiler.compile(parser.parse("reduce({1, 100}, 0, a b -> a + b * 2)")))
+        assert 2 == tieredBackend.compiledLambdaCount
+
+        interpreter.exec(tieredCompiler.compile(parser.parse(source)))
+        assert 2 == tieredBackend.compiledLambdaCount
+    }
+
     @Test
     void "compiles lambdas within map/reduce expressions"() {
         assert compile("map({1,2}, a -> a^2)")
@@ -0,0 +1,150 @@
+package com.abusalimov.mrcalc
+
+import com.abusalimov.mrcalc.runtime.ArithmeticKernel
+import com.abusalimov.mrcalc.runtime.CancellationToken
+import com.abusalimov.mrcalc.runtime.ParallelMode
+import com.abusalimov.mrcalc.runtime.RangeFold
+import com.abusalimov.mrcalc.runtime.Runtime
+import com.abusalimov.mrcalc.runtime.impl.forkjoin.ForkJoinRuntime
+import com.abusalimov.mrcalc.runtime.impl.stream.DoubleArraySequence
+import com.abusalimov.mrcalc.runtime.impl.stream.LongArraySequence
+import com.abusalimov.mrcalc.runtime.impl.stream.StreamRuntime
+import org.junit.Test
+
+import static groovy.test.GroovyAssert.shouldFail
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.BinaryOperator
+import java.util.function.DoubleBinaryOperator
+import java.util.function.LongBinaryOperator
+
+/**
+ * @author Eldar Abusalimov
+ */
+class ForkJoinRuntimeTest {
+    private static final List<Long> GRAIN_SIZES = [1L, 3L, 7L, 1024L, Long.MAX_VALUE]
+
+    private Runtime reference = new StreamRuntime(false)
+
+    private static List<ForkJoinRuntime> runtimes() {
+        GRAIN_SIZES.collect { new ForkJoinRuntime(ForkJoinPool.commonPool(), it) }
+    }
+
+    @Test
+    void "test grain size must be positive"() {
+        shouldFail IllegalArgumentException, { new ForkJoinRuntime(ForkJoinPool.commonPool(), 0) }
+        assert ForkJoinRuntime.DEFAULT_GRAIN_SIZE == new ForkJoinRuntime().grainSize
+    }
+
+    @Test
+    void "test map and reduce agree with the stream runtime"() {
+        def sources = [
+                { Runtime r -> r.createLongRange(0, 0) },
+                { Runtime r -> r.createLongRange(0, 1) },
+                { Runtime r -> r.createLongRange(-5, 17) },
+                { Runtime r -> r.createLongRange(0, 5000) },
+                { Runtime r -> new LongArraySequence((0..2999).collect { it * 7 % 13 } as long[]) },
+        ]
+        LongBinaryOperator add = { a, b -> a + b }
+        DoubleBinaryOperator addDouble = { a, b -> a + b }
+        BinaryOperator<List> concat = { a, b -> a + b }
+
+        for (ForkJoinRuntime runtime : runtimes()) {
+            for (def source : sources) {
+                def seq = source(runtime)
+                def expected = source(reference)
+
+                assert reference.reduceLong(expected, 0, add) == runtime.reduceLong(seq, 0, add)
+                assert reference.reduceLongSum(expected, 0, add) == runtime.reduceLongSum(seq, 0, add)
+
+                def squares = runtime.mapLongToLong(seq, { it * it })
+                assert reference.mapLongToLong(expected, { it * it }) == squares
+                def kernel = ArithmeticKernel.OfLong.forProgram("x 3 / x -")
+                assert reference.mapLongToLong(expected, { it.intdiv(3) - it }) ==
+                       runtime.mapLongToLongKernel(seq, { it.intdiv(3) - it }, kernel)
+                /* Map over a sequence that is not array-backed. */
+                def halves = runtime.mapLongToDouble(seq, { it / 2.0d })
+                assert halves instanceof DoubleArraySequence
+                assert reference.mapLongToDouble(expected, { it / 2.0d }) == halves
+                assert reference.reduceDouble(reference.mapLongToDouble(expected, { it / 2.0d }), 0, addDouble) ==
+                       runtime.reduceDouble(halves, 0, addDouble)
+                assert reference.mapDoubleToLong(halves, { (long) it }) == runtime.mapDoubleToLong(halves, { (long) it })
+
+                /* The order of elements must be preserved by a non-commutative reduction. */
+                def singletons = runtime.mapLongToObject(seq, { [it] })
+                assert expected.toList() == runtime.reduce(singletons, [], concat)
+            }
+        }
+    }
+
+    @Test
+    void "test reduce over a large range"() {
+        LongBinaryOperator xor = { a, b -> a ^ b }
+        for (ForkJoinRuntime runtime : runtimes().findAll { it.grainSize > 1000 }) {
+            assert 0L == runtime.reduceLong(runtime.createLongRange(0, 1L << 20), 0, xor)
+            assert 0L == runtime.reduceLongRange(0, 1L << 20, 0, { long acc, long start, int count ->
+                for (int k = 0; k < count; k++) {
+                    acc ^= start + k
+                }
+                acc
+            } as RangeFold.OfLong, xor)
+        }
+        assert 2000000001000000000L ==
+               new ForkJoinRuntime().reduceLongSum(new ForkJoinRuntime().createLongRange(1, 2000000001), 0, { a, b -> a + b })
+    }
+
+    @Test
+    void "test cancellation"() {
+        def token = new CancellationToken()
+        def runtime = new ForkJoinRuntime(ForkJoinPool.commonPool(), 1024, token)
+        def seq = runtime.createLongRange(0, 1000000)
+
+        AtomicInteger calls = new AtomicInteger()
+        shouldFail CancellationException, {
+            runtime.mapLongToLong(seq, {
+                if (calls.incrementAndGet() == 1000) {
+                    token.cancel()
+                }
+                it
+            })
+        }
+        assert calls.get() < 1000000
+
+        shouldFail CancellationException, { runtime.reduceLong(seq, 0, { a, b -> a + b }) }
+    }
+
+    @Test
+    void "test deadline stops a sequential task"() {
+        def token = new CancellationToken()
+        def runtime = new ForkJoinRuntime(ForkJoinPool.commonPool(), Long.MAX_VALUE, token)
+
+        token.setDeadline(TimeUnit.MILLISECONDS.toNanos(50))
+        shouldFail CancellationException, {
+            runtime.reduceLong(runtime.createLongRange(0, Long.MAX_VALUE), 0, { a, b -> a ^ b })
+        }
+    }
+
+    @Test
+    void "test adaptive mode runs cheap operations in the calling thread"() {
+        def pool = new ForkJoinPool(2)
+        try {
+            def runtime = new ForkJoinRuntime(pool, 1, ParallelMode.ADAPTIVE, CancellationToken.NONE)
+            def caller = Thread.currentThread()
+            Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>())
+            def seq = runtime.createLongRange(0, 1000)
+            LongBinaryOperator add = { a, b -> threads.add(Thread.currentThread()); a + b }
+
+            assert 499500L == runtime.withCostHint(1).reduceLong(seq, 0, add)
+            assert [caller] as Set == threads
+
+            threads.clear()
+            assert 499500L == runtime.withCostHint(1 << 20).reduceLong(seq, 0, add)
+            assert !threads.contains(caller)
+        } finally {
+            pool.shutdown()
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.abusalimov.mrcalc
+
+import com.abusalimov.mrcalc.ast.Node
+import com.abusalimov.mrcalc.parse.Parser
+import com.abusalimov.mrcalc.parse.SyntaxErrorException
+import com.abusalimov.mrcalc.parse.impl.antlr.ANTLRParserImpl
+import com.abusalimov.mrcalc.parse.impl.antlr.IncrementalParserImpl
+import groovy.test.GroovyAssert
+
+/**
+ * Runs the {@link ParserTest} against the {@link IncrementalParserImpl}, and checks that parsing an edited source
+ * gives the same AST as parsing it from scratch.
+ *
+ * @author Eldar Abusalimov
+ */
+class IncrementalParserTest extends ParserTest {
+    @Override
+    protected Parser createParser() {
+        new IncrementalParserImpl()
+    }
+
+    static def describe(Node node) {
+        def location = node.location
+        [node.class.simpleName, location.lineNumber, location.columnNumber,
+         location.startOffset, location.endOffset, node.children.findAll().collect { describe it }]
+    }
+
+    void assertParsesAsWhole(String s) {
+        def expected
+        try {
+            expected = new ANTLRParserImpl().parse(s).stmts.collect { describe it }
+        } catch (SyntaxErrorException ignored) {
+            GroovyAssert.shouldFail(SyntaxErrorException) { parser.parse s }
+            return
+        }
+        assert parse(s).stmts.collect { describe it } == expected
+    }
+
+    void testParsesEditsAsWhole() {
+        def sources = [
+                "var x = 1\nvar y = x + 2; print y\nout \"a;b\"\n",
+                "var x = 1\nvar y = x + 2; print y\nout \"a;b\"\nprint y * 3",
+                "var x = 1\nvar yy = x + 2; print yy\nout \"a;b\"\nprint y * 3",
+                "  var x = 1\nvar yy = x + 2; print yy\nout \"a;b\"\nprint y * 3",
+                "  var x = 1\n\n\nvar yy = x + 2; print yy\nout \"a;b\"\nprint y * 3",
+                "  var x = 1\n\n\nvar yy = x + 2; print yy\nout \"a;\\\nb\"\nprint y * 3",
+                "  var x = 1\n\n\nvar yy = x + 2; print yy\nout \"a\nb\"\nprint y * 3",
+                "  var x = 1\n\n\nvar yy = x + 2; print yy\nout \"a\\nb\"\nprint y * 3",
+                "var x = {1, 10}\nprint map(x, a -> a ^ 2); print reduce(x, 0, a b -> a + b)",
+                "var x = {1, 10}\nprint map(x, a -> a ^ 2); var z = 0; print reduce(x, z, a b -> a + b)",
+                "var x = {1, 10}\n",
+                "",
+                ";;var x = 1;;",
+                "print 0; var x = 1 + (2 *\n 3)",
+                "print 10; var x = 1 + (2 *\n 3)",
+                "print 10; var x = 1 + 2 * 3",
+        ]
+        for (s in sources) {
+            assertParsesAsWhole s
+        }
+    }
+
+    void testReusesUnchangedStatements() {
+        def first = parse("var x = 1\nvar y = 2\nvar z = 3").stmts
+        def second = parse("var x = 1\nvar y = 42\nvar z = 3").stmts
+        assert second[0].is(first[0])
+        assert !second[1].is(first[1])
+        assert second[2].is(first[2])
+
+        def third = parse("print 0\nvar x = 1\nvar y = 42\nvar z = 3").stmts
+        assert third[1].is(first[0])
+        assert third[3].is(first[2])
+        assert third[1].location.lineNumber == 2
+        assert third[1].location.startOffset == 12
+        assert third[3].location.lineNumber == 4
+        assert third[3].location.startOffset == 33
+
+        def fourth = parse("print 10\nvar x = 1\nvar y = 42\nvar z = 3").stmts
+        assert fourth[3].is(first[2])
+        def fifth = parse("print 10; var x = 1\nvar y = 42\nvar z = 3").stmts
+        def sixth = parse("print 100; var x = 1\nvar y = 42\nvar z = 3").stmts
+        assert sixth[1].is(fifth[1])
+        assert sixth[1].location.columnNumber == 15
+        assert sixth[1].location.startOffset == 15
+    }
+
+    void testTracksDelimitersWithinStrings() {
+        parse "out \"a\"\nvar x = 1"
+        GroovyAssert.shouldFail(SyntaxErrorException) { parser.parse "out \"a;var y = 2\nvar x = 1" }
+        def stmts = parse("out \"a;var y = 2\"\nvar x = 1").stmts
+        assert stmts.size() == 2
+        assert stmts[0].string == "a;var y = 2"
+    }
+
+    void testReportsSyntaxErrorsAtAbsoluteLocations() {
+        parse "var x = 1\nvar y = 2\nprint x + y"
+        def e = GroovyAssert.shouldFail(SyntaxErrorException) {
+            parser.parse("var x = 1\nvar y = (2\nprint x + y")
+        } as SyntaxErrorException
+        assert e.diagnostics.size() == 1
+        assert e.diagnostics[0].location.lineNumber == 2
+        assert e.diagnostics[0].location.startOffset == 20
+
+        e = GroovyAssert.shouldFail(SyntaxErrorException) {
+            parser.parse("var w = 0\nvar x = 1\nvar y = (2\nprint x + y")
+        } as SyntaxErrorException
+        assert e.diagnostics[0].location.lineNumber == 3
+        assert e.diagnostics[0].location.startOffset == 30
+
+        assert parse("var w = 0\nvar x = 1\nvar y = (2)\nprint x + y").stmts.size() == 4
+    }
+}
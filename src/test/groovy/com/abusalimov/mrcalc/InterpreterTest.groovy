@@ -1,19 +1,33 @@
 package com.abusalimov.mrcalc
 
 import com.abusalimov.mrcalc.backend.Backend
+import com.abusalimov.mrcalc.backend.impl.asm.AsmBackendImpl
 import com.abusalimov.mrcalc.backend.impl.bytebuddy.BytebuddyBackendImpl
 import com.abusalimov.mrcalc.backend.impl.exprfunc.FuncBackendImpl
+import com.abusalimov.mrcalc.backend.impl.methodhandle.MethodHandleBackendImpl
+import com.abusalimov.mrcalc.backend.impl.tiered.TieredBackendImpl
 import com.abusalimov.mrcalc.compile.Compiler
+import com.abusalimov.mrcalc.compile.UnboundVariableException
 import com.abusalimov.mrcalc.parse.Parser
 import com.abusalimov.mrcalc.parse.impl.antlr.ANTLRParserImpl
 import com.abusalimov.mrcalc.runtime.Runtime
 import com.abusalimov.mrcalc.runtime.RuntimeErrorException
+import com.abusalimov.mrcalc.runtime.impl.forkjoin.ForkJoinRuntime
 import com.abusalimov.mrcalc.runtime.impl.stream.StreamRuntime
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.junit.runners.Parameterized
 
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.LongAdder
+import java.util.function.LongUnaryOperator
+
 import static groovy.test.GroovyAssert.shouldFail
 /**
  * Integration tests including tests for the Interpreter.
@@ -25,17 +39,23 @@ class InterpreterTest {
     private Parser parser
     private Compiler compiler
     private Backend backend
-    private Runtime runtime = new StreamRuntime()
+    private Runtime runtime
     private Interpreter interpreter
 
     @Parameterized.Parameters
     public static Collection<Object[]> data() {
-        [[new FuncBackendImpl()] as Object[],
-         [new BytebuddyBackendImpl<>()] as Object[]]
+        def backends = [new FuncBackendImpl(), new BytebuddyBackendImpl<>(), new BytebuddyBackendImpl<>(true),
+                        new MethodHandleBackendImpl(), new AsmBackendImpl(),
+                        /* A low threshold makes the lambdas of larger sequences get compiled in the middle. */
+                        new TieredBackendImpl(100, { it.run() } as Executor)]
+        /* A tiny grain size makes even the shortest sequences split into several tasks. */
+        def runtimes = [new StreamRuntime(), new ForkJoinRuntime(ForkJoinPool.commonPool(), 3)]
+        [backends, runtimes].combinations()*.toArray()
     }
 
-    InterpreterTest(Backend backend) {
+    InterpreterTest(Backend backend, Runtime runtime) {
         this.backend = backend
+        this.runtime = runtime
     }
 
     @Before
@@ -51,6 +71,30 @@ class InterpreterTest {
         interpreter.exec stmts
     }
 
+    /**
+     * Wraps the runtime to count the calls of the map() lambdas from integers to integers, and the reductions. The
+     * hints letting the runtime map a sequence without calling the lambda are ignored.
+     */
+    static Runtime counting(Runtime runtime, LongAdder longMapperCalls, LongAdder reductions = new LongAdder()) {
+        Proxy.newProxyInstance(Runtime.classLoader, [Runtime] as Class[], { proxy, Method method, Object[] args ->
+            if (method.name == "withCostHint") {
+                return counting(runtime.withCostHint(args[0] as long), longMapperCalls, reductions)
+            }
+            if (method.name.startsWith("mapLongToLong")) {
+                def mapper = args[1] as LongUnaryOperator
+                return runtime.mapLongToLong(args[0], { long x -> longMapperCalls.increment(); mapper.applyAsLong(x) })
+            }
+            if (method.name.startsWith("reduce")) {
+                reductions.increment()
+            }
+            try {
+                return method.invoke(runtime, args)
+            } catch (InvocationTargetException e) {
+                throw e.cause
+            }
+        } as InvocationHandler) as Runtime
+    }
+
     @Test
     void "evaluates literals"() {
         assert 0L == eval("0")
@@ -79,6 +123,19 @@ class InterpreterTest {
         assert Double.POSITIVE_INFINITY == eval("1/.0")
     }
 
+    @Test
+    void "evaluates simplified expressions the same way"() {
+        assert 3072L == eval("2^10 * 3")
+        assert 1L == eval("var one = 1; -(-one) * 1 + 0 - 0")
+        assert Double.NEGATIVE_INFINITY == eval("1 / (0.0 * -1)")
+        /* Adding a zero turns a negative zero into a positive one, so it is not an identity for floats. */
+        assert [Double.POSITIVE_INFINITY] == eval("map(map({1, 1}, x -> x * -0.0), y -> 1 / (y + 0))")
+        assert [Double.NEGATIVE_INFINITY] == eval("map(map({1, 1}, x -> x * -0.0), y -> 1 / (y - 0))")
+
+        shouldFail RuntimeErrorException, { eval "map({1, 3}, x -> x / (1 - 1))" }
+        shouldFail RuntimeErrorException, { eval "0 ^ -1 * 2" }
+    }
+
     @Test
     void "can use variables"() {
         assert 1L == eval("var x = 1; x")
@@ -96,6 +153,19 @@ class InterpreterTest {
         assert 24L == eval("reduce({1,4}, 1, x y -> x*y / reduce({1,1}, 1, x y -> x*y))")
     }
 
+    @Test
+    void "computes sums over ranges in closed form"() {
+        assert 500000000500000000L == eval("reduce({1, 1000000000}, 0, x y -> x + y)")
+        assert 10000000000L == eval("reduce(map({1, 10000000000}, i -> 1), 0, x y -> y + x)")
+        assert 333333833333500000L == eval("reduce(map({1, 1000000}, i -> i*i), 0, x y -> x + y)")
+        assert eval("reduce(map({-30, 300}, i -> 3*i*i - i + 7), 0, x y -> x + y*1)") ==
+                eval("reduce(map({-30, 300}, i -> 3*i*i - i + 7), 0, x y -> x + y)")
+
+        /* Overflows, and the result must still be the same as when summing up one by one. */
+        assert eval("reduce(map(map({-3000000, 3000000}, i -> 2*i + 1), j -> j*j*j*j), 0, x y -> x + y*1)") ==
+                eval("reduce(map(map({-3000000, 3000000}, i -> 2*i + 1), j -> j*j*j*j), 0, x y -> x + y)")
+    }
+
     @Test
     void "can compute map"() {
         assert [1L, 1L, 1L, 1L, 1L, 1L, 1L, 1L, 1L] == eval("map({1,9}, x -> 1)")
@@ -105,6 +175,221 @@ class InterpreterTest {
         assert [2D, 4D, 6D, 8D, 10D, 12D, 14D, 16D, 18D] == eval("map(dSeq, x -> x + x)")
     }
 
+    @Test
+    void "maps arrays with arithmetic kernels"() {
+        eval("var ls = {-3000, 3000}")
+        eval("var ds = map(ls, i -> i / 8.0)")
+
+        /* Power is never turned into a kernel, so x^1 makes an equivalent lambda take the ordinary path. */
+        assert eval("map(ls, x -> (x - 7) / 3 * -x)") == eval("map(ls, x -> (x - 7) / 3 * -x^1)")
+        assert eval("map(ds, x -> 2*x + 1)") == eval("map(ds, x -> 2*x^1 + 1)")
+        assert eval("map(ds, x -> 1 / (x - .5) - -x)") == eval("map(ds, x -> 1 / (x^1 - .5) - -x)")
+        assert [7D] * 6001 == eval("map(ds, x -> 7)")
+
+        shouldFail RuntimeErrorException, { eval "map(ls, x -> x / 0)" }
+        shouldFail RuntimeErrorException, { eval "map(ls, x -> 1 / x)" }
+    }
+
+    @Test
+    void "reduces mapped ranges"() {
+        assert 50005000L == eval("reduce({1, 10000}, 0, a b -> a + b)")
+        assert 2432902008176640000L == eval("reduce({1, 20}, 1, a b -> a * b)")
+        assert (1L..10000L).sum { it * it.intdiv(3) } == eval("reduce(map({1, 10000}, x -> x * (x / 3)), 0, a b -> a + b)")
+        assert 25002500D == eval("reduce(map(map({1, 10000}, x -> x * 0.5), y -> y / 2 * 2), 0.0, a b -> a + b)")
+        assert 55L == eval("reduce(map({1, 10}, x -> reduce(map({1, x}, y -> 1), 0, a b -> a + b)), 0, a b -> a + b)")
+        assert 42L == eval("reduce(map({5, 1}, x -> x / 0), 42, a b -> a + b)")
+
+        shouldFail RuntimeErrorException, { eval "reduce(map({-3, 3}, x -> 1 / x), 0, a b -> a + b)" }
+    }
+
+    @Test
+    void "reports the original messages of errors raised in parallel"() {
+        def e = shouldFail(RuntimeErrorException) {
+            eval "reduce(map({1, 1000}, x -> 1 / (x - 500)), 0, a b -> a + b)"
+        } as RuntimeErrorException
+        assert e.firstDiagnostic.message.contains("/ by zero")
+    }
+
+    @Test
+    void "evaluates lambdas re-entered by nested operations"() {
+        assert (1L..300L).sum { it * (it + 1) } ==
+                eval("reduce(map({1, 300}, x -> reduce(map({1, x}, y -> 2*y), 0, a b -> a + b)), 0, a b -> a + b)")
+        assert ((1L..300L).sum { it * (it + 1) } as double) ==
+                eval("reduce(map({1, 300}, x -> reduce(map({1, x}, y -> y * 2.0), 0.0, a b -> a + b)), 0.0, " +
+                     "a b -> a + b)")
+    }
+
+    @Test
+    void "evaluates invariants of lambdas once per call"() {
+        /* Only these backends capture values, and the rest evaluate the invariants along with the lambdas. */
+        def hoisting = backend instanceof FuncBackendImpl || backend instanceof BytebuddyBackendImpl
+        def reductions = new LongAdder()
+        interpreter = new Interpreter(counting(runtime, new LongAdder(), reductions))
+        def evalReducing = { long expectedReductions, String s ->
+            reductions.reset()
+            def result = eval(s)
+            assert !hoisting || expectedReductions == reductions.sum()
+            result
+        }
+
+        assert [500500L, 1001000L, 1501500L] ==
+                evalReducing(1, "map({1, 3}, x -> x * reduce({0, 1000}, 0, a b -> a + b))")
+        assert [6D, 7D] == evalReducing(1, "map({1, 2}, x -> x + reduce(map({1, 4}, y -> y / 2.0), 0.0, a b -> a + b))")
+        assert [[2D, 4D]] * 3 == eval("map({1, 3}, x -> map({1, 2}, y -> y * 2.0))")
+        assert 60L == evalReducing(2, "reduce(map({1, 4}, x -> x * reduce({1, 3}, 0, a b -> a + b)), 0, a b -> a + b)")
+        /* Only the second reduction is invariant. */
+        assert [7L, 9L] == evalReducing(3, "map({1, 2}, x -> reduce({0, x}, 0, a b -> a + b) + " +
+                "reduce({1, 3}, 1, a b -> a * b))")
+
+        /* An invariant that fails is only evaluated if the lambda is. */
+        assert [] == eval("map({5, 1}, x -> x + 1 / 0)")
+        shouldFail RuntimeErrorException, { eval "map({1, 5}, x -> x + 1 / 0)" }
+    }
+
+    @Test
+    void "evaluates lazy variables read several times once"() {
+        def count = new LongAdder()
+        interpreter = new Interpreter(counting(runtime, count))
+        def sum = (1L..1000L).sum { it.intdiv(3) + it }
+        assert 3 * sum as double == eval("var a = map({1, 1000}, x -> x/3 + x); var s = reduce(a, 0, p q -> p + q); " +
+                "s + reduce(map(a, y -> y * 2.0), 0.0, p q -> p + q)")
+        assert 1000L == count.sum()
+    }
+
+    @Test
+    void "reports errors of lazy variables at their definitions"() {
+        def stmts = compiler.compile(parser.parse("var xs = map({0, 4}, i -> 10 / (i - 2)); var y = 1; print y"))
+        def e = shouldFail(RuntimeErrorException) { interpreter.exec stmts } as RuntimeErrorException
+        assert stmts[0].location == e.firstDiagnostic.location
+
+        stmts = compiler.compile(parser.parse("var ys = map({0, 4}, i -> 10 / (i - 2)); var z = 1; " +
+                "print reduce(ys, z, a b -> a + b)"))
+        e = shouldFail(RuntimeErrorException) { interpreter.exec stmts } as RuntimeErrorException
+        assert stmts[0].location == e.firstDiagnostic.location
+    }
+
+    @Test
+    void "evaluates repeated sub-expressions once"() {
+        assert 40L == eval("var xs = map({1, 4}, x -> x * 2); var s = reduce(xs, 0, a b -> a + b); " +
+                "reduce(xs, 0, c d -> c + d) + s")
+        eval("var ys = map(map({1, 3}, x -> x * 2), y -> y + 1); var zs = map(map({1, 3}, x -> x * 2), z -> z + 1); " +
+                "var ws = map({1, 3}, x -> x * 2)")
+        assert [3L, 5L, 7L] == eval("zs")
+        assert [2L, 4L, 6L] == eval("ws")
+        assert 12D == eval("reduce(map({1, 3}, x -> x + 0.0), 0.0, a b -> a + b) * 2 " +
+                "+ 0 * reduce(map({1, 3}, y -> y + 0.0), 0.0, a b -> a + b)")
+
+        shouldFail RuntimeErrorException, {
+            eval "reduce(map({0, 2}, x -> 1 / x), 0, a b -> a + b) - reduce(map({0, 2}, x -> 1 / x), 0, a b -> a + b)"
+        }
+
+        def count = new LongAdder()
+        interpreter = new Interpreter(counting(runtime, count))
+        def sum = (1L..1000L).sum { it.intdiv(3) + it }
+        assert 5 * sum as double == eval("var us = map(map({1, 1000}, x -> x/3 + x), u -> u * 2.0); " +
+                "var vs = map(map({1, 1000}, x -> x/3 + x), v -> v * 3.0); " +
+                "reduce(us, 0.0, a b -> a + b) + reduce(vs, 0.0, a b -> a + b)")
+        assert 1000L == count.sum()
+    }
+
+    @Test
+    void "stores variables in the slots of the frame"() {
+        def stmts = compiler.compile(parser.parse("var n = 3; var x = n / 2.0; var xs = {1, n}"))
+        interpreter.exec stmts
+        def frame = interpreter.@frame
+        assert 3L == frame.getLong(stmts[0].outputVariable.slot)
+        assert 1.5D == frame.getDouble(stmts[1].outputVariable.slot)
+        assert [1L, 2L, 3L] == frame.getObject(stmts[2].outputVariable.slot)
+        assert 9L == eval("reduce(xs, n, a b -> a + b)")
+    }
+
+    @Test
+    void "releases dead variables according to the retention policy"() {
+        def frame = interpreter.@frame
+        def stmts = compiler.compile(parser.parse("var xs = {1, 3}; print xs; var s = reduce(xs, 0, a b -> a + b)"))
+        assert 6L == interpreter.exec(stmts)
+        assert !frame.isBound(stmts[1].outputVariable.slot)
+        assert [1L, 2L, 3L] == eval("xs")
+
+        interpreter.retentionPolicy = RetentionPolicy.RETAIN_SCALARS
+        assert 15L == eval("var ys = {1, 5}; var t = reduce(ys, 0, a b -> a + b); t")
+        assert 15L == eval("t")
+        shouldFail UnboundVariableException, { eval "ys" }
+
+        interpreter.retentionPolicy = RetentionPolicy.RELEASE_DEAD
+        assert 6L == eval("var zs = {1, 3}; var u = reduce(zs, 0, a b -> a + b); u")
+        shouldFail UnboundVariableException, { eval "u" }
+    }
+
+    @Test
+    void "rematerializes reclaimed sequences"() {
+        def frame = interpreter.@frame
+        interpreter.memoryBudget = 0
+        /* Printing materializes xs, which is charged then. */
+        def stmts = compiler.compile(parser.parse("var xs = map({1, 1000}, x -> x * 2); var ys = map(xs, y -> y + 1); " +
+                "print xs; var zs = map({1, 10}, z -> z * z)"))
+        interpreter.exec stmts
+        def (xs, ys) = stmts*.outputVariable*.slot
+        assert frame.isSoft(xs) && frame.isSoft(ys)
+
+        /* As if the garbage collector has reclaimed them. */
+        frame.@objects[xs].clear()
+        frame.@objects[ys].clear()
+        assert !frame.isBound(ys)
+        assert 1002000L == eval("reduce(ys, 0, a b -> a + b)")
+        assert 1001000L == eval("reduce(xs, 0, a b -> a + b)")
+    }
+
+    @Test
+    void "charges lazy sequences only once materialized"() {
+        def frame = interpreter.@frame
+        interpreter.memoryBudget = 0
+        def stmts = compiler.compile(parser.parse("var xs = map({1, 1000}, x -> x * 2); var ys = map(xs, y -> y + 1); " +
+                "var zs = map({1, 10}, z -> z * z)"))
+        interpreter.exec stmts
+        def (xs, ys) = stmts*.outputVariable*.slot
+        assert !frame.isSoft(xs) && frame.isSoft(ys)
+        assert 0L == frame.getObject(xs).memoryFootprint
+    }
+
+    @Test
+    void "reuses the results of unchanged statements"() {
+        def resultCache = new ResultCache()
+        def run = { String source ->
+            def rerun = new Interpreter(runtime)
+            rerun.resultCache = resultCache
+            rerun.exec(new Compiler(backend).compile(parser.parse(source)))
+        }
+
+        assert 4002000L == run("var xs = map({1, 2000}, x -> x * 2); var s = reduce(xs, 0, a b -> a + b); s")
+        assert 2 == resultCache.size()
+
+        def stmts = new Compiler(backend).compile(parser.parse("var xs = map({1, 2000}, y -> y * 2); var t = " +
+                "reduce(xs, 0, c d -> c + d); t + 1"))
+        resultCache.put(stmts[1].fingerprint, 42L)
+        interpreter.resultCache = resultCache
+        assert 43L == interpreter.exec(stmts)
+
+        assert 12L == run("var xs = map({1, 3}, x -> x * 2); var s = reduce(xs, 0, a b -> a + b); s")
+    }
+
+    @Test
+    void "runs independent statements concurrently"() {
+        def out = new ByteArrayOutputStream()
+        interpreter.outStream = new PrintStream(out, true)
+        interpreter.executor = ForkJoinPool.commonPool()
+
+        assert 2001000L == eval("var a = reduce({1, 1000}, 0, x y -> x + y); var b = reduce({1, 2000}, 0, x y -> x + y); " +
+                "print b; print a; print a + b; b - a + 500500")
+        assert "2001000\n500500\n2501500\n2001000\n" == out.toString().normalize()
+
+        out.reset()
+        shouldFail RuntimeErrorException, { eval "var c = 2; print c; var d = c / 0; var e = c + 1; print e" }
+        assert "2\n" == out.toString().normalize()
+        assert 2L == eval("c")
+        shouldFail UnboundVariableException, { eval "e" }
+    }
+
     @Test
     void "supports variables of any type"() {
         assert 2L == eval("var l = 1 + 1; l")
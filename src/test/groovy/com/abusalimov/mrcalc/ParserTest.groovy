@@ -9,11 +9,15 @@ import com.abusalimov.mrcalc.parse.impl.antlr.ANTLRParserImpl
  * @author Eldar Abusalimov
  */
 class ParserTest extends GroovyTestCase {
-    private Parser parser
+    protected Parser parser
 
     void setUp() {
         super.setUp()
-        parser = new ANTLRParserImpl()
+        parser = createParser()
+    }
+
+    protected Parser createParser() {
+        new ANTLRParserImpl()
     }
 
     def parse(String s) {
@@ -1,12 +1,25 @@
 package com.abusalimov.mrcalc
 
+import com.abusalimov.mrcalc.runtime.ArithmeticKernel
+import com.abusalimov.mrcalc.runtime.CancellationToken
+import com.abusalimov.mrcalc.runtime.ParallelMode
+import com.abusalimov.mrcalc.runtime.RangeFold
 import com.abusalimov.mrcalc.runtime.Runtime
+import com.abusalimov.mrcalc.runtime.impl.stream.DoubleArraySequence
+import com.abusalimov.mrcalc.runtime.impl.stream.LazySequence
+import com.abusalimov.mrcalc.runtime.impl.stream.LongArraySequence
 import com.abusalimov.mrcalc.runtime.impl.stream.StreamRuntime
 import org.junit.Before
 import org.junit.Test
 
+import static groovy.test.GroovyAssert.shouldFail
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.function.BinaryOperator
 import java.util.function.LongBinaryOperator
+import java.util.function.LongConsumer
 
 /**
  * @author Eldar Abusalimov
@@ -29,6 +42,32 @@ class RuntimeTest {
 
     }
 
+    @Test
+    void "test 64-bit ranges"() {
+        def seq = runtime.createLongRange(0, 10000000000L)
+        /* Don't let a failed power assert render the whole sequence. */
+        long longSize = seq.longSize()
+        int size = seq.size()
+        long last = seq.getAsLong(9999999999L)
+        String str = seq.toString()
+        assert 10000000000L == longSize
+        assert Integer.MAX_VALUE == size
+        assert 9999999999L == last
+        assert str.startsWith("[0, 1, 2, 3, 4, 5, 6, (9999999986 more elements)..., 9999999994, ")
+        assert str.endsWith(", 9999999998, 9999999999]")
+
+        long mappedSize = runtime.mapLongToDouble(seq, { it / 2.0d }).longSize()
+        assert 10000000000L == mappedSize
+
+        def spliterator = runtime.createLongRange(Long.MIN_VALUE >> 1, Long.MAX_VALUE >> 1).spliterator()
+        def prefix = spliterator.trySplit()
+        assert prefix.estimateSize() + spliterator.estimateSize() == (Long.MAX_VALUE >> 1) - (Long.MIN_VALUE >> 1)
+        assert Math.abs(prefix.estimateSize() - spliterator.estimateSize()) <= 1
+
+        shouldFail ArithmeticException, { runtime.createLongRange(Long.MIN_VALUE, Long.MAX_VALUE) }
+        assert [] as List<Long> == runtime.createLongRange(Long.MAX_VALUE, Long.MIN_VALUE)
+    }
+
     @Test
     void "test map for longs"() {
         def seq = runtime.createLongRange(0, 4)
@@ -71,6 +110,94 @@ class RuntimeTest {
         assert [] == runtime.reduce(objSeq, [], { a, b -> [] } as BinaryOperator)
     }
 
+    @Test
+    void "test map is lazy and fuses with reduce"() {
+        def seq = runtime.createLongRange(0, 4)
+        def calls = new AtomicInteger()
+
+        def mapped = runtime.mapLongToLong(runtime.mapLongToLong(seq, { calls.incrementAndGet(); it * 2 }), { it + 1 })
+        assert 0 == calls.get()
+        assert 4 == mapped.size()
+
+        assert 16L == runtime.reduceLong(mapped, 0L, { a, b -> a + b } as LongBinaryOperator)
+        assert 4 == calls.get()
+        assert !mapped.materialized
+
+        /* The second traversal evaluates the elements once more and keeps them. */
+        assert 16L == runtime.reduceLong(mapped, 0L, { a, b -> a + b } as LongBinaryOperator)
+        assert mapped.materialized
+        assert [1L, 3L, 5L, 7L] as List<Long> == mapped
+        assert 16L == runtime.reduceLong(mapped, 0L, { a, b -> a + b } as LongBinaryOperator)
+        assert 8 == calls.get()
+    }
+
+    @Test
+    void "test closed-form sums"() {
+        LongBinaryOperator add = { a, b -> a + b } as LongBinaryOperator
+        def calls = new AtomicInteger()
+
+        [[0, 0], [0, 1], [0, 3], [-7, 5], [Long.MAX_VALUE - 10, Long.MAX_VALUE], [-1000, 1000]].each { bounds ->
+            def range = runtime.createLongRange(bounds[0], bounds[1])
+            def cubic = runtime.mapLongToLongPolynomial(range, { calls.incrementAndGet(); it * it * it - 5 * it }, 3)
+            def composed = runtime.mapLongToLongPolynomial(cubic, { 3 * it * it + 1 }, 2)
+
+            [range, cubic, composed].each { seq ->
+                calls.set(0)
+                long sum = runtime.reduceLongSum(seq, 0L, add)
+                assert calls.get() <= 7
+                assert runtime.reduceLong(seq, 0L, add) == sum
+            }
+        }
+
+        long hugeSum = runtime.reduceLongSum(runtime.mapLongToLongPolynomial(
+                runtime.createLongRange(0, 1L << 40), { it * it }, 2), 0L, add)
+        assert hugeSum == new BigInteger(2).pow(40).with { n -> (n - 1) * n * (2 * n - 1) / 6 }.longValue()
+    }
+
+    @Test
+    void "test materialize evaluates nested sequences"() {
+        def seq = runtime.createLongRange(0, 3)
+        def nested = runtime.mapLongToObject(seq, { x -> runtime.mapLongToDouble(runtime.createLongRange(0, x), { it / 2.0d }) })
+
+        def materialized = runtime.materialize(nested)
+        assert materialized.every { !(it instanceof LazySequence) }
+        assert [[], [0.0d], [0.0d, 0.5d]] == materialized
+    }
+
+    @Test
+    void "test primitive accessors"() {
+        def range = runtime.createLongRange(-2, 3)
+        def array = runtime.materialize(runtime.mapLongToLong(range, { it }))
+        def doubles = runtime.materialize(runtime.mapLongToDouble(range, { it / 2.0d }))
+
+        assert -2L == range.getAsLong(0)
+        assert 2L == array.getAsLong(4)
+        assert 1.0d == doubles.getAsDouble(4)
+        shouldFail IndexOutOfBoundsException, { array.getAsLong(5L) }
+
+        long[] longs = new long[7]
+        range.copyInto(1, longs, 2, 3)
+        array.copyInto(0, longs, 5, 2)
+        assert [0L, 0L, -1L, 0L, 1L, -2L, -1L] as long[] == longs
+        shouldFail IndexOutOfBoundsException, { range.copyInto(3, longs, 0, 3) }
+
+        double[] doubleArray = new double[5]
+        doubles.copyInto(0, doubleArray, 0, 5)
+        assert [-1.0d, -0.5d, 0.0d, 0.5d, 1.0d] as double[] == doubleArray
+
+        long sum = 0
+        range.forEachLong({ sum += it } as LongConsumer)
+        assert 0L == sum
+
+        assert range.equals(array) && array.equals(range)
+        assert range.hashCode() == array.hashCode()
+        assert range.hashCode() == [-2L, -1L, 0L, 1L, 2L].hashCode()
+        assert doubles.hashCode() == [-1.0d, -0.5d, 0.0d, 0.5d, 1.0d].hashCode()
+        assert !range.equals(runtime.createLongRange(-2, 2))
+        assert range.toString() == array.toString()
+        assert "[-1.0, -0.5, 0.0, 0.5, 1.0]" == doubles.toString()
+    }
+
     @Test
     void "test reduce for objects"() {
         def objSeq = runtime.mapLongToObject(runtime.createLongRange(0, 4), { [0L] })
@@ -78,4 +205,169 @@ class RuntimeTest {
 
         assert [] == runtime.reduce(objSeq, [], { a, b -> [] } as BinaryOperator)
     }
+
+    @Test
+    void "test cancellation"() {
+        def token = new CancellationToken()
+        def cancellable = new StreamRuntime(true, token)
+        def seq = cancellable.createLongRange(0, 1000000)
+        LongBinaryOperator add = { a, b -> a + b }
+
+        assert 499999500000L == cancellable.reduceLong(seq, 0, add)
+
+        AtomicInteger calls = new AtomicInteger()
+        shouldFail CancellationException, {
+            cancellable.reduceLong(cancellable.mapLongToLong(seq, {
+                if (calls.incrementAndGet() == 1000) {
+                    token.cancel()
+                }
+                it
+            }), 0, add)
+        }
+        /* Splitting stops right away, and so do chunks that haven't started yet. */
+        assert calls.get() < 1000000
+
+        shouldFail CancellationException, { cancellable.reduceLong(seq, 0, add) }
+        shouldFail UnsupportedOperationException, { CancellationToken.NONE.cancel() }
+    }
+
+    @Test
+    void "test deadline stops a sequential traversal"() {
+        def token = new CancellationToken()
+        def sequential = new StreamRuntime(false, token)
+        def seq = sequential.createLongRange(0, Long.MAX_VALUE)
+
+        token.setDeadline(TimeUnit.MILLISECONDS.toNanos(50))
+        def e = shouldFail CancellationException, { sequential.reduceLong(seq, 0, { a, b -> a + b }) }
+        assert "Deadline exceeded" == e.message
+
+        token.clearDeadline()
+        assert 6L == sequential.reduceLong(sequential.createLongRange(0, 4), 0, { a, b -> a + b })
+    }
+
+    @Test
+    void "test adaptive parallel mode weighs size against cost"() {
+        long threshold = ParallelMode.PARALLEL_WORK_THRESHOLD
+        assert !ParallelMode.SEQUENTIAL.isParallel(Long.MAX_VALUE, Long.MAX_VALUE)
+        assert ParallelMode.PARALLEL.isParallel(1, 1)
+        assert !ParallelMode.ADAPTIVE.isParallel(threshold - 1, 1)
+        assert ParallelMode.ADAPTIVE.isParallel(threshold, 1)
+        assert ParallelMode.ADAPTIVE.isParallel(threshold, 0)
+        assert !ParallelMode.ADAPTIVE.isParallel(threshold / 32 as long, 31)
+        assert ParallelMode.ADAPTIVE.isParallel(threshold / 32 as long, 32)
+        assert ParallelMode.ADAPTIVE.isParallel(2, Long.MAX_VALUE)
+        assert ParallelMode.ADAPTIVE.isParallel(Long.MAX_VALUE, Long.MAX_VALUE)
+    }
+
+    @Test
+    void "test cost hints accumulate along a lazy pipeline"() {
+        assert runtime.is(runtime.withCostHint(0))
+        def hinted = runtime.withCostHint(10)
+        assert hinted.is(hinted.withCostHint(10))
+
+        def seq = runtime.createLongRange(0, 100)
+        def mapped = hinted.mapLongToLong(seq, { it * 2 })
+        def remapped = runtime.withCostHint(5).mapLongToDouble(mapped, { it / 2.0d })
+        assert 10L == (mapped as LazySequence).elementCost
+        assert 15L == (remapped as LazySequence).elementCost
+        assert 4950.0d == runtime.withCostHint(1).reduceDouble(remapped, 0.0d, { a, b -> a + b })
+    }
+
+    @Test
+    void "test adaptive runtime keeps small operations in the calling thread"() {
+        def caller = Thread.currentThread()
+        Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>())
+        def seq = runtime.createLongRange(0, 1000)
+        LongBinaryOperator add = { a, b -> threads.add(Thread.currentThread()); a + b }
+
+        assert 499500L == runtime.withCostHint(1).reduceLong(seq, 0, add)
+        assert [caller] as Set == threads
+
+        def sequential = new StreamRuntime(ParallelMode.SEQUENTIAL, CancellationToken.NONE)
+        threads.clear()
+        long hugeCost = Long.MAX_VALUE
+        assert 499500L == sequential.withCostHint(hugeCost).reduceLong(seq, 0, add)
+        assert [caller] as Set == threads
+    }
+
+    @Test
+    void "test arithmetic kernels"() {
+        def longKernel = ArithmeticKernel.OfLong.forProgram("x 7 - 3 / x neg *")
+        def doubleKernel = ArithmeticKernel.OfDouble.forProgram("2.0 x * 1.5 - 1.0 x / +")
+        assert longKernel.is(ArithmeticKernel.OfLong.forProgram("x 7 - 3 / x neg *"))
+
+        for (int length : [0, 1, ArithmeticKernel.BLOCK_SIZE - 1, ArithmeticKernel.BLOCK_SIZE, 1000]) {
+            long[] longs = (0..<length).collect { it * 37L - 4999 } as long[]
+            double[] doubles = longs.collect { it / 8.0d } as double[]
+
+            long[] longResult = new long[length + 1]
+            longKernel.apply(longs, 0, longResult, 1, length)
+            assert longs.collect { (it - 7).intdiv(3) * -it } == (longResult as List).drop(1)
+
+            double[] doubleResult = doubles.clone()
+            doubleKernel.apply(doubleResult, 0, doubleResult, 0, length)
+            assert doubles.collect { 2.0d * it - 1.5d + 1.0d / it } == doubleResult as List
+        }
+
+        long[] constant = new long[3]
+        ArithmeticKernel.OfLong.forProgram("2 3 * neg").apply(new long[3], 0, constant, 0, 3)
+        assert [-6L, -6L, -6L] == constant as List
+
+        shouldFail ArithmeticException, {
+            ArithmeticKernel.OfLong.forProgram("x 0 /").apply(new long[1], 0, new long[1], 0, 1)
+        }
+        shouldFail IllegalArgumentException, { ArithmeticKernel.OfLong.forProgram("x +") }
+        shouldFail IllegalArgumentException, { ArithmeticKernel.OfLong.forProgram("x x") }
+        shouldFail IllegalArgumentException, { ArithmeticKernel.OfLong.forProgram("x y +") }
+    }
+
+    @Test
+    void "test kernel map agrees with the mapper"() {
+        def kernel = ArithmeticKernel.OfDouble.forProgram("x x * 0.5 +")
+        def array = new DoubleArraySequence((0..<10000).collect { it / 3.0d } as double[])
+        def mapped = runtime.mapDoubleToDoubleKernel(array, { it * it + 0.5d }, kernel)
+        assert mapped instanceof DoubleArraySequence
+        assert runtime.mapDoubleToDouble(array, { it * it + 0.5d }) as List == mapped as List
+
+        /* Lazy sources are not forced, and the mapper is used instead. */
+        def lazy = runtime.mapLongToLong(runtime.createLongRange(0, 10), { it })
+        def lazyMapped = runtime.mapLongToLongKernel(lazy, { it * 2 }, ArithmeticKernel.OfLong.forProgram("x 2 *"))
+        assert lazyMapped instanceof LazySequence
+        assert (0..<10).collect { it * 2L } == lazyMapped as List
+
+        def longs = new LongArraySequence([1L, 2L, 3L] as long[])
+        assert [3L, 5L, 7L] == runtime.mapLongToLongKernel(longs, { 2 * it + 1 },
+                ArithmeticKernel.OfLong.forProgram("x 2 * 1 +")) as List
+    }
+
+    @Test
+    void "test range folds visit each element once and in order"() {
+        RangeFold.OfLong fold = { long acc, long start, int count ->
+            assert count <= RangeFold.CHUNK_SIZE
+            for (int k = 0; k < count; k++) {
+                acc = acc * 31 + (start + k)
+            }
+            acc
+        } as RangeFold.OfLong
+        long expected = 7
+        for (long i = -5000; i <= 5000; i++) {
+            expected = expected * 31 + i
+        }
+
+        def sequential = new StreamRuntime(false)
+        assert expected == sequential.reduceLongRangeInclusive(-5000, 5000, 7, fold, { a, b -> a * 31 + b })
+        assert 7L == sequential.reduceLongRange(1, 1, 7, fold, { a, b -> a * 31 + b })
+        assert 7L == sequential.reduceLongRange(2, -2, 7, fold, { a, b -> a * 31 + b })
+
+        /* Chunks folded in parallel start from the identity and get combined with the reduction lambda. */
+        RangeFold.OfDouble sum = { double acc, long start, int count ->
+            for (int k = 0; k < count; k++) {
+                acc += start + k
+            }
+            acc
+        } as RangeFold.OfDouble
+        def parallel = new StreamRuntime(true)
+        assert 50005000D == parallel.reduceDoubleRangeInclusive(1, 10000, 0.0d, sum, { a, b -> a + b })
+        assert 0D == parallel.reduceDoubleRange(0, 0, 0.0d, sum, { a, b -> a + b })
+    }
 }